@@ -17,6 +17,7 @@ import javax.crypto.spec.SecretKeySpec;
 
 import org.slf4j.LoggerFactory;
 
+import com.acrescrypto.zksync.utility.MetricsRegistry;
 import com.acrescrypto.zksync.utility.Util;
 
 import org.slf4j.Logger;
@@ -42,6 +43,20 @@ public class CryptoSupport {
 	
 	private int maxSimultaneousArgon2;
 	protected int activeSimultaneousArgon2;
+	
+	protected final static MetricsRegistry.Histogram
+		encryptTimer = opTimer("encrypt"),
+		decryptTimer = opTimer("decrypt"),
+		cipherTimer  = opTimer("cipher"),
+		hashTimer    = opTimer("hash"),
+		hmacTimer    = opTimer("hmac"),
+		argon2Timer  = opTimer("argon2");
+	
+	protected static MetricsRegistry.Histogram opTimer(String op) {
+		return MetricsRegistry.sharedInstance().histogram("zksync_crypto_op_seconds",
+				"Time spent in cryptographic operations",
+				"op", op);
+	}
 
 	public static CryptoSupport defaultCrypto() {
 		return new CryptoSupport();
@@ -88,7 +103,7 @@ public class CryptoSupport {
 				memory,
 				parallelism,
 				hashLen);
-		long startTs = System.currentTimeMillis();
+		long startTs = System.currentTimeMillis(), startNs = MetricsRegistry.startTimer();
 		int result = Argon2Library.INSTANCE.argon2i_hash_raw(
 				iterations,
 				memory, 
@@ -101,6 +116,7 @@ public class CryptoSupport {
 				new Size_t(hashLen.intValue())
 				);
 		
+		argon2Timer.observeSince(startNs);
 		logger.info("argon2 calculation complete; elasped time = {}ms, result = {} (want 0)",
 				System.currentTimeMillis() - startTs,
 				result);
@@ -119,11 +135,17 @@ public class CryptoSupport {
 	}
 
 	public byte[] hash(byte[] data) {
-		return startHash().update(data).finish();
+		long startNs = MetricsRegistry.startTimer();
+		byte[] digest = startHash().update(data).finish();
+		hashTimer.observeSince(startNs);
+		return digest;
 	}
 
 	public byte[] hash(byte[] data, int offset, int length) {
-		return startHash().update(data, offset, length).finish();
+		long startNs = MetricsRegistry.startTimer();
+		byte[] digest = startHash().update(data, offset, length).finish();
+		hashTimer.observeSince(startNs);
+		return digest;
 	}
 
 	public byte[] authenticate(byte[] key, byte[] data) {
@@ -134,6 +156,7 @@ public class CryptoSupport {
 		// HMAC, per RFC 2104
 		/* We're using HMAC since some standards (e.g. noise) explicitly call for the use of
 		 * HMAC in place of an algorithm-specific keyed hash, as supported in BLAKE2b. */
+		long startNs = MetricsRegistry.startTimer();
 		int blockSize = HashContext.BLOCK_SIZE;
 
 		byte[] ipad = new byte[blockSize], opad = new byte[blockSize];
@@ -159,7 +182,9 @@ public class CryptoSupport {
 		HashContext outer = startHash();
 		outer.update(xor(key, opad));
 		outer.update(inner.finish());
-		return outer.finish();
+		byte[] tag = outer.finish();
+		hmacTimer.observeSince(startNs);
+		return tag;
 	}
 	
 	public byte[] expandAndDestroy(byte[] ikm, int length, byte[] salt, byte[] info) {
@@ -298,6 +323,7 @@ public class CryptoSupport {
 	}
 
 	protected static byte[] processAEADCipher(boolean encrypt, int tagLen, byte[] keyBytes, byte[] nonce, byte[] in, int inOffset, int inLen, byte[] ad, int adOffset, int adLen) throws IllegalStateException {
+		long startNs = MetricsRegistry.startTimer();
 		try {
 			if(nonce.length < 12) {
 				byte[] newNonce = new byte[12];
@@ -314,6 +340,7 @@ public class CryptoSupport {
 			if(ad != null) cipher.updateAAD(ad, adOffset, adLen);
 			if(in != null) offset += cipher.update(in, inOffset, inLen, out, 0);
 			cipher.doFinal(out, offset);
+			(encrypt ? encryptTimer : decryptTimer).observeSince(startNs);
 			return out;
 		} catch(BadPaddingException exc) {
 			throw new SecurityException(exc);
@@ -324,6 +351,7 @@ public class CryptoSupport {
 	}
 
 	protected static byte[] processOrdinaryCipher(boolean encrypt, byte[] keyBytes, byte[] nonce, byte[] in, int offset, int length) throws IllegalStateException {
+		long startNs = MetricsRegistry.startTimer();
 		try {
 			if(nonce.length < 12) {
 				byte[] newNonce = new byte[12];
@@ -338,6 +366,7 @@ public class CryptoSupport {
 			byte[] out = new byte[cipher.getOutputSize(length)];
 			cipher.update(in, offset, length, out, 0);
 			cipher.doFinal(out, offset);
+			cipherTimer.observeSince(startNs);
 			return out;
 		} catch(BadPaddingException exc) {
 			throw new SecurityException(exc);
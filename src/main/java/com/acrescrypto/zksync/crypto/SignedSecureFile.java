@@ -111,20 +111,29 @@ public class SignedSecureFile {
 	}
 	
 	public StorageTag write(byte[] plaintext, int padSize) throws IOException {
+		return store(seal(plaintext, padSize));
+	}
+	
+	/** Encrypt and sign plaintext, as write() would, without storing it anywhere. Safe to call from any thread. */
+	public byte[] seal(byte[] plaintext, int padSize) {
 		assert(privKey != null);
+		// TODO Someday: (refactor) there are a lot of unnecessary buffer copies here...
+		
+		byte[] salt = saltKey.authenticate(plaintext);
+		Key encKey = textKey.derive("easysafe-file-encryption", salt);
+		byte[] ciphertext = encKey.encrypt(fixedIV(), plaintext, padSize);
+		byte[] result = new byte[salt.length + ciphertext.length + privKey.crypto.asymSignatureSize()];
+		
+		System.arraycopy(salt, 0, result, 0, salt.length);
+		System.arraycopy(ciphertext, 0, result, salt.length, ciphertext.length);
+		byte[] signature = privKey.sign(result, 0, salt.length + ciphertext.length);
+		System.arraycopy(signature, 0, result, salt.length + ciphertext.length, signature.length);
+		return result;
+	}
+	
+	/** Write the output of seal() to storage, returning its tag. */
+	public StorageTag store(byte[] result) throws IOException {
 		try {
-			// TODO Someday: (refactor) there are a lot of unnecessary buffer copies here...
-			
-			byte[] salt = saltKey.authenticate(plaintext);
-			Key encKey = textKey.derive("easysafe-file-encryption", salt);
-			byte[] ciphertext = encKey.encrypt(fixedIV(), plaintext, padSize);
-			byte[] result = new byte[salt.length + ciphertext.length + privKey.crypto.asymSignatureSize()];
-			
-			System.arraycopy(salt, 0, result, 0, salt.length);
-			System.arraycopy(ciphertext, 0, result, salt.length, ciphertext.length);
-			byte[] signature = privKey.sign(result, 0, salt.length + ciphertext.length);
-			System.arraycopy(signature, 0, result, salt.length + ciphertext.length, signature.length);
-			
 			tag = new StorageTag(authKey.getCrypto(), authKey.authenticate(result));
 			try {
 				Stat stat = fs.stat(path());
@@ -135,7 +144,7 @@ public class SignedSecureFile {
 				}
 			} catch(ENOENTException exc) {}
 			
-			fs.write(path(), result);
+			fs.writeAtomic(path(), result);
 			
 			/* There's something to be said for squashing the file access times on these.
 			 * But, it's hard to make concrete statements about the security benefits of this --
@@ -281,6 +281,28 @@ public abstract class FS implements AutoCloseable {
         squash(path);
     }
 
+    /** Write a whole file such that readers, and the file after a crash mid-write, see either the old contents or the
+     * new ones and never a mix. Meant for page storage, where each file is written once under a name derived from its
+     * contents. Whatever was at the path, including a link, is replaced rather than written through. */
+    public void writeAtomic(String path, byte[] contents) throws IOException {
+        write(path, contents);
+    }
+
+    /** Start a write batch on this thread, so that writeAtomic calls can be made durable with one sync barrier rather
+     * than one per file. Batches nest. */
+    public void beginWriteBatch() {
+    }
+
+    /** End a batch started with beginWriteBatch. Ending this thread's outermost batch doesn't return until everything
+     * written to this FS with writeAtomic, on any thread and including before the batch began, has reached stable
+     * storage. */
+    public void endWriteBatch() throws IOException {
+    }
+
+    /** Remove whatever interrupted writeAtomic calls left behind. Meant for startup, before anything writes. */
+    public void removeAbandonedTemporaries() throws IOException {
+    }
+
     public byte[] safeRead(String path) throws IOException {
         String safety = path + ".safety";
         if(exists(safety) && stat(path).getMtime() > 0) return read(safety);
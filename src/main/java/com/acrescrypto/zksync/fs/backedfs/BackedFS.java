@@ -1,11 +1,18 @@
 package com.acrescrypto.zksync.fs.backedfs;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.acrescrypto.zksync.exceptions.ClosedException;
 import com.acrescrypto.zksync.exceptions.EEXISTSException;
 import com.acrescrypto.zksync.exceptions.ENOENTException;
 import com.acrescrypto.zksync.exceptions.SwarmTimeoutException;
@@ -15,7 +22,6 @@ import com.acrescrypto.zksync.fs.File;
 import com.acrescrypto.zksync.fs.Stat;
 import com.acrescrypto.zksync.fs.TimedReader;
 import com.acrescrypto.zksync.fs.swarmfs.SwarmFS;
-import com.acrescrypto.zksync.utility.Util;
 
 /** This is written, and partially tested, as a generic FS. In truth, there are some MAJOR gaps.
  * Because right now BackedFS only has one use case, and that's to pair a LocalFS to a SwarmFS to retrieve pages,
@@ -36,11 +42,13 @@ public class BackedFS extends FS {
 	protected FS backupFS; // This is where we go to look for data we don't have.
 	protected final Logger logger = LoggerFactory.getLogger(BackedFS.class);
 
-	HashSet<String> pendingPaths = new HashSet<String>();
+	protected CacheManager cache; // decides what we can evict from cacheFS, and when
+	protected ConcurrentHashMap<String,CompletableFuture<Void>> pendingFetches = new ConcurrentHashMap<>(); // futures for fetches in progress, by path
 
 	public BackedFS(FS cacheFS, FS backupFS) {
 		this.cacheFS  = cacheFS;
 		this.backupFS = backupFS;
+		this.cache    = new CacheManager(cacheFS);
 	}
 	
 	@Override
@@ -88,12 +96,15 @@ public class BackedFS extends FS {
 	@Override
 	public void mv(String source, String dest) throws IOException {
 		ensureParentPresent(dest);
+		cache.forget(source);
+		cache.pin(dest);
 		cacheFS.mv(source, dest);
 	}
 	
 	@Override
 	public void cp(String source, String dest) throws IOException {
 		ensureParentPresent(dest);
+		cache.pin(dest);
 		cacheFS.cp(source, dest);
 	}
 
@@ -122,6 +133,7 @@ public class BackedFS extends FS {
 	@Override
 	public void unlink(String path) throws IOException {
 		ensureParentPresent(path);
+		cache.forget(path);
 		cacheFS.unlink(path);
 	}
 
@@ -219,17 +231,66 @@ public class BackedFS extends FS {
 	@Override
 	public void write(String path, byte[] contents, int offset, int length) throws IOException {
 		ensureParentPresent(path);
+		cache.pin(path);
 		cacheFS.write(path, contents, offset, length);
 	}
+	
+	@Override
+	public void writeAtomic(String path, byte[] contents) throws IOException {
+		ensureParentPresent(path);
+		cache.pin(path);
+		cacheFS.writeAtomic(path, contents);
+	}
+	
+	/** Write a page we got from elsewhere, e.g. from the swarm, so that the cache manager may evict it later. A page
+	 * we already had pinned, e.g. because a local commit wrote it, stays pinned. */
+	public void writeRefetchable(String path, byte[] contents) throws IOException {
+		ensureParentPresent(path);
+		boolean pinned = cache.isPinned(path);
+		cache.invalidate(path);
+		cacheFS.writeAtomic(path, contents);
+		if(!pinned) cache.addRefetchable(path, contents.length);
+	}
+	
+	@Override
+	public void beginWriteBatch() {
+		cacheFS.beginWriteBatch();
+	}
+	
+	@Override
+	public void endWriteBatch() throws IOException {
+		cacheFS.endWriteBatch();
+	}
+	
+	@Override
+	public void removeAbandonedTemporaries() throws IOException {
+		cacheFS.removeAbandonedTemporaries();
+	}
 
 	@Override
 	public byte[] read(String path) throws IOException {
+		byte[] data = cache.hotRead(path);
+		if(data != null) return data;
+		
 		ensurePresent(path, -1);
-		return cacheFS.read(path);
+		try {
+			data = cacheFS.read(path);
+		} catch(ENOENTException exc) {
+			// evicted between ensurePresent and the read; rare enough to just go again
+			ensurePresent(path, -1);
+			data = cacheFS.read(path);
+		}
+		
+		cache.hotStore(path, data);
+		return data;
 	}
 
 	@Override
 	public File open(String path, int mode) throws IOException {
+		if((mode & File.O_WRONLY) != 0) {
+			cache.pin(path);
+		}
+		
 		if((mode & File.O_TRUNC) == 0) {
 			try {			
 				ensurePresent(path, -1);
@@ -242,11 +303,21 @@ public class BackedFS extends FS {
 			String dn = dirname(path);
 			if(!cacheFS.exists(dn)) mkdirp(dn);
 		}
-		return cacheFS.open(path, mode);
+		
+		try {
+			return cacheFS.open(path, mode);
+		} catch(ENOENTException exc) {
+			if((mode & File.O_CREAT) != 0) throw exc;
+			
+			// evicted between ensurePresent and the open, as in read()
+			ensurePresent(path, -1);
+			return cacheFS.open(path, mode);
+		}
 	}
 
 	@Override
 	public void truncate(String path, long size) throws IOException {
+		cache.pin(path);
 		if(size != 0) {
 			ensurePresent(path, -1);
 		} else {
@@ -261,84 +332,110 @@ public class BackedFS extends FS {
 	 * Wait up to timeoutMs milliseconds. 
 	 * Throw an ENOENTException if no one has the file.
 	 * 
+	 * Only one fetch per path is ever in flight. Anyone else who wants the same path waits on that fetch's future,
+	 * and is woken only when that path is done, then tries again with whatever remains of its own timeout if the
+	 * fetch didn't leave the path in the cache.
+	 * 
 	 * @param path
 	 * @throws IOException
 	 */
 	public void ensurePresent(String path, long timeoutMs) throws IOException {
-		if(!pendingPaths.contains(path) && cacheFS.exists(path, false)) return;
-		long deadline = System.currentTimeMillis() + timeoutMs;
-		synchronized(this) {
-			while(pendingPaths.contains(path)) {
+		if(!pendingFetches.containsKey(path) && cacheFS.exists(path, false)) {
+			cache.touch(path);
+			return;
+		}
+		
+		long deadline = timeoutMs >= 0 ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+		if(deadline < 0) deadline = Long.MAX_VALUE;
+		
+		while(true) {
+			CompletableFuture<Void> fetch = new CompletableFuture<>();
+			CompletableFuture<Void> existing = pendingFetches.putIfAbsent(path, fetch);
+			if(existing == null) {
+				// out of the map before we complete, so that waiters who wake up and go again don't find it there
 				try {
-					long timeoutRemainingMs;
-					if(timeoutMs >= 0) {
-						timeoutRemainingMs = Math.max(deadline - System.currentTimeMillis(), 0);
-						if(timeoutRemainingMs <= 0) {
-							throw new SwarmTimeoutException(path);
-						}
-					} else {
-						timeoutRemainingMs = Long.MAX_VALUE;
-					}
-					
-					if(timeoutRemainingMs > 0) {
-						this.wait(timeoutRemainingMs);
-					} else if(timeoutMs == 0) {
-						throw new SwarmTimeoutException(path);
-					} else {
-						this.wait();
-					}
-				} catch (InterruptedException e) {}
+					fetch(path, deadline);
+					pendingFetches.remove(path, fetch);
+					fetch.complete(null);
+				} catch(IOException|RuntimeException exc) {
+					pendingFetches.remove(path, fetch);
+					fetch.completeExceptionally(exc);
+					throw exc;
+				}
+				
+				return;
 			}
 			
-			pendingPaths.add(path);
+			awaitFetch(path, existing, deadline);
+			if(cacheFS.exists(path, false)) return;
+		}
+	}
+	
+	/** Stop waiting for a path. Anyone blocked on it in ensurePresent gets a ClosedException; the fetch itself
+	 * carries on, and its result is kept if it arrives. */
+	public void cancelFetch(String path) {
+		CompletableFuture<Void> fetch = pendingFetches.remove(path);
+		if(fetch != null) fetch.cancel(false);
+	}
+	
+	/** Stop waiting for every path currently being fetched, e.g. because the archive is closing. */
+	public void cancelPendingFetches() {
+		for(String path : pendingFetches.keySet()) {
+			cancelFetch(path);
 		}
+	}
+	
+	public int numPendingFetches() {
+		return pendingFetches.size();
+	}
+	
+	protected void fetch(String path, long deadline) throws IOException {
+		if(cacheFS.exists(path)) return;
 		
+		Stat stat = backupFS.stat(path);
+		long timeoutRemainingMs;
+		if(deadline != Long.MAX_VALUE) {
+			timeoutRemainingMs = Math.max(deadline - System.currentTimeMillis(), 0);
+		} else {
+			timeoutRemainingMs = Long.MAX_VALUE;
+		}
+		
+		byte[] data;
+		if(backupFS instanceof TimedReader) {
+			data = ((TimedReader) backupFS).read(path, timeoutRemainingMs);
+		} else {
+			data = backupFS.read(path);
+		}
+		
+		// SwarmFS only returns once PeerSwarm has written the page through us into cacheFS, so there's nothing to do
+		if(backupFS instanceof SwarmFS) return;
+		if(!cacheFS.exists(path) || cacheFS.stat(path).getSize() != stat.getSize()) {
+			cacheFS.writeAtomic(path, data);
+			cacheFS.applyStat(path, stat);
+			cache.addRefetchable(path, data.length);
+		}
+	}
+	
+	protected void awaitFetch(String path, CompletableFuture<Void> fetch, long deadline) throws IOException {
 		try {
-			if(!cacheFS.exists(path)) {
-				Stat stat = backupFS.stat(path);
-				long timeoutRemainingMs;
-				if(timeoutMs >= 0) {
-					timeoutRemainingMs = Math.max(deadline - System.currentTimeMillis(), 0);
-				} else {
-					timeoutRemainingMs = Long.MAX_VALUE;
-				}
-				byte[] data;
-				
-				if(backupFS instanceof TimedReader) {
-					data = ((TimedReader) backupFS).read(path, timeoutRemainingMs);
-				} else {
-					data = backupFS.read(path);
-				}
-				
-				if(!cacheFS.exists(path) || cacheFS.stat(path).getSize() != stat.getSize()) {
-					if(!(backupFS instanceof SwarmFS)) {
-						// hacky, but SwarmFS already writes our data, and this becomes redundant, and potentially race-inducing
-						cacheFS.write(path, data);
-						cacheFS.applyStat(path, stat);
-					}
-					
-					boolean settled = Util.waitUntil(1000,
-							()->{
-								try {
-									return cacheFS.stat(path).getSize() == stat.getSize();
-								} catch(IOException exc) {
-									logger.error("BackedFS: Caught exception syncing path {}", path, exc);
-									return false;
-								}
-							});
-					if(!settled) {
-						logger.error("BackedFS: Unable to sync path {}, expected size {}, got {}",
-								path,
-								stat.getSize(),
-								cacheFS.stat(path).getSize());
-					}
-				}
-			}
-		} finally {			
-			synchronized(this) {
-				pendingPaths.remove(path);
-				this.notifyAll();
+			if(deadline == Long.MAX_VALUE) {
+				fetch.get();
+			} else {
+				fetch.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
 			}
+		} catch(TimeoutException exc) {
+			throw new SwarmTimeoutException(path);
+		} catch(InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for " + path);
+		} catch(CancellationException exc) {
+			throw new ClosedException();
+		} catch(ExecutionException exc) {
+			// a timeout is the fetching thread's deadline, not ours, so we go again; anything else applies to us too
+			if(exc.getCause() instanceof SwarmTimeoutException) return;
+			if(exc.getCause() instanceof IOException) throw (IOException) exc.getCause();
+			if(exc.getCause() instanceof RuntimeException) throw (RuntimeException) exc.getCause();
+			throw new RuntimeException(exc.getCause());
 		}
 	}
 	
@@ -366,6 +463,10 @@ public class BackedFS extends FS {
 		return cacheFS;
 	}
 	
+	public CacheManager getCache() {
+		return cache;
+	}
+	
 	public FS getBackupFS() {
 		return backupFS;
 	}
@@ -0,0 +1,390 @@
+package com.acrescrypto.zksync.fs.backedfs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.acrescrypto.zksync.exceptions.ENOENTException;
+import com.acrescrypto.zksync.fs.FS;
+import com.acrescrypto.zksync.fs.File;
+
+/** Keeps a BackedFS's cache within a byte budget.
+ *
+ * Only pages we got from the backup FS are ever evicted, since those are the ones we know we can get again. Anything
+ * else in the cache, including every page written by a local commit and anything that was already there when we
+ * started without a record of where it came from, is pinned: it is never evicted and doesn't count against the budget.
+ * Writing over a refetchable page pins it too.
+ *
+ * Refetchable pages are evicted least recently used first. Which pages are refetchable is kept in an append-only index
+ * file, so that the budget still covers them after a restart; losing the index only means pages get pinned. Compacting
+ * the index replaces it through a temporary file, and keeps the records of evictions the listener hasn't heard about.
+ *
+ * Victims are chosen under our lock, but unlinked and reported to the eviction listener after we let go of it, so that
+ * nobody waits on disk I/O to pin or touch a page. Pinning a page that is still being unlinked waits for the unlink.
+ *
+ * Optionally, a hot tier keeps the most recently read pages in memory, up to its own byte budget, so repeated reads
+ * of the same pages don't go to the cache FS at all.
+ */
+public class CacheManager {
+	public interface EvictionListener {
+		void evicted(String path) throws IOException;
+	}
+
+	public final static char RECORD_REFETCHABLE = '+'; // "+<size> <path>": page can be evicted
+	public final static char RECORD_PINNED      = '-'; // "-<path>": page is pinned or gone, and can't be evicted
+	public final static char RECORD_EVICTED     = 'x'; // "x<path>": page was evicted
+
+	protected FS cacheFS;
+	protected LinkedHashMap<String,Long> refetchable = new LinkedHashMap<>(16, 0.75f, true); // path -> size, least recently used first
+	protected long refetchableBytes;
+	protected HashSet<String> evicting = new HashSet<>(); // chosen for eviction, but not unlinked yet
+	protected HashSet<String> unreported = new HashSet<>(); // evicted, but the listener hasn't been told yet
+	protected long budgetBytes = -1; // negative means unlimited
+
+	protected LinkedHashMap<String,byte[]> hotPages = new LinkedHashMap<>(16, 0.75f, true);
+	protected long hotBytes;
+	protected long hotBudgetBytes; // 0 means no hot tier
+
+	protected File index;
+	protected FS indexFS;
+	protected String indexPath;
+	protected int indexRecords;
+	protected EvictionListener listener;
+	protected Logger logger = LoggerFactory.getLogger(CacheManager.class);
+
+	public CacheManager(FS cacheFS) {
+		this.cacheFS = cacheFS;
+	}
+
+	/** Load the index of refetchable pages from a file, and append to it from now on. Pages the index says were evicted
+	 * are passed to the eviction listener again, in case whoever was listening didn't get to record it last time. */
+	public void openIndex(FS fs, String path) throws IOException {
+		HashSet<String> evicted = new HashSet<>();
+		ArrayList<String> victims;
+		EvictionListener listener;
+		synchronized(this) {
+			readIndex(fs, path, evicted);
+			unreported.addAll(evicted);
+			if(indexRecords > 2*refetchable.size() + 1024) {
+				compactIndex();
+			}
+
+			victims = chooseVictims();
+			listener = this.listener;
+		}
+
+		if(listener != null) {
+			for(String pagePath : evicted) {
+				listener.evicted(pagePath);
+			}
+		}
+
+		synchronized(this) {
+			unreported.removeAll(evicted);
+		}
+
+		evict(victims);
+	}
+
+	protected void readIndex(FS fs, String path, HashSet<String> evicted) throws IOException {
+		closeIndex();
+		fs.mkdirp(fs.dirname(path));
+
+		int records = 0;
+		if(fs.exists(path)) {
+			String text = new String(fs.read(path), StandardCharsets.UTF_8);
+			for(String line : text.split("\n")) {
+				if(line.length() < 2) continue;
+				records++;
+				String body = line.substring(1);
+
+				switch(line.charAt(0)) {
+				case RECORD_REFETCHABLE:
+					int space = body.indexOf(' ');
+					if(space < 0) continue;
+					try {
+						long size = Long.parseLong(body.substring(0, space));
+						String pagePath = body.substring(space+1);
+						putRefetchable(pagePath, size);
+						evicted.remove(pagePath);
+					} catch(NumberFormatException exc) {}
+					break;
+				case RECORD_PINNED:
+					removeRefetchable(body);
+					evicted.remove(body);
+					break;
+				case RECORD_EVICTED:
+					removeRefetchable(body);
+					evicted.add(body);
+					break;
+				}
+			}
+		}
+
+		indexFS = fs;
+		indexPath = path;
+		index = fs.open(path, File.O_RDWR|File.O_CREAT|File.O_APPEND);
+		indexRecords = records;
+	}
+
+	public synchronized void close() {
+		closeIndex();
+		hotPages.clear();
+		hotBytes = 0;
+	}
+
+	public synchronized void setEvictionListener(EvictionListener listener) {
+		this.listener = listener;
+	}
+
+	/** Cap the bytes held by refetchable pages, evicting as needed. Negative for no limit. */
+	public void setBudgetBytes(long budgetBytes) {
+		ArrayList<String> victims;
+		synchronized(this) {
+			this.budgetBytes = budgetBytes;
+			victims = chooseVictims();
+		}
+
+		evict(victims);
+	}
+
+	public synchronized long getBudgetBytes() {
+		return budgetBytes;
+	}
+
+	/** Cap the bytes held in memory by the hot tier. 0 turns the hot tier off. */
+	public synchronized void setHotBudgetBytes(long hotBudgetBytes) {
+		this.hotBudgetBytes = Math.max(0, hotBudgetBytes);
+		trimHotTier();
+	}
+
+	public synchronized long getHotBudgetBytes() {
+		return hotBudgetBytes;
+	}
+
+	/** Record that a page in the cache came from the backup FS and can be fetched again if we evict it. */
+	public void addRefetchable(String path, long size) {
+		ArrayList<String> victims;
+		synchronized(this) {
+			putRefetchable(path, size);
+			appendRecord(RECORD_REFETCHABLE + Long.toString(size) + " " + path);
+			victims = chooseVictims();
+		}
+
+		evict(victims);
+	}
+
+	/** True if a page is in the cache and can't be evicted, e.g. because it was written locally. Checks the cache FS
+	 * without holding our lock. */
+	public boolean isPinned(String path) throws IOException {
+		synchronized(this) {
+			if(refetchable.containsKey(path) || evicting.contains(path)) return false;
+		}
+
+		return cacheFS.exists(path);
+	}
+
+	/** Record that a page must stay in the cache, e.g. because it was written locally. Also drops any copy in the hot
+	 * tier, since pinning means the contents are being written. If the page is being evicted, waits until it's gone,
+	 * so that the eviction can't delete what the caller is about to write. */
+	public synchronized void pin(String path) {
+		boolean interrupted = false;
+		while(evicting.contains(path)) {
+			try {
+				wait();
+			} catch(InterruptedException exc) {
+				interrupted = true; // we still have to wait, or the write could be lost
+			}
+		}
+
+		if(interrupted) Thread.currentThread().interrupt();
+		invalidate(path);
+		if(removeRefetchable(path)) {
+			appendRecord(RECORD_PINNED + path);
+		}
+	}
+
+	/** Record that a page has been removed from the cache by someone else. */
+	public synchronized void forget(String path) {
+		pin(path);
+	}
+
+	/** Note that a page was just used, so that it is evicted later. */
+	public synchronized void touch(String path) {
+		refetchable.get(path);
+	}
+
+	public synchronized boolean isRefetchable(String path) {
+		return refetchable.containsKey(path);
+	}
+
+	public synchronized int numRefetchable() {
+		return refetchable.size();
+	}
+
+	public synchronized long getRefetchableBytes() {
+		return refetchableBytes;
+	}
+
+	/** Copy of a page from the hot tier, or null if it isn't there. */
+	public synchronized byte[] hotRead(String path) {
+		if(hotBudgetBytes <= 0) return null;
+		byte[] data = hotPages.get(path);
+		if(data == null) return null;
+
+		refetchable.get(path);
+		return data.clone();
+	}
+
+	/** Offer a page that was just read to the hot tier. */
+	public synchronized void hotStore(String path, byte[] data) {
+		if(data.length > hotBudgetBytes) return;
+		byte[] old = hotPages.put(path, data.clone());
+		if(old != null) hotBytes -= old.length;
+		hotBytes += data.length;
+		trimHotTier();
+	}
+
+	/** Drop a page from the hot tier, e.g. because its contents are changing. */
+	public synchronized void invalidate(String path) {
+		byte[] old = hotPages.remove(path);
+		if(old != null) hotBytes -= old.length;
+	}
+
+	public synchronized long getHotBytes() {
+		return hotBytes;
+	}
+
+	protected void putRefetchable(String path, long size) {
+		Long old = refetchable.put(path, size);
+		if(old != null) refetchableBytes -= old;
+		refetchableBytes += size;
+	}
+
+	protected boolean removeRefetchable(String path) {
+		Long old = refetchable.remove(path);
+		if(old == null) return false;
+		refetchableBytes -= old;
+		return true;
+	}
+
+	protected void trimHotTier() {
+		Iterator<Map.Entry<String,byte[]>> itr = hotPages.entrySet().iterator();
+		while(hotBytes > hotBudgetBytes && itr.hasNext()) {
+			hotBytes -= itr.next().getValue().length;
+			itr.remove();
+		}
+	}
+
+	/** Choose least recently used refetchable pages to evict until we're within budget, and stop tracking them. The
+	 * most recently used page stays, even if it alone is over budget, since whoever added it is about to read it.
+	 * Caller must hold our lock, and pass the result to evict() once it lets go. */
+	protected ArrayList<String> chooseVictims() {
+		ArrayList<String> victims = new ArrayList<>();
+		if(budgetBytes < 0) return victims;
+
+		Iterator<Map.Entry<String,Long>> itr = refetchable.entrySet().iterator();
+		while(refetchableBytes > budgetBytes && refetchable.size() > 1) {
+			Map.Entry<String,Long> entry = itr.next();
+			String path = entry.getKey();
+			refetchableBytes -= entry.getValue();
+			itr.remove();
+			invalidate(path);
+			evicting.add(path);
+			unreported.add(path); // before the record, so a compaction it sets off keeps it
+			appendRecord(RECORD_EVICTED + path);
+			victims.add(path);
+		}
+
+		return victims;
+	}
+
+	/** Unlink pages chosen by chooseVictims and tell the eviction listener. Called without our lock held. */
+	protected void evict(ArrayList<String> victims) {
+		if(victims.isEmpty()) return;
+		for(String path : victims) {
+			try {
+				cacheFS.unlink(path);
+			} catch(ENOENTException exc) {
+			} catch(IOException exc) {
+				logger.error("CacheManager: Unable to evict {}", path, exc);
+			}
+
+			synchronized(this) {
+				evicting.remove(path);
+				notifyAll();
+			}
+		}
+
+		EvictionListener listener;
+		synchronized(this) {
+			listener = this.listener;
+		}
+
+		if(listener != null) {
+			for(String path : victims) {
+				try {
+					listener.evicted(path);
+				} catch(IOException exc) {
+					logger.error("CacheManager: Eviction listener caught exception for {}", path, exc);
+				}
+			}
+		}
+
+		synchronized(this) {
+			unreported.removeAll(victims);
+		}
+	}
+
+	protected void appendRecord(String record) {
+		if(index == null) return;
+		try {
+			index.write((record + "\n").getBytes(StandardCharsets.UTF_8));
+			if(++indexRecords > 2*refetchable.size() + 1024) {
+				compactIndex();
+			}
+		} catch(IOException exc) {
+			logger.error("CacheManager: Unable to write cache index", exc);
+		}
+	}
+
+	/** Rewrite the index with just the evictions the listener hasn't heard about yet, and the refetchable pages least
+	 * recently used first. The new index replaces the old one atomically, so a crash leaves one or the other. */
+	protected void compactIndex() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for(String path : unreported) {
+			sb.append(RECORD_EVICTED).append(path).append("\n");
+		}
+
+		for(Map.Entry<String,Long> entry : refetchable.entrySet()) {
+			sb.append(RECORD_REFETCHABLE).append(entry.getValue()).append(" ").append(entry.getKey()).append("\n");
+		}
+
+		index.close();
+		try {
+			indexFS.writeAtomic(indexPath, sb.toString().getBytes(StandardCharsets.UTF_8));
+			indexRecords = unreported.size() + refetchable.size();
+		} finally {
+			index = indexFS.open(indexPath, File.O_RDWR|File.O_CREAT|File.O_APPEND); // the new index, or the old one if that failed
+		}
+	}
+
+	protected void closeIndex() {
+		if(index == null) return;
+		try {
+			index.flush();
+			index.close();
+		} catch(IOException exc) {
+			logger.error("CacheManager: Unable to close cache index", exc);
+		}
+
+		index = null;
+	}
+}
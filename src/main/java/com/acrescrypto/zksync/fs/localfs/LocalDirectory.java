@@ -3,10 +3,13 @@ package com.acrescrypto.zksync.fs.localfs;
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.acrescrypto.zksync.exceptions.EACCESException;
 import com.acrescrypto.zksync.exceptions.EISNOTDIRException;
@@ -16,6 +19,7 @@ import com.acrescrypto.zksync.fs.Directory;
 import com.acrescrypto.zksync.fs.FSPath;
 import com.acrescrypto.zksync.fs.File;
 import com.acrescrypto.zksync.fs.Stat;
+import com.acrescrypto.zksync.utility.Util;
 
 public class LocalDirectory implements Directory {
 	
@@ -58,6 +62,53 @@ public class LocalDirectory implements Directory {
 		return paths;
 	}
 	
+	/** Stat every entry in one pass over the directory, keyed by name in listing order. Each entry is statted by the
+	 * path the listing gave us, skipping the path translation that stat(String) does. Symlinks are followed unless
+	 * LIST_OPT_DONT_FOLLOW_SYMLINKS is set; a symlink that can't be followed gets its lstat instead. Entries we
+	 * aren't allowed to stat map to null, and entries removed since the listing are left out. */
+	public LinkedHashMap<String,Stat> statEntries(int opts) throws IOException {
+		LinkedHashMap<String,Stat> stats = new LinkedHashMap<>();
+		boolean followSymlinks = (opts & LIST_OPT_DONT_FOLLOW_SYMLINKS) == 0;
+		Path jPath = Paths.get(fs.root().join(path).toNative());
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(jPath)) {
+			for(Path entry : stream) {
+				String name = entry.getFileName().toString();
+				if(Util.isWindows()) name = new FSPath(name).toPosix();
+				
+				try {
+					stats.put(name, statEntry(entry, followSymlinks));
+				} catch(ENOENTException exc) {
+					// removed since we listed it
+				}
+			}
+		} catch(IOException exc) {
+			// we may run into access problems; just ignore those, as list does
+		}
+		
+		if((opts & LIST_OPT_INCLUDE_DOT_DOTDOT) != 0) {
+			stats.put(".",  statEntry(jPath, followSymlinks));
+			stats.put("..", statEntry(jPath.resolve("..").normalize(), followSymlinks));
+		}
+		
+		return stats;
+	}
+	
+	protected Stat statEntry(Path entry, boolean followSymlinks) throws IOException {
+		try {
+			if(followSymlinks) {
+				try {
+					return fs.statQualified(entry);
+				} catch(ENOENTException exc) {
+					// broken symlink
+				}
+			}
+			
+			return fs.statQualified(entry, LinkOption.NOFOLLOW_LINKS);
+		} catch(EACCESException exc) {
+			return null;
+		}
+	}
+	
 	@Override
 	public boolean walk(DirectoryWalkCallback cb) throws IOException {
 		return walk(0, cb);
@@ -88,42 +139,33 @@ public class LocalDirectory implements Directory {
 	}
 	
 	protected void walkRecursiveIterate(int opts, FSPath prefix, DirectoryWalkCallback cb) throws IOException {
-		for(String entry : list(opts & ~Directory.LIST_OPT_OMIT_DIRECTORIES)) {
-			FSPath subpath     = prefix.join(entry); // what we return in our results
-			FSPath realSubpath = path  .join(entry); // what we can look up directly in fs
+		boolean followSymlinks = (opts & Directory.LIST_OPT_DONT_FOLLOW_SYMLINKS) == 0;
+		for(Map.Entry<String,Stat> entry : statEntries(opts).entrySet()) {
+			String name        = entry.getKey();
+			Stat stat          = entry.getValue();
+			FSPath subpath     = prefix.join(name); // what we return in our results
 			
-			try {
-				Stat stat;
-				boolean isBrokenSymlink = false;
-				
-				if((opts & Directory.LIST_OPT_DONT_FOLLOW_SYMLINKS) == 0) {
-					stat = fs.stat(realSubpath.standardize());
-				} else {
-					stat = fs.lstat(realSubpath.standardize());
-					if(stat.isSymlink() && !fs.exists(realSubpath.standardize())) {
-						isBrokenSymlink = true;
-					}
+			if(stat == null) {
+				// directory with bad permissions
+				cb.foundPath(subpath.standardize(), null, false, this);
+				continue;
+			}
+			
+			if(stat.isDirectory()) {
+				boolean isDotDir = name.equals(".") || name.equals("..");
+				if((opts & Directory.LIST_OPT_OMIT_DIRECTORIES) == 0) {
+					cb.foundPath(subpath.standardize(), stat, false, this);
 				}
 				
-				if(stat.isDirectory()) {
-					boolean isDotDir = entry.equals(".") || entry.equals("..");
-					if((opts & Directory.LIST_OPT_OMIT_DIRECTORIES) == 0) {
-						cb.foundPath(subpath.standardize(), stat, isBrokenSymlink, this);
-					}
-					
-					if(!isDotDir) {
-						fs.opendir(realSubpath.standardize()).walkRecursiveIterate(opts, subpath, cb);
-					}
-				} else {
-					cb.foundPath(subpath.standardize(), stat, isBrokenSymlink, this);
+				if(!isDotDir) {
+					String realSubpath = path.join(name).standardize(); // what we can look up directly in fs
+					fs.opendir(realSubpath, stat).walkRecursiveIterate(opts, subpath, cb);
 				}
-			} catch(ENOENTException exc) {
-				// busted symlink
-				Stat lstat = fs.lstat(realSubpath.standardize());
-				cb.foundPath(subpath.standardize(), lstat, true, this);
-			} catch(EACCESException exc) {
-				// directory with bad permissions
-				cb.foundPath(subpath.standardize(), null, false, this);
+			} else {
+				// if we were following symlinks and still got one, it's broken
+				boolean isBrokenSymlink = stat.isSymlink()
+						&& (followSymlinks || !fs.exists(path.join(name).standardize()));
+				cb.foundPath(subpath.standardize(), stat, isBrokenSymlink, this);
 			}
 		}
 	}
@@ -1,5 +1,6 @@
 package com.acrescrypto.zksync.fs.localfs;
 
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -7,7 +8,10 @@ import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,17 +19,40 @@ import org.slf4j.LoggerFactory;
 import com.acrescrypto.zksync.exceptions.CommandFailedException;
 import com.acrescrypto.zksync.exceptions.EACCESException;
 import com.acrescrypto.zksync.exceptions.EEXISTSException;
+import com.acrescrypto.zksync.exceptions.EISDIRException;
 import com.acrescrypto.zksync.exceptions.ENOENTException;
 import com.acrescrypto.zksync.exceptions.ENOTEMPTYException;
 import com.acrescrypto.zksync.fs.*;
 import com.acrescrypto.zksync.utility.Util;
 
 public class LocalFS extends FS {
-    protected HashMap<Integer,CachedName> cachedUserNames = new HashMap<>();
-    protected HashMap<Integer,CachedName> cachedGroupNames = new HashMap<>();
+    /** Attributes statPosix needs, all filled in by a single stat call. Asking for "unix:*" instead would also look
+     * up the owner and group names every time. */
+    public final static String POSIX_STAT_ATTRIBUTES = "unix:size,lastModifiedTime,lastAccessTime,creationTime,mode,uid,gid,ino,rdev";
+    public final static int MAX_CACHED_NAMES = 4096;
+    public final static int MAX_UNSYNCED_WRITES = 4096; // sync early past this, rather than let a writer that never commits grow the list forever
+    public final static Pattern ATOMIC_TEMP_NAME = Pattern.compile("^\\..+\\.tmp[0-9a-f]{1,16}$");
+
+    // file type bits of st_mode
+    protected final static int S_IFMT   = 0170000;
+    protected final static int S_IFIFO  = 0010000;
+    protected final static int S_IFCHR  = 0020000;
+    protected final static int S_IFDIR  = 0040000;
+    protected final static int S_IFBLK  = 0060000;
+    protected final static int S_IFREG  = 0100000;
+    protected final static int S_IFLNK  = 0120000;
+
+    // uid and gid to name, shared by every LocalFS since scoped instances come and go
+    protected static ConcurrentHashMap<Integer,CachedName> cachedUserNames = new ConcurrentHashMap<>();
+    protected static ConcurrentHashMap<Integer,CachedName> cachedGroupNames = new ConcurrentHashMap<>();
+    protected Set<Path> knownDirectories = ConcurrentHashMap.newKeySet(); // directories we've seen exist, so writes needn't check
+    protected ThreadLocal<Integer> writeBatchDepth = ThreadLocal.withInitial(()->0);
+    // written by writeAtomic, by any thread, and not yet synced
+    protected Set<Path> unsyncedFiles = ConcurrentHashMap.newKeySet();
+    protected Set<Path> unsyncedDirectories = ConcurrentHashMap.newKeySet();
     private Logger logger = LoggerFactory.getLogger(LocalFS.class);
 
-    protected class CachedName {
+    protected static class CachedName {
         String name;
         long id;
         long timestamp;
@@ -80,14 +107,24 @@ public class LocalFS extends FS {
     }
 
     private Stat statWithLinkOption(String pathStr, LinkOption... linkOpt) throws IOException {
-        return isWindows()
-                ? statWithLinkOptionWindows(pathStr, linkOpt)
-                : statWithLinkOptionPosix  (pathStr, linkOpt);
+        return statQualified(qualifiedPathNative(pathStr), linkOpt);
     }
 
-    private Stat statWithLinkOptionWindows(String pathStr, LinkOption... linkOpt) throws IOException {
+    /** Stat a path that has already been through qualifiedPathNative, e.g. an entry from a directory listing. */
+    protected Stat statQualified(Path path, LinkOption... linkOpt) throws IOException {
+        if(isWindows()) return statWithLinkOptionWindows(path, linkOpt);
+
+        try {
+            return statPosix(path, linkOpt);
+        } catch(NoSuchFileException exc) {
+            throw new ENOENTException(path.toString());
+        } catch(java.nio.file.AccessDeniedException exc) {
+            throw new EACCESException(path.toString());
+        }
+    }
+
+    private Stat statWithLinkOptionWindows(Path path, LinkOption... linkOpt) throws IOException {
         Stat stat = new Stat();
-        Path path = qualifiedPathNative(pathStr);
 
         /* TODO: Profiler shows that in a test like indefiniteTestComplexManyPeerEquivalent, we
          * burn most of our time on checking user and group names (string, not ID). In practice, most
@@ -137,54 +174,64 @@ public class LocalFS extends FS {
     }
 
 
-    private Stat statWithLinkOptionPosix(String pathStr, LinkOption... linkOpt) throws IOException {
+    /** Stat an already-qualified path with one call to the OS, taking the file type, permissions and device numbers
+     * from the raw mode and rdev rather than asking for each separately. */
+    protected Stat statPosix(Path path, LinkOption... linkOpt) throws IOException {
+        Map<String,Object> attrs = Files.readAttributes(path, POSIX_STAT_ATTRIBUTES, linkOpt);
         Stat stat = new Stat();
-        Path path = qualifiedPathNative(pathStr);
-
-        /* TODO: Profiler shows that in a test like indefiniteTestComplexManyPeerEquivalent, we
-         * burn most of our time on checking user and group names (string, not ID). In practice, most
-         * use cases will never care. Consider having the ability to ignore uid/gid/username/group name
-         * and force them to always be "easysafe" or something. 
-         */
+        int mode = (Integer) attrs.get("mode");
+
+        stat.setMtime(((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS));
+        stat.setAtime(((FileTime) attrs.get("lastAccessTime"))  .to(TimeUnit.NANOSECONDS));
+        stat.setCtime(((FileTime) attrs.get("creationTime"))    .to(TimeUnit.NANOSECONDS));
+        stat.setMode(mode & 0777);
+        stat.setUid((Integer) attrs.get("uid"));
+        stat.setGid((Integer) attrs.get("gid"));
+        stat.setUser(cachedUserName(stat.getUid(), path, linkOpt));
+        stat.setGroup(cachedGroupName(stat.getGid(), path, linkOpt));
+        stat.setInodeId((Long) attrs.get("ino"));
+
+        switch(mode & S_IFMT) {
+        case S_IFREG:
+            stat.setType(Stat.TYPE_REGULAR_FILE);
+            break;
+        case S_IFDIR:
+            stat.setType(Stat.TYPE_DIRECTORY);
+            break;
+        case S_IFLNK:
+            stat.setType(Stat.TYPE_SYMLINK);
+            break;
+        case S_IFIFO:
+            stat.setType(Stat.TYPE_FIFO);
+            break;
+        case S_IFCHR:
+        case S_IFBLK:
+            stat.setType((mode & S_IFMT) == S_IFBLK ? Stat.TYPE_BLOCK_DEVICE : Stat.TYPE_CHARACTER_DEVICE);
+            setDeviceNumbers(stat, (Long) attrs.get("rdev"), path);
+            break;
+        default:
+            throw new UnsupportedOperationException(path + ": unknown file type: " + Integer.toOctalString(mode & S_IFMT));
+        }
 
-        try {
-            PosixFileAttributes attr = Files.readAttributes(path, PosixFileAttributes.class, linkOpt);
-            
-            stat.setMtime(attr.lastModifiedTime().to(TimeUnit.NANOSECONDS));
-            stat.setAtime(attr.lastAccessTime()  .to(TimeUnit.NANOSECONDS));
-            stat.setCtime(attr.creationTime()    .to(TimeUnit.NANOSECONDS));
-            stat.setMode(getFilePermissions(attr));
-            if(!isWindows()) {
-                stat.setUid((Integer) Files.getAttribute(path, "unix:uid", linkOpt));
-                stat.setGid((Integer) Files.getAttribute(path, "unix:gid", linkOpt));
-                stat.setGroup(cachedGroupName(stat.getGid(), path, linkOpt));
-            }
-            stat.setUser(cachedUserName(stat.getUid(), path, linkOpt));
-            int type = getStatType(attr);
-            if(type >= 0) {
-                stat.setType(type);
-            } else {
-                try {
-                    scrapeLSForUnixSpecific(stat, path.toString());
-                } catch(CommandFailedException exc) {
-                    throw new ENOENTException(path.toString());
-                }
-            }
+        stat.setSize(stat.isSymlink() ? 0 : (Long) attrs.get("size"));
+        return stat;
+    }
 
-            if(stat.isSymlink()) {
-                stat.setSize(0);
-            } else {
-                stat.setSize(attr.size());
+    private void setDeviceNumbers(Stat stat, long rdev, Path path) throws IOException {
+        if(Util.isLinux()) {
+            // glibc's gnu_dev_major and gnu_dev_minor
+            stat.setDevMajor((int) (((rdev >>> 8) & 0xfff) | ((rdev >>> 32) & ~0xfffL)));
+            stat.setDevMinor((int) ((rdev & 0xff) | ((rdev >>> 12) & ~0xffL)));
+        } else if(Util.isOSX()) {
+            stat.setDevMajor((int) ((rdev >>> 24) & 0xff));
+            stat.setDevMinor((int) (rdev & 0xffffff));
+        } else {
+            try {
+                scrapeLSForUnixSpecific(stat, path.toString());
+            } catch(CommandFailedException exc) {
+                throw new ENOENTException(path.toString());
             }
-
-            stat.setInodeId((Long) Files.getAttribute(path, "unix:ino", linkOpt));
-        } catch(NoSuchFileException exc) {
-            throw new ENOENTException(path.toString());
-        } catch(java.nio.file.AccessDeniedException exc) {
-            throw new EACCESException(path.toString());
         }
-
-        return stat;
     }
 
     private int getStatType(BasicFileAttributes attr) {
@@ -216,25 +263,6 @@ public class LocalFS extends FS {
         }		
     }
 
-    private int getFilePermissions(PosixFileAttributes attr) throws IOException {
-        int mode = 0;
-        Set<PosixFilePermission> perms = attr.permissions();
-
-        if(perms.contains(PosixFilePermission.OTHERS_EXECUTE)) mode |= 0001;
-        if(perms.contains(PosixFilePermission.OTHERS_WRITE)) mode |= 0002;
-        if(perms.contains(PosixFilePermission.OTHERS_READ)) mode |= 0004;
-
-        if(perms.contains(PosixFilePermission.GROUP_EXECUTE)) mode |= 0010;
-        if(perms.contains(PosixFilePermission.GROUP_WRITE)) mode |= 0020;
-        if(perms.contains(PosixFilePermission.GROUP_READ)) mode |= 0040;
-
-        if(perms.contains(PosixFilePermission.OWNER_EXECUTE)) mode |= 0100;
-        if(perms.contains(PosixFilePermission.OWNER_WRITE)) mode |= 0200;
-        if(perms.contains(PosixFilePermission.OWNER_READ)) mode |= 0400;
-
-        return mode;
-    }
-
     private int getFilePermissions(BasicFileAttributes attr, String name) throws IOException {
         int mode = 0666; // in windowsland, we'll just say everything is a+rw, and a+x if .com, .exe, .bat
         String[] executableExtensions = {
@@ -340,6 +368,10 @@ public class LocalFS extends FS {
             }
         } catch(ENOENTException exc) {}
 
+        if(existingStat.isDirectory()) {
+            forgetDirectories(qualifiedPathNative(oldPath));
+        }
+
         try {
             Files.move(qualifiedPathNative(oldPath), qualifiedPathNative(targetPath), opts);
         } catch(DirectoryNotEmptyException exc) {
@@ -375,6 +407,7 @@ public class LocalFS extends FS {
         Path p = qualifiedPathNative(path);
         if(!Files.exists(p)) throw new ENOENTException(path);
         if(!Files.isDirectory(p)) throw new IOException(path + ": not a directory");
+        forgetDirectories(p);
         Files.delete(p);
     }
 
@@ -586,12 +619,170 @@ public class LocalFS extends FS {
 
     @Override
     public void write(String path, byte[] contents, int offset, int length) throws IOException {
-        if(!exists(dirname(path))) mkdirp(dirname(path));
+        Path dir = qualifiedPathNative(path).getParent();
+        ensureDirectory(dir);
+        try {
+            writeInPlace(path, contents, offset, length);
+        } catch(FileNotFoundException exc) {
+            // the directory may have been removed since we saw it
+            if(!knownDirectories.remove(dir)) throw exc;
+            ensureDirectory(dir);
+            writeInPlace(path, contents, offset, length);
+        }
+    }
+
+    /** Write to a temporary file next to the path and rename it into place. This costs a rename over write, but a
+     * crash can't leave a partly written file at the path. Nothing is synced until some thread ends a write batch on
+     * this FS, or MAX_UNSYNCED_WRITES files are waiting; until then, durability is up to the OS, as it is for write. */
+    @Override
+    public void writeAtomic(String path, byte[] contents) throws IOException {
+        Path target = qualifiedPathNative(path);
+        Path dir = target.getParent();
+        Path temp = dir.resolve("." + target.getFileName() + ".tmp" + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+
+        ensureDirectory(dir);
+        try {
+            try {
+                writeTemporary(temp, contents);
+            } catch(NoSuchFileException exc) {
+                // the directory may have been removed since we saw it
+                if(!knownDirectories.remove(dir)) throw exc;
+                ensureDirectory(dir);
+                writeTemporary(temp, contents);
+            }
+
+            renameTemporary(temp, target);
+        } catch(IOException|RuntimeException exc) {
+            Files.deleteIfExists(temp);
+            if(Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) throw new EISDIRException(path);
+            throw exc;
+        }
+
+        unsyncedFiles.add(target);
+        unsyncedDirectories.add(dir);
+        if(unsyncedFiles.size() >= MAX_UNSYNCED_WRITES) {
+            syncUnsyncedWrites();
+        }
+    }
+
+    @Override
+    public void beginWriteBatch() {
+        writeBatchDepth.set(writeBatchDepth.get() + 1);
+    }
+
+    /** Sync every file written with writeAtomic and not yet synced, whichever thread wrote it, then every directory
+     * they were written into, so that the renames are durable too. Writes made before the batch began, like pages
+     * stored when a file was closed, are included. */
+    @Override
+    public void endWriteBatch() throws IOException {
+        int depth = writeBatchDepth.get() - 1;
+        if(depth > 0) {
+            writeBatchDepth.set(depth);
+            return;
+        }
+
+        writeBatchDepth.remove();
+        syncUnsyncedWrites();
+    }
+
+    /** Delete the temporary files of writeAtomic calls that never finished, e.g. because of a crash. Only safe when
+     * nothing else is writing to the FS. */
+    @Override
+    public void removeAbandonedTemporaries() throws IOException {
+        Path rootPath = qualifiedPathNative("/");
+        if(!Files.isDirectory(rootPath)) return;
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if(attrs.isRegularFile() && ATOMIC_TEMP_NAME.matcher(file.getFileName().toString()).matches()) {
+                    logger.info("LocalFS {}: Removing abandoned temporary file {}", root, file);
+                    Files.deleteIfExists(file);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE; // removed or unreadable; nothing we can clean up there
+            }
+        });
+    }
+
+    /** Each path leaves the pending set before it's synced, so a write that lands during the sync is picked up next
+     * time, and goes back if the sync fails. */
+    protected void syncUnsyncedWrites() throws IOException {
+        for(Path file : new ArrayList<>(unsyncedFiles)) {
+            if(!unsyncedFiles.remove(file)) continue;
+            try {
+                syncFile(file);
+            } catch(IOException|RuntimeException exc) {
+                unsyncedFiles.add(file);
+                throw exc;
+            }
+        }
+
+        for(Path dir : new ArrayList<>(unsyncedDirectories)) {
+            if(!unsyncedDirectories.remove(dir)) continue;
+            try {
+                syncDirectory(dir);
+            } catch(IOException|RuntimeException exc) {
+                unsyncedDirectories.add(dir);
+                throw exc;
+            }
+        }
+    }
+
+    protected void writeInPlace(String path, byte[] contents, int offset, int length) throws IOException {
         try(LocalFile file = open(path, File.O_WRONLY|File.O_CREAT|File.O_TRUNC)) {
             file.write(contents, offset, length);
         }
     }
 
+    protected void writeTemporary(Path temp, byte[] contents) throws IOException {
+        try(FileChannel chan = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.wrap(contents);
+            while(buf.hasRemaining()) {
+                chan.write(buf);
+            }
+        }
+    }
+
+    protected void renameTemporary(Path temp, Path target) throws IOException {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    protected void syncFile(Path file) throws IOException {
+        try(FileChannel chan = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            chan.force(false);
+        } catch(NoSuchFileException exc) {
+            // removed since we wrote it, so there's nothing to make durable
+        }
+    }
+
+    protected void syncDirectory(Path dir) throws IOException {
+        if(Util.isWindows()) return; // directories can't be opened for sync; NTFS journals the renames itself
+        try(FileChannel chan = FileChannel.open(dir, StandardOpenOption.READ)) {
+            chan.force(true);
+        } catch(NoSuchFileException exc) {
+        }
+    }
+
+    protected void ensureDirectory(Path dir) throws IOException {
+        if(dir == null || knownDirectories.contains(dir)) return;
+        try {
+            Files.createDirectories(dir);
+        } catch(FileAlreadyExistsException exc) {
+            return; // something other than a directory is in the way; let the write fail the way it otherwise would
+        }
+
+        knownDirectories.add(dir);
+    }
+
+    protected void forgetDirectories(Path dir) {
+        knownDirectories.removeIf((known)->known.startsWith(dir));
+    }
+
     @Override
     public LocalFile open(String path, int mode) throws IOException {
         return new LocalFile(this, path, mode);
@@ -647,7 +838,7 @@ public class LocalFS extends FS {
         CachedName cached = cachedUserNames.get(uid);
         if(cached == null || cached.isExpired()) {
             cached = new CachedName(Files.getOwner(path, linkOpt).getName(), uid);
-            cachedUserNames.put(uid, cached);
+            cacheName(cachedUserNames, cached);
         }
 
         return cached.name;
@@ -658,12 +849,21 @@ public class LocalFS extends FS {
         if(cached == null || cached.isExpired()) {
             GroupPrincipal group = Files.readAttributes(path, PosixFileAttributes.class, linkOpt).group();
             cached = new CachedName(group.getName(), gid);
-            cachedGroupNames.put(gid, cached);
+            cacheName(cachedGroupNames, cached);
         }
 
         return cached.name;
     }
 
+    protected static void cacheName(ConcurrentHashMap<Integer,CachedName> cache, CachedName name) {
+        if(cache.size() >= MAX_CACHED_NAMES) {
+            cache.values().removeIf((cached)->cached.isExpired());
+            if(cache.size() >= MAX_CACHED_NAMES) cache.clear();
+        }
+
+        cache.put((int) name.getId(), name);
+    }
+
     protected String expandPath(String path) throws ENOENTException {
         return new FSPath(qualifiedPath(path).toString()).toPosix();
     }
@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.acrescrypto.zksync.crypto.Key;
 import com.acrescrypto.zksync.crypto.SignedSecureFile;
@@ -11,6 +14,7 @@ import com.acrescrypto.zksync.exceptions.BlockDoesNotContainPageException;
 import com.acrescrypto.zksync.exceptions.ClosedException;
 import com.acrescrypto.zksync.exceptions.InsufficientCapacityException;
 import com.acrescrypto.zksync.exceptions.InvalidBlockException;
+import com.acrescrypto.zksync.utility.MetricsRegistry;
 import com.acrescrypto.zksync.utility.Util;
 
 public class Block {
@@ -20,10 +24,16 @@ public class Block {
 	protected boolean isWritable;
 	protected HashMap<BlockEntryIndex,BlockEntry> entries = new HashMap<>();
 	protected StorageTag storageTag;
+	protected Future<byte[]> pendingSeal; // encrypted and signed contents, once sealing has started
+	protected BlockWriter queuedOn; // writer holding this block in its queue, if any
 
 	public final static byte INDEX_TYPE_PAGE = 0;
 	public final static byte INDEX_TYPE_CHUNK = 1;
 	
+	protected final static MetricsRegistry.Histogram
+		readTimer  = MetricsRegistry.sharedInstance().histogram("zksync_block_read_seconds",  "Time to load, authenticate and decrypt a block"),
+		writeTimer = MetricsRegistry.sharedInstance().histogram("zksync_block_write_seconds", "Time to encrypt, sign and store a block, including any wait for the BlockWriter to seal it");
+	
 	public class BlockEntryIndex implements Comparable<BlockEntryIndex> {
 		byte type;
 		long identity, pageNum;
@@ -211,23 +221,104 @@ public class Block {
 		return entry.read();
 	}
 	
+	/** Encrypt, sign and store the block, waiting on the BlockWriter if it's already sealing it. Does nothing if the
+	 * block has already been written. */
 	public Block write() throws IOException {
-		if(isImmediate()) {
-			return writeImmediate();
+		long startNs = MetricsRegistry.startTimer();
+		Future<byte[]> seal;
+		synchronized(this) {
+			if(storageTag.isFinalized()) return this;
+			if(isImmediate()) {
+				return writeImmediate();
+			}
+			
+			isWritable = false;
+			if(pendingSeal == null) {
+				pendingSeal = CompletableFuture.completedFuture(signedFile().seal(serialize(), initialCapacity(archive.getConfig())));
+			}
+			
+			seal = pendingSeal;
 		}
 		
-		StorageTag tag = SignedSecureFile.withParams(archive.getStorage(),
-			textKey(),
-			saltKey(),
-			authKey(),
-			archive.getConfig().getPrivKey())
-		.write(serialize(), initialCapacity(archive.getConfig()));
-		isWritable = false;
-		storageTag.setTagBytes(tag.getTagBytes());
+		byte[] sealed = waitForSeal(seal);
+		BlockWriter writer;
+		synchronized(this) {
+			if(storageTag.isFinalized()) return this; // someone else stored it while we were waiting
+			StorageTag tag = signedFile().store(sealed);
+			storageTag.setTagBytes(tag.getTagBytes());
+			pendingSeal = null;
+			writer = queuedOn;
+			queuedOn = null;
+		}
+		
+		if(writer != null) writer.stored(this);
+		writeTimer.observeSince(startNs);
 		archive.addPageTag(storageTag);
 		return this;
 	}
 	
+	/** Like write(), but lets the master's BlockWriter encrypt and sign the block in the background if it has room.
+	 * The block is then stored when someone asks for its tag, or when the archive next commits. */
+	public Block writeAsync() throws IOException {
+		BlockWriter writer = archive.getMaster() == null ? null : archive.getMaster().getBlockWriter();
+		synchronized(this) {
+			if(!isWritable) return this;
+			if(writer == null || isImmediate()) {
+				return write();
+			}
+			
+			queuedOn = writer;
+		}
+		
+		if(!writer.submit(this)) {
+			write();
+		}
+		
+		return this;
+	}
+	
+	/** Serialize the block and have the BlockWriter's pool encrypt and sign it. */
+	protected void startSeal(BlockWriter writer) {
+		synchronized(this) {
+			if(pendingSeal != null || storageTag.isFinalized()) return;
+			
+			isWritable = false;
+			byte[] plaintext = serialize();
+			SignedSecureFile file = signedFile();
+			pendingSeal = writer.seal(()->file.seal(plaintext, initialCapacity(archive.getConfig())));
+			if(pendingSeal == null) {
+				// the writer is shutting down, so seal it ourselves; serialize() can only be called once
+				pendingSeal = CompletableFuture.completedFuture(file.seal(plaintext, initialCapacity(archive.getConfig())));
+			}
+		}
+	}
+	
+	protected byte[] waitForSeal(Future<byte[]> seal) {
+		boolean interrupted = false;
+		try {
+			while(true) {
+				try {
+					return seal.get();
+				} catch(InterruptedException exc) {
+					interrupted = true; // the block has to be written either way, so finish waiting first
+				} catch(ExecutionException exc) {
+					if(exc.getCause() instanceof RuntimeException) throw (RuntimeException) exc.getCause();
+					throw new RuntimeException(exc.getCause());
+				}
+			}
+		} finally {
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+	
+	protected SignedSecureFile signedFile() {
+		return SignedSecureFile.withParams(archive.getStorage(),
+				textKey(),
+				saltKey(),
+				authKey(),
+				archive.getConfig().getPrivKey());
+	}
+	
 	public boolean isImmediate() {
 		if(entries.size() > 1) return false;
 		for(BlockEntry entry : entries.values()) {
@@ -266,6 +357,7 @@ public class Block {
 	}
 	
 	protected void load(boolean verifySignature) throws IOException {
+		long startNs = MetricsRegistry.startTimer();
 		blockContents = SignedSecureFile.withTag(storageTag,
 				archive.getStorage(),
 				textKey(),
@@ -273,6 +365,7 @@ public class Block {
 				authKey(),
 				archive.getConfig().getPubKey()).read(verifySignature);
 		deserialize(blockContents);
+		readTimer.observeSince(startNs);
 	}
 	
 	protected byte[] serialize() {
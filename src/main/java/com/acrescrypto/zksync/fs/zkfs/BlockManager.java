@@ -28,7 +28,7 @@ public class BlockManager {
 	protected Block addDataSingle(long identity, long pageNum, byte type, byte[] contents, int offset, int length) throws IOException {
 		Block block = new Block(archive);
 		block.addData(identity, pageNum, type, contents, offset, length);
-		block.write();
+		block.writeAsync();
 		return block;
 	}
 	
@@ -45,7 +45,7 @@ public class BlockManager {
 	public synchronized void writeAll() throws IOException {
 		for(Block block : pendingBlocks) {
 			if(block.isWritable()) {
-				block.write();
+				block.writeAsync();
 			}
 		}
 		
@@ -99,7 +99,7 @@ public class BlockManager {
 				}
 			}
 			
-			fullestBlock.write();
+			fullestBlock.writeAsync();
 			pendingBlocks.remove(fullestBlock);
 		}
 	}
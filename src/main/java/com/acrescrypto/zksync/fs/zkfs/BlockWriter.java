@@ -0,0 +1,150 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acrescrypto.zksync.utility.GroupedThreadPool;
+
+/** Encrypts and signs blocks on a worker pool, so that writing out a commit that touches thousands of pages isn't
+ * bound to one core.
+ *
+ * Only the sealing happens on the pool. A sealed block is written to storage, and its tag finalized, by whichever
+ * thread first asks for the tag, or by the archive's next commit if nobody does. So storage writes still happen on
+ * the threads writing to the archive (and inside the commit's write batch), and a tag never becomes visible before
+ * its block is in storage. Chunks can't be serialized until the tags of their pages and children are known, so the
+ * page tree is still sealed bottom-up; it's independent pages and sibling chunks that are sealed in parallel. Since
+ * sealing is deterministic, a revision comes out identical to one written entirely inline.
+ *
+ * The number of blocks queued but not yet stored is bounded and shared by every archive on the ZKMaster. A writer
+ * that finds it full stores its own archive's oldest blocks to make room, and seals inline if that doesn't help.
+ */
+public class BlockWriter {
+	protected ZKMaster                                   master;
+	protected GroupedThreadPool                          pool;
+	protected LinkedHashMap<ZKArchive,LinkedList<Block>> pending = new LinkedHashMap<>(); // archive -> blocks waiting to be stored, oldest first
+	protected int                                        queued;
+	protected boolean                                    closed;
+	protected AtomicLong                                 numQueued = new AtomicLong(),
+	                                                     numInline = new AtomicLong();
+
+	public BlockWriter(ZKMaster master) {
+		int threads = master.getGlobalConfig().getInt("fs.settings.blockWriteThreads");
+		if(threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+
+		this.master = master;
+		this.pool   = GroupedThreadPool.newFixedThreadPool(master.getThreadGroup(), "BlockWriter", threads);
+	}
+
+	/** Queue a block to be sealed. Returns false if there's no room, in which case the caller should write the block
+	 * itself. */
+	public boolean submit(Block block) throws IOException {
+		ZKArchive archive = block.getArchive();
+		int maxQueued = master.getGlobalConfig().getInt("fs.settings.blockWriteQueueSize");
+		while(isFull(maxQueued) && writeOldest(archive));
+
+		synchronized(this) {
+			if(closed || queued >= maxQueued) {
+				numInline.incrementAndGet();
+				return false;
+			}
+
+			pending.computeIfAbsent(archive, (a)->new LinkedList<>()).add(block);
+			queued++;
+		}
+
+		numQueued.incrementAndGet();
+		block.startSeal(this);
+		return true;
+	}
+
+	/** Store every block queued for an archive. */
+	public void flush(ZKArchive archive) throws IOException {
+		while(writeOldest(archive));
+	}
+
+	public synchronized int queued() {
+		return queued;
+	}
+
+	public long getNumQueued() {
+		return numQueued.get();
+	}
+
+	public long getNumInline() {
+		return numInline.get();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/** Store whatever is still queued, then stop the pool. */
+	public void close() {
+		ArrayList<ZKArchive> archives;
+		synchronized(this) {
+			if(closed) return;
+			archives = new ArrayList<>(pending.keySet());
+		}
+
+		for(ZKArchive archive : archives) {
+			try {
+				flush(archive);
+			} catch(IOException exc) {
+				// the blocks still know how to write themselves, if anyone asks for their tags
+			}
+		}
+
+		synchronized(this) {
+			closed = true;
+			pending.clear();
+			queued = 0;
+		}
+
+		pool.shutdown(); // let any seal already on the pool finish, since someone may be waiting on it
+	}
+
+	/** Run a sealing task on the pool. Returns null if we're shutting down, in which case the block is written inline
+	 * when someone gets around to it. */
+	protected Future<byte[]> seal(Callable<byte[]> task) {
+		try {
+			return pool.submit(task);
+		} catch(RejectedExecutionException exc) {
+			return null;
+		}
+	}
+
+	protected synchronized boolean isFull(int maxQueued) {
+		return queued >= maxQueued;
+	}
+
+	/** Drop a block from the queue once it's been stored some other way, e.g. because someone asked for its tag. */
+	protected synchronized void stored(Block block) {
+		LinkedList<Block> queue = pending.get(block.getArchive());
+		if(queue == null || !queue.remove(block)) return;
+		
+		if(queue.isEmpty()) pending.remove(block.getArchive());
+		queued--;
+	}
+	
+	/** Store the oldest block queued for an archive, if there is one. */
+	protected boolean writeOldest(ZKArchive archive) throws IOException {
+		Block block;
+		synchronized(this) {
+			LinkedList<Block> queue = pending.get(archive);
+			if(queue == null) return false;
+
+			block = queue.removeFirst();
+			if(queue.isEmpty()) pending.remove(archive);
+			queued--;
+		}
+
+		block.write();
+		return true;
+	}
+}
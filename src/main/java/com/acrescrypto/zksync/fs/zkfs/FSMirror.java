@@ -31,6 +31,7 @@ import com.acrescrypto.zksync.fs.Stat;
 import com.acrescrypto.zksync.fs.localfs.LocalFS;
 import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
 import com.acrescrypto.zksync.fs.zkfs.config.SubscriptionService;
+import com.acrescrypto.zksync.utility.MetricsRegistry;
 import com.acrescrypto.zksync.utility.SnoozeThread;
 import com.acrescrypto.zksync.utility.Util;
 
@@ -39,6 +40,17 @@ import static java.nio.file.StandardWatchEventKinds.*;
 public class FSMirror {
 	protected static int numActive;
 	
+	protected final static MetricsRegistry.Histogram fullSyncToTargetTime = MetricsRegistry.sharedInstance().histogram(
+			"zksync_mirror_sync_seconds", "Time spent mirroring between archives and their targets", "direction", "toTarget");
+	protected final static MetricsRegistry.Histogram fullSyncToArchiveTime = MetricsRegistry.sharedInstance().histogram(
+			"zksync_mirror_sync_seconds", "Time spent mirroring between archives and their targets", "direction", "toArchive");
+	protected final static MetricsRegistry.Histogram changeSyncTime = MetricsRegistry.sharedInstance().histogram(
+			"zksync_mirror_sync_seconds", "Time spent mirroring between archives and their targets", "direction", "changes");
+	protected final static MetricsRegistry.Counter pathsToTarget = MetricsRegistry.sharedInstance().counter(
+			"zksync_mirror_paths_synced_total", "Changed paths copied by FSMirror", "direction", "toTarget");
+	protected final static MetricsRegistry.Counter pathsToArchive = MetricsRegistry.sharedInstance().counter(
+			"zksync_mirror_paths_synced_total", "Changed paths copied by FSMirror", "direction", "toArchive");
+	
 	protected ZKFS             zkfs;
 	protected FS               target;
 	protected RevisionTag      lastRev;
@@ -190,7 +202,9 @@ public class FSMirror {
 				((LocalFS) target).getRoot(),
 				numActive());
 		watchFlag.setFalse();
-		Util.blockOnPoll(()->stoppedThread.isAlive());
+		try {
+			stoppedThread.join();
+		} catch(InterruptedException exc) {}
 		logger.info("FS {}: FSMirror stopped watch of {}, {} watches active",
 				Util.formatArchiveId(zkfs.archive.config.archiveId),
 				((LocalFS) target).getRoot(),
@@ -219,6 +233,7 @@ public class FSMirror {
 		ConcurrentHashMap<String,QueuedEntry> changes = queuedChanges;
 		queuedChanges = new ConcurrentHashMap<>();
 		
+		long startTime = MetricsRegistry.startTimer();
 		try {
 			long mutePeriod = zkfs.getArchive().getMaster().getGlobalConfig().getLong("fs.settings.mirror.pathMutePeriodMs");
 			zkfs.lockedOperation(()->{
@@ -244,11 +259,13 @@ public class FSMirror {
 									target.absolutePath(entry.path()).standardize(),
 									Util.currentTimeMillis() + mutePeriod);
 							copy(zkfs, target, entry.path());
+							pathsToTarget.increment();
 						} else if(entry.sourceFs() == target) {
 							logger.debug("FS {}: FSMirror syncing path target -> zkfs, {}",
 									Util.formatArchiveId(zkfs.archive.config.archiveId),
 									entry.path());
 							copy(target, zkfs, entry.path());
+							pathsToArchive.increment();
 						} else {
 							logger.warn("FS {}: FSMirror ignoring change to path {} from non-target fs {}",
 									Util.formatArchiveId(zkfs.archive.config.archiveId),
@@ -272,6 +289,8 @@ public class FSMirror {
 			logger.error("FS {}: FSMirror caught exception syncing filesystem: ",
 					Util.formatArchiveId(zkfs.archive.config.archiveId),
 					exc);
+		} finally {
+			changeSyncTime.observeSince(startTime);
 		}
 	}
 	
@@ -594,6 +613,7 @@ public class FSMirror {
 		}
 
 		synchronized(this) {
+			long startTime = MetricsRegistry.startTimer();
 			ZKFS oldFs = lastRev != null ? lastRev.readOnlyFS() : null;
 			try {
 				try(ZKDirectory dir = zkfs.opendir("/")) {
@@ -614,12 +634,15 @@ public class FSMirror {
 				if(oldFs != null) {
 					oldFs.close();
 				}
+				
+				fullSyncToTargetTime.observeSince(startTime);
 			}
 		} 
 	}
 
 	public synchronized void syncTargetToArchive() throws IOException {
 		Directory dir = null;
+		long startTime = MetricsRegistry.startTimer();
 		try {
 			target.opendir("/").walk(Directory.LIST_OPT_DONT_FOLLOW_SYMLINKS, (path, stat, brokenSymlink, parent)->{
 				copy(target, zkfs, path);
@@ -628,6 +651,7 @@ public class FSMirror {
 			pruneFs(zkfs, target);
 		} finally {
 			if(dir != null) dir.close();
+			fullSyncToArchiveTime.observeSince(startTime);
 		}
 	}
 
@@ -1,135 +1,331 @@
 package com.acrescrypto.zksync.fs.zkfs;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
 
+import com.acrescrypto.zksync.exceptions.EINVALException;
 import com.acrescrypto.zksync.utility.Util;
 
-/** Lists inode IDs that are "free" (available for allocation). */
+/** Lists inode IDs that are "free" (available for allocation).
+ *
+ * IDs are held as sorted, non-adjacent ranges of consecutive IDs in a pair of primitive arrays, so a mass deletion
+ * of millions of files costs a handful of ranges rather than millions of boxed longs, and membership is a binary
+ * search. The lowest free ID is issued first, so the table stays packed toward its start; the ranges before the first
+ * one still in use are simply skipped over, rather than shifted out of the arrays as each is used up.
+ *
+ * On disk, the list is a header (magic, format version) followed by each range as a pair of varints: the gap since
+ * the end of the previous range, and the number of IDs in the range. Even a list with no two consecutive IDs then
+ * takes a couple of bytes per ID. Lists written before the header existed are a flat array of inode IDs; since no
+ * inode ID has any of its upper 32 bits set, these can't be mistaken for the header. Legacy lists are read as-is
+ * and rewritten in the current format the next time the list is changed and committed.
+ */
 public class FreeList extends ZKFile {
-	LinkedList<Long> available = new LinkedList<Long>();
-	long lastReadPage; /** most recent page we read (this is a fifo so we work from high pages to low) */
+	public final static int FORMAT_MAGIC    = 0x464c5354; // "FLST"
+	public final static int FORMAT_VERSION  = 1;
+	public final static int HEADER_SIZE     = 8; // int magic, int version
+	public final static int MAX_VARINT_SIZE = 10; // 7 bits per byte, 64-bit values
 	public static String FREE_LIST_PATH = "(free list)";
 	
+	protected long[] starts = new long[16], counts = new long[16]; /** ranges, sorted by starting ID */
+	protected int head, numRanges; /** ranges in use are at indices head through head+numRanges-1 */
+	protected long numIds;
+	protected boolean loaded; /** true once we've read the list from disk (or have no need to) */
+	
 	protected class FreeListExhaustedException extends RuntimeException {
 		private static final long serialVersionUID = 4057105931778047274L;
 	}
 	
 	/** initialize freelist from its inode */
 	public FreeList(Inode inode) throws IOException {
+		this(inode.fs, inode);
+	}
+	
+	/** initialize freelist for a given fs from its inode, which may have been decoded by another view of the
+	 * archive (see SnapshotCache) */
+	public FreeList(ZKFS fs, Inode inode) throws IOException {
 		/* This is instantiated automatically when we load an InodeTable, which shouldn't automatically
 		 * cause further reads. So ensure this never loads any pages in the constructor. 
 		 */
-		super(inode.fs);
-		this.fs = inode.fs;
+		super(fs);
+		this.fs = fs;
 		this.path = FREE_LIST_PATH;
 		this.mode = O_RDWR;
 		this.inode = inode;
 		this.tree = new PageTree(this.inode);
 		this.pendingSize = inode.getStat().getSize();
-		lastReadPage = this.inode.getRefTag().numPages;
 	}
 	
 	/** Empty the freelist completely. Intended for use in rebuilding freelist manually. 
 	 * @throws IOException */
 	public synchronized void clearList() throws IOException {
 		truncate(0l);
-		available.clear();
+		head = 0;
+		numRanges = 0;
+		numIds = 0;
+		loaded = true;
 	}
 	
 	/** returns an available inode ID and removes it from the freelist. The inode ID could already have been
 	 * reissued by other means, so the caller must ensure that the issued inode ID is not already in use! */
 	public synchronized long issueInodeId() throws IOException {
-		if(available.isEmpty()) loadNextPage();
+		load();
 		dirty = true;
-		if(available.isEmpty()) throw new FreeListExhaustedException();
+		if(numRanges == 0) throw new FreeListExhaustedException();
 
-		long inodeId = available.pop();
+		long inodeId = starts[head]++;
+		if(--counts[head] == 0) removeRange(head);
+		numIds--;
 		return inodeId;
 	}
 	
 	/** adds an inode ID to the freelist. take care to check that an inode is not already deleted! */
-	public synchronized void freeInodeId(long inodeId) {
+	public synchronized void freeInodeId(long inodeId) throws IOException {
+		load();
 		dirty = true;
-		available.push(inodeId);
+	
+		int index = rangeIndex(inodeId);
+		if(index >= head && inodeId < starts[index] + counts[index]) return; // already listed
+	
+		boolean extendsLeft  = index >= head && starts[index] + counts[index] == inodeId,
+		        extendsRight = index + 1 < head + numRanges && starts[index+1] == inodeId + 1;
+		if(extendsLeft && extendsRight) {
+			counts[index] += 1 + counts[index+1];
+			removeRange(index+1);
+		} else if(extendsLeft) {
+			counts[index]++;
+		} else if(extendsRight) {
+			starts[index+1]--;
+			counts[index+1]++;
+		} else {
+			insertRange(index+1, inodeId, 1);
+		}
+	
+		numIds++;
 	}
 	
 	/** serialize freelist and write into zkfs */ 
 	public synchronized void commit() throws IOException {
 		if(!dirty) return;
-		long truncateLen = Math.max(0, lastReadPage*zkfs.archive.config.pageSize);
-		truncateLen = Math.min(getSize(), truncateLen);
-
-		truncate(truncateLen);
-		ByteBuffer buf = ByteBuffer.allocate(8*available.size());
-		while(!available.isEmpty()) {
-			buf.putLong(available.pollLast());
+	
+		truncate(0);
+		if(numRanges > 0) {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 2*MAX_VARINT_SIZE*numRanges);
+			buf.putInt(FORMAT_MAGIC);
+			buf.putInt(FORMAT_VERSION);
+			long end = 0;
+			for(int i = head; i < head + numRanges; i++) {
+				putVarint(buf, starts[i] - end);
+				putVarint(buf, counts[i]);
+				end = starts[i] + counts[i];
+			}
+	
+			seek(0, SEEK_SET);
+			write(buf.array(), 0, buf.position());
 		}
 	
-		seek(truncateLen, SEEK_SET);
-		write(buf.array());
 		flush();
-		
-		lastReadPage = inode.getRefTag().numPages;
 		dirty = false;
 	}
 	
-	/** read the next page of inode IDs */
-	protected void loadNextPage() throws IOException {
-		if(lastReadPage <= 0) throw new FreeListExhaustedException();
-		readPage(--lastReadPage);
+	public synchronized boolean contains(long inodeId) throws IOException {
+		load();
+		int index = rangeIndex(inodeId);
+		return index >= head && inodeId < starts[index] + counts[index];
 	}
 	
-	/** read a specific page of inode IDs */
-	protected void readPage(long pageNum) throws IOException {
-		seek(pageNum*zkfs.archive.config.pageSize, SEEK_SET);
-		ByteBuffer buf = ByteBuffer.wrap(read((int) zkfs.archive.config.pageSize));
-		while(buf.remaining() >= 8) available.push(buf.getLong()); // 8 == sizeof inodeId 
+	/** number of inode IDs in the list */
+	public synchronized long size() throws IOException {
+		load();
+		return numIds;
 	}
-
-	/** warning: only checks cached inode IDs, might return false even if inodeId is in uncached portion
-	 * of list
-	 */
-	public synchronized boolean contains(long inodeId) {
-		return available.contains(inodeId);
+	
+	/** number of runs of consecutive inode IDs the list is stored as */
+	public synchronized int numRanges() throws IOException {
+		load();
+		return numRanges;
+	}
+	
+	public synchronized boolean isEmpty() throws IOException {
+		return size() == 0;
 	}
 	
+	/** every inode ID in the list, in ascending order */
 	public synchronized Collection<Long> allEntries() throws IOException {
-		LinkedList<Long> entries = new LinkedList<>();
-		long maxOffset = Math.min(this.getSize(), zkfs.getArchive().getConfig().getPageSize() * lastReadPage);
-		long oldPos = pos();
-		seek(0, SEEK_SET);
-		
-		while(this.offset < maxOffset) {
-			byte[] pageData = read((int) zkfs.archive.config.pageSize);
-			ByteBuffer buf = ByteBuffer.wrap(pageData);
-			while(buf.remaining() >= 8) {
-				entries.push(buf.getLong()); 
+		load();
+		ArrayList<Long> entries = new ArrayList<>((int) Math.min(Integer.MAX_VALUE, numIds));
+		for(int i = head; i < head + numRanges; i++) {
+			for(long inodeId = starts[i]; inodeId < starts[i] + counts[i]; inodeId++) {
+				entries.add(inodeId);
 			}
 		}
-		seek(oldPos, SEEK_SET);
-		
-		entries.addAll(0, available);
+	
 		return entries;
 	}
 	
 	public synchronized String dump() throws IOException {
-		StringBuilder sb = new StringBuilder(String.format("FreeList %s, base revision %s, size %d, dirty=%s\n",
+		load();
+		StringBuilder sb = new StringBuilder(String.format("FreeList %s, base revision %s, size %d, ids %d, ranges %d, dirty=%s\n",
 				zkfs.archive.master.getName(),
 				Util.formatRevisionTag(zkfs.baseRevision),
 				pendingSize,
+				numIds,
+				numRanges,
 				dirty ? "true" : "false"
 				));
-		
-		int index = 0;
-		for(long inodeId : allEntries()) {
-			sb.append(String.format("\t#%4d: inodeId %4d\n",
-					++index,
-					inodeId));
+	
+		for(int i = head; i < head + numRanges; i++) {
+			sb.append(String.format("\t#%4d: inodeId %4d - %4d (%d)\n",
+					i-head+1,
+					starts[i],
+					starts[i] + counts[i] - 1,
+					counts[i]));
 		}
-		
+	
 		return sb.toString();
 	}
+	
+	/** read the list from disk, if we haven't already. If the list can't be parsed, we stay unloaded and empty, so
+	 * that a commit can't write back whatever part of it we got through. */
+	protected void load() throws IOException {
+		if(loaded) return;
+	
+		long size = getSize();
+		if(size > 0) {
+			try {
+				seek(0, SEEK_SET);
+				ByteBuffer buf = ByteBuffer.wrap(read((int) size));
+				if(size >= HEADER_SIZE && buf.getInt(0) == FORMAT_MAGIC) {
+					readRanges(buf);
+				} else {
+					readLegacy(buf);
+				}
+			} catch(IOException|RuntimeException exc) {
+				head = 0;
+				numRanges = 0;
+				numIds = 0;
+				throw exc;
+			}
+		}
+	
+		loaded = true;
+	}
+	
+	protected void readRanges(ByteBuffer buf) throws IOException {
+		buf.getInt(); // magic
+		int version = buf.getInt();
+		if(version != FORMAT_VERSION) throw new EINVALException("unsupported freelist version " + version);
+	
+		try {
+			long end = 0;
+			while(buf.hasRemaining()) {
+				long gap = getVarint(buf), count = getVarint(buf);
+				// ranges are never adjacent, or they'd have been merged
+				if(count <= 0 || gap < (numRanges > 0 ? 1 : 0)) throw new EINVALException("malformed freelist range");
+	
+				insertRange(head + numRanges, end + gap, count);
+				end += gap + count;
+				numIds += count;
+			}
+		} catch(BufferUnderflowException exc) {
+			throw new EINVALException("truncated freelist");
+		}
+	}
+	
+	/** legacy lists are a stack of inode IDs in no particular order, possibly with repeats */
+	protected void readLegacy(ByteBuffer buf) {
+		long[] inodeIds = new long[buf.remaining() / 8]; // 8 == sizeof inodeId
+		for(int i = 0; i < inodeIds.length; i++) {
+			inodeIds[i] = buf.getLong();
+		}
+	
+		Arrays.sort(inodeIds);
+		for(long inodeId : inodeIds) {
+			if(numRanges > 0) {
+				int last = head + numRanges - 1;
+				long end = starts[last] + counts[last];
+				if(inodeId < end) continue;
+				if(inodeId == end) {
+					counts[last]++;
+					numIds++;
+					continue;
+				}
+			}
+	
+			insertRange(head + numRanges, inodeId, 1);
+			numIds++;
+		}
+	}
+	
+	protected static void putVarint(ByteBuffer buf, long value) {
+		while((value & ~0x7fL) != 0) {
+			buf.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+	
+		buf.put((byte) value);
+	}
+	
+	protected static long getVarint(ByteBuffer buf) throws EINVALException {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = buf.get();
+			value |= (long) (b & 0x7f) << shift;
+			if((b & 0x80) == 0) return value;
+		}
+	
+		throw new EINVALException("malformed freelist varint");
+	}
+	
+	/** index of the last range starting at or before inodeId, or head-1 if there is none */
+	protected int rangeIndex(long inodeId) {
+		int index = Arrays.binarySearch(starts, head, head + numRanges, inodeId);
+		return index >= 0 ? index : -index - 2;
+	}
+	
+	protected void insertRange(int index, long start, long count) {
+		if(index == head && head > 0) {
+			index = --head; // room in front, e.g. from IDs we've issued, so nothing has to move
+		} else {
+			int offset = index - head;
+			ensureCapacity(numRanges + 1);
+			index = head + offset;
+			int tail = head + numRanges;
+			System.arraycopy(starts, index, starts, index+1, tail - index);
+			System.arraycopy(counts, index, counts, index+1, tail - index);
+		}
+	
+		starts[index] = start;
+		counts[index] = count;
+		numRanges++;
+	}
+	
+	protected void removeRange(int index) {
+		numRanges--;
+		if(index == head) {
+			head++;
+			if(numRanges == 0) head = 0;
+			return;
+		}
+	
+		int tail = head + numRanges;
+		System.arraycopy(starts, index+1, starts, index, tail - index);
+		System.arraycopy(counts, index+1, counts, index, tail - index);
+	}
+	
+	/** make room for capacity ranges after head, moving the ranges in use to the front of the arrays if need be */
+	protected void ensureCapacity(int capacity) {
+		if(head + capacity <= starts.length) return;
+		int newLength = capacity <= starts.length/2 ? starts.length : Math.max(capacity, 2*starts.length);
+		long[] newStarts = newLength == starts.length ? starts : new long[newLength],
+		       newCounts = newLength == counts.length ? counts : new long[newLength];
+		System.arraycopy(starts, head, newStarts, 0, numRanges);
+		System.arraycopy(counts, head, newCounts, 0, numRanges);
+		starts = newStarts;
+		counts = newCounts;
+		head = 0;
+	}
 }
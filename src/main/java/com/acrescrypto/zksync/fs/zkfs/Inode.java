@@ -9,7 +9,7 @@ import com.acrescrypto.zksync.fs.Stat;
 import com.acrescrypto.zksync.utility.Util;
 
 public class Inode implements Comparable<Inode> {
-	protected ZKFS fs; /** filesystem containing this inode */
+	protected ZKFS fs; /** filesystem containing this inode; for inodes shared via SnapshotCache, the view that decoded them */
 
 	// the following fields are serialized:
 	private Stat stat; /** stat object, similar to POSIX struct stat */
@@ -49,7 +49,7 @@ public class Inode implements Comparable<Inode> {
 		this.fs = fs;
 		this.stat = new Stat();
 		if(!fs.archive.config.isReadOnly()) {
-			this.changedFrom = RevisionTag.blank(fs.archive.config);
+			this.changedFrom = fs.archive.config.blankRevisionTag();
 		}
 		this.refTag = RefTag.blank(fs.archive);
 	}
@@ -281,7 +281,9 @@ public class Inode implements Comparable<Inode> {
 		stat = new Stat();
 		stat.setInodeId(oldId);
 		refTag = RefTag.blank(fs.archive);
-		changedFrom = RevisionTag.blank(fs.archive.config);
+		changedFrom = fs.archive.config.isReadOnly()
+				? RevisionTag.blank(fs.archive.config)
+				: fs.archive.config.blankRevisionTag(); // signing a fresh blank tag for every deleted inode adds up
 		previousInodeId = 0;
 		nlink = 0;
 		modifiedTime = 0;
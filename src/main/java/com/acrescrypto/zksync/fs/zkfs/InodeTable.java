@@ -4,19 +4,15 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.lang3.mutable.MutableLong;
-
 import com.acrescrypto.zksync.exceptions.ClosedException;
 import com.acrescrypto.zksync.exceptions.EACCESException;
 import com.acrescrypto.zksync.exceptions.EMLINKException;
 import com.acrescrypto.zksync.exceptions.ENOENTException;
 import com.acrescrypto.zksync.exceptions.NonexistentPageException;
-import com.acrescrypto.zksync.fs.Directory;
 import com.acrescrypto.zksync.fs.Stat;
 import com.acrescrypto.zksync.fs.zkfs.FreeList.FreeListExhaustedException;
 import com.acrescrypto.zksync.fs.zkfs.resolver.InodeDiff;
@@ -53,6 +49,10 @@ public class InodeTable extends ZKFile {
 	/** Map of inode IDs that we will force to have a specific changedFrom field in a diff merge */
 	protected ConcurrentHashMap<Long,ChangedFromOverrideReference> changedFromOverrides = new ConcurrentHashMap<>();
 	
+	/** Maintenance passes that threw partway, picked up again by the next call to the same method. Dropped when we
+	 * issue an inode or commit, since either leaves them working from a table that no longer exists. */
+	protected InodeTableMaintenance pendingLinkCounts, pendingDefragment;
+	
 	private boolean dirty;
 	private BlockManager blockManager;
 	
@@ -107,7 +107,7 @@ public class InodeTable extends ZKFile {
 						pageNum);
 				
 				commitInodePage(pageNum, inodes);
-			});
+			}).instrument("inodeTablePages");
 			
 			tokens.add(fs.getArchive().getMaster().getGlobalConfig().subscribe("fs.settings.maxOpenBlocks").asInt((max)->{
 				int oldValue = blockManager.getMaxOpenBlocks();
@@ -233,6 +233,7 @@ public class InodeTable extends ZKFile {
 		syncInodes();
 		allocatedInodeIds.clear();
 		changedFromOverrides.clear();
+		pendingLinkCounts = pendingDefragment = null;
 		dirty = false;
 		return parents;
 	}
@@ -347,16 +348,13 @@ public class InodeTable extends ZKFile {
 	 * @throws IOException */
 	public boolean hasInodeWithId(long inodeId) throws IOException {
 		if(inodeId > nextInodeId()) return false;
-		// TODO Someday: (refactor) not reliable, freelist can only say if cached listings are present
-		/* Right now, we don't care because hasInodeWithId is only checked during unlink,
-		 * which gracefully handles unlinking inodes that are already in the freelist.
-		 */
 		if(freelist.contains(inodeId)) return false;
 		return true;
 	}
 	
 	/** issue next inode ID (draw from freelist if available, or issue next sequential ID if freelist is empty) */
 	public synchronized long issueInodeId() throws IOException {
+		pendingLinkCounts = pendingDefragment = null;
 		try {
 			/* try pulling an ID from the freelist, ignoring any ID that exceeds the next one in sequence.
 			 * we don't want to take a larger ID than our next sequential ID from the freelist, because we'll
@@ -425,116 +423,35 @@ public class InodeTable extends ZKFile {
 	/** Manually check each directory and inode to ensure nlink field is consistent. Called after each merge. 
 	 * @throws IOException */
 	public synchronized void rebuildLinkCounts() throws IOException {
-		zkfs.lockedOperation(()->{
-			freelist.clearList();
-			MutableLong maxInodeId = new MutableLong(nextInodeId()-1);
-			HashMap<Long,Integer> inodeCounts = new HashMap<>();
-			
-			try(ZKDirectory dir = zkfs.opendir("/")) {
-				dir.walk(Directory.LIST_OPT_DONT_FOLLOW_SYMLINKS|Directory.LIST_OPT_INCLUDE_DOT_DOTDOT, (path, stat, isBroken, parent)->{
-					long inodeId = stat.getInodeId();
-					int nlinkCount = inodeCounts.getOrDefault(inodeId, 0) + 1;
-					inodeCounts.put(inodeId, nlinkCount);
-					if(inodeId > maxInodeId.longValue()) {
-						maxInodeId.setValue(inodeId);
-					}
-				});
-			}
-			
-			// walk backwards through inode table, handling any 0 nlink inodes as we go
-			for(long inodeId = maxInodeId.longValue(); inodeId >= 0; inodeId--) {
-				Inode inode = inodeWithId(inodeId);
-				int nlink = inodeCounts.getOrDefault(inodeId, 0);
-				if(inode.getNlink() != nlink) {
-					if(nlink == 0) {
-						inode.setNlink(0);
-						if((inode.getFlags() & Inode.FLAG_RETAIN) == 0) {
-							try {
-								unlink(inodeId); // found an orphaned inode, free it up
-							} catch(ENOENTException exc) {
-								/* we might have found an inode that wasn't OK to unlink
-								 * but that means the inode isn't linked anyway, so ignore it */
-							}
-						}
-					} else {
-						inode.setNlink(nlink);
-					}
-				} else if(nlink == 0 && (inode.getFlags() & Inode.FLAG_RETAIN) == 0) {
-					/* we cleared the free list, so add the inode ID back in
-					 * (freelist is a LIFO, so we want lowest inode IDs on top of the stack, hence why we
-					 * traverse the inode table from end to start) */
-					inode.markDeleted();
-					if(inodeId >= USER_INODE_ID_START) {
-						freelist.freeInodeId(inodeId);
-					}
-				}
-			}
-			
-			this.nextInodeId = -1;
-			setDirty(true);
-			
-			return null;
-		});
+		if(pendingLinkCounts == null) pendingLinkCounts = new InodeTableMaintenance(this);
+		pendingLinkCounts.rebuildLinkCounts();
+		pendingLinkCounts = null;
 	}
 	
 	/** Renumber inodes so that we have no unassigned inodes until after the last allocated inode. 
 	 * @throws IOException */
 	public synchronized void defragment() throws IOException {
-		HashMap<Long, Long> remappedIds = new HashMap<>();
-		long existingMaxId = nextInodeId()-1;
-		
-		/* reassign inodes from the end of the table to inodes in the freelist until the freelist is empty */
-		try {
-			for(long newInodeId = USER_INODE_ID_START; newInodeId < existingMaxId; newInodeId++) {
-				Inode inode = inodeWithId(newInodeId);
-				if(!inode.isDeleted()) continue;
-				
-				for(long oldInodeId = existingMaxId; oldInodeId > newInodeId; oldInodeId--) {
-					Inode existing = inodeWithId(oldInodeId);
-					if(existing.isDeleted()) continue;
-					existingMaxId = oldInodeId - 1;
-					remappedIds.put(oldInodeId, newInodeId);
-
-					break;
-				}
-			}
-		} catch(FreeListExhaustedException exc) {}
-
-		/* renumber them in the table */
-		for(long oldId : remappedIds.keySet()) {
-			long newId = remappedIds.get(oldId);
-			Inode existingLocation = inodeWithId(oldId);
-			Inode newLocation = inodeWithId(newId);
-			
-			newLocation.deserialize(existingLocation.serialize());
-			newLocation.getStat().setInodeId(newId);
-			zkfs.updateCachedDirectoryInode(oldId, newLocation);
-			existingLocation.markDeleted();
-			
-			changedFromOverrides.put(newId, getChangedFromInfo(oldId));
-		}
+		if(pendingDefragment == null) pendingDefragment = new InodeTableMaintenance(this);
+		pendingDefragment.defragment();
+		pendingDefragment = null;
+	}
+	
+	/** array of all inodes stored at a given page number of the inode table */
+	protected Inode[] inodesForPage(long pageNum) throws IOException {
+		if(pageNum == 0) return inodesForFirstPage(); // has our own inode spliced in, so never shared
 		
-		/* update links in the directories */
-		for(long inodeId = 0; inodeId <= existingMaxId; inodeId++) {
-			Inode inode = inodeWithId(inodeId);
-			if(inode.isDeleted()) continue;
-			if(!inode.getStat().isDirectory()) continue;
-			
-			try(ZKDirectory dir = zkfs.opendirSemicache(inode)) {
-				dir.remap(remappedIds);
-				dir.setOverrideMtime(this.getStat().getMtime());
+		SnapshotCache snapshotCache = zkfs.getSnapshotCache();
+		if(snapshotCache != null && !dirty && pageNum < tree.numPages()) {
+			StorageTag pageTag = tree.getPageTag(pageNum);
+			if(pageTag.isFinalized() && !pageTag.isBlank()) {
+				return snapshotCache.inodePage(pageTag, inode.getIdentity(), pageNum, ()->readInodesForPage(pageNum));
 			}
 		}
 		
-		/* force rescan of next inode ID */
-		freelist.clearList();
-		this.nextInodeId = -1;
-		zkfs.markDirty();
+		return readInodesForPage(pageNum);
 	}
 	
-	/** array of all inodes stored at a given page number of the inode table */
-	protected Inode[] inodesForPage(long pageNum) throws IOException {
-		if(pageNum == 0) return inodesForFirstPage();
+	protected Inode[] readInodesForPage(long pageNum) throws IOException {
 		Inode[] list = new Inode[numInodesForPage(pageNum)];
 		
 		try {
@@ -781,6 +698,7 @@ public class InodeTable extends ZKFile {
 				Util.formatRevisionTag(tag),
 				Util.formatRefTag(tag.getRefTag()));
 		this.tree = new PageTree(tag.getRefTag());
+		this.tree.setSnapshotCache(zkfs.getSnapshotCache());
 		this.inode = new Inode(zkfs);
 		this.inode.setRefTag(tag.getRefTag());
 		this.inode.setFlags(Inode.FLAG_RETAIN);
@@ -788,7 +706,7 @@ public class InodeTable extends ZKFile {
 		this.pendingSize = zkfs.archive.config.pageSize * tag.getRefTag().numPages;
 		this.inode.getStat().setSize(this.pendingSize);
 		this.revision = readRevisionInfo();
-		this.freelist = new FreeList(inodeWithId(INODE_ID_FREELIST)); // doesn't actually read anything yet
+		this.freelist = new FreeList(zkfs, inodeWithId(INODE_ID_FREELIST)); // doesn't actually read anything yet
 		nextInodeId = -1; // causes nextInodeId() to read from table on next invocation
 		// zkfs.archive.config.revisionTree.addParentsForTag(tag, revision.parents);
 	}
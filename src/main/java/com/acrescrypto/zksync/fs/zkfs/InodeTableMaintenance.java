@@ -0,0 +1,469 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.acrescrypto.zksync.exceptions.ENOENTException;
+import com.acrescrypto.zksync.utility.GroupedThreadPool;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Rebuilds link counts and defragments an inode table, in streaming passes over the table by inode ID.
+ *
+ * Link counts come from a breadth-first pass over the directories reachable from the root, each opened straight
+ * from its inode rather than by path, with the counts kept in a primitive array indexed by inode ID. Defragmenting
+ * plans its renumbering in a single pass inward from both ends of the table, renumbers, and then rewrites each
+ * directory once. Decrypting blocks is most of the cost of either, and independent from one block to the next, so
+ * the inode table pages and directories a pass is about to reach are loaded ahead of it on a worker pool. Everything
+ * that touches the filesystem itself stays on the calling thread. Prefetching only runs a window of
+ * progressInterval inodes ahead of each pass, so we never hold more than that much of the table decrypted in advance.
+ *
+ * A pass that throws partway, including because its thread was interrupted, leaves its position in this object,
+ * and calling the same method again carries on from there. That's only meaningful if nothing has changed the
+ * filesystem in the meantime; a new InodeTableMaintenance always starts from scratch. InodeTable keeps hold of an
+ * unfinished pass for this reason. Once renumbering starts, the inodes it has moved are marked deleted but the
+ * directories still point at them, so renumbering and remapping run to completion regardless of interrupts.
+ */
+public class InodeTableMaintenance {
+	public final static int DEFAULT_PROGRESS_INTERVAL = 1024; // report progress, and prefetch ahead, this many inodes at a time
+
+	public enum Phase {
+		COUNT_LINKS,       // completed = directories counted, total = directories found so far
+		APPLY_LINK_COUNTS, // completed = inodes updated, total = inodes in table
+		PLAN_RENUMBERING,  // completed = inodes examined, total = inodes in table
+		RENUMBER_INODES,   // completed = inodes moved, total = inodes to move
+		REMAP_DIRECTORIES  // completed = inodes examined, total = inodes in table
+	}
+
+	public interface ProgressCallback {
+		public void progress(Phase phase, long completed, long total);
+	}
+
+	protected InodeTable                table;
+	protected ZKFS                      zkfs;
+	protected ProgressCallback          progressCallback;
+	protected GroupedThreadPool         pool;
+	protected LinkedList<Future<?>>     prefetches = new LinkedList<>();   // block loads we've queued on the pool
+	protected int                       progressInterval = DEFAULT_PROGRESS_INTERVAL;
+	protected long                      prefetchedUpTo, prefetchedDownTo;         // inode table window queued ahead of a pass
+
+	/* rebuildLinkCounts state */
+	protected boolean                   countingStarted, countingFinished;
+	protected int[]                     linkCounts;                                 // inodeId -> links found, for IDs inside the table
+	protected HashMap<Long,Integer>     strayLinkCounts = new HashMap<>();          // same, for IDs past the end of the table
+	protected long                      maxLinkedInodeId;
+	protected ArrayDeque<Long>          directoryQueue = new ArrayDeque<>();        // directories found but not yet counted
+	protected HashSet<Long>             queuedDirectories = new HashSet<>();
+	protected long                      directoriesCounted,
+	                                    nextApplyId;
+
+	/* defragment state */
+	protected boolean                   planStarted, planFinished, renumbered;
+	protected long                      planSize, existingMaxId, nextHoleId, inodesToMove;
+	protected long[]                    remapOld = new long[16], remapNew = new long[16]; // sorted by old ID, once planned
+	protected int                       numRemapped, nextRenumber;
+	protected long                      nextDirectoryId;
+
+	protected Logger                    logger = LoggerFactory.getLogger(InodeTableMaintenance.class);
+
+	public InodeTableMaintenance(InodeTable table) {
+		this.table = table;
+		this.zkfs  = table.zkfs;
+	}
+
+	public InodeTableMaintenance setProgressCallback(ProgressCallback progressCallback) {
+		this.progressCallback = progressCallback;
+		return this;
+	}
+
+	/** Manually check each directory and inode to ensure nlink field is consistent. */
+	public void rebuildLinkCounts() throws IOException {
+		synchronized(table) {
+			zkfs.lockedOperation(()->{
+				try {
+					startPool();
+					countLinks();
+					applyLinkCounts();
+				} finally {
+					stopPool();
+				}
+
+				return null;
+			});
+		}
+	}
+
+	/** Renumber inodes so that we have no unassigned inodes until after the last allocated inode. */
+	public void defragment() throws IOException {
+		synchronized(table) {
+			zkfs.lockedOperation(()->{
+				try {
+					startPool();
+					planRenumbering();
+					renumberInodes();
+					remapDirectories();
+				} finally {
+					stopPool();
+				}
+
+				return null;
+			});
+		}
+	}
+
+	protected void countLinks() throws IOException {
+		if(countingFinished) return;
+		if(!countingStarted) {
+			table.freelist.clearList();
+			long tableSize = table.nextInodeId();
+			linkCounts = new int[(int) Math.min(Integer.MAX_VALUE, tableSize)];
+			maxLinkedInodeId = tableSize-1;
+			directoryQueue.add(InodeTable.INODE_ID_ROOT_DIRECTORY);
+			queuedDirectories.add(InodeTable.INODE_ID_ROOT_DIRECTORY);
+			countingStarted = true;
+		}
+
+		for(long directoryId : directoryQueue) {
+			prefetchDirectory(table.inodeWithId(directoryId));
+		}
+
+		while(!directoryQueue.isEmpty()) {
+			checkInterrupted();
+			long directoryId = directoryQueue.peek();
+			countDirectory(directoryId);
+			directoryQueue.poll();
+			directoriesCounted++;
+			progress(Phase.COUNT_LINKS, directoriesCounted, directoriesCounted + directoryQueue.size());
+		}
+
+		nextApplyId = maxLinkedInodeId;
+		countingFinished = true;
+	}
+
+	/** Count the links in one directory, queueing any subdirectories we haven't seen. Every lookup happens before we
+	 * count anything, so a directory we fail partway through can just be counted again. */
+	protected void countDirectory(long directoryId) throws IOException {
+		Inode dirInode = table.inodeWithId(directoryId);
+
+		long[] linkedIds;
+		boolean[] isSubdirectory;
+		Inode[] entries;
+		try(ZKDirectory dir = zkfs.opendirSemicache(dirInode)) {
+			prefetchEntries(dir);
+			linkedIds = new long[dir.entries.size()];
+			isSubdirectory = new boolean[linkedIds.length];
+			entries = new Inode[linkedIds.length];
+			int i = 0;
+			for(String name : dir.entries.keySet()) {
+				if(i == linkedIds.length) break; // directory changed under us; shouldn't happen inside lockedOperation
+				Inode entry = table.inodeWithId(dir.entries.get(name));
+				boolean isDotDir = name.equals(".") || name.equals("..");
+				linkedIds[i] = entry.getStat().getInodeId();
+				isSubdirectory[i] = !isDotDir && entry.getStat().isDirectory();
+				entries[i] = entry;
+				i++;
+			}
+		} catch(ENOENTException exc) {
+			return; // nothing to count in a directory that isn't there
+		}
+
+		for(int i = 0; i < linkedIds.length; i++) {
+			long inodeId = linkedIds[i];
+			if(inodeId < linkCounts.length) {
+				linkCounts[(int) inodeId]++;
+			} else {
+				strayLinkCounts.put(inodeId, strayLinkCounts.getOrDefault(inodeId, 0) + 1);
+			}
+
+			maxLinkedInodeId = Math.max(maxLinkedInodeId, inodeId);
+			if(isSubdirectory[i] && queuedDirectories.add(inodeId)) {
+				directoryQueue.add(inodeId);
+				prefetchDirectory(entries[i]);
+			}
+		}
+	}
+
+	/** Walk backwards through the table, setting each inode's nlink to what we counted and freeing the orphans. */
+	protected void applyLinkCounts() throws IOException {
+		long total = maxLinkedInodeId+1;
+		resetPrefetchWindow();
+		for(; nextApplyId >= 0; nextApplyId--) {
+			checkInterrupted();
+			long inodeId = nextApplyId;
+			prefetchBelow(inodeId);
+			if(inodeId % progressInterval == 0) progress(Phase.APPLY_LINK_COUNTS, total - inodeId, total);
+
+			Inode inode = table.inodeWithId(inodeId);
+			int nlink = linkCount(inodeId);
+			if(inode.getNlink() != nlink) {
+				if(nlink == 0) {
+					inode.setNlink(0);
+					if((inode.getFlags() & Inode.FLAG_RETAIN) == 0) {
+						try {
+							table.unlink(inodeId); // found an orphaned inode, free it up
+						} catch(ENOENTException exc) {
+							/* we might have found an inode that wasn't OK to unlink
+							 * but that means the inode isn't linked anyway, so ignore it */
+						}
+					}
+				} else {
+					inode.setNlink(nlink);
+				}
+			} else if(nlink == 0 && (inode.getFlags() & Inode.FLAG_RETAIN) == 0) {
+				// we cleared the free list, so add the inode ID back in
+				inode.markDeleted();
+				if(inodeId >= InodeTable.USER_INODE_ID_START) {
+					table.freelist.freeInodeId(inodeId);
+				}
+			}
+		}
+
+		progress(Phase.APPLY_LINK_COUNTS, total, total);
+		table.nextInodeId = -1;
+		table.setDirty(true);
+	}
+
+	protected int linkCount(long inodeId) {
+		if(inodeId < linkCounts.length) return linkCounts[(int) inodeId];
+		return strayLinkCounts.getOrDefault(inodeId, 0);
+	}
+
+	/** Pair each unassigned inode ID, from the bottom of the table up, with the highest assigned inode ID above it. */
+	protected void planRenumbering() throws IOException {
+		if(planFinished) return;
+		if(!planStarted) {
+			existingMaxId = table.nextInodeId()-1;
+			planSize = existingMaxId+1;
+			nextHoleId = InodeTable.USER_INODE_ID_START;
+			planStarted = true;
+		}
+
+		resetPrefetchWindow();
+		for(; nextHoleId < existingMaxId; nextHoleId++) {
+			checkInterrupted();
+			if(nextHoleId % progressInterval == 0) progress(Phase.PLAN_RENUMBERING, nextHoleId + (planSize - existingMaxId), planSize);
+			prefetchAbove(nextHoleId);
+			if(!table.inodeWithId(nextHoleId).isDeleted()) continue;
+
+			long oldInodeId = existingMaxId;
+			prefetchBelow(oldInodeId);
+			while(oldInodeId > nextHoleId && table.inodeWithId(oldInodeId).isDeleted()) {
+				oldInodeId--;
+				prefetchBelow(oldInodeId);
+			}
+
+			// everything between here and the top of the table is unassigned, so there's nothing left to move
+			if(oldInodeId <= nextHoleId) break;
+
+			addRemap(oldInodeId, nextHoleId);
+			existingMaxId = oldInodeId - 1;
+		}
+
+		// we planned moves from the top down; keep them sorted by old ID so directories can look them up
+		for(int i = 0; i < numRemapped/2; i++) {
+			int j = numRemapped-1-i;
+			long oldId = remapOld[i], newId = remapNew[i];
+			remapOld[i] = remapOld[j];
+			remapNew[i] = remapNew[j];
+			remapOld[j] = oldId;
+			remapNew[j] = newId;
+		}
+
+		progress(Phase.PLAN_RENUMBERING, planSize, planSize);
+		inodesToMove = numRemapped;
+		planFinished = true;
+	}
+
+	/** Not interruptible, since the directories point at the old IDs until remapDirectories is through. */
+	protected void renumberInodes() throws IOException {
+		if(renumbered) return;
+		for(; nextRenumber < numRemapped; nextRenumber++) {
+			if(nextRenumber % progressInterval == 0) progress(Phase.RENUMBER_INODES, nextRenumber, inodesToMove);
+
+			long oldId = remapOld[nextRenumber], newId = remapNew[nextRenumber];
+			Inode existingLocation = table.inodeWithId(oldId);
+			Inode newLocation = table.inodeWithId(newId);
+
+			newLocation.deserialize(existingLocation.serialize());
+			newLocation.getStat().setInodeId(newId);
+			newLocation.setDirty(true); // deserializing clears this, and we need the new location's page rewritten
+			zkfs.updateCachedDirectoryInode(oldId, newLocation);
+			existingLocation.markDeleted();
+
+			table.changedFromOverrides.put(newId, table.getChangedFromInfo(oldId));
+		}
+
+		progress(Phase.RENUMBER_INODES, inodesToMove, inodesToMove);
+		nextDirectoryId = 0;
+		renumbered = true;
+	}
+
+	/** Point every directory entry at the renumbered inodes. A directory that isn't in the filesystem's path cache
+	 * won't be committed along with the filesystem, so we commit it ourselves. Not interruptible, like
+	 * renumberInodes. */
+	protected void remapDirectories() throws IOException {
+		long total = existingMaxId+1;
+		resetPrefetchWindow();
+		for(; nextDirectoryId <= existingMaxId; nextDirectoryId++) {
+			long inodeId = nextDirectoryId;
+			prefetchAbove(inodeId);
+			if(inodeId % progressInterval == 0) {
+				progress(Phase.REMAP_DIRECTORIES, inodeId, total);
+				prefetchDirectories(inodeId, Math.min(existingMaxId+1, inodeId+progressInterval));
+			}
+
+			Inode inode = table.inodeWithId(inodeId);
+			if(inode.isDeleted()) continue;
+			if(!inode.getStat().isDirectory()) continue;
+
+			try(ZKDirectory dir = zkfs.opendirSemicache(inode)) {
+				if(numRemapped > 0) dir.remap((id)->remappedId(id));
+				dir.setOverrideMtime(table.getStat().getMtime());
+				if(dir.dirty && !zkfs.isCachedDirectory(dir)) {
+					dir.commit();
+				}
+			}
+		}
+
+		progress(Phase.REMAP_DIRECTORIES, total, total);
+
+		/* force rescan of next inode ID */
+		table.freelist.clearList();
+		table.nextInodeId = -1;
+		zkfs.markDirty();
+		logger.debug("ZKFS {} {}: Defragmented inode table, moved {} inodes",
+				Util.formatArchiveId(zkfs.getArchive().getConfig().getArchiveId()),
+				zkfs.getBaseRevision() != null ? Util.formatRevisionTag(zkfs.getBaseRevision()) : "-",
+				numRemapped);
+	}
+
+	protected long remappedId(long inodeId) {
+		int index = Arrays.binarySearch(remapOld, 0, numRemapped, inodeId);
+		return index >= 0 ? remapNew[index] : inodeId;
+	}
+
+	protected void addRemap(long oldId, long newId) {
+		if(numRemapped == remapOld.length) {
+			remapOld = Arrays.copyOf(remapOld, 2*remapOld.length);
+			remapNew = Arrays.copyOf(remapNew, 2*remapNew.length);
+		}
+
+		remapOld[numRemapped] = oldId;
+		remapNew[numRemapped] = newId;
+		numRemapped++;
+	}
+
+	protected void startPool() {
+		int threads = zkfs.getArchive().getMaster().getGlobalConfig().getInt("fs.settings.maintenanceThreads");
+		if(threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+		pool = GroupedThreadPool.newFixedThreadPool(zkfs.getArchive().getMaster().getThreadGroup(),
+				"InodeTableMaintenance",
+				threads);
+	}
+
+	protected void stopPool() {
+		for(Future<?> future : prefetches) {
+			future.cancel(false); // anything still queued is for a pass that's over
+		}
+
+		prefetches.clear();
+		pool.shutdown();
+		pool = null;
+	}
+
+	protected void resetPrefetchWindow() {
+		prefetchedUpTo   = -1;
+		prefetchedDownTo = Long.MAX_VALUE;
+	}
+
+	/** Keep the inode table pages up to a window past inodeId queued, for a pass walking up the table. */
+	protected void prefetchAbove(long inodeId) throws IOException {
+		if(prefetchedUpTo < inodeId) prefetchedUpTo = inodeId;
+		while(prefetchedUpTo < inodeId + progressInterval) {
+			prefetchInodePages(prefetchedUpTo, prefetchedUpTo + progressInterval);
+			prefetchedUpTo += progressInterval;
+		}
+	}
+
+	/** Keep the inode table pages down to a window below inodeId queued, for a pass walking down the table. */
+	protected void prefetchBelow(long inodeId) throws IOException {
+		if(prefetchedDownTo > inodeId+1) prefetchedDownTo = inodeId+1;
+		while(prefetchedDownTo > 0 && prefetchedDownTo > inodeId - progressInterval) {
+			long start = Math.max(0, prefetchedDownTo - progressInterval);
+			prefetchInodePages(start, prefetchedDownTo);
+			prefetchedDownTo = start;
+		}
+	}
+
+	/** Queue the inode table pages holding inode IDs startId through endId-1 that we haven't already read. */
+	protected void prefetchInodePages(long startId, long endId) throws IOException {
+		long numPages = table.tree.numPages();
+		for(long pageNum = table.pageNumForInodeId(startId); pageNum <= table.pageNumForInodeId(endId-1); pageNum++) {
+			if(pageNum >= numPages) break;
+			if(table.inodesByPage.hasCached(pageNum)) continue;
+			prefetch(table.tree.getPageTag(pageNum), true); // the inode table is read with signature verification
+		}
+	}
+
+	/** Queue the inode table pages for a directory's entries, which are scattered anywhere in the table. */
+	protected void prefetchEntries(ZKDirectory dir) throws IOException {
+		long lastPageNum = -1;
+		for(long inodeId : dir.entries.values()) {
+			long pageNum = table.pageNumForInodeId(inodeId);
+			if(pageNum == lastPageNum) continue;
+			prefetchInodePages(inodeId, inodeId+1);
+			lastPageNum = pageNum;
+		}
+	}
+
+	protected void prefetchDirectories(long startId, long endId) throws IOException {
+		for(long inodeId = startId; inodeId < endId; inodeId++) {
+			prefetchDirectory(table.inodeWithId(inodeId));
+		}
+	}
+
+	/** Only worth doing for single-page directories, since that covers nearly all of them and we can get the page's
+	 * tag straight from the inode. */
+	protected void prefetchDirectory(Inode inode) throws IOException {
+		if(inode.isDeleted() || !inode.getStat().isDirectory()) return;
+		if(inode.getRefTag().getRefType() != RefTag.REF_TYPE_INDIRECT) return;
+		prefetch(inode.getRefTag().getStorageTag(), false); // directories are trusted, like any file but the inode table
+	}
+
+	/** Decrypt a block on the pool, so it's cached on its storage tag by the time we read it. StorageTag.loadBlock is
+	 * synchronized, so if we get there first we just wait for it. */
+	protected void prefetch(StorageTag tag, boolean verify) throws IOException {
+		if(!tag.isFinalized() || !tag.isStored()) return;
+
+		ZKArchive archive = zkfs.getArchive();
+		if(!archive.hasPageTag(tag)) return; // don't go to the swarm for something we're only guessing we'll need
+		if(prefetches.size() >= progressInterval) {
+			prefetches.removeIf((future)->future.isDone());
+		}
+
+		prefetches.add(pool.submit(()->{
+			try {
+				tag.loadBlock(archive, verify);
+			} catch(Exception exc) {
+				// we'll just load it when we get to it, and handle anything that goes wrong then
+			}
+		}));
+	}
+
+	protected void checkInterrupted() throws InterruptedIOException {
+		if(Thread.currentThread().isInterrupted()) throw new InterruptedIOException();
+	}
+
+	protected void progress(Phase phase, long completed, long total) {
+		if(progressCallback == null) return;
+		progressCallback.progress(phase, completed, total);
+	}
+}
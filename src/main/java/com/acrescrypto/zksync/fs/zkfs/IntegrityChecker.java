@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 
 import com.acrescrypto.zksync.fs.Directory;
@@ -15,7 +16,7 @@ public class IntegrityChecker {
 	protected ZKFS fs;
 	protected HashMap<Long,Integer> linkCounts = new HashMap<>();
 	protected HashMap<Long,Integer> identityCounts = new HashMap<>();
-	protected LinkedList<Long> freelistContents = new LinkedList<>();
+	protected HashSet<Long> freelistContents = new HashSet<>();
 	
 	public static void assertValidFilesystem(RevisionTag revTag) throws IOException {
 		try(ZKFS fs = revTag.getFS()) {
@@ -765,7 +766,7 @@ public class IntegrityChecker {
 	}
 	
 	protected void scanFreelist() throws IOException {
-		freelistContents = new LinkedList<>(fs.getInodeTable().freelist.allEntries());
+		freelistContents = new HashSet<>(fs.getInodeTable().freelist.allEntries());
 	}
 	
 	protected boolean revHasIdentityAtId(RevisionTag parent, long identity, long inodeId) throws IOException {
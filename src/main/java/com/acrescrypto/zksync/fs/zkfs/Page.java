@@ -12,6 +12,7 @@ import com.acrescrypto.zksync.fs.Directory;
 import com.acrescrypto.zksync.fs.FS;
 import com.acrescrypto.zksync.fs.FSPath;
 import com.acrescrypto.zksync.fs.backedfs.BackedFS;
+import com.acrescrypto.zksync.utility.MetricsRegistry;
 import com.acrescrypto.zksync.utility.Util;
 
 /** represents a fixed-size page of data from a file. handles encryption/decryption/storage of said page. */
@@ -23,6 +24,10 @@ public class Page {
 	boolean dirty; /** true if page has been written to since last read/flush */
 	protected Logger logger = LoggerFactory.getLogger(Page.class);
 	
+	protected final static MetricsRegistry.Counter
+		pagesRead    = MetricsRegistry.sharedInstance().counter("zksync_pages_read_total",    "Pages loaded from storage"),
+		pagesWritten = MetricsRegistry.sharedInstance().counter("zksync_pages_written_total", "Pages flushed to storage");
+	
 	public static StorageTag expandTag(CryptoSupport crypto, FS storage, long shortTag) throws IOException {
 		StorageTag sTag = new StorageTag(crypto, Util.serializeLong(shortTag));
 		String path = sTag.path();
@@ -104,6 +109,7 @@ public class Page {
 				0,
 				size);
 		this.file.setPageTag(pageNum, block.getStorageTag());
+		pagesWritten.increment();
 	}
 	
 	/** read data from page into a supplied buffer
@@ -167,9 +173,11 @@ public class Page {
 			}
 			
 			try {
-				byte[] plaintext = pageTag
-					.loadBlock(file.getFS().getArchive(), !file.trusted)
-					.readData(file.getInode().getIdentity(), pageNum, Block.INDEX_TYPE_PAGE);
+				SnapshotCache snapshotCache = file.tree.getSnapshotCache();
+				Block block = snapshotCache != null
+						? snapshotCache.block(pageTag, !file.trusted)
+						: pageTag.loadBlock(file.getFS().getArchive(), !file.trusted);
+				byte[] plaintext = block.readData(file.getInode().getIdentity(), pageNum, Block.INDEX_TYPE_PAGE);
 				contents.put(plaintext);
 			} catch(SecurityException exc) {
 				throw exc;
@@ -177,6 +185,7 @@ public class Page {
 		}
 		
 		size = contents.position();
+		pagesRead.increment();
 		logger.trace("ZKFS {} {}: Page {} ({}) of {} has {} bytes",
 				Util.formatArchiveId(file.zkfs.getArchive().getConfig().getArchiveId()),
 				Util.formatRevisionTag(file.zkfs.getBaseRevision()),
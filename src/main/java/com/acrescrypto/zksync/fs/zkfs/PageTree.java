@@ -29,6 +29,7 @@ public class PageTree {
 	
 	protected int                            readTimeoutMs;
 	protected boolean                        trusted; // if true, do not validate public key signature on each page chunk
+	protected SnapshotCache                  snapshotCache; // chunks and pages are shared with other read-only views through this, if set
 	protected Logger                         logger = LoggerFactory.getLogger(PageTree.class);
 	
 	public class PageTreeStats {
@@ -53,6 +54,7 @@ public class PageTree {
 		this.inodeId       = inode.getStat().getInodeId();
 		this.inodeIdentity = inode.getIdentity();
 		this.trusted       = true; // if we validated the inode table, we know the page chunks are legit too
+		this.snapshotCache = inode.fs.getSnapshotCache();
 		
 		initWithSize(refTag.getNumPages());
 	}
@@ -68,6 +70,7 @@ public class PageTree {
 		this.inodeId       = original.inodeId;
 		this.inodeIdentity = original.inodeIdentity;
 		this.readTimeoutMs = original.readTimeoutMs;
+		this.snapshotCache = original.snapshotCache;
 		
 		this.numChunks     = original.numChunks;
 		this.numPages      = original.numPages;
@@ -122,7 +125,7 @@ public class PageTree {
 		if(original == null) {
 			this.chunkCache = new HashCache<>(cacheSize,
 					lookup,
-					evict);
+					evict).instrument("pageTreeChunks");
 		} else {
 			this.chunkCache = new HashCache<>(original,
 					lookup,
@@ -500,6 +503,14 @@ public class PageTree {
 		return trusted;
 	}
 	
+	public SnapshotCache getSnapshotCache() {
+		return snapshotCache;
+	}
+	
+	public void setSnapshotCache(SnapshotCache snapshotCache) {
+		this.snapshotCache = snapshotCache;
+	}
+	
 	public void dump() throws IOException {
 		System.out.println(this + ": inodeId " + inodeId + ", inodeIdentity " + inodeIdentity + ", " + Util.bytesToHex(refTag.getBytes()));
 		System.out.println("numChunks " + numChunks + ", maxNumPages " + maxNumPages + ", numPages " + numPages);
@@ -9,6 +9,7 @@ public class PageTreeChunk {
 	StorageTag[] tags;
 	long index;
 	protected boolean dirty;
+	protected boolean sharedTags; // tags belongs to the SnapshotCache, so copy it before changing it
 	
 	public PageTreeChunk(PageTree tree, StorageTag chunkTag, long index, boolean verify) throws IOException {
 		this.index = index;
@@ -35,6 +36,11 @@ public class PageTreeChunk {
 	}
 	
 	public void loadTag(long offset, StorageTag tag) {
+		if(sharedTags) {
+			tags = tags.clone();
+			sharedTags = false;
+		}
+		
 		tags[(int) offset] = tag;
 	}
 	
@@ -76,6 +82,7 @@ public class PageTreeChunk {
 				serialized,
 				0,
 				serialized.length);
+		block.writeAsync(); // so sibling chunks are sealed in parallel; our parent waits for the tag when it serializes
 		chunkTag = block.storageTag;
 		
 		if(index != 0) {
@@ -96,6 +103,14 @@ public class PageTreeChunk {
 			tree.getArchive().getConfig().waitForPageReady(chunkTag,
 					tree.getReadTimeoutMs());
 		}
+		
+		SnapshotCache snapshotCache = tree.getSnapshotCache();
+		if(snapshotCache != null && chunkTag.isFinalized()) {
+			tags = snapshotCache.chunkTags(this, verify);
+			sharedTags = true;
+			return;
+		}
+		
 		byte[] serialized = chunkTag
 			.loadBlock(tree.archive, verify)
 			.readData(tree.inodeIdentity, index, Block.INDEX_TYPE_CHUNK);
@@ -112,6 +127,7 @@ public class PageTreeChunk {
 	}
 	
 	protected void deserialize(ByteBuffer serialized) {
+		sharedTags = false;
 		tags = new StorageTag[tree.tagsPerChunk()];
 		int hashLength = tree.archive.crypto.hashLength();
 		int i = 0;
@@ -160,6 +160,12 @@ public class RevisionTag implements Comparable<RevisionTag> {
 		return new ZKFS(this);
 	}
 	
+	/** Open a new read-only ZKFS for this revision. Most callers want readOnlyFS(), which reuses the archive's cached
+	 * read-only views. */
+	public ZKFS getReadOnlyFS() throws IOException {
+		return new ZKFS(this, "/", true);
+	}
+	
 	public boolean matchesPrefix(String base64Prefix) {
 		String unsafedPrefix = Util.fromWebSafeBase64(base64Prefix);
 		String myBase64 = Util.encode64(this.getBytes());
@@ -0,0 +1,161 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.acrescrypto.zksync.fs.zkfs.config.SubscriptionService.SubscriptionToken;
+import com.acrescrypto.zksync.utility.HashCache;
+
+/** Decoded revision structure shared between an archive's read-only ZKFS views.
+ *
+ * Adjacent revisions of an archive share nearly all of their pages, but each ZKFS decodes its own copy of every
+ * inode table page, directory and page tree chunk it touches. Read-only views instead look these up here, keyed by
+ * the storage tag they were decoded from (plus whatever else it takes to pick the entry out of a multitenant
+ * block), so opening many historical revisions costs memory in proportion to how much they differ. Blocks are
+ * decrypted here too, rather than being pinned to the StorageTag of every inode that points into them.
+ *
+ * Entries are never modified once shared. Read-only views don't modify their inodes, and directories and page tree
+ * chunks take a private copy of their shared state before changing it. Each view still holds references to the
+ * entries it has used, so an entry falling out of the cache only means the next view to need it decodes a fresh
+ * copy.
+ *
+ * Shared inodes keep their fs field pointing at the view that first decoded them, which may since have been closed,
+ * and keep it reachable for as long as they are cached. Other views must only use that field to reach the archive,
+ * which every view shares. Anything that needs the view itself, such as the FreeList, is handed it explicitly.
+ *
+ * Storage tags authenticate the contents of their blocks, so an entry decoded for one view is good for any other,
+ * even if one loaded it with signature verification and the other without.
+ */
+public class SnapshotCache {
+	public interface SnapshotLoader<V> {
+		public V load() throws IOException;
+	}
+
+	/** Storage tag, plus the identity and index of the entry we decoded from the block it names. */
+	protected static class SnapshotKey {
+		byte[] tagBytes;
+		long   identity,
+		       index;
+
+		SnapshotKey(byte[] tagBytes, long identity, long index) {
+			this.tagBytes = tagBytes;
+			this.identity = identity;
+			this.index    = index;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(tagBytes) ^ Long.hashCode(identity) ^ Long.hashCode(31*index);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof SnapshotKey)) return false;
+			SnapshotKey o = (SnapshotKey) other;
+			return identity == o.identity && index == o.index && Arrays.equals(tagBytes, o.tagBytes);
+		}
+	}
+
+	protected ZKArchive                                                 archive;
+	protected HashCache<SnapshotKey,Block>                              blocks;
+	protected HashCache<SnapshotKey,Inode[]>                            inodePages;
+	protected HashCache<SnapshotKey,ConcurrentHashMap<String,Long>>     directories;
+	protected HashCache<SnapshotKey,StorageTag[]>                       chunks;
+	protected LinkedList<SubscriptionToken<?>>                          tokens = new LinkedList<>();
+
+	public SnapshotCache(ZKArchive archive) {
+		this.archive     = archive;
+		this.blocks      = makeCache("fs.settings.snapshotBlockCacheSize", "snapshotBlocks");
+		this.inodePages  = makeCache("fs.settings.snapshotCacheSize",      "snapshotInodePages");
+		this.directories = makeCache("fs.settings.snapshotCacheSize",      "snapshotDirectories");
+		this.chunks      = makeCache("fs.settings.snapshotCacheSize",      "snapshotChunks");
+	}
+
+	/** Whether read-only views should use the cache at all. */
+	public boolean isEnabled() {
+		return inodePages.getCapacity() > 0;
+	}
+
+	/** The block named by a storage tag, decrypted. */
+	public Block block(StorageTag tag, boolean verify) throws IOException {
+		if(!tag.isFinalized() || blocks.getCapacity() <= 0) {
+			return tag.loadBlock(archive, verify);
+		}
+
+		return lookup(blocks,
+				new SnapshotKey(tag.getTagBytes(), 0, 0),
+				()->new Block(archive, tag, verify));
+	}
+
+	/** The inodes stored in a page of the inode table. */
+	public Inode[] inodePage(StorageTag pageTag, long identity, long pageNum, SnapshotLoader<Inode[]> loader) throws IOException {
+		return lookup(inodePages, new SnapshotKey(pageTag.getTagBytes(), identity, pageNum), loader);
+	}
+
+	/** The entries of a directory, keyed by the directory's reftag. */
+	public ConcurrentHashMap<String,Long> directory(RefTag refTag, long identity, long inodeId, SnapshotLoader<ConcurrentHashMap<String,Long>> loader) throws IOException {
+		return lookup(directories, new SnapshotKey(refTag.getBytes(), identity, inodeId), loader);
+	}
+
+	/** The tags listed in a page tree chunk. */
+	public StorageTag[] chunkTags(PageTreeChunk chunk, boolean verify) throws IOException {
+		SnapshotKey key = new SnapshotKey(chunk.chunkTag.getTagBytes(), chunk.tree.inodeIdentity, chunk.index);
+		return lookup(chunks, key, ()->{
+			byte[] serialized = block(chunk.chunkTag, verify)
+					.readData(chunk.tree.inodeIdentity, chunk.index, Block.INDEX_TYPE_CHUNK);
+			chunk.deserialize(ByteBuffer.wrap(serialized));
+			return chunk.tags;
+		});
+	}
+
+	public void close() {
+		for(SubscriptionToken<?> token : tokens) {
+			token.close();
+		}
+		tokens.clear();
+
+		try {
+			blocks.removeAll();
+			inodePages.removeAll();
+			directories.removeAll();
+			chunks.removeAll();
+		} catch(IOException exc) {
+			// eviction does nothing, so this can't actually happen
+		}
+	}
+
+	protected <V> HashCache<SnapshotKey,V> makeCache(String setting, String name) {
+		int capacity = archive.getMaster().getGlobalConfig().getInt(setting);
+		HashCache<SnapshotKey,V> cache = new HashCache<SnapshotKey,V>(capacity,
+				(key) -> null, // misses are loaded by lookup(), which knows how to decode them
+				(key, value) -> {}
+				).instrument(name);
+
+		tokens.add(archive.getMaster().getGlobalConfig().subscribe(setting).asInt((s)->{
+			try {
+				cache.setCapacity(s);
+				if(s <= 0) cache.removeAll();
+			} catch(IOException exc) {
+				// eviction does nothing, so this can't actually happen
+			}
+		}));
+
+		return cache;
+	}
+
+	protected <V> V lookup(HashCache<SnapshotKey,V> cache, SnapshotKey key, SnapshotLoader<V> loader) throws IOException {
+		if(cache.getCapacity() <= 0) return loader.load(); // HashCache treats 0 as unlimited; we treat it as off
+
+		V value = cache.get(key);
+		if(value != null) return value;
+
+		/* Decode outside the cache's lock. If two views miss on the same entry at once, they each decode a copy and
+		 * the second replaces the first, which costs a little memory but nothing else. */
+		value = loader.load();
+		cache.add(key, value);
+		return value;
+	}
+}
@@ -12,7 +12,7 @@ import com.acrescrypto.zksync.utility.Util;
 public class StorageTag implements Comparable<StorageTag> {
 	protected CryptoSupport crypto;
 	private Block block;
-	private byte[] tagBytes;
+	private volatile byte[] tagBytes; // set once the block is stored, possibly while other threads are looking
 	private boolean isBlank;
 	private final static char[] hexArray = "0123456789abcdef".toCharArray();
 	
@@ -248,7 +248,9 @@ public class StorageTag implements Comparable<StorageTag> {
 		return System.identityHashCode(block);
 	}
 
-	public Block loadBlock(ZKArchive archive, boolean verifySignature) throws IOException {
+	/** Decrypt the block this tag names, or return the one we already decrypted. Synchronized, since maintenance
+	 * passes load blocks ahead of themselves on worker threads. */
+	public synchronized Block loadBlock(ZKArchive archive, boolean verifySignature) throws IOException {
 		if(block == null) {
 			assert(isFinalized() && isStored());
 			block = new Block(archive, this, verifySignature);
@@ -16,6 +16,7 @@ public class StorageTagList {
     protected ZKArchive                          archive;
     protected File                               file;
     protected SnoozeThread                       flushThread;
+    protected boolean                            needsRewrite; // tags were removed, so the file has to be rewritten rather than just flushed
     
     public StorageTagList(ZKArchive archive) throws IOException {
         this.archive = archive;
@@ -31,6 +32,10 @@ public class StorageTagList {
         
         try {
             if(file != null) {
+                synchronized(this) {
+                    if(needsRewrite) write();
+                }
+                
                 file.close();
             }
         } catch(IOException exc) {
@@ -89,6 +94,14 @@ public class StorageTagList {
         append(pageTag);
     }
     
+    /** Forget a page, e.g. because it was evicted from the cache. The file is rewritten on the next delayed flush. */
+    public synchronized void remove(StorageTag pageTag) {
+        if(pageTag.equals(archive.getConfig().tag())) return;
+        if(allPageTags.remove(pageTag.shortTagPreserialized()) == null) return;
+        needsRewrite = true;
+        flushAfterDelay();
+    }
+    
     protected void flushAfterDelay() {
         if(this.flushThread == null) {
             int interval = archive.getMaster().getGlobalConfig().getInt("fs.settings.tagCacheFlushIntervalMs"),
@@ -97,7 +110,13 @@ public class StorageTagList {
                 this.flushThread = null;
                if(file != null) {
                    try {
-                       file.flush();
+                       synchronized(this) {
+                           if(needsRewrite) {
+                               write();
+                           } else {
+                               file.flush();
+                           }
+                       }
                    } catch (IOException exc) {
                        archive.logger.error("ZKFS {}: Caught exception writing tagcache",
                                Util.formatArchiveId(archive.getConfig().getArchiveId()),
@@ -121,7 +140,7 @@ public class StorageTagList {
                 .open(path, File.O_RDWR|File.O_CREAT|File.O_APPEND);
     }
     
-    protected void append(StorageTag tag) throws IOException {
+    protected synchronized void append(StorageTag tag) throws IOException {
         file.write(tag.getTagBytesPreserialized());
         flushAfterDelay();
     }
@@ -145,7 +164,8 @@ public class StorageTagList {
         }
     }
 
-    protected void write() throws IOException {
+    protected synchronized void write() throws IOException {
+        needsRewrite = false;
         file.truncate(0);
         file.rewind();
         
@@ -4,12 +4,17 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.acrescrypto.zksync.crypto.Key;
 import com.acrescrypto.zksync.crypto.MutableSecureFile;
 import com.acrescrypto.zksync.exceptions.EINVALException;
 import com.acrescrypto.zksync.exceptions.ENOENTException;
 import com.acrescrypto.zksync.fs.zkfs.ArchiveAccessor.ArchiveDiscovery;
+import com.acrescrypto.zksync.utility.GroupedThreadPool;
 import com.acrescrypto.zksync.utility.Util;
 
 public class StoredAccess implements ArchiveDiscovery {
@@ -18,16 +23,37 @@ public class StoredAccess implements ArchiveDiscovery {
 	public final static int ACCESS_LEVEL_READ = 2;
 	public final static int ACCESS_LEVEL_READWRITE = 3;
 	
+	/** Notified before an idle stored archive is hibernated, so that anything holding its config can let go. */
+	public interface HibernationCallback {
+		/** Return false to keep the archive active. */
+		boolean mayHibernate(ZKArchiveConfig config);
+		/** Called just before the config is closed, under the record's lock. The config still stays open if ZKFS views of
+		 * it are retained once every callback has run. */
+		void willHibernate(ZKArchiveConfig config);
+	}
+	
+	/** Notified whenever a stored archive's config is opened, whether during startup or on demand. */
+	public interface ActivationCallback {
+		void activatedArchive(ZKArchiveConfig config);
+	}
+	
 	protected ArrayList<StoredAccessRecord> records = new ArrayList<StoredAccessRecord>();
+	protected LinkedList<HibernationCallback> hibernationCallbacks = new LinkedList<>();
+	protected LinkedList<ActivationCallback> activationCallbacks = new LinkedList<>();
 	protected ZKMaster master;
 	protected Key storageKey;
+	protected GroupedThreadPool startupPool;
+	protected int pendingStartup;
+	protected volatile boolean closed;
+	protected boolean hibernationThreadRunning;
+	protected Logger logger = LoggerFactory.getLogger(StoredAccess.class);
 	
 	public StoredAccess(ZKMaster master) {
 		this.master = master;
 		storageKey = master.localKey.derive("easysafe-stored-access");
 	}
 	
-	public void storeArchiveAccess(ZKArchiveConfig config, int accessLevel) throws IOException {
+	public synchronized void storeArchiveAccess(ZKArchiveConfig config, int accessLevel) throws IOException {
 		for(StoredAccessRecord record : records) {
 			if(Arrays.equals(config.archiveId, record.archiveId)) {
 				// TODO API: (coverage) branch
@@ -41,7 +67,7 @@ public class StoredAccess implements ArchiveDiscovery {
 		write();
 	}
 	
-	public StoredAccessRecord recordForArchiveId(byte[] archiveId) {
+	public synchronized StoredAccessRecord recordForArchiveId(byte[] archiveId) {
 		for(StoredAccessRecord record : records) {
 			if(Arrays.equals(record.archiveId, archiveId)) return record;
 		}
@@ -49,10 +75,10 @@ public class StoredAccess implements ArchiveDiscovery {
 		return null;
 	}
 	
-	public void deleteArchiveAccess(ZKArchiveConfig config) throws IOException {
+	public synchronized void deleteArchiveAccess(ZKArchiveConfig config) throws IOException {
 		StoredAccessRecord killableRecord = null;
 		for(StoredAccessRecord record : records) {
-			if(Arrays.equals(record.getConfig().archiveId, config.archiveId)) {
+			if(Arrays.equals(record.archiveId, config.archiveId)) {
 				killableRecord = record;
 				break;
 			}
@@ -64,9 +90,10 @@ public class StoredAccess implements ArchiveDiscovery {
 		}
 	}
 	
-	public void purge() throws IOException {
+	public synchronized void purge() throws IOException {
 		for(StoredAccessRecord record : records) {
-			master.removedArchiveConfig(record.getConfig());
+			ZKArchiveConfig config = record.activeConfig();
+			if(config != null) master.removedArchiveConfig(config);
 		}
 		
 		records.clear();
@@ -81,6 +108,212 @@ public class StoredAccess implements ArchiveDiscovery {
 		return "access";
 	}
 	
+	/** Activate the stored archive with the given ID, opening its config if it is dormant. Returns null if we have
+	 * no stored access to the archive. */
+	public ZKArchiveConfig activate(byte[] archiveId) throws IOException {
+		StoredAccessRecord record = recordForArchiveId(archiveId);
+		if(record == null) return null;
+		return record.activate();
+	}
+	
+	/** Hibernate a stored archive, unless a callback wants to keep it. Returns true if the archive was closed. */
+	public boolean hibernate(StoredAccessRecord record) {
+		return hibernate(record, -1);
+	}
+	
+	/** Hibernate a stored archive if it has been idle for idleMs (or regardless, if idleMs is negative). Callbacks
+	 * run under the record's lock, so nothing can activate or touch the record between our checks and the close. */
+	protected boolean hibernate(StoredAccessRecord record, long idleMs) {
+		ArrayList<HibernationCallback> callbacks;
+		synchronized(this) {
+			callbacks = new ArrayList<>(hibernationCallbacks);
+		}
+		
+		ZKArchiveConfig config;
+		synchronized(record) {
+			config = record.activeConfig();
+			if(config == null) return false;
+			if(idleMs >= 0 && !record.isIdle(idleMs)) return false;
+			
+			for(HibernationCallback callback : callbacks) {
+				if(!callback.mayHibernate(config)) return false;
+			}
+			
+			for(HibernationCallback callback : callbacks) {
+				callback.willHibernate(config);
+			}
+			
+			if(!record.hibernate()) return false;
+		}
+		
+		master.removedArchiveConfig(config);
+		return true;
+	}
+	
+	/** Hibernate every stored archive that has been idle for at least fs.archives.hibernateAfterMs. Returns the number
+	 * of archives hibernated. */
+	public int hibernateIdle() {
+		long idleMs = master.getGlobalConfig().getLong("fs.archives.hibernateAfterMs");
+		if(idleMs <= 0) return 0;
+		
+		int hibernated = 0;
+		for(StoredAccessRecord record : records()) {
+			if(hibernate(record, idleMs)) hibernated++;
+		}
+		
+		return hibernated;
+	}
+	
+	public synchronized void addActivationCallback(ActivationCallback callback) {
+		activationCallbacks.add(callback);
+	}
+	
+	public synchronized void removeActivationCallback(ActivationCallback callback) {
+		activationCallbacks.remove(callback);
+	}
+	
+	protected void activatedArchive(ZKArchiveConfig config) {
+		ArrayList<ActivationCallback> callbacks;
+		synchronized(this) {
+			callbacks = new ArrayList<>(activationCallbacks);
+		}
+		
+		for(ActivationCallback callback : callbacks) {
+			callback.activatedArchive(config);
+		}
+	}
+	
+	public synchronized void addHibernationCallback(HibernationCallback callback) {
+		hibernationCallbacks.add(callback);
+	}
+	
+	public synchronized void removeHibernationCallback(HibernationCallback callback) {
+		hibernationCallbacks.remove(callback);
+	}
+	
+	public synchronized ArrayList<StoredAccessRecord> records() {
+		return new ArrayList<>(records);
+	}
+	
+	public synchronized int numActiveRecords() {
+		int count = 0;
+		for(StoredAccessRecord record : records) {
+			if(record.isActive()) count++;
+		}
+		
+		return count;
+	}
+	
+	/** Number of stored archives still being opened by startup. */
+	public synchronized int numPendingStartup() {
+		return pendingStartup;
+	}
+	
+	public synchronized boolean isStartupComplete() {
+		return pendingStartup == 0;
+	}
+	
+	/** Block until every archive queued at startup has been opened (or has failed to open), or until timeoutMs has
+	 * elapsed. A negative timeout waits indefinitely. Returns true if startup is complete. */
+	public synchronized boolean waitForStartup(long timeoutMs) {
+		long deadline = timeoutMs < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMs;
+		while(pendingStartup > 0 && !closed) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) break;
+			
+			try {
+				this.wait(remaining);
+			} catch(InterruptedException exc) {
+				break;
+			}
+		}
+		
+		return pendingStartup == 0;
+	}
+	
+	/** Open every record that deserialize() left waiting for startup, up to fs.archives.startupThreads at a time. If
+	 * fs.archives.backgroundStartup is set, return immediately and let them open behind us; archives are usable as
+	 * soon as each is ready, and activating one that is still starting waits for it. */
+	protected void startArchives() {
+		ArrayList<StoredAccessRecord> starting = new ArrayList<>();
+		for(StoredAccessRecord record : records()) {
+			if(record.getState() == StoredAccessRecord.STATE_STARTING) starting.add(record);
+		}
+		
+		if(starting.isEmpty()) return;
+		
+		int numThreads = Math.min(starting.size(), master.getGlobalConfig().getInt("fs.archives.startupThreads"));
+		synchronized(this) {
+			pendingStartup = starting.size();
+			startupPool = GroupedThreadPool.newFixedThreadPool(master.getThreadGroup(),
+					"StoredAccess startup",
+					Math.max(1, numThreads));
+			for(StoredAccessRecord record : starting) {
+				startupPool.submit(()->startArchive(record));
+			}
+		}
+		
+		if(!master.getGlobalConfig().getBool("fs.archives.backgroundStartup")) {
+			waitForStartup(-1);
+		}
+	}
+	
+	protected void startArchive(StoredAccessRecord record) {
+		try {
+			if(closed) return;
+			record.activate();
+			if(closed) record.close(); // lost a race with close(), so don't leave the config open
+		} catch(Exception exc) {
+			logger.error("ZKFS {} -: Unable to open stored archive",
+					Util.formatArchiveId(record.getArchiveId()),
+					exc);
+		} finally {
+			synchronized(this) {
+				if(--pendingStartup == 0 && startupPool != null) {
+					startupPool.shutdownNow();
+					startupPool = null;
+				}
+				
+				this.notifyAll();
+			}
+		}
+	}
+	
+	/** Start the hibernation thread if hibernation is enabled and it isn't already running. */
+	public synchronized void updateHibernationThread() {
+		if(closed || hibernationThreadRunning) return;
+		if(master.getGlobalConfig().getLong("fs.archives.hibernateAfterMs") <= 0) return;
+		
+		hibernationThreadRunning = true;
+		new Thread(master.getThreadGroup(), ()->hibernationThread()).start();
+	}
+	
+	protected void hibernationThread() {
+		Util.setThreadName("StoredAccess hibernation thread");
+		while(!closed && master.getGlobalConfig().getLong("fs.archives.hibernateAfterMs") > 0) {
+			try {
+				synchronized(this) {
+					this.wait(master.getGlobalConfig().getInt("fs.archives.hibernateCheckIntervalMs"));
+				}
+				
+				if(closed) break;
+				int hibernated = hibernateIdle();
+				if(hibernated > 0) {
+					logger.info("Hibernated {} idle archives; {} of {} stored archives active",
+							hibernated,
+							numActiveRecords(),
+							records().size());
+				}
+			} catch(Exception exc) {
+				logger.error("Hibernation thread caught exception", exc);
+			}
+		}
+		
+		synchronized(this) {
+			hibernationThreadRunning = false;
+		}
+	}
+	
 	public void read() throws IOException {
 		try {
 			MutableSecureFile file = new MutableSecureFile(master.storage, path(), storageKey);
@@ -89,6 +322,8 @@ public class StoredAccess implements ArchiveDiscovery {
 			records.clear();
 			return;
 		}
+		
+		startArchives();
 	}
 	
 	protected void write() throws IOException {
@@ -96,7 +331,7 @@ public class StoredAccess implements ArchiveDiscovery {
 		file.write(serialize(), 65536);
 	}
 	
-	protected byte[] serialize() {
+	protected synchronized byte[] serialize() {
 		/* TODO Someday: (review) ensure serialize() methods consistently return either plaintext and are wrapped by
 		 * an encryption method as needed so we can rely on serialize() always returning plaintext.
 		 */
@@ -118,7 +353,7 @@ public class StoredAccess implements ArchiveDiscovery {
 		return plaintextBuf.array();
 	}
 	
-	protected void deserialize(byte[] serialized) throws IOException {
+	protected synchronized void deserialize(byte[] serialized) throws IOException {
 		records = new ArrayList<StoredAccessRecord>();
 		ByteBuffer buf = ByteBuffer.wrap(serialized);
 		while(buf.hasRemaining()) {
@@ -139,7 +374,18 @@ public class StoredAccess implements ArchiveDiscovery {
 	}
 
 	public void close() {
-		for(StoredAccessRecord record : records) {
+		synchronized(this) {
+			closed = true;
+			if(startupPool != null) {
+				// archives that never got a turn won't count themselves down
+				pendingStartup -= startupPool.shutdownNow().size();
+				startupPool = null;
+			}
+			
+			this.notifyAll();
+		}
+		
+		for(StoredAccessRecord record : records()) {
 			record.close();
 		}
 	}
@@ -3,58 +3,158 @@ package com.acrescrypto.zksync.fs.zkfs;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.acrescrypto.zksync.crypto.Key;
 import com.acrescrypto.zksync.exceptions.EINVALException;
 import com.acrescrypto.zksync.utility.Util;
 
+/** Saved access to an archive, with enough key material to reopen it.
+ *
+ * Records read from storage may be dormant: the accessor and archive ID are loaded, but the archive config (and with
+ * it the swarm, storage caches and revision structures) is not opened until activate() is called. An active record
+ * that was opened here can be put back to sleep with hibernate(), provided no ZKFS views of the archive are retained.
+ * Anything that uses the config without a view should touch() the record. Activation and hibernation both hold the
+ * record's lock, so a record can't be closed between deciding it is idle and closing it. getState() reports where the
+ * record is in that lifecycle without blocking on an activation in progress.
+ */
 public class StoredAccessRecord implements AutoCloseable {
+	public final static int STATE_DORMANT  = 0; // config not open
+	public final static int STATE_STARTING = 1; // queued for activation during ZKMaster startup
+	public final static int STATE_ACTIVE   = 2; // config open
+	public final static int STATE_FAILED   = 3; // last activation attempt threw
+	
 	private ZKArchiveConfig config;
 	private ArchiveAccessor accessor;
 	private Key writeKey;
 	protected byte[] archiveId;
 	protected boolean locallyInstantiated;
 	protected int accessLevel;
+	protected long lastActivity;
+	protected volatile int state;
+	protected Logger logger = LoggerFactory.getLogger(StoredAccessRecord.class);
 	
 	public StoredAccessRecord(ZKArchiveConfig config, int accessLevel) {
 		this.config = config;
+		this.accessor = config.getAccessor();
+		this.writeKey = config.writeRoot;
 		this.archiveId = config.getArchiveId();
 		this.accessLevel = accessLevel;
+		this.state = STATE_ACTIVE;
+		touch();
 	}
 	
 	public StoredAccessRecord(ZKMaster master, ByteBuffer buf) throws IOException {
 		deserialize(master, buf);
 	}
 	
-	public void close() {
-		if(locallyInstantiated) config.close();
+	public synchronized void close() {
+		if(locallyInstantiated && config != null) config.close();
+	}
+	
+	public ZKArchiveConfig getConfig() throws IOException {
+		return activate();
 	}
 	
-	public synchronized ZKArchiveConfig getConfig() throws IOException {
-		if(config == null) {
-			// TODO API: (coverage) branch
-			config = ZKArchiveConfig.openExisting(accessor, archiveId, true, writeKey);
+	/** Open the archive config if the record is dormant, and mark the record as recently used. StoredAccess
+	 * activation callbacks are notified if the config was opened by this call. */
+	public ZKArchiveConfig activate() throws IOException {
+		ZKArchiveConfig activated;
+		synchronized(this) {
+			touch();
+			if(config != null) return config;
+			
+			logger.info("ZKFS {} -: Activating stored archive", Util.formatArchiveId(archiveId));
+			long startTs = System.currentTimeMillis();
+			try {
+				activated = ZKArchiveConfig.openExisting(accessor, archiveId, false, writeKey);
+				if(activated.haveConfigLocally()) {
+					activated.finishOpening();
+				}
+			} catch(IOException|RuntimeException exc) {
+				state = STATE_FAILED;
+				throw exc;
+			}
+			
+			config = activated;
+			locallyInstantiated = true;
+			state = STATE_ACTIVE;
+			logger.info("ZKFS {} -: Stored archive ready in {} ms",
+					Util.formatArchiveId(archiveId),
+					System.currentTimeMillis() - startTs);
 		}
 		
+		accessor.getMaster().storedAccess().activatedArchive(activated);
+		return activated;
+	}
+	
+	/** Close the archive config and return to the dormant state. Only configs opened by this record are closed, since
+	 * anything else belongs to whoever handed it to us, and only while no ZKFS views of the archive are retained.
+	 * Returns false if nothing was closed. */
+	public synchronized boolean hibernate() {
+		if(config == null || !locallyInstantiated) return false;
+		if(config.numRetainedViews() > 0) return false;
+		
+		logger.info("ZKFS {} -: Hibernating stored archive", Util.formatArchiveId(archiveId));
+		config.close();
+		config = null;
+		state = STATE_DORMANT;
+		return true;
+	}
+	
+	/** True if this record's config was opened here, has not been used in idleMs, and isn't serving peers. */
+	public synchronized boolean isIdle(long idleMs) {
+		if(config == null || !locallyInstantiated) return false;
+		if(Util.currentTimeMillis() - lastActivity < idleMs) return false;
+		if(config.isAdvertising()) return false;
+		return config.getSwarm().getConnections().isEmpty();
+	}
+	
+	public synchronized boolean isActive() {
+		return config != null;
+	}
+	
+	public int getState() {
+		return state;
+	}
+	
+	/** Config for this record if it is active, or null if it is dormant. Does not activate the record. */
+	public synchronized ZKArchiveConfig activeConfig() {
 		return config;
 	}
 	
-	protected byte[] serialize() {
+	public synchronized void touch() {
+		lastActivity = Util.currentTimeMillis();
+	}
+	
+	public synchronized long getLastActivity() {
+		return lastActivity;
+	}
+	
+	protected synchronized byte[] serialize() {
+		if(config != null) {
+			// pick up any change in access since the record was made, e.g. a write key supplied later
+			accessor = config.getAccessor();
+			writeKey = config.writeRoot;
+		}
+		
 		boolean writeSeedKey = accessLevel >= StoredAccess.ACCESS_LEVEL_SEED;
-		boolean writeReadKey = accessLevel >= StoredAccess.ACCESS_LEVEL_READ && !config.getAccessor().isSeedOnly();
-		boolean writeWriteKey = accessLevel >= StoredAccess.ACCESS_LEVEL_READWRITE && !config.isReadOnly();
+		boolean writeReadKey = accessLevel >= StoredAccess.ACCESS_LEVEL_READ && !accessor.isSeedOnly();
+		boolean writeWriteKey = accessLevel >= StoredAccess.ACCESS_LEVEL_READWRITE;
 		
 		return Util.concat(
 				Util.serializeInt(0), // reserved
 				Util.serializeInt(accessLevel),
-				keyIfDesired(writeSeedKey, config.accessor.seedRoot),
-				keyIfDesired(writeReadKey, config.accessor.passphraseRoot),
-				keyIfDesired(writeWriteKey, config.writeRoot),
-				config.archiveId
+				keyIfDesired(writeSeedKey, accessor.seedRoot),
+				keyIfDesired(writeReadKey, accessor.passphraseRoot),
+				keyIfDesired(writeWriteKey, writeKey),
+				archiveId
 				);
 	}
 	
 	protected byte[] keyIfDesired(boolean desired, Key key) {
-		if(!desired || key == null) return new byte[config.getCrypto().symKeyLength()];
+		if(!desired || key == null) return new byte[accessor.getMaster().getCrypto().symKeyLength()];
 		return key.getRaw();
 	}
 	
@@ -91,12 +191,12 @@ public class StoredAccessRecord implements AutoCloseable {
 		writeKey = isBlank(writeKeyRaw) ? null : new Key(master.crypto, writeKeyRaw);
 		boolean seedOnly = accessLevel <= StoredAccess.ACCESS_LEVEL_SEED || isBlank(passphraseKeyRaw);
 		accessor = master.makeAccessorForRoot(seedOnly ? seedKey : passphraseKey, seedOnly);
-		config = ZKArchiveConfig.openExisting(accessor, archiveId, false, writeKey);
-		if(config.haveConfigLocally()) {
-			config.finishOpening();
-		}
+		touch();
 		
-		locallyInstantiated = true;
+		// StoredAccess opens the records that need opening once they have all been read, several at a time
+		boolean dormant = master.getGlobalConfig().getBool("fs.archives.lazyActivation")
+				&& !ZKFSManager.settingsKeepArchiveActive(accessor, archiveId);
+		state = dormant ? STATE_DORMANT : STATE_STARTING;
 	}
 	
 	public byte[] getArchiveId() {
@@ -42,6 +42,7 @@ public class ZKArchive implements AutoCloseable {
     private   StorageTag                  blankStorageTag;
 
     protected HashCache<RevisionTag,ZKFS> readOnlyFilesystems;
+    protected SnapshotCache               snapshotCache; // decoded pages shared by the read-only filesystems
 	protected SubscriptionToken<Integer>  tok;
 	protected boolean                     closed;
 		
@@ -63,17 +64,23 @@ public class ZKArchive implements AutoCloseable {
 		this.storage             = config.storage;
 		this.crypto              = config.accessor.master.crypto;
 		this.pageTagList         = new StorageTagList(this);		
+		this.snapshotCache       = new SnapshotCache(this);
 		int  cacheSize           = config.getMaster().getGlobalConfig().getInt("fs.settings.readOnlyFilesystemCacheSize");
 		
 		this.readOnlyFilesystems = new HashCache<RevisionTag,ZKFS>(cacheSize, (tag) -> {
+			ZKFS fs;
 			if(this.isCacheOnly() && !tag.isCacheOnly()) {
-				return tag.makeCacheOnlyCopy().getFS().setReadOnly();
+				fs = tag.makeCacheOnlyCopy().getReadOnlyFS();
 			} else {
-				return tag.getFS().setReadOnly();
+				fs = tag.getReadOnlyFS();
 			}
+			
+			fs.setHeldByCache(true); // only retains handed out from here count as using the archive
+			return fs;
 		}, (tag, fs) -> {
+			fs.setHeldByCache(false);
 			fs.close();
-		});
+		}).instrument("readOnlyFilesystems");
 		
 		tok = config.getMaster().getGlobalConfig().subscribe("fs.settings.readOnlyFilesystemCacheSize").asInt((s)->{
 			try {
@@ -102,6 +109,14 @@ public class ZKArchive implements AutoCloseable {
 			closed = true;
 		}
 		
+		try {
+			writePendingBlocks();
+		} catch(IOException exc) {
+			logger.error("ZKFS {}: Caught exception writing pending blocks during archive closure",
+					Util.formatArchiveId(config.getArchiveId()),
+					exc);
+		}
+		
         if(pageTagList != null) pageTagList.close();
         
 		if(tok != null) tok.close();
@@ -113,6 +128,7 @@ public class ZKArchive implements AutoCloseable {
 					exc);
 		}
 		
+		snapshotCache.close();
 		if(cacheOnlyArchive != null) {
 			cacheOnlyArchive.close();
 		}
@@ -225,6 +241,10 @@ public class ZKArchive implements AutoCloseable {
 		return storage;
 	}
 	
+	public SnapshotCache getSnapshotCache() {
+		return snapshotCache;
+	}
+	
 	public CryptoSupport getCrypto() {
 		return crypto;
 	}
@@ -331,6 +351,17 @@ public class ZKArchive implements AutoCloseable {
         }
 	}
 	
+	/** Write out any of our blocks still queued on the master's BlockWriter. */
+	public void writePendingBlocks() throws IOException {
+		BlockWriter writer = master == null ? null : master.getBlockWriter();
+		if(writer != null) writer.flush(this);
+	}
+	
+	/** Forget that we have a page, because it has been evicted from the cache. */
+	public void removePageTag(StorageTag tag) {
+		pageTagList.remove(tag);
+	}
+	
 	public StorageTag getBlankStorageTag() {
 		if(blankStorageTag == null) {
 			byte[] blankBytes = new byte[crypto.hashLength()];
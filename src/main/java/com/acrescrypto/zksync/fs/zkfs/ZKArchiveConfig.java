@@ -3,6 +3,7 @@ package com.acrescrypto.zksync.fs.zkfs;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.LinkedList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,9 +20,13 @@ import com.acrescrypto.zksync.fs.FS;
 import com.acrescrypto.zksync.fs.File;
 import com.acrescrypto.zksync.fs.Stat;
 import com.acrescrypto.zksync.fs.backedfs.BackedFS;
+import com.acrescrypto.zksync.fs.backedfs.CacheManager;
 import com.acrescrypto.zksync.fs.swarmfs.SwarmFS;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
+import com.acrescrypto.zksync.fs.zkfs.config.SubscriptionService.SubscriptionToken;
 import com.acrescrypto.zksync.fs.zkfs.config.SectionedBuffer;
 import com.acrescrypto.zksync.net.PeerSwarm;
+import com.acrescrypto.zksync.utility.StateSignal;
 import com.acrescrypto.zksync.utility.Util;
 
 /** TODO Someday: (refactor) Refactor ZKArchiveConfig/ZKArchive/ArchiveAccessor into a more convenient/straightforward model.
@@ -54,6 +59,7 @@ public class ZKArchiveConfig implements AutoCloseable {
 	protected Key                  writeRoot;     // derives private key
 	protected PrivateSigningKey    privKey;       // derived from the write key root
 	protected PublicSigningKey     pubKey;        // matches privKey
+	protected Key                  pageAuthKey;   // authenticates page tags; cached since it's needed for every page received
 	protected byte[]               configFileIv;  // rng
 	protected BackedFS             storage;
 	protected FS                   localStorage;
@@ -71,6 +77,9 @@ public class ZKArchiveConfig implements AutoCloseable {
 
 	protected boolean              advertising;
 	protected boolean              closed;
+	protected int                  retainedViews; // ZKFS retains on this archive, which keep a stored archive from hibernating
+	protected StateSignal          stateSignal = new StateSignal(); // signalled when the archive finishes opening
+	protected LinkedList<SubscriptionToken<?>> subscriptions = new LinkedList<>();
 
 	protected Logger               logger = LoggerFactory.getLogger(ZKArchiveConfig.class);
 	
@@ -153,7 +162,9 @@ public class ZKArchiveConfig implements AutoCloseable {
 		this.revisionList = new RevisionList(this);
 		this.revisionTree = new RevisionTree(this);
 		this.archive = new ZKArchive(this);
+		setupPageCache();
 		this.accessor.discoveredArchiveConfig(this);
+		stateSignal.signal();
 	}
 	
 	public ZKArchiveConfig finishOpeningFromSwarm(long timeoutMs) throws IOException {
@@ -186,11 +197,28 @@ public class ZKArchiveConfig implements AutoCloseable {
 		}
 		
 		this.archive = new ZKArchive(this);
+		setupPageCache();
+		stateSignal.signal();
 		logger.info("ZKFS {} -: Finished opening archive", Util.formatArchiveId(archiveId));
 		
 		return this;
 	}
 	
+	/** Let the page cache evict pages we got from the swarm, within the budget set in the global config. */
+	protected void setupPageCache() throws IOException {
+		if(storage == null) return;
+		CacheManager cache = storage.getCache();
+		ConfigFile globalConfig = accessor.master.getGlobalConfig();
+		
+		cache.setEvictionListener((path)->archive.removePageTag(new StorageTag(getCrypto(), path)));
+		cache.setHotBudgetBytes(globalConfig.getLong("fs.settings.pageCacheHotTierBytes"));
+		cache.openIndex(localStorage, ".zksync/archive/pagecache");
+		cache.setBudgetBytes(globalConfig.getLong("fs.settings.pageCacheMaxBytes"));
+		
+		subscriptions.add(globalConfig.subscribe("fs.settings.pageCacheMaxBytes").asLong((v)->cache.setBudgetBytes(v)));
+		subscriptions.add(globalConfig.subscribe("fs.settings.pageCacheHotTierBytes").asLong((v)->cache.setHotBudgetBytes(v)));
+	}
+	
 	protected void initStorage() throws IOException {
 		this.localStorage = accessor.master.localStorageFsForArchiveId(archiveId);
 		this.swarm        = new PeerSwarm(this);
@@ -313,7 +341,7 @@ public class ZKArchiveConfig implements AutoCloseable {
 			initStorage();
 		}
 		
-		storage.write(tag().path(), configFile);
+		storage.writeAtomic(tag().path(), configFile);
 	}
 	
 	public void read() throws IOException {
@@ -487,7 +515,11 @@ public class ZKArchiveConfig implements AutoCloseable {
 			return verify(allegedPage);
 		}
 		
-		Key authKey = deriveKey(ArchiveAccessor.KEY_ROOT_SEED, "easysafe-page-auth-key", archiveId);
+		Key authKey = pageAuthKey;
+		if(authKey == null) {
+			pageAuthKey = authKey = deriveKey(ArchiveAccessor.KEY_ROOT_SEED, "easysafe-page-auth-key", archiveId);
+		}
+		
 		int sigOffset = allegedPage.length - accessor.master.crypto.asymSignatureSize();
 		byte[] actualTag = authKey.authenticate(allegedPage);
 		if(!Arrays.equals(actualTag, tag.getTagBytesPreserialized())) return false;
@@ -533,6 +565,16 @@ public class ZKArchiveConfig implements AutoCloseable {
 		return advertising;
 	}
 	
+	/** Adjust the count of ZKFS retains on this archive. Caches that drop their views when the archive closes don't
+	 * count. */
+	public synchronized void addRetainedViews(int delta) {
+		retainedViews += delta;
+	}
+	
+	public synchronized int numRetainedViews() {
+		return retainedViews;
+	}
+	
 	public ThreadGroup getThreadGroup() {
 		return accessor.getThreadGroup();
 	}
@@ -588,6 +630,11 @@ public class ZKArchiveConfig implements AutoCloseable {
 		return archive;
 	}
 	
+	/** Signalled once the archive has finished opening, and cancelled when the config is closed. */
+	public StateSignal getStateSignal() {
+		return stateSignal;
+	}
+	
 	public FS getStorage() {
 		return storage;
 	}
@@ -610,6 +657,7 @@ public class ZKArchiveConfig implements AutoCloseable {
 	
 	@Deprecated // Use for testing only!!
 	public void setStorage(BackedFS storage) {
+		if(this.storage != null && this.storage != storage) this.storage.getCache().close();
 		this.storage = storage;
 	}
 
@@ -647,12 +695,20 @@ public class ZKArchiveConfig implements AutoCloseable {
 		logger.info("ZKFS {} -: Closing archive",
 				Util.formatArchiveId(archiveId));
 		swarm.close();
+		if(storage != null) storage.cancelPendingFetches();
 		if(revisionList != null) revisionList.close();
 		if(revisionTree != null) revisionTree.close();
 		stopAdvertising();
 		if(archive != null) {
 			archive.close();
 		}
+		
+		for(SubscriptionToken<?> token : subscriptions) {
+			token.close();
+		}
+		
+		if(storage != null) storage.getCache().close();
+		stateSignal.cancel();
 	}
 	
 	public boolean isClosed() {
@@ -11,6 +11,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongUnaryOperator;
 
 import com.acrescrypto.zksync.exceptions.*;
 import com.acrescrypto.zksync.fs.Directory;
@@ -28,6 +29,7 @@ public class ZKDirectory extends ZKFile implements Directory {
 	// TODO Someday: (redesign) Allow partial reads of directories
 	ConcurrentHashMap<String,Long> entries;
 	boolean dirty;
+	boolean sharedEntries; // entries belongs to the SnapshotCache, so copy it before changing it
 	
 	public final static int MAX_NAME_LEN = 255;
 	
@@ -43,15 +45,37 @@ public class ZKDirectory extends ZKFile implements Directory {
 	
 	protected void init() throws IOException {
 		try {
-			entries = new ConcurrentHashMap<String,Long>();
-			byte[] contents = read((int) inode.getStat().getSize());
-			deserialize(contents);
+			SnapshotCache snapshotCache = tree.getSnapshotCache();
+			if(snapshotCache != null && mode == O_RDONLY && inode.getRefTag().getStorageTag().isFinalized()) {
+				entries = snapshotCache.directory(inode.getRefTag(),
+						inode.getIdentity(),
+						inode.getStat().getInodeId(),
+						()->readEntries());
+				sharedEntries = true;
+				bufferedPage = null; // everything we need is in the entries, which are shared
+			} else {
+				readEntries();
+			}
 		} catch(Throwable exc) {
 			close();
 			throw exc;
 		}
 	}
 	
+	protected ConcurrentHashMap<String,Long> readEntries() throws IOException {
+		entries = new ConcurrentHashMap<String,Long>();
+		byte[] contents = read((int) inode.getStat().getSize());
+		deserialize(contents);
+		return entries;
+	}
+	
+	/** Take a private copy of our entries before changing them, if they're shared with other read-only views. */
+	protected void unshareEntries() {
+		if(!sharedEntries) return;
+		entries = new ConcurrentHashMap<>(entries);
+		sharedEntries = false;
+	}
+	
 	@Override
 	public ZKDirectory retain() {
 		super.retain();
@@ -221,6 +245,7 @@ public class ZKDirectory extends ZKFile implements Directory {
 						return null;
 					}
 					
+					unshareEntries();
 					entries.remove(link);
 					zkfs.uncache(fullPath);
 					dirty = true;
@@ -230,6 +255,7 @@ public class ZKDirectory extends ZKFile implements Directory {
 					return null;
 				}
 				
+				unshareEntries();
 				entries.put(link, inodeId);
 				dirty = true;
 				
@@ -255,6 +281,7 @@ public class ZKDirectory extends ZKFile implements Directory {
 				if(entries.containsKey(link)) {
 					throw new EEXISTSException(fullPath);
 				}
+				unshareEntries();
 				entries.put(link, inode.getStat().getInodeId());
 				inode.addLink();
 				dirty = true;
@@ -315,6 +342,7 @@ public class ZKDirectory extends ZKFile implements Directory {
 				
 				Inode inode = zkfs.getInodeTable().inodeWithId(inodeId);
 				inode.removeLink();
+				unshareEntries();
 				entries.remove(name);
 				
 				dirty = true;
@@ -341,6 +369,7 @@ public class ZKDirectory extends ZKFile implements Directory {
 				
 				inode.removeLink();
 				
+				unshareEntries();
 				entries.clear();
 				zkfs.uncache(path);
 				this.bufferedPage = null;
@@ -551,14 +580,20 @@ public class ZKDirectory extends ZKFile implements Directory {
 	}
 
 	public synchronized void remap(HashMap<Long, Long> remappedIds) {
+		remap((inodeId)->remappedIds.getOrDefault(inodeId, inodeId));
+	}
+
+	/** Point each entry at the inode ID the given function maps its current inode ID to. */
+	public synchronized void remap(LongUnaryOperator remapper) {
 		ConcurrentHashMap<String, Long> remappedEntries = new ConcurrentHashMap<>();
 		entries.forEach((name, inodeId)->{
-			long newId = remappedIds.getOrDefault(inodeId, inodeId);
+			long newId = remapper.applyAsLong(inodeId);
 			dirty |= newId != inodeId;
 			remappedEntries.put(name, newId);
 		});
 		
 		entries = remappedEntries;
+		sharedEntries = false;
 	}
 
 	/** Test purposes only. Attempt to determine fully-qualified path for this directory. Useful if we opened
@@ -589,6 +624,7 @@ public class ZKDirectory extends ZKFile implements Directory {
 	}
 
 	public ConcurrentHashMap<String,Long> getEntries() {
+		unshareEntries(); // the caller might change them
 		return entries;
 	}
 }
@@ -52,7 +52,10 @@ public class ZKFS extends FS {
     protected LinkedList<ZKFSChangeMonitor> changeMonitors = new LinkedList<>();
     protected LinkedList<SubscriptionToken<?>> tokens = new LinkedList<>();
     protected boolean isReadOnly; // was this specific ZKFS opened RO? (not the whole archive)
+    protected boolean openedReadOnly; // opened RO from the start, rather than marked RO later by setReadOnly()
     protected int retainCount;
+    protected boolean heldByCache; // one of our retains belongs to the archive's readOnlyFilesystems cache
+    protected ZKArchiveConfig viewedConfig; // counts our other retains, so a stored archive isn't hibernated under us
     protected ConcurrentHashMap<ZKFile,Object> openFiles = new ConcurrentHashMap<>();
     protected ConcurrentLinkedQueue<Throwable> retentions = new ConcurrentLinkedQueue<>();
     protected ConcurrentLinkedQueue<Throwable> closures = new ConcurrentLinkedQueue<>();
@@ -65,12 +68,21 @@ public class ZKFS extends FS {
     public boolean skipIntegrity = ZKFS.defaultSkipIntegrity; // TODO: Delete me when automatic integrity checking is removed
 
     public ZKFS(RevisionTag revision, String root) throws IOException {
+        this(revision, root, false);
+    }
+
+    /** Open a revision, read-only if requested. A view opened read-only from the start can share its inode table,
+     * directories and page trees with the archive's other read-only views; see SnapshotCache. */
+    public ZKFS(RevisionTag revision, String root, boolean readOnly) throws IOException {
         if(FS.fileHandleTelemetryEnabled) {
             addOpenInstance(this);
         }
 
+        this.viewedConfig = revision.getConfig();
         retain();
         this.root = root;
+        this.isReadOnly = readOnly;
+        this.openedReadOnly = readOnly;
         tokens.add(revision.getArchive().getMaster().getGlobalConfig().subscribe("fs.settings.directoryCacheSize").asInt((s)->{
             if(this.directoriesByPath == null) return;
             try {
@@ -104,9 +116,14 @@ public class ZKFS extends FS {
                     path);
             dir.commit();
             dir.close();
-        });
+        }).instrument("directories");
 
-        rebase(revision);
+        try {
+            rebase(revision);
+        } catch(IOException|RuntimeException exc) {
+            viewedConfig.addRetainedViews(-countedRetains()); // nobody will ever close us
+            throw exc;
+        }
     }
 
     @Override
@@ -120,7 +137,10 @@ public class ZKFS extends FS {
         }
 
         synchronized(this) {
-            if(--retainCount > 0) return;
+            int counted = countedRetains();
+            --retainCount;
+            viewedConfig.addRetainedViews(countedRetains() - counted);
+            if(retainCount > 0) return;
             assert(retainCount == 0);
 
             for(SubscriptionToken<?> token : tokens) {
@@ -172,10 +192,24 @@ public class ZKFS extends FS {
         if(FS.fileHandleTelemetryEnabled) {
             retentions.add(new Throwable());
         }
+        int counted = countedRetains();
         retainCount++;
+        viewedConfig.addRetainedViews(countedRetains() - counted);
         return this;
     }
 
+    /** Mark one of our retains as belonging to a cache that closes us along with the archive, so that it doesn't
+     * count as a use of the archive. */
+    public synchronized void setHeldByCache(boolean heldByCache) {
+        int counted = countedRetains();
+        this.heldByCache = heldByCache;
+        viewedConfig.addRetainedViews(countedRetains() - counted);
+    }
+
+    protected int countedRetains() {
+        return Math.max(0, retainCount - (heldByCache ? 1 : 0));
+    }
+
     public ZKFS(RevisionTag revision) throws IOException {
         this(revision, "/");
     }
@@ -194,20 +228,38 @@ public class ZKFS extends FS {
 
     public RevisionTag commitWithTimestamp(RevisionTag[] additionalParents, long timestamp) throws IOException {
         synchronized(this) {
-            for(ZKFile file : openFiles.keySet()) {
-                file.flush();
-            }
-
-            for(ZKDirectory dir : directoriesByPath.values()) {
-                dir.commit();
-            }
-
             String parentStr = Util.formatRevisionTag(baseRevision);
             for(RevisionTag parent : additionalParents) {
                 if(parent.equals(baseRevision)) continue;
                 parentStr += ", " + Util.formatRevisionTag(parent);
             }
-            Collection<RevisionTag> parents = inodeTable.commitWithTimestamp(additionalParents, timestamp);
+
+            // every page of the revision must be durable before the revision list can mention it
+            Collection<RevisionTag> parents;
+            archive.storage.beginWriteBatch();
+            try {
+                for(ZKFile file : openFiles.keySet()) {
+                    file.flush();
+                }
+
+                for(ZKDirectory dir : directoriesByPath.values()) {
+                    dir.commit();
+                }
+
+                parents = inodeTable.commitWithTimestamp(additionalParents, timestamp);
+                archive.writePendingBlocks();
+            } catch(Throwable exc) {
+                try {
+                    archive.storage.endWriteBatch();
+                } catch(IOException syncExc) {
+                    exc.addSuppressed(syncExc); // the commit's own failure is the one worth reporting
+                }
+
+                throw exc;
+            }
+
+            archive.storage.endWriteBatch();
+
             finalizeCommit(parents);
             logger.info("ZKFS {}: Created revtag {} from {}",
                     Util.formatArchiveId(archive.getConfig().getArchiveId()),
@@ -490,6 +542,16 @@ public class ZKFS extends FS {
         return new ZKDirectory(this, inode);
     }
 
+    /** Whether this exact ZKDirectory object is in our directory cache, and so will be committed along with us.
+     * Caller should already be in a lockedOperation(). */
+    protected boolean isCachedDirectory(ZKDirectory directory) {
+        for(ZKDirectory dir : directoriesByPath.values()) {
+            if(dir == directory) return true;
+        }
+
+        return false;
+    }
+
     /** During renumbering we could change a cached directory's inode. We have to update the reference in
      * the cached ZKDirectory object, if we have one. Caller should already be in a lockedOperation().
      * Returns true if a cached directory was updated.
@@ -933,6 +995,15 @@ public class ZKFS extends FS {
         return isReadOnly;
     }
 
+    /** Cache through which this view shares decoded pages with other read-only views of the archive, or null if this
+     * view decodes everything for itself. Only views opened read-only share; a view marked read-only later by
+     * setReadOnly() may already hold state of its own that differs from what is stored. */
+    public SnapshotCache getSnapshotCache() {
+        if(!openedReadOnly || archive == null) return null;
+        SnapshotCache snapshotCache = archive.getSnapshotCache();
+        return snapshotCache != null && snapshotCache.isEnabled() ? snapshotCache : null;
+    }
+
     /** Acts as a "big lock" on the filesystem. */
     public synchronized Object lockedOperation(ZKFSLockedOperation op) throws IOException {
         return op.op();
@@ -25,6 +25,8 @@ import com.acrescrypto.zksync.utility.SnoozeThread;
 import com.acrescrypto.zksync.utility.Util;
 
 public class ZKFSManager implements AutoCloseable {
+	public final static String SETTINGS_PATH = "manager";
+	
 	protected int autocommitIntervalMs;
 	protected int maxAutocommitIntervalMs = -1;
 	protected boolean autocommit;
@@ -394,8 +396,31 @@ public class ZKFSManager implements AutoCloseable {
 		autosaveIfDesired();
 	}
 	
+	/** Check whether an archive's saved manager settings need the archive open to be honoured (advertising,
+	 * requesting pages, following peer revisions or mirroring), without opening the archive. Returns false if no
+	 * settings have been saved. */
+	public static boolean settingsKeepArchiveActive(ArchiveAccessor accessor, byte[] archiveId) throws IOException {
+		byte[] contents;
+		try {
+			contents = MutableSecureFile
+			  .atPath(accessor.getMaster().localStorageFsForArchiveId(archiveId),
+					SETTINGS_PATH,
+					accessor.deriveKey(ArchiveAccessor.KEY_ROOT_LOCAL, "easysafe-local-storage-key"))
+			  .read();
+		} catch(ENOENTException exc) {
+			return false;
+		}
+		
+		JsonReader reader = Json.createReader(new StringReader(new String(contents)));
+		JsonObject json   = reader.readObject();
+		return json.getBoolean("advertising",   false)
+		    || json.getBoolean("requestingAll", false)
+		    || json.getBoolean("autofollow",    false)
+		    || json.getBoolean("automirror",    false);
+	}
+	
 	protected String path() {
-		return "manager";
+		return SETTINGS_PATH;
 	}
 	
 	protected Key storageKey(ZKArchiveConfig config) {
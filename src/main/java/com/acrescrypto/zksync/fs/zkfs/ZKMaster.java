@@ -3,6 +3,7 @@ package com.acrescrypto.zksync.fs.zkfs;
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
@@ -21,6 +22,7 @@ import com.acrescrypto.zksync.fs.zkfs.ArchiveAccessor.ArchiveAccessorDiscoveryCa
 import com.acrescrypto.zksync.fs.zkfs.config.ConfigDefaults;
 import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
 import com.acrescrypto.zksync.net.Blacklist;
+import com.acrescrypto.zksync.net.PageVerifier;
 import com.acrescrypto.zksync.net.TCPPeerSocketListener;
 import com.acrescrypto.zksync.net.dht.DHTClient;
 import com.acrescrypto.zksync.net.dht.DHTPeer;
@@ -28,6 +30,7 @@ import com.acrescrypto.zksync.net.dht.DHTZKArchiveDiscovery;
 import com.acrescrypto.zksync.utility.BandwidthAllocator;
 import com.acrescrypto.zksync.utility.BandwidthMonitor;
 import com.acrescrypto.zksync.utility.MemLogAppender;
+import com.acrescrypto.zksync.utility.MetricsRegistry;
 import com.acrescrypto.zksync.utility.Util;
 
 /***
@@ -54,6 +57,8 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 	protected TCPPeerSocketListener listener; // Handles TCP connections for archive-specific traffic
 	protected DHTClient dhtClient; // Manages the UDP-based DHT network stuff, wherein we advertise/find advertisements for archives
 	protected DHTZKArchiveDiscovery dhtDiscovery; // Tells the DHTClient what archives we're advertising or seeking advertisements for
+	protected PageVerifier pageVerifier; // Checks signatures on pages received from peers, off of the connection threads
+	protected BlockWriter blockWriter; // Encrypts and signs blocks we write, off of the writing threads
 	protected ThreadGroup threadGroup; // Used to manage various threads during execution
 	protected ConfigFile globalConfig; // User-specific configuration settings
 	protected long debugTime = -1;
@@ -132,11 +137,13 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 	public ZKMaster(CryptoSupport crypto, FS storage, PassphraseProvider passphraseProvider) throws IOException, InvalidBlacklistException {
 	    this.crypto             = crypto;
 	    this.storage            = storage;
+	    storage.removeAbandonedTemporaries(); // page writes interrupted by a crash in an earlier run
 
 	    this.globalConfig       = new ConfigFile(storage, "config.json");
 	    globalConfig.apply(ConfigDefaults.getActiveDefaults());
 	    setupSubscriptions();
 	    setupBandwidth();
+	    MetricsRegistry.enabled = globalConfig.getBool("metrics.enabled"); // saved setting from an earlier run, on or off
 
 	    this.crypto.setMaxSimultaneousArgon2(globalConfig.getInt("crypto.pbkdf.maxsimultaneous"));
 	    this.passphraseProvider = passphraseProvider;
@@ -150,6 +157,8 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 	    this.dhtDiscovery       = new DHTZKArchiveDiscovery(
 	                                    globalConfig.getInt("net.dht.discoveryintervalms"),
 	                                    globalConfig.getInt("net.dht.advertisementintervalms"));
+	    this.pageVerifier       = new PageVerifier(this);
+	    this.blockWriter        = new BlockWriter(this);
 	    listener                = new TCPPeerSocketListener(this);
 	    loadStoredAccessors();
 	}
@@ -184,9 +193,17 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 			}
 		}
 		
+		if(blockWriter != null) {
+			blockWriter.close(); // archives still have to store what's queued, so close this first
+		}
+		
 		for(ZKArchiveConfig config : allConfigs) {
 		    config.close();
 		}
+		
+		if(pageVerifier != null) {
+			pageVerifier.close();
+		}
 	}
 	
 	public Blacklist getBlacklist() {
@@ -197,6 +214,14 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 		return crypto;
 	}
 	
+	public PageVerifier getPageVerifier() {
+		return pageVerifier;
+	}
+	
+	public BlockWriter getBlockWriter() {
+		return blockWriter;
+	}
+	
 	// Expect this to be deprecated someday.
 	public TCPPeerSocketListener getTCPListener() {
 		return listener;
@@ -374,7 +399,7 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 	 * @return New ZKArchiveConfig if this discovered config has an archive we did not previously have, or has read access to an archive we preivously only had seed access to. Otherwise, returns existing ZKArchiveConfig. 
 	 * */
 	@Override
-	public ZKArchiveConfig discoveredArchiveConfig(ZKArchiveConfig config) {
+	public synchronized ZKArchiveConfig discoveredArchiveConfig(ZKArchiveConfig config) {
 		for(ZKArchiveConfig existing : allConfigs) {
 			if(Arrays.equals(existing.archiveId, config.archiveId)) {
 				if(!existing.accessor.isSeedOnly()) {
@@ -393,13 +418,24 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 	}
 	
 	/** Notify ZKMaster that a given ZKArchiveConfig should be removed from the list of known configs. */
-	public void removedArchiveConfig(ZKArchiveConfig config) {
+	public synchronized void removedArchiveConfig(ZKArchiveConfig config) {
 		allConfigs.remove(config);
 	}
 	
-	/** Return current list of all known ZKArchiveConfigs. */
-	public Collection<ZKArchiveConfig> allConfigs() {
-		return allConfigs;
+	/** Return current list of all known ZKArchiveConfigs. Dormant stored archives are not included until activated. */
+	public synchronized Collection<ZKArchiveConfig> allConfigs() {
+		return new ArrayList<>(allConfigs);
+	}
+	
+	/** Find the config for an archive ID, activating it from stored access if it is dormant. Returns null if the
+	 * archive is unknown. */
+	public ZKArchiveConfig activateArchive(byte[] archiveId) throws IOException {
+		storedAccess.activate(archiveId);
+		for(ZKArchiveConfig config : allConfigs()) {
+			if(Arrays.equals(config.archiveId, archiveId)) return config;
+		}
+		
+		return null;
 	}
 	
 	public DHTClient getDHTClient() {
@@ -417,12 +453,20 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 	
 	/** Read StoredAccessRecords from storage, which have ArchiveAccessor/ZKArchiveConfig data in encrypted form. */
 	protected void loadStoredAccessors() {
+		long startTs = System.currentTimeMillis();
 		try {
 			storedAccess.read();
 		} catch (SecurityException exc) {
 			logger.warn("Security error reading stored accessors; initializing as blank", exc);
 		} catch (IOException e) {
 		}
+		
+		logger.info("Loaded {} stored archives ({} active, {} still starting) in {} ms",
+				storedAccess.records().size(),
+				storedAccess.numActiveRecords(),
+				storedAccess.numPendingStartup(),
+				System.currentTimeMillis() - startTs);
+		storedAccess.updateHibernationThread();
 	}
 	
 	public StoredAccess storedAccess() {
@@ -517,8 +561,17 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 	/** Set up subscriptions for changes to configuration values that affect ZKMaster. */
 	protected void setupSubscriptions() {
 		globalConfig.subscribe("fs.fileHandleTelemetry").asBoolean((enabled)->FS.fileHandleTelemetryEnabled = enabled);
+		globalConfig.subscribe("metrics.enabled").asBoolean((enabled)->MetricsRegistry.enabled = enabled);
 		globalConfig.subscribe("net.limits.tx").asLong((v)->bandwidthAllocatorTx.setBytesPerSecond(v));
 		globalConfig.subscribe("net.limits.rx").asLong((v)->bandwidthAllocatorRx.setBytesPerSecond(v));
+		globalConfig.subscribe("net.limits.archive.tx").asLong((v)->bandwidthAllocatorTx.setChildBytesPerSecond(v));
+		globalConfig.subscribe("net.limits.archive.rx").asLong((v)->bandwidthAllocatorRx.setChildBytesPerSecond(v));
+		globalConfig.subscribe("net.limits.burstMs").asLong((v)->{
+			bandwidthAllocatorTx.setBurstMs(v);
+			bandwidthAllocatorRx.setBurstMs(v);
+		});
+		
+		globalConfig.subscribe("fs.archives.hibernateAfterMs").asLong((v)->storedAccess.updateHibernationThread());
 		
 		globalConfig.subscribe("crypto.pbkdf.maxsimultaneous").asInt((v)->crypto.setMaxSimultaneousArgon2(v));
 		
@@ -535,6 +588,11 @@ public class ZKMaster implements ArchiveAccessorDiscoveryCallback, AutoCloseable
 		bandwidthMonitorRx   = new BandwidthMonitor  (100, 3000);
 		bandwidthAllocatorTx = new BandwidthAllocator(globalConfig.getLong("net.limits.tx"));
 		bandwidthAllocatorRx = new BandwidthAllocator(globalConfig.getLong("net.limits.rx"));
+		
+		bandwidthAllocatorTx.setBurstMs(globalConfig.getLong("net.limits.burstMs"));
+		bandwidthAllocatorRx.setBurstMs(globalConfig.getLong("net.limits.burstMs"));
+		bandwidthAllocatorTx.setChildBytesPerSecond(globalConfig.getLong("net.limits.archive.tx"));
+		bandwidthAllocatorRx.setChildBytesPerSecond(globalConfig.getLong("net.limits.archive.rx"));
 	}
 
 	public String getName() {
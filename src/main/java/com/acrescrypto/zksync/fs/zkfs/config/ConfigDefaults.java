@@ -51,6 +51,11 @@ public class ConfigDefaults {
 		config.setDefault("net.dht.store.maxIds",                     128);
 		config.setDefault("net.dht.store.expirationTimeMs",  1000*60*60*4);
 		config.setDefault("net.dht.bucketMaxCapacity",                  8);
+		config.setDefault("net.dht.staticSecretCacheSize",           1024);
+		config.setDefault("net.dht.processingThreads",                  0); // workers decrypting and dispatching received datagrams; 0 for one per core
+		config.setDefault("net.dht.processingQueueSize",             4096); // received datagrams waiting for a worker; more are dropped
+		config.setDefault("net.dht.processingBatchSize",               16); // datagrams from one sender a worker takes at a time
+		config.setDefault("net.dht.numSockets",                         1); // UDP sockets bound to the DHT port, each with its own listener (needs SO_REUSEPORT)
 		
 		config.setDefault("net.dht.bootstrap.enabled",   true);
 		config.setDefault("net.dht.bootstrap.peerfile",  "https://dht1.easysafe.io/dht/peerfile");
@@ -66,6 +71,20 @@ public class ConfigDefaults {
 		config.setDefault("net.swarm.maxOpenMessages",                         16);
 		config.setDefault("net.swarm.rejectionCacheSize",                      16);
 		config.setDefault("net.swarm.pageSendAvailabilityTimeoutMs",         1000);
+		config.setDefault("net.swarm.pageRequestBatchMs",                      25);
+		config.setDefault("net.swarm.pageRequestMaxBatchDelayMs",             250);
+		config.setDefault("net.swarm.pageRequestEndgameThreshold",             16);
+		config.setDefault("net.swarm.pageRequestPeersPerTag",                   1);
+		config.setDefault("net.swarm.pageStripeMaxPeers",                       4);
+		config.setDefault("net.swarm.pageStripeTimeoutMs",                   2000);
+		config.setDefault("net.swarm.pageStripeMaxReassignments",               2);
+		config.setDefault("net.swarm.handshakeThreads",                         8);
+		config.setDefault("net.swarm.maxPendingHandshakes",                   256);
+		config.setDefault("net.swarm.maxHandshakesPerAddress",                  8);
+		config.setDefault("net.swarm.handshakeAttemptsPerAddressPerSecond",    32);
+		config.setDefault("net.swarm.pageVerifyThreads",                        2);
+		config.setDefault("net.swarm.pageVerifyQueueSize",                    256);
+		config.setDefault("net.swarm.pageVerifyBatchSize",                     16);
 		
 		config.setDefault("fs.default.fileMode",                             0644);
 		config.setDefault("fs.default.username",                           "root");
@@ -74,7 +93,16 @@ public class ConfigDefaults {
 		config.setDefault("fs.default.gid",                                     0);
 		config.setDefault("fs.default.directoryMode",                        0755);
 		
+		config.setDefault("fs.archives.lazyActivation",                     false);
+		config.setDefault("fs.archives.hibernateAfterMs",                       0); // 0 = never hibernate idle archives
+		config.setDefault("fs.archives.hibernateCheckIntervalMs",         60*1000);
+		config.setDefault("fs.archives.startupThreads",                         4);
+		config.setDefault("fs.archives.backgroundStartup",                  false);
+		
 		config.setDefault("fs.settings.maxOpenBlocks",                          4);
+		config.setDefault("fs.settings.blockWriteThreads",                      0); // 0 = one per core
+		config.setDefault("fs.settings.blockWriteQueueSize",                  256); // 0 = encrypt and sign every block inline
+		config.setDefault("fs.settings.maintenanceThreads",                     0); // 0 = one per core
 		config.setDefault("fs.settings.pageReadyMaxRetries",                   50);
 		config.setDefault("fs.settings.pageReadyRetryDelayMs",                 10);
 		config.setDefault("fs.settings.pageTreeChunkCacheSize",                16);
@@ -82,11 +110,15 @@ public class ConfigDefaults {
 		config.setDefault("fs.settings.inodeTablePageCacheSize",              128);
 		config.setDefault("fs.settings.revisionTreeCacheSize",                256);
 		config.setDefault("fs.settings.readOnlyFilesystemCacheSize",           64);
+		config.setDefault("fs.settings.snapshotCacheSize",                    256); // 0 = read-only views don't share decoded pages
+		config.setDefault("fs.settings.snapshotBlockCacheSize",                32);
 		config.setDefault("fs.settings.mergeRevisionAcquisitionMaxWaitMs",  30000);
 		config.setDefault("fs.settings.automergeDelayMs",                   10000);
 		config.setDefault("fs.settings.maxAutomergeDelayMs",                60000);
 		config.setDefault("fs.settings.maxAutomergeAcquireWaitTimeMs",      60000);
 		config.setDefault("fs.settings.revtagHasLocalCacheTimeout",         60000);
+		config.setDefault("fs.settings.pageCacheMaxBytes",                     -1); // -1 = no limit on pages kept from the swarm
+		config.setDefault("fs.settings.pageCacheHotTierBytes",                  0); // 0 = no in-memory hot tier
 		
 		config.setDefault("fs.settings.mirror.pathMutePeriodMs",              100);
 		config.setDefault("fs.settings.mirror.syncResetDelayMs",              100);
@@ -95,9 +127,15 @@ public class ConfigDefaults {
 		config.setDefault("fs.settings.tagCacheMaxFlushDelayMs",            30000);
 		
 		config.setDefault("fs.fileHandleTelemetry", FS.fileHandleTelemetryEnabled);
+		config.setDefault("metrics.enabled",        false);
 		
 		config.setDefault("net.limits.tx",                                     -1);
 		config.setDefault("net.limits.rx",                                     -1);
+		config.setDefault("net.limits.archive.tx",                             -1);
+		config.setDefault("net.limits.archive.rx",                             -1);
+		config.setDefault("net.limits.peer.tx",                                -1);
+		config.setDefault("net.limits.peer.rx",                                -1);
+		config.setDefault("net.limits.burstMs",                                1000);
 		
 		config.setDefault("log.includeLogRequests", false);
 		config.setDefault("log.historyDepth",       MemLogAppender.sharedInstance().getHistoryDepth());
@@ -12,6 +12,7 @@ import org.slf4j.LoggerFactory;
 import com.acrescrypto.zksync.crypto.CryptoSupport;
 import com.acrescrypto.zksync.exceptions.EINVALException;
 import com.acrescrypto.zksync.fs.FS;
+import com.acrescrypto.zksync.fs.backedfs.BackedFS;
 import com.acrescrypto.zksync.fs.zkfs.StorageTag;
 import com.acrescrypto.zksync.utility.Util;
 
@@ -64,7 +65,9 @@ public class ChunkAccumulator {
 	
 	protected StorageTag tag;
 	protected int numChunksExpected;
-	protected boolean finished;
+	protected volatile boolean finished;
+	protected boolean verifying; // queued for or undergoing verification by the PageVerifier
+	protected int revision; // incremented whenever a new chunk version arrives
 	protected ArrayList<LinkedList<ChunkVersion>> chunksByIndex = new ArrayList<LinkedList<ChunkVersion>>();
 	protected ArrayList<LinkedList<PeerChunkInfo>> peersByIndex = new ArrayList<LinkedList<PeerChunkInfo>>();
 	protected PeerSwarm swarm;
@@ -81,9 +84,107 @@ public class ChunkAccumulator {
 		}
 	}
 	
+	/** Add a chunk and, if every chunk now has a candidate, validate the page on the calling thread. Returns true
+	 * if the page is finished. If the page is already being verified elsewhere, the chunk is left for that pass to
+	 * pick up. */
 	public synchronized boolean addChunk(int index, byte[] chunk, PeerConnection peer) throws IOException {
 		if(finished) return true;
+		recordChunk(index, chunk, peer);
+		if(verifying) return false;
+		return hasCandidatesForAllChunks() && trySolutions(new ArrayList<ChunkVersion>());
+	}
+	
+	/** Add a chunk received from a peer. Once every chunk has a candidate, the page is handed to the master's
+	 * PageVerifier so the caller's thread is not held up by signature checks. If the verifier is unavailable or its
+	 * queue is full, the page is validated on the calling thread instead. */
+	public void receiveChunk(int index, byte[] chunk, PeerConnection peer) throws IOException {
+		synchronized(this) {
+			if(finished) return;
+			recordChunk(index, chunk, peer);
+			if(verifying || !hasCandidatesForAllChunks()) return;
+			verifying = true;
+		}
+		
+		PageVerifier verifier = swarm.config.getMaster().getPageVerifier();
+		if(verifier == null || !verifier.submit(this)) {
+			verifyPending();
+		}
+	}
+	
+	/** Try candidate solutions until one validates or we run out. Signature checks happen without holding the lock, so
+	 * chunks can keep arriving in the meantime; if new versions show up and nothing validated, try again with them. */
+	protected void verifyPending() throws IOException {
+		try {
+			verifyCandidates();
+		} catch(IOException|RuntimeException exc) {
+			abandonVerification(); // let the next chunk to arrive start over
+			throw exc;
+		}
+	}
+	
+	/** Called by the PageVerifier when it drops a queued page without verifying it, so the next chunk to arrive
+	 * submits it again. */
+	protected synchronized void abandonVerification() {
+		verifying = false;
+	}
+	
+	protected void verifyCandidates() throws IOException {
+		while(true) {
+			ArrayList<LinkedList<ChunkVersion>> candidates = new ArrayList<>(numChunksExpected);
+			int seenRevision;
+			
+			synchronized(this) {
+				if(finished) {
+					verifying = false;
+					return;
+				}
+				
+				seenRevision = revision;
+				for(LinkedList<ChunkVersion> versions : chunksByIndex) {
+					candidates.add(new LinkedList<>(versions));
+				}
+			}
+			
+			ArrayList<ChunkVersion> solution = new ArrayList<>(numChunksExpected);
+			byte[] page = findSolution(candidates, solution);
+			
+			synchronized(this) {
+				if(finished) {
+					verifying = false;
+					return;
+				}
+				
+				if(page != null) {
+					verifying = false;
+					finish(solution, page);
+					return;
+				}
+				
+				if(revision == seenRevision) {
+					verifying = false;
+					return;
+				}
+			}
+		}
+	}
+	
+	protected byte[] findSolution(ArrayList<LinkedList<ChunkVersion>> candidates, ArrayList<ChunkVersion> chunks) throws IOException {
+		if(chunks.size() >= numChunksExpected) {
+			byte[] allegedPage = makeFileBuffer(chunks);
+			return swarm.config.validatePage(tag, allegedPage) ? allegedPage : null;
+		}
 		
+		for(ChunkVersion version : candidates.get(chunks.size())) {
+			chunks.add(version);
+			byte[] page = findSolution(candidates, chunks);
+			if(page != null) return page;
+			chunks.remove(chunks.size() - 1);
+		}
+		
+		return null;
+	}
+	
+	protected void recordChunk(int index, byte[] chunk, PeerConnection peer) throws IOException {
 		boolean needsInsert = true;
 		if(index >= numChunksExpected || index < 0) throw new EINVALException(tag + ":" + index);
 		ChunkVersion version = new ChunkVersion(peer.socket.swarm.config.getAccessor().getMaster().scratchStorage(), chunk);
@@ -98,6 +199,7 @@ public class ChunkAccumulator {
 		
 		if(needsInsert) {
 			chunksByIndex.get(index).add(version);
+			revision++;
 		}
 		
 		boolean add = true;
@@ -117,14 +219,19 @@ public class ChunkAccumulator {
 		if(add) {
 			peersByIndex.get(index).add(new PeerChunkInfo(version, peer));
 		}
-		
-		return hasCandidatesForAllChunks() && trySolutions(new ArrayList<ChunkVersion>());
 	}
 	
 	public boolean isFinished() {
 		return finished;
 	}
 	
+	/** Returns true if at least one candidate version of the chunk at the given index has arrived. */
+	public synchronized boolean hasChunk(int index) {
+		if(finished) return true;
+		if(index < 0 || index >= numChunksExpected) return false;
+		return !chunksByIndex.get(index).isEmpty();
+	}
+	
 	protected boolean hasCandidatesForAllChunks() {
 		for(int i = 0; i < numChunksExpected; i++) {
 			if(chunksByIndex.get(i).size() == 0) return false;
@@ -153,15 +260,26 @@ public class ChunkAccumulator {
 			return false;
 		}
 		
+		finish(chunks, allegedPage);
+		return true;
+	}
+	
+	protected void finish(ArrayList<ChunkVersion> chunks, byte[] allegedPage) throws IOException {
 		finished = true;
 		logger.debug("Swarm {} -: Storing validated page {}",
 				Util.formatArchiveId(swarm.getConfig().getArchiveId()),
 				tag);
-		swarm.config.getStorage().write(tag.path(), allegedPage);
+		FS storage = swarm.config.getStorage();
+		if(storage instanceof BackedFS && !tag.equals(swarm.config.tag())) {
+			// came from the swarm, so we can get it again if we need the space; the config page we always keep
+			((BackedFS) storage).writeRefetchable(tag.path(), allegedPage);
+		} else {
+			storage.writeAtomic(tag.path(), allegedPage);
+		}
+		
 		burnHeretics(chunks);
 		closeFiles();
 		swarm.receivedPage(tag);
-		return true;
 	}
 	
 	protected byte[] makeFileBuffer(ArrayList<ChunkVersion> chunks) throws IOException {
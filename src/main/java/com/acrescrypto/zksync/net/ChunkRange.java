@@ -0,0 +1,54 @@
+package com.acrescrypto.zksync.net;
+
+/** A contiguous run of chunk indices within a single page, as requested via CMD_REQUEST_PAGE_CHUNKS. */
+public class ChunkRange {
+	public final static int SERIALIZED_SIZE = 8 + 4 + 4; // shortTag[8] + firstChunk[4] + numChunks[4]
+	
+	protected long shortTag;
+	protected int firstChunk;
+	protected int numChunks;
+	
+	public ChunkRange(long shortTag, int firstChunk, int numChunks) {
+		this.shortTag = shortTag;
+		this.firstChunk = firstChunk;
+		this.numChunks = numChunks;
+	}
+	
+	public long getShortTag() {
+		return shortTag;
+	}
+	
+	public int getFirstChunk() {
+		return firstChunk;
+	}
+	
+	public int getNumChunks() {
+		return numChunks;
+	}
+	
+	/** Index one past the last chunk in the range. */
+	public int getEndChunk() {
+		return firstChunk + numChunks;
+	}
+	
+	public boolean contains(int index) {
+		return firstChunk <= index && index < getEndChunk();
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if(!(other instanceof ChunkRange)) return false;
+		ChunkRange o = (ChunkRange) other;
+		return shortTag == o.shortTag && firstChunk == o.firstChunk && numChunks == o.numChunks;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Long.hashCode(shortTag) ^ (31*firstChunk) ^ numChunks;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%016x[%d..%d)", shortTag, firstChunk, getEndChunk());
+	}
+}
@@ -2,6 +2,7 @@ package com.acrescrypto.zksync.net;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.PriorityQueue;
 
@@ -132,6 +133,42 @@ public class PageQueue {
 		@Override long getHash() { return tag != null ? tag.shortTagPreserialized() : -1; }
 	}
 	
+	/* send a subset of a page's chunks, so the requester can stripe one page across several peers */
+	class PageChunksQueueItem extends QueueItem {
+		ZKArchive archive;
+		StorageTag tag;
+		LinkedList<Integer> remaining = new LinkedList<>();
+		
+		PageChunksQueueItem(int priority, ZKArchive archive, StorageTag tag, ChunkRange range) throws IOException {
+			super(priority);
+			this.archive = archive;
+			this.tag = tag;
+			
+			if(archive.getStorage().exists(tag.path())) {
+				addRange(range);
+			}
+		}
+		
+		void addRange(ChunkRange range) {
+			Shuffler shuffler = Shuffler.fixedShuffler(range.getNumChunks());
+			while(shuffler.hasNext()) {
+				int index = range.getFirstChunk() + shuffler.next();
+				if(!remaining.contains(index)) {
+					remaining.add(index);
+				}
+			}
+		}
+		
+		@Override
+		QueueItem nextChildActual() {
+			if(remaining.isEmpty()) return null;
+			return new ChunkQueueItem(priority, new ChunkReference(archive.getStorage(), tag, remaining.removeFirst()));
+		}
+		
+		@Override int classPriority() { return -10; }
+		@Override long getHash() { return tag.shortTagPreserialized(); } // same as PageQueueItem, so cancelling a tag cancels its chunks too
+	}
+	
 	class InodeContentsQueueItem extends QueueItem {
 		PageTree tree;
 		Shuffler shuffler;
@@ -366,6 +403,21 @@ public class PageQueue {
 		addItem(new PageQueueItem(priority, config.getArchive(), pageTag));
 	}
 	
+	public void addPageChunks(int priority, ChunkRange range) {
+		try {
+			StorageTag tag = config.getArchive().expandShortTag(range.getShortTag());
+			if(tag == null) {
+				logger.warn("Cannot enqueue chunks of non-existent short tag {}", range.getShortTag());
+				return;
+			}
+			
+			logger.debug("Enqueuing chunks {}", range);
+			addItem(new PageChunksQueueItem(priority, config.getArchive(), tag, range));
+		} catch (Exception exc) {
+			logger.warn("Caught exception queuing chunks {}", range, exc);
+		}
+	}
+	
 	public void addInodeContents(int priority, RevisionTag revTag, long inodeId) {
 		logger.debug("Enqueuing inode {} of {}", inodeId, Util.formatRevisionTag(revTag));
 		addItem(new InodeContentsQueueItem(priority, revTag, inodeId));
@@ -437,6 +489,24 @@ public class PageQueue {
 	
 	protected synchronized void addItem(QueueItem item) {
 		QueueItem existing = itemsByHash.get(item.getHash());
+		if(existing instanceof PageChunksQueueItem && item.priority != CANCEL_PRIORITY) {
+			if(item instanceof PageChunksQueueItem) {
+				// straggler re-assignment: fold the new range into what we're already sending
+				PageChunksQueueItem chunksItem = (PageChunksQueueItem) existing;
+				for(int index : ((PageChunksQueueItem) item).remaining) {
+					if(!chunksItem.remaining.contains(index)) chunksItem.remaining.add(index);
+				}
+				
+				existing.reprioritize(item.priority);
+				this.notifyAll();
+				return;
+			} else if(item instanceof PageQueueItem) {
+				// peer now wants the whole page; supersede the partial request
+				existing.cancel();
+				existing = null;
+			}
+		}
+		
 		if(existing != null) {
 			existing.reprioritize(item.priority);
 			return;
@@ -0,0 +1,507 @@
+package com.acrescrypto.zksync.net;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
+import com.acrescrypto.zksync.utility.BandwidthMonitor;
+import com.acrescrypto.zksync.utility.SnoozeThread;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Decides which peers receive each page tag request in a RequestPool.
+ *
+ * Requests are coalesced over a short window (net.swarm.pageRequestBatchMs) and sent as one CMD_REQUEST_PAGE_TAGS
+ * message per peer per priority. Each tag is directed to peers that have announced it, rarest tags first, preferring
+ * peers with the lowest projected load given their observed receive rate. Tags that no connected peer has announced
+ * are broadcast to everyone, as are all tags once the pool is down to its last few requests (endgame mode).
+ * Repeated requests for the same tag (e.g. from PeerSwarm.waitForPage retries) widen the set of peers asked.
+ *
+ * The first request for a tag held by several peers is striped: each of up to net.swarm.pageStripeMaxPeers holders
+ * is asked for a contiguous range of the page's chunks (CMD_REQUEST_PAGE_CHUNKS), sized in proportion to its
+ * observed rate. If chunks are still missing after net.swarm.pageStripeTimeoutMs, the missing runs are re-assigned
+ * to other holders, preferring those that already delivered their share. */
+public class PageRequestScheduler {
+	/** Assumed receive rate for peers we have not yet observed, so that new peers are still eligible for work. */
+	public final static long MIN_ASSUMED_RATE_BYTES_PER_SECOND = 32*1024;
+
+	protected RequestPool pool;
+	protected LinkedHashMap<Long,Integer> pending = new LinkedHashMap<>(); // shortTag -> priority, awaiting dispatch
+	protected HashMap<Long,Integer> attempts = new HashMap<>(); // shortTag -> number of times tag has been dispatched
+	protected HashSet<Long> unsourced = new HashSet<>(); // tags last dispatched while no connected peer announced them
+	protected ConcurrentHashMap<Long,PageStripe> stripes = new ConcurrentHashMap<>(); // shortTag -> striped request in progress
+	protected SnoozeThread flushTimer, stripeTimer;
+	protected boolean closed;
+	protected Logger logger = LoggerFactory.getLogger(PageRequestScheduler.class);
+
+	public PageRequestScheduler(RequestPool pool) {
+		this.pool = pool;
+	}
+
+	public synchronized void close() {
+		closed = true;
+		pending.clear();
+		stripes.clear();
+		if(flushTimer != null) {
+			flushTimer.cancel();
+			flushTimer = null;
+		}
+		
+		if(stripeTimer != null) {
+			stripeTimer.cancel();
+			stripeTimer = null;
+		}
+	}
+
+	/** Queue a tag for dispatch in the next batch. Dispatches immediately if batching is disabled. */
+	public synchronized void schedule(int priority, long shortTag) {
+		if(closed) return;
+		pending.put(shortTag, priority);
+
+		if(batchDelayMs() <= 0) {
+			flush();
+		} else {
+			flushAfterDelay();
+		}
+	}
+
+	/** Forget about a tag. Returns true if a request for the tag was already sent to peers, meaning they need to be
+	 * told to cancel it. */
+	public synchronized boolean cancel(long shortTag) {
+		boolean wasPending = pending.remove(shortTag) != null;
+		boolean wasDispatched = attempts.remove(shortTag) != null;
+		unsourced.remove(shortTag);
+		stripes.remove(shortTag);
+		return wasDispatched || !wasPending;
+	}
+
+	/** A peer has announced that it has some tags. Any requested tags we previously had no source for get
+	 * re-dispatched so that they can be directed to this peer. */
+	public synchronized void announcedTags(PeerConnection connection, Collection<Long> shortTags) {
+		if(closed || unsourced.isEmpty()) return;
+		boolean scheduled = false;
+
+		for(Long shortTag : shortTags) {
+			if(!unsourced.contains(shortTag)) continue;
+			int priority = pool.priorityForPageTag(shortTag);
+			if(priority == PageQueue.CANCEL_PRIORITY) {
+				unsourced.remove(shortTag);
+				continue;
+			}
+
+			pending.put(shortTag, priority);
+			scheduled = true;
+		}
+
+		if(!scheduled) return;
+		if(batchDelayMs() <= 0) {
+			flush();
+		} else {
+			flushAfterDelay();
+		}
+	}
+
+	/** Tags that should be requested from a newly connected peer: anything we want that no other connected peer has
+	 * announced. Tags available elsewhere are directed to this peer later, once it announces them. */
+	public synchronized LinkedList<Long> tagsForNewConnection(PeerConnection connection, Collection<Long> requestedTags) {
+		LinkedList<Long> tags = new LinkedList<>();
+		Collection<PeerConnection> others = otherConnections(connection);
+
+		for(Long shortTag : requestedTags) {
+			if(!hasHolder(others, shortTag)) {
+				tags.add(shortTag);
+			}
+		}
+
+		return tags;
+	}
+
+	/** Drop bookkeeping for tags the pool no longer wants. */
+	public synchronized void prune() {
+		attempts.keySet().removeIf((shortTag)->pool.requestedPageTags.lookup(shortTag) == null);
+		unsourced.removeIf((shortTag)->pool.requestedPageTags.lookup(shortTag) == null);
+		stripes.keySet().removeIf((shortTag)->pool.requestedPageTags.lookup(shortTag) == null);
+	}
+	
+	/** A page has been received and validated; stop tracking its stripes. Deliberately unsynchronized, since this
+	 * is called with the PeerSwarm monitor held. */
+	public void receivedPage(long shortTag) {
+		stripes.remove(shortTag);
+	}
+	
+	public boolean isStriped(long shortTag) {
+		return stripes.containsKey(shortTag);
+	}
+
+	public synchronized int numPending() {
+		return pending.size();
+	}
+
+	public synchronized boolean isUnsourced(long shortTag) {
+		return unsourced.contains(shortTag);
+	}
+
+	/** Dispatch everything currently pending. */
+	public synchronized void flush() {
+		flushTimer = null;
+		if(closed || pending.isEmpty()) return;
+
+		Collection<PeerConnection> connections = pool.config.getSwarm().getConnections();
+		if(connections.isEmpty()) {
+			// new connections receive outstanding requests via RequestPool.addRequestsToConnection
+			pending.clear();
+			return;
+		}
+
+		boolean endgame = pool.numPagesRequested() <= endgameThreshold();
+		int peersPerTag = Math.max(1, peersPerTag());
+		int maxStripes = Math.min(stripeMaxPeers(), pool.config.getSwarm().numChunksPerPage());
+
+		ArrayList<PendingTag> batch = new ArrayList<>(pending.size());
+		for(Map.Entry<Long,Integer> entry : pending.entrySet()) {
+			batch.add(new PendingTag(entry.getKey(), entry.getValue(), connections));
+		}
+		pending.clear();
+
+		// rarest first, so that scarce tags get first pick of the lightly-loaded peers
+		batch.sort((a, b)->Integer.compare(a.holders.size(), b.holders.size()));
+
+		HashMap<PeerConnection,PeerLoad> loads = new HashMap<>();
+		for(PeerConnection connection : connections) {
+			loads.put(connection, new PeerLoad(connection));
+		}
+
+		for(PendingTag tag : batch) {
+			int attempt = attempts.getOrDefault(tag.shortTag, 0);
+			attempts.put(tag.shortTag, attempt+1);
+
+			if(tag.holders.isEmpty()) {
+				unsourced.add(tag.shortTag);
+				for(PeerLoad load : loads.values()) {
+					load.assign(tag);
+				}
+				continue;
+			}
+
+			unsourced.remove(tag.shortTag);
+			if(endgame) {
+				for(PeerConnection holder : tag.holders) {
+					loads.get(holder).assign(tag);
+				}
+				continue;
+			}
+
+			ArrayList<PeerLoad> candidates = new ArrayList<>(tag.holders.size());
+			for(PeerConnection holder : tag.holders) {
+				candidates.add(loads.get(holder));
+			}
+
+			candidates.sort((a, b)->Double.compare(a.projectedLoad(), b.projectedLoad()));
+			if(attempt == 0 && maxStripes >= 2 && candidates.size() >= 2) {
+				stripe(tag, candidates.subList(0, Math.min(maxStripes, candidates.size())));
+				continue;
+			}
+			
+			int fanout = Math.min(candidates.size(), peersPerTag + attempt);
+			for(int i = 0; i < fanout; i++) {
+				candidates.get(i).assign(tag);
+			}
+		}
+
+		for(PeerLoad load : loads.values()) {
+			load.send();
+		}
+		
+		if(!stripes.isEmpty() && stripeTimer == null) {
+			checkStripesAfterDelay(stripeTimeoutMs());
+		}
+	}
+	
+	/** Re-assign chunks of striped pages whose deadlines have passed. */
+	public synchronized void checkStripes() {
+		stripeTimer = null;
+		if(closed) return;
+		
+		long now = Util.currentTimeMillis(), nextDeadline = Long.MAX_VALUE;
+		for(PageStripe stripe : stripes.values()) {
+			if(stripe.deadline > now) {
+				nextDeadline = Math.min(nextDeadline, stripe.deadline);
+				continue;
+			}
+			
+			if(!reassignStragglers(stripe)) {
+				stripes.remove(stripe.shortTag);
+			} else {
+				nextDeadline = Math.min(nextDeadline, stripe.deadline);
+			}
+		}
+		
+		if(nextDeadline != Long.MAX_VALUE) {
+			checkStripesAfterDelay(Math.max(1, nextDeadline - now));
+		}
+	}
+	
+	protected void stripe(PendingTag tag, Collection<PeerLoad> holders) {
+		int numChunks = pool.config.getSwarm().numChunksPerPage(), first = 0, remainingHolders = holders.size();
+		double totalRate = 0;
+		for(PeerLoad holder : holders) {
+			totalRate += holder.rate;
+		}
+		
+		PageStripe stripe = new PageStripe(tag.shortTag, tag.priority);
+		for(PeerLoad holder : holders) {
+			remainingHolders--;
+			int count = remainingHolders == 0
+					? numChunks - first
+					: (int) Math.round(numChunks * holder.rate / totalRate);
+			count = Math.max(1, Math.min(count, numChunks - first - remainingHolders));
+			
+			ChunkRange range = new ChunkRange(tag.shortTag, first, count);
+			holder.assignRange(tag.priority, range, ((double) count)/numChunks);
+			stripe.assignments.add(new StripeAssignment(holder.connection, range));
+			first += count;
+		}
+		
+		stripes.put(tag.shortTag, stripe);
+	}
+	
+	/** Returns false if the stripe should no longer be tracked. */
+	protected boolean reassignStragglers(PageStripe stripe) {
+		if(stripe.reassignments >= stripeMaxReassignments()) {
+			// let PeerSwarm.waitForPage retries and full-page requests take it from here
+			return false;
+		}
+		
+		int priority = pool.priorityForPageTag(stripe.shortTag);
+		if(priority == PageQueue.CANCEL_PRIORITY) return false;
+		
+		ChunkAccumulator accumulator = pool.config.getSwarm().existingAccumulatorForTag(stripe.shortTag);
+		if(accumulator != null && accumulator.isFinished()) return false;
+		
+		LinkedList<PeerConnection> finishedPeers = new LinkedList<>();
+		LinkedList<StripeAssignment> stragglers = new LinkedList<>();
+		for(StripeAssignment assignment : stripe.assignments) {
+			if(assignment.isComplete(accumulator) && !assignment.peer.closed) {
+				finishedPeers.add(assignment.peer);
+			} else if(!assignment.isComplete(accumulator)) {
+				stragglers.add(assignment);
+			}
+		}
+		
+		LinkedList<PeerConnection> alternates = new LinkedList<>(finishedPeers);
+		for(PeerConnection connection : pool.config.getSwarm().getConnections()) {
+			if(alternates.contains(connection) || !connection.hasFile(stripe.shortTag)) continue;
+			alternates.add(connection);
+		}
+		
+		LinkedList<StripeAssignment> reassigned = new LinkedList<>();
+		for(StripeAssignment straggler : stragglers) {
+			PeerConnection target = null;
+			for(PeerConnection alternate : alternates) {
+				if(alternate != straggler.peer) {
+					target = alternate;
+					break;
+				}
+			}
+			
+			if(target == null) continue; // nobody else has it; leave it with the original peer
+			alternates.remove(target);
+			alternates.add(target); // rotate so stragglers spread across alternates
+			
+			LinkedList<ChunkRange> missing = straggler.missingRanges(accumulator);
+			logger.debug("Swarm {} -: Re-assigning {} straggling chunk ranges of page {}",
+					Util.formatArchiveId(pool.config.getArchiveId()),
+					missing.size(),
+					String.format("%016x", stripe.shortTag));
+			target.requestPageChunks(priority, missing);
+			for(ChunkRange range : missing) {
+				reassigned.add(new StripeAssignment(target, range));
+			}
+		}
+		
+		if(reassigned.isEmpty()) return false;
+		stripe.assignments = reassigned;
+		stripe.reassignments++;
+		stripe.deadline = Util.currentTimeMillis() + stripeTimeoutMs();
+		return true;
+	}
+	
+	protected void checkStripesAfterDelay(long delayMs) {
+		if(stripeTimer != null) stripeTimer.cancel();
+		stripeTimer = new SnoozeThread(delayMs, false, ()->checkStripes());
+	}
+
+	protected void flushAfterDelay() {
+		if(flushTimer == null || !flushTimer.snooze()) {
+			flushTimer = new SnoozeThread(batchDelayMs(), maxBatchDelayMs(), false, ()->flush());
+		}
+	}
+
+	protected Collection<PeerConnection> otherConnections(PeerConnection connection) {
+		Collection<PeerConnection> connections = pool.config.getSwarm().getConnections();
+		connections.remove(connection);
+		return connections;
+	}
+
+	protected boolean hasHolder(Collection<PeerConnection> connections, long shortTag) {
+		for(PeerConnection connection : connections) {
+			if(connection.hasFile(shortTag)) return true;
+		}
+
+		return false;
+	}
+
+	protected ConfigFile globalConfig() {
+		return pool.config.getMaster().getGlobalConfig();
+	}
+
+	protected int batchDelayMs() {
+		return globalConfig().getInt("net.swarm.pageRequestBatchMs");
+	}
+
+	protected int maxBatchDelayMs() {
+		return globalConfig().getInt("net.swarm.pageRequestMaxBatchDelayMs");
+	}
+
+	protected int endgameThreshold() {
+		return globalConfig().getInt("net.swarm.pageRequestEndgameThreshold");
+	}
+
+	protected int peersPerTag() {
+		return globalConfig().getInt("net.swarm.pageRequestPeersPerTag");
+	}
+	
+	protected int stripeMaxPeers() {
+		return globalConfig().getInt("net.swarm.pageStripeMaxPeers");
+	}
+	
+	protected int stripeTimeoutMs() {
+		return globalConfig().getInt("net.swarm.pageStripeTimeoutMs");
+	}
+	
+	protected int stripeMaxReassignments() {
+		return globalConfig().getInt("net.swarm.pageStripeMaxReassignments");
+	}
+	
+	protected class PageStripe {
+		long shortTag;
+		int priority, reassignments;
+		long deadline;
+		LinkedList<StripeAssignment> assignments = new LinkedList<>();
+		
+		PageStripe(long shortTag, int priority) {
+			this.shortTag = shortTag;
+			this.priority = priority;
+			this.deadline = Util.currentTimeMillis() + stripeTimeoutMs();
+		}
+	}
+	
+	protected class StripeAssignment {
+		PeerConnection peer;
+		ChunkRange range;
+		
+		StripeAssignment(PeerConnection peer, ChunkRange range) {
+			this.peer = peer;
+			this.range = range;
+		}
+		
+		boolean isComplete(ChunkAccumulator accumulator) {
+			if(accumulator == null) return false;
+			for(int i = range.getFirstChunk(); i < range.getEndChunk(); i++) {
+				if(!accumulator.hasChunk(i)) return false;
+			}
+			
+			return true;
+		}
+		
+		LinkedList<ChunkRange> missingRanges(ChunkAccumulator accumulator) {
+			LinkedList<ChunkRange> missing = new LinkedList<>();
+			int runStart = -1;
+			for(int i = range.getFirstChunk(); i <= range.getEndChunk(); i++) {
+				boolean have = i == range.getEndChunk() || (accumulator != null && accumulator.hasChunk(i));
+				if(!have && runStart < 0) {
+					runStart = i;
+				} else if(have && runStart >= 0) {
+					missing.add(new ChunkRange(range.getShortTag(), runStart, i - runStart));
+					runStart = -1;
+				}
+			}
+			
+			return missing;
+		}
+	}
+
+	protected class PendingTag {
+		long shortTag;
+		int priority;
+		ArrayList<PeerConnection> holders = new ArrayList<>();
+
+		PendingTag(long shortTag, int priority, Collection<PeerConnection> connections) {
+			this.shortTag = shortTag;
+			this.priority = priority;
+			for(PeerConnection connection : connections) {
+				if(connection.hasFile(shortTag)) {
+					holders.add(connection);
+				}
+			}
+		}
+	}
+
+	protected class PeerLoad {
+		PeerConnection connection;
+		long rate;
+		double assigned;
+		HashMap<Integer,LinkedList<Long>> tagsByPriority = new HashMap<>();
+		HashMap<Integer,LinkedList<ChunkRange>> rangesByPriority = new HashMap<>();
+
+		PeerLoad(PeerConnection connection) {
+			this.connection = connection;
+			this.rate = MIN_ASSUMED_RATE_BYTES_PER_SECOND;
+
+			BandwidthMonitor monitor = connection.getSocket() != null ? connection.getSocket().getMonitorRx() : null;
+			if(monitor != null) {
+				this.rate = Math.max(rate, monitor.getBytesPerSecond());
+			}
+		}
+
+		/** Relative time for this peer to deliver everything assigned so far plus one more page. */
+		double projectedLoad() {
+			return (assigned + 1.0) / rate;
+		}
+
+		void assign(PendingTag tag) {
+			assigned++;
+			tagsByPriority.putIfAbsent(tag.priority, new LinkedList<>());
+			tagsByPriority.get(tag.priority).add(tag.shortTag);
+		}
+		
+		void assignRange(int priority, ChunkRange range, double fractionOfPage) {
+			assigned += fractionOfPage;
+			rangesByPriority.putIfAbsent(priority, new LinkedList<>());
+			rangesByPriority.get(priority).add(range);
+		}
+
+		void send() {
+			for(int priority : tagsByPriority.keySet()) {
+				LinkedList<Long> tags = tagsByPriority.get(priority);
+				logger.trace("Swarm {} -: Directing {} page requests at priority {} to peer",
+						Util.formatArchiveId(pool.config.getArchiveId()),
+						tags.size(),
+						priority);
+				connection.requestPageTags(priority, tags);
+			}
+			
+			for(int priority : rangesByPriority.keySet()) {
+				connection.requestPageChunks(priority, rangesByPriority.get(priority));
+			}
+		}
+	}
+}
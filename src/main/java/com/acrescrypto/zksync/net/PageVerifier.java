@@ -0,0 +1,148 @@
+package com.acrescrypto.zksync.net;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.utility.GroupedThreadPool;
+
+/** Verifies pages assembled by ChunkAccumulators off of the PeerConnection receive threads.
+ *
+ * Accumulators with a candidate for every chunk are queued here, and a small worker pool checks their page
+ * signatures. The queue is shared by every connection on the ZKMaster, and is bounded; when it is full, submit()
+ * refuses the work and the caller verifies inline, pushing back on whichever connection is delivering pages faster
+ * than we can check them. Workers take queued pages in batches from a single archive so that the archive's keys
+ * stay hot across consecutive verifications.
+ */
+public class PageVerifier {
+	protected ZKMaster                                              master;
+	protected GroupedThreadPool                                     pool;
+	protected LinkedHashMap<PeerSwarm,LinkedList<ChunkAccumulator>> pending = new LinkedHashMap<>();
+	protected int                                                   queued;
+	protected boolean                                               closed;
+	protected AtomicLong                                            numVerified = new AtomicLong(),
+	                                                                numBatches  = new AtomicLong(),
+	                                                                numRefused  = new AtomicLong();
+	protected final Logger logger = LoggerFactory.getLogger(PageVerifier.class);
+
+	public PageVerifier(ZKMaster master) {
+		this.master = master;
+		this.pool   = GroupedThreadPool.newFixedThreadPool(master.getThreadGroup(),
+				"PageVerifier",
+				master.getGlobalConfig().getInt("net.swarm.pageVerifyThreads"));
+	}
+
+	/** Queue an accumulator for verification. Returns false if the queue is full or the verifier is closed, in which
+	 * case the caller is responsible for verifying the page itself. */
+	public boolean submit(ChunkAccumulator accumulator) {
+		synchronized(this) {
+			if(closed || queued >= master.getGlobalConfig().getInt("net.swarm.pageVerifyQueueSize")) {
+				numRefused.incrementAndGet();
+				return false;
+			}
+
+			pending.computeIfAbsent(accumulator.swarm, (swarm)->new LinkedList<>()).add(accumulator);
+			queued++;
+		}
+
+		try {
+			pool.submit(()->verifyBatch());
+		} catch(RejectedExecutionException exc) {
+			// closed while we were submitting; the accumulator is stranded in pending, so take it back
+			synchronized(this) {
+				LinkedList<ChunkAccumulator> queue = pending.get(accumulator.swarm);
+				if(queue == null || !queue.remove(accumulator)) return true; // a worker already took it
+				if(queue.isEmpty()) pending.remove(accumulator.swarm);
+				queued--;
+			}
+
+			numRefused.incrementAndGet();
+			return false;
+		}
+
+		return true;
+	}
+
+	public synchronized int queued() {
+		return queued;
+	}
+
+	public long getNumVerified() {
+		return numVerified.get();
+	}
+
+	public long getNumBatches() {
+		return numBatches.get();
+	}
+
+	public long getNumRefused() {
+		return numRefused.get();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/** Stop verifying. Accumulators still in the queue are handed back, so the next chunk to arrive for one of them
+	 * has it verified inline. */
+	public void close() {
+		LinkedList<ChunkAccumulator> abandoned = new LinkedList<>();
+		synchronized(this) {
+			closed = true;
+			for(LinkedList<ChunkAccumulator> queue : pending.values()) {
+				abandoned.addAll(queue);
+			}
+
+			pending.clear();
+			queued = 0;
+		}
+
+		pool.shutdownNow();
+		for(ChunkAccumulator accumulator : abandoned) {
+			accumulator.abandonVerification();
+		}
+	}
+
+	protected void verifyBatch() {
+		LinkedList<ChunkAccumulator> batch = nextBatch();
+		if(batch.isEmpty()) return;
+
+		numBatches.incrementAndGet();
+		for(ChunkAccumulator accumulator : batch) {
+			try {
+				accumulator.verifyPending();
+				numVerified.incrementAndGet();
+			} catch(Exception exc) {
+				logger.error("Swarm - -: Caught exception verifying page {}", accumulator.tag, exc);
+			}
+		}
+	}
+
+	/* Every submit() schedules one verifyBatch() call, but a batch may take several accumulators; later calls that
+	 * find the queue already drained simply return. */
+	protected synchronized LinkedList<ChunkAccumulator> nextBatch() {
+		LinkedList<ChunkAccumulator> batch = new LinkedList<>();
+		Iterator<Map.Entry<PeerSwarm,LinkedList<ChunkAccumulator>>> it = pending.entrySet().iterator();
+		if(!it.hasNext()) return batch;
+
+		Map.Entry<PeerSwarm,LinkedList<ChunkAccumulator>> entry = it.next();
+		LinkedList<ChunkAccumulator> queue = entry.getValue();
+		int maxBatch = master.getGlobalConfig().getInt("net.swarm.pageVerifyBatchSize");
+		while(!queue.isEmpty() && batch.size() < maxBatch) {
+			batch.add(queue.removeFirst());
+		}
+
+		// anything left over goes to the back of the line so one busy archive can't starve the rest
+		it.remove();
+		if(!queue.isEmpty()) pending.put(entry.getKey(), queue);
+		queued -= batch.size();
+		return batch;
+	}
+}
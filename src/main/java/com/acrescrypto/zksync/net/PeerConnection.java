@@ -25,8 +25,10 @@ import com.acrescrypto.zksync.fs.zkfs.RefTag;
 import com.acrescrypto.zksync.fs.zkfs.RevisionTag;
 import com.acrescrypto.zksync.fs.zkfs.StorageTag;
 import com.acrescrypto.zksync.fs.zkfs.ZKArchive;
+import com.acrescrypto.zksync.fs.zkfs.ZKArchiveConfig;
 import com.acrescrypto.zksync.net.PageQueue.ChunkReference;
 import com.acrescrypto.zksync.utility.AppendableInputStream;
+import com.acrescrypto.zksync.utility.MetricsRegistry;
 import com.acrescrypto.zksync.utility.Util;
 
 public class PeerConnection {
@@ -47,8 +49,18 @@ public class PeerConnection {
 	public final static byte CMD_REQUEST_PAGE_TAGS = 0x0c;
 	public final static byte CMD_SEND_PAGE = 0x0d;
 	public final static byte CMD_SET_PAUSED = 0x0e;
+	public final static byte CMD_REQUEST_PAGE_CHUNKS = 0x0f;
 	
-	public final static int MAX_SUPPORTED_CMD = CMD_SET_PAUSED; // update to largest acceptable command code
+	public final static int MAX_SUPPORTED_CMD = CMD_REQUEST_PAGE_CHUNKS; // update to largest acceptable command code
+	
+	protected final static MetricsRegistry.Counter[] messagesHandled = new MetricsRegistry.Counter[MAX_SUPPORTED_CMD+1];
+	static {
+		for(int i = 0; i < messagesHandled.length; i++) {
+			messagesHandled[i] = MetricsRegistry.sharedInstance().counter("zksync_peer_messages_handled_total",
+					"Peer messages handled, by command code",
+					"cmd", Integer.toString(i));
+		}
+	}
 	
 	public final static int PEER_TYPE_STATIC = 0; // static fileserver; needs subclass to handle
 	public final static int PEER_TYPE_BLIND = 1; // has knowledge of seed key, but not archive passphrase; can't decipher data
@@ -147,6 +159,9 @@ public class PeerConnection {
 		} finally {
 			if(socket != null && socket.swarm != null) {
 				socket.swarm.closedConnection(this);
+				if(socket.swarm.config != null) {
+					socket.swarm.config.getStateSignal().signal(); // wake waitForFullInit
+				}
 			}
 			
 			synchronized(this) {
@@ -367,6 +382,25 @@ public class PeerConnection {
 		send(CMD_REQUEST_PAGE_TAGS, pageTagsMerged.array());
 	}
 	
+	/** Request specific chunks of pages, so that a single page can be striped across several peers. Peers that
+	 * predate this command ignore it; callers are expected to re-request anything that does not arrive. */
+	public void requestPageChunks(int priority, Collection<ChunkRange> ranges) {
+		logger.trace("Swarm {} {}:{}: PeerConnection send requestPageChunks",
+				Util.formatArchiveId(socket.swarm.config.getArchiveId()),
+				socket.getAddress(),
+				socket.getPort());
+		if(ranges.isEmpty()) return;
+		ByteBuffer buf = ByteBuffer.allocate(4 + ChunkRange.SERIALIZED_SIZE*ranges.size());
+		buf.putInt(priority);
+		for(ChunkRange range : ranges) {
+			buf.putLong(range.getShortTag());
+			buf.putInt(range.getFirstChunk());
+			buf.putInt(range.getNumChunks());
+		}
+		
+		send(CMD_REQUEST_PAGE_CHUNKS, buf.array());
+	}
+	
 	/** Request encrypted files pertaining to a given inode (including page tree chunks). */
 	public void requestInodes(int priority, RevisionTag revTag, Collection<Long> inodeIds) throws PeerCapabilityException {
 		logger.trace("Swarm {} {}:{}: PeerConnection send requestInodes",
@@ -460,7 +494,7 @@ public class PeerConnection {
 		return !announcedTags.contains(tag.shortTagPreserialized());
 	}
 
-	public boolean hasFile(long shortTag) {
+	public synchronized boolean hasFile(long shortTag) {
 		return announcedTags.contains(shortTag);
 	}
 	
@@ -469,22 +503,25 @@ public class PeerConnection {
 				Util.formatArchiveId(socket.swarm.config.getArchiveId()),
 				socket.getAddress(),
 				socket.getPort());
-		Util.blockOnPoll(()->!closed && !socket.swarm.config.hasKey() && !socket.swarm.config.getAccessor().isSeedOnly());
+		ZKArchiveConfig config = socket.swarm.config;
+		config.getStateSignal().waitWhile(()->!closed && !config.hasKey() && !config.getAccessor().isSeedOnly());
 		logger.trace("Swarm {} {}:{}: PeerConnection waiting for archive to not be null",
 				Util.formatArchiveId(socket.swarm.config.getArchiveId()),
 				socket.getAddress(),
 				socket.getPort());
-		Util.blockOnPoll(()->!closed && socket.swarm.config.getArchive() == null);
+		config.getStateSignal().waitWhile(()->!closed && config.getArchive() == null);
 		logger.trace("Swarm {} {}:{}: PeerConnection done waiting, closed={}",
 				Util.formatArchiveId(socket.swarm.config.getArchiveId()),
 				socket.getAddress(),
 				socket.getPort(),
 				closed);
 
-		if(closed) throw new EOFException(); // maybe not best exception, but we just want to stop processing without triggering a blacklist
+		// maybe not best exception, but we just want to stop processing without triggering a blacklist
+		if(closed || config.getArchive() == null) throw new EOFException();
 	}
 	
 	public boolean handle(PeerMessageIncoming msg) throws ProtocolViolationException {
+		if(msg.cmd >= 0 && msg.cmd < messagesHandled.length) messagesHandled[msg.cmd].increment();
 		logger.debug("Swarm {} {}:{}: PeerConnection handler starting for msgId {}, cmd {}",
 				Util.formatArchiveId(socket.swarm.config.getArchiveId()),
 				socket.getAddress(),
@@ -535,6 +572,9 @@ public class PeerConnection {
 			case CMD_SET_PAUSED:
 				handleSetPaused(msg);
 				break;
+			case CMD_REQUEST_PAGE_CHUNKS:
+				handleRequestPageChunks(msg);
+				break;
 			default:
 				logger.info("Swarm {} {}:{}: PeerConnection handler ignoring unknown request command ",
 						Util.formatArchiveId(socket.swarm.config.getArchiveId()),
@@ -629,20 +669,27 @@ public class PeerConnection {
 				socket.getAddress(),
 				socket.getPort());
 		assert(RefTag.REFTAG_SHORT_SIZE == 8); // This code depends on tags being sent as 64-bit values.
+		RequestPool pool = socket.swarm.getRequestPool();
 		while(msg.rxBuf.hasRemaining()) {
 			// lots of tags to go through, and locks are expensive; accumulate into a buffer so we can minimize lock/release cycling
-			Util.blockOnPoll(()->msg.rxBuf.available() < 8 && !msg.rxBuf.isEOF());
+			msg.rxBuf.waitForAvailable(8);
 			if(msg.rxBuf.isEOF() && msg.rxBuf.available() < 8) break;
 			
 			int len = Math.min(64*1024, msg.rxBuf.available());
 			ByteBuffer buf = ByteBuffer.allocate(len - len % 8); // round to 8-byte long boundary
 			msg.rxBuf.get(buf.array());
+			ArrayList<Long> received = new ArrayList<>(buf.capacity()/8);
 			synchronized(this) {
 				while(buf.hasRemaining()) {
 					long shortTag = buf.getLong();
 					announcedTags.add(shortTag);
+					received.add(shortTag);
 				}
 			}
+			
+			if(pool != null) {
+				pool.receivedTagAnnouncement(this, received);
+			}
 		}
 		
 		synchronized(this) {
@@ -822,6 +869,23 @@ public class PeerConnection {
 		}
 	}
 	
+	protected void handleRequestPageChunks(PeerMessageIncoming msg) throws IOException, ProtocolViolationException {
+		logger.trace("Swarm {} {}:{}: PeerConnection recv requestPageChunks",
+				Util.formatArchiveId(socket.swarm.config.getArchiveId()),
+				socket.getAddress(),
+				socket.getPort());
+		waitForFullInit();
+		int numChunks = socket.swarm.numChunksPerPage();
+		int priority = msg.rxBuf.getInt();
+		while(msg.rxBuf.hasRemaining()) {
+			long shortTag = msg.rxBuf.getLong();
+			int firstChunk = msg.rxBuf.getInt();
+			int count = msg.rxBuf.getInt();
+			assertState(0 <= firstChunk && 0 < count && count <= numChunks - firstChunk);
+			sendPageChunks(priority, new ChunkRange(shortTag, firstChunk, count));
+		}
+	}
+	
 	protected void handleSendPage(PeerMessageIncoming msg) throws IOException, ProtocolViolationException {
 		logger.trace("Swarm {} {}:{}: PeerConnection recv sendPage {}",
 				Util.formatArchiveId(socket.swarm.config.getArchiveId()),
@@ -878,7 +942,7 @@ public class PeerConnection {
 					msg.msgId,
 					tag,
 					offset);
-			accumulator.addChunk((int) offset, chunkData, this);
+			accumulator.receiveChunk((int) offset, chunkData, this);
 		}
 	}
 	
@@ -928,6 +992,10 @@ public class PeerConnection {
 		queue.addPageTag(priority, shortTag);
 	}
 	
+	protected void sendPageChunks(int priority, ChunkRange range) throws IOException {
+		queue.addPageChunks(priority, range);
+	}
+	
 	protected void assertConnected() throws SocketClosedException {
 		if(socket.isClosed()) {
 			throw new SocketClosedException();
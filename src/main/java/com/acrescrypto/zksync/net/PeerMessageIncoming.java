@@ -63,6 +63,15 @@ public class PeerMessageIncoming extends PeerMessage {
 			}
 		}
 		
+		/** Block until at least length bytes are ready to read, or until EOF. */
+		public synchronized void waitForAvailable(int length) {
+			while(readBuf.remaining() < length && !eof) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {}
+			}
+		}
+		
 		public synchronized void requireEOF() throws ProtocolViolationException {
 			if(readBuf.remaining() > 0) throw new ProtocolViolationException();
 			waitForEOF();
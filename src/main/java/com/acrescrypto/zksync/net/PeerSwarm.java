@@ -3,6 +3,7 @@ package com.acrescrypto.zksync.net;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.SocketException;
 import java.util.ArrayList;
@@ -11,8 +12,12 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -33,6 +38,7 @@ import com.acrescrypto.zksync.fs.zkfs.ArchiveAccessor;
 import com.acrescrypto.zksync.fs.zkfs.RevisionTag;
 import com.acrescrypto.zksync.fs.zkfs.StorageTag;
 import com.acrescrypto.zksync.fs.zkfs.ZKArchiveConfig;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
 import com.acrescrypto.zksync.fs.zkfs.config.SubscriptionService.SubscriptionToken;
 import com.acrescrypto.zksync.net.Blacklist.BlacklistCallback;
 import com.acrescrypto.zksync.utility.BandwidthAllocator;
@@ -48,18 +54,24 @@ public class PeerSwarm implements BlacklistCallback {
 	public final static int DEFAULT_MAX_SOCKET_COUNT = 128;
 	public final static int DEFAULT_MAX_PEER_LIST_SIZE = 1024;
 	
+	/** Completed when a page arrives. Counts the waitForPage calls holding it, so the last one to give up can take it
+	 * out of pageWaits. */
+	protected static class PageWait extends CompletableFuture<Void> {
+		int waiters; // guarded by pageWaits.compute
+	}
+	
 	protected ArrayList<PeerConnection> connections = new ArrayList<PeerConnection>();
 	protected HashSet<PeerAdvertisement> knownAds = new HashSet<PeerAdvertisement>();
 	protected HashSet<PeerAdvertisement> connectedAds = new HashSet<PeerAdvertisement>();
 	protected ZKArchiveConfig config;
 	protected HashMap<Long,ChunkAccumulator> activeFiles = new HashMap<Long,ChunkAccumulator>();
-	protected HashMap<Long,Condition> pageWaits = new HashMap<Long,Condition>();
+	protected ConcurrentHashMap<Long,PageWait> pageWaits = new ConcurrentHashMap<>(); // completed when the page with this short tag arrives
 	protected HashMap<PeerAdvertisement,Long> adEmbargoes = new HashMap<PeerAdvertisement,Long>();
 	protected RequestPool pool;
 	protected GroupedThreadPool threadPool;
 	protected BandwidthMonitor bandwidthMonitorTx, bandwidthMonitorRx;
+	protected BandwidthAllocator bandwidthAllocatorTx, bandwidthAllocatorRx; // this archive's share of the master's
 	
-	protected Lock pageWaitLock = new ReentrantLock();
 	protected Lock connectionWaitLock = new ReentrantLock();
 	protected Condition connectionWaitCondition = connectionWaitLock.newCondition();
 	protected Object pageNotifier = new Object();
@@ -84,6 +96,7 @@ public class PeerSwarm implements BlacklistCallback {
 		this.bandwidthMonitorRx = new BandwidthMonitor(100, 3000);
 		this.bandwidthMonitorTx.addParent(config.getMaster().getBandwidthMonitorTx());
 		this.bandwidthMonitorRx.addParent(config.getMaster().getBandwidthMonitorRx());
+		setupBandwidthAllocators();
 		
 		if(swarmEnabled()) connectionThread();
 		
@@ -99,6 +112,18 @@ public class PeerSwarm implements BlacklistCallback {
 		}));
 	}
 	
+	/** Hang nodes for this archive off of the master's allocators, with a node per peer beneath them. */
+	protected void setupBandwidthAllocators() {
+		ConfigFile globalConfig = config.getMaster().getGlobalConfig();
+		this.bandwidthAllocatorTx = config.getMaster().getBandwidthAllocatorTx().child();
+		this.bandwidthAllocatorRx = config.getMaster().getBandwidthAllocatorRx().child();
+		this.bandwidthAllocatorTx.setChildBytesPerSecond(globalConfig.getLong("net.limits.peer.tx"));
+		this.bandwidthAllocatorRx.setChildBytesPerSecond(globalConfig.getLong("net.limits.peer.rx"));
+		
+		subscriptions.add(globalConfig.subscribe("net.limits.peer.tx").asLong((v)->bandwidthAllocatorTx.setChildBytesPerSecond(v)));
+		subscriptions.add(globalConfig.subscribe("net.limits.peer.rx").asLong((v)->bandwidthAllocatorRx.setChildBytesPerSecond(v)));
+	}
+	
 	public boolean swarmEnabled() {
 		return config.getMaster().getGlobalConfig().getBool("net.swarm.enabled");
 	}
@@ -123,16 +148,12 @@ public class PeerSwarm implements BlacklistCallback {
 		if(pool != null) pool.stop();
 		
 		disconnectAll();
+		if(bandwidthAllocatorTx != null) bandwidthAllocatorTx.remove();
+		if(bandwidthAllocatorRx != null) bandwidthAllocatorRx.remove();
 		
-		synchronized(this) {
-			pageWaitLock.lock();
-			try {
-				for(Condition cond : pageWaits.values()) {
-					cond.signalAll();
-				}
-			} finally {
-				pageWaitLock.unlock();
-			}
+		for(Long shortTag : pageWaits.keySet()) {
+			PageWait arrival = pageWaits.remove(shortTag);
+			if(arrival != null) arrival.complete(null);
 		}
 		
 		this.config.getAccessor().getMaster().getBlacklist().removeCallback(this);
@@ -475,28 +496,29 @@ public class PeerSwarm implements BlacklistCallback {
 			}
 			
 			requestTag(priority, tag);
-			try {
-				if(!pageWaitLock.tryLock(remainingTimeoutMs, TimeUnit.MILLISECONDS)) {
-					throw new SwarmTimeoutException("page " + tag);
-				}
-			} catch (InterruptedException e1) {
-				throw new SwarmTimeoutException("page " + tag);
-			}
 			
-			remainingTimeoutMs = deadline - System.currentTimeMillis();
+			// register before rechecking, so receivedPage either finds our future or has already added the tag
+			PageWait arrival = pageWaits.compute(shortTag, (t, existing)->{
+				PageWait wait = existing != null ? existing : new PageWait();
+				wait.waiters++;
+				return wait;
+			});
+			
 			try {
-				if(!pageWaits.containsKey(shortTag)) {
-					pageWaits.put(shortTag, pageWaitLock.newCondition());
-				}
-				
-				try {
-					if(waitingForPage(tag)) {
-						long maxWaitMs = Math.min(waitPageRetryTimeMs, remainingTimeoutMs);
-						pageWaits.get(shortTag).await(maxWaitMs, TimeUnit.MILLISECONDS);
-					}
-				} catch (InterruptedException e) {}
-			} finally {		
-				pageWaitLock.unlock();
+				if(!waitingForPage(tag)) break;
+				arrival.get(Math.min(waitPageRetryTimeMs, remainingTimeoutMs), TimeUnit.MILLISECONDS);
+			} catch(TimeoutException exc) { // time to re-request the page
+			} catch(InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for page " + tag);
+			} catch(ExecutionException exc) {
+				throw new IOException(exc.getCause());
+			} finally {
+				// last one out takes the future with it, unless receivedPage already has
+				pageWaits.computeIfPresent(shortTag, (t, wait)->{
+					if(wait != arrival) return wait;
+					return --wait.waiters > 0 ? wait : null;
+				});
 			}
 		}
 	}
@@ -513,11 +535,14 @@ public class PeerSwarm implements BlacklistCallback {
 		}
 	}
 	
+	public int numChunksPerPage() {
+		return (int) Math.ceil((double) config.getPageSize() / PeerMessage.FILE_CHUNK_SIZE);
+	}
+	
 	public synchronized ChunkAccumulator accumulatorForTag(StorageTag tag) throws IOException {
 		long shortTag = tag.shortTag();
 		if(!activeFiles.containsKey(shortTag)) {
-			int numChunksExpected = (int) Math.ceil((double) config.getPageSize() / PeerMessage.FILE_CHUNK_SIZE);
-			ChunkAccumulator fileHandle = new ChunkAccumulator(this, tag, numChunksExpected);
+			ChunkAccumulator fileHandle = new ChunkAccumulator(this, tag, numChunksPerPage());
 			
 			activeFiles.put(shortTag, fileHandle);
 			return fileHandle;
@@ -526,22 +551,24 @@ public class PeerSwarm implements BlacklistCallback {
 		return activeFiles.get(shortTag);
 	}
 
+	/** Returns the accumulator for a page currently being received, or null if no chunks of it have arrived. */
+	public synchronized ChunkAccumulator existingAccumulatorForTag(long shortTag) {
+		return activeFiles.get(shortTag);
+	}
+
 	protected synchronized void receivedPage(StorageTag tag) {
 		long shortTag = tag.shortTagPreserialized();
 		activeFiles.remove(shortTag);
+		if(pool != null) {
+			pool.receivedPage(shortTag);
+		}
 		
 		if(config.getArchive() != null) {
 			config.getArchive().addPageTag(tag);
 		}
 
-		pageWaitLock.lock();
-		try {
-			if(pageWaits.containsKey(shortTag)) {
-				pageWaits.get(shortTag).signalAll();
-			}
-		} finally {
-			pageWaitLock.unlock();
-		}
+		PageWait arrival = pageWaits.remove(shortTag);
+		if(arrival != null) arrival.complete(null);
 		
 		synchronized(pageNotifier) {
 			pageNotifier.notifyAll();
@@ -725,11 +752,13 @@ public class PeerSwarm implements BlacklistCallback {
 	}
 
 	public BandwidthAllocator getBandwidthAllocatorRx() {
-		return config.getMaster().getBandwidthAllocatorRx();
+		if(bandwidthAllocatorRx == null) return config.getMaster().getBandwidthAllocatorRx();
+		return bandwidthAllocatorRx;
 	}
 
 	public BandwidthAllocator getBandwidthAllocatorTx() {
-		return config.getMaster().getBandwidthAllocatorTx();
+		if(bandwidthAllocatorTx == null) return config.getMaster().getBandwidthAllocatorTx();
+		return bandwidthAllocatorTx;
 	}
 
 	public BandwidthMonitor getBandwidthMonitorRx() {
@@ -3,6 +3,7 @@ package com.acrescrypto.zksync.net;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -211,18 +212,21 @@ public class RequestPool {
 	}
 	
 	boolean requestingEverything, stopped, paused;
+	protected PageRequestScheduler pageScheduler;
 	Logger logger = LoggerFactory.getLogger(RequestPool.class);
 	
 	protected RequestPool() {}
 	
 	public RequestPool(ZKArchiveConfig config) {
 		this.config = config;
+		this.pageScheduler = new PageRequestScheduler(this);
 		
 		new Thread(config.getThreadGroup(), ()->pruneThread()).start();
 	}
 	
 	public synchronized void stop() {
 		stopped = true;
+		if(pageScheduler != null) pageScheduler.close();
 		this.notifyAll();
 	}
 	
@@ -349,21 +353,39 @@ public class RequestPool {
 	public synchronized void addPageTag(int priority, long shortTag) {
 		requestedPageTags.add(priority, shortTag);
 		dirty = true;
-		
-		for(PeerConnection connection : config.getSwarm().getConnections()) {
-			connection.requestPageTag(priority, shortTag);
+		if(pageScheduler == null) {
+			// no scheduler to batch through (test pools), so ask everyone directly
+			for(PeerConnection connection : config.getSwarm().getConnections()) {
+				connection.requestPageTag(priority, shortTag);
+			}
+			
+			return;
 		}
+		
+		pageScheduler.schedule(priority, shortTag);
 	}
 	
 	public synchronized void cancelPageTag(long shortTag) {
 		requestedPageTags.remove(shortTag);
 		dirty = true;
+		if(pageScheduler != null && !pageScheduler.cancel(shortTag)) return; // never left the local batch, so no peer needs telling
 		
 		for(PeerConnection connection : config.getSwarm().getConnections()) {
 			connection.requestPageTag(PageQueue.CANCEL_PRIORITY, shortTag);
 		}
 	}
 	
+	/** Called by PeerSwarm when a requested page has arrived and validated. */
+	public void receivedPage(long shortTag) {
+		if(pageScheduler != null) pageScheduler.receivedPage(shortTag);
+	}
+	
+	/** Called when a peer announces page tags it holds, so that requests we had no source for can be directed
+	 * to it. */
+	public void receivedTagAnnouncement(PeerConnection conn, Collection<Long> shortTags) {
+		if(pageScheduler != null) pageScheduler.announcedTags(conn, shortTags);
+	}
+	
 	public int priorityForPageTag(long shortTag) {
 		try {
 			return requestedPageTags.lookup(shortTag).priority;
@@ -456,7 +478,10 @@ public class RequestPool {
 		
 		HashMap<Integer,LinkedList<Long>> pageMap = requestedPageTags.priorityMap();
 		for(int priority : pageMap.keySet()) {
-			conn.requestPageTags(priority, pageMap.get(priority));
+			LinkedList<Long> tags = pageMap.get(priority);
+			conn.requestPageTags(priority, pageScheduler != null
+					? pageScheduler.tagsForNewConnection(conn, tags)
+					: tags);
 		}
 		
 		try {
@@ -526,6 +551,8 @@ public class RequestPool {
 				return false;
 			}
 		});
+		
+		if(pageScheduler != null) pageScheduler.prune();
 	}
 	
 	protected void pruneRefTags() throws IOException {
@@ -661,4 +688,8 @@ public class RequestPool {
 	public boolean isPaused() {
 		return paused;
 	}
+	
+	public PageRequestScheduler getPageScheduler() {
+		return pageScheduler;
+	}
 }
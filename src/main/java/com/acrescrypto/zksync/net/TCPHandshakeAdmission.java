@@ -0,0 +1,97 @@
+package com.acrescrypto.zksync.net;
+
+import java.util.HashMap;
+
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Decides whether an inbound TCP connection may proceed to a handshake, before any crypto is spent on it.
+ *
+ * Enforces a global cap on handshakes in flight (queued or running), a cap on handshakes in flight from any one
+ * source address, and a per-address limit on connection attempts per second. Every admitted connection must be
+ * released exactly once when its handshake finishes, successfully or not.
+ */
+public class TCPHandshakeAdmission {
+	public final static int REJECT_NONE          = 0;
+	public final static int REJECT_GLOBAL_LIMIT  = 1;
+	public final static int REJECT_ADDRESS_LIMIT = 2;
+	public final static int REJECT_RATE_LIMIT    = 3;
+
+	protected class SourceState {
+		int  inFlight;
+		int  attemptsInWindow;
+		long windowStart;
+	}
+
+	protected final static long RATE_WINDOW_MS = 1000;
+
+	protected ConfigFile                  config;
+	protected HashMap<String,SourceState> sources = new HashMap<>();
+	protected int                         inFlight;
+	protected long                        lastPrune;
+
+	public TCPHandshakeAdmission(ConfigFile config) {
+		this.config = config;
+	}
+
+	/** Attempt to admit a connection from the given address. Returns REJECT_NONE if the connection was admitted
+	 * (and must later be released), or the reason it was rejected. */
+	public synchronized int admit(String address) {
+		long        now   = Util.currentTimeMillis();
+		SourceState state = sources.get(address);
+		if(state == null) {
+			pruneIfNeeded(now);
+			state = new SourceState();
+			sources.put(address, state);
+		}
+
+		if(now - state.windowStart >= RATE_WINDOW_MS) {
+			state.windowStart      = now;
+			state.attemptsInWindow = 0;
+		}
+
+		state.attemptsInWindow++;
+		if(state.attemptsInWindow > config.getInt("net.swarm.handshakeAttemptsPerAddressPerSecond")) {
+			return REJECT_RATE_LIMIT;
+		}
+
+		if(inFlight >= config.getInt("net.swarm.maxPendingHandshakes")) {
+			return REJECT_GLOBAL_LIMIT;
+		}
+
+		if(state.inFlight >= config.getInt("net.swarm.maxHandshakesPerAddress")) {
+			return REJECT_ADDRESS_LIMIT;
+		}
+
+		state.inFlight++;
+		inFlight++;
+		return REJECT_NONE;
+	}
+
+	public synchronized void release(String address) {
+		SourceState state = sources.get(address);
+		if(state == null || state.inFlight == 0) return;
+
+		state.inFlight--;
+		inFlight--;
+	}
+
+	public synchronized int inFlight() {
+		return inFlight;
+	}
+
+	public synchronized int inFlight(String address) {
+		SourceState state = sources.get(address);
+		return state == null ? 0 : state.inFlight;
+	}
+
+	/* Forget idle addresses once the table gets large, so a scan from many source addresses can't grow it without
+	 * bound. Addresses with handshakes in flight are kept; there are at most maxPendingHandshakes of those. Pruning
+	 * happens at most once per rate window to keep admit() cheap during a scan. */
+	protected void pruneIfNeeded(long now) {
+		if(sources.size() < 2*config.getInt("net.swarm.maxPendingHandshakes")) return;
+		if(now - lastPrune < RATE_WINDOW_MS) return;
+		lastPrune = now;
+		sources.values().removeIf((state)->state.inFlight == 0 && now - state.windowStart >= RATE_WINDOW_MS);
+	}
+}
@@ -0,0 +1,83 @@
+package com.acrescrypto.zksync.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Advertisement listeners for a TCPPeerSocketListener, indexed for inbound handshake matching.
+ *
+ * An initiator proves which archive it wants with idHash = H(hsHash || archiveId). hsHash is unique to each
+ * handshake, so idHash cannot be looked up directly; the responder has to hash each candidate archive ID. To keep
+ * that from scaling with the number of hosted archives, initiators also send a short idTag derived from the
+ * responder's static key and the archive ID. The responder precomputes the tag for each archive it hosts and only
+ * tries the archives that share the initiator's tag. Initiators that don't send a tag fall back to a full scan.
+ *
+ * Tags are keyed by the responder's static key, so they can't be correlated across responders, and they reveal
+ * nothing to the responder that idHash does not.
+ */
+public class TCPPeerAdvertisementIndex {
+	public final static int    ID_TAG_BITS  = 16;
+	public final static int    ID_TAG_NONE  = -1;
+	public final static String ID_TAG_LABEL = "easysafe-tcp-idtag";
+
+	protected HashMap<Integer,ArrayList<TCPPeerAdvertisementListener>> byTag   = new HashMap<>();
+	protected IdentityHashMap<PeerSwarm,TCPPeerAdvertisementListener>  bySwarm = new IdentityHashMap<>();
+
+	/** Tag an initiator sends to the responder with the given static key when requesting the given archive. */
+	public static int idTag(CryptoSupport crypto, byte[] responderStaticKey, byte[] archiveId) {
+		byte[] hash = crypto.hash(Util.concat(ID_TAG_LABEL.getBytes(), responderStaticKey, archiveId));
+		return ((hash[0] & 0xff) << 8 | (hash[1] & 0xff)) & ((1 << ID_TAG_BITS) - 1);
+	}
+
+	public synchronized void add(TCPPeerAdvertisementListener listener) {
+		remove(listener.swarm);
+		bySwarm.put(listener.swarm, listener);
+		byTag.computeIfAbsent(listener.idTag, (tag)->new ArrayList<>(1)).add(listener);
+	}
+
+	public synchronized void remove(PeerSwarm swarm) {
+		TCPPeerAdvertisementListener listener = bySwarm.remove(swarm);
+		if(listener == null) return;
+
+		ArrayList<TCPPeerAdvertisementListener> bucket = byTag.get(listener.idTag);
+		bucket.remove(listener);
+		if(bucket.isEmpty()) byTag.remove(listener.idTag);
+	}
+
+	public synchronized TCPPeerAdvertisementListener listenerForSwarm(PeerSwarm swarm) {
+		return bySwarm.get(swarm);
+	}
+
+	/** Find the listener whose archive matches idHash for the handshake hash hsHash, or null if there is none. If
+	 * idTag is ID_TAG_NONE, every listener is tried. */
+	public synchronized TCPPeerAdvertisementListener match(byte[] hsHash, byte[] idHash, int idTag) {
+		Iterable<TCPPeerAdvertisementListener> candidates;
+		if(idTag == ID_TAG_NONE) {
+			candidates = bySwarm.values();
+		} else {
+			candidates = byTag.get(idTag);
+			if(candidates == null) return null;
+		}
+
+		for(TCPPeerAdvertisementListener listener : candidates) {
+			if(listener.matchesIdHash(hsHash, idHash)) return listener;
+		}
+
+		return null;
+	}
+
+	public synchronized ArrayList<TCPPeerAdvertisementListener> listeners() {
+		return new ArrayList<>(bySwarm.values());
+	}
+
+	public synchronized boolean isEmpty() {
+		return bySwarm.isEmpty();
+	}
+
+	public synchronized int size() {
+		return bySwarm.size();
+	}
+}
@@ -15,22 +15,34 @@ public class TCPPeerAdvertisementListener {
 	protected Logger logger = LoggerFactory.getLogger(TCPPeerAdvertisementListener.class);
 	protected TCPPeerSocketListener listener;
 	protected int version;
+	protected byte[] archiveId;
+	protected int idTag;
+	
+	protected TCPPeerAdvertisementListener() {}
 	
 	public TCPPeerAdvertisementListener(PeerSwarm swarm, TCPPeerSocketListener listener) {
 		this.swarm = swarm;
 		this.crypto = swarm.config.getAccessor().getMaster().getCrypto();
 		this.listener = listener;
 		this.version = 0;
+		this.archiveId = swarm.getConfig().getArchiveId();
+		this.idTag = TCPPeerAdvertisementIndex.idTag(crypto,
+				listener.getIdentityKey().publicKey().getBytes(),
+				archiveId);
 		if(listener.isListening()) {
 			announce();
 		}
 	}
 	
 	public boolean matchesIdHash(byte[] hsHash, byte[] idHash) {
-		byte[] thisIdHash = crypto.hash(Util.concat(hsHash, swarm.getConfig().getArchiveId()));
+		byte[] thisIdHash = crypto.hash(Util.concat(hsHash, archiveId));
 		return Arrays.equals(thisIdHash, idHash);
 	}
 	
+	public int getIdTag() {
+		return idTag;
+	}
+	
 	public TCPPeerAdvertisement localAd() throws UnconnectableAdvertisementException {
 		byte[] encryptedArchiveId = swarm.config.getEncryptedArchiveId(swarm.getPublicIdentityKey().getBytes());
 		
@@ -25,7 +25,9 @@ import com.acrescrypto.zksync.net.noise.CipherState;
 import com.acrescrypto.zksync.net.noise.HandshakeState;
 import com.acrescrypto.zksync.net.noise.SipObfuscator;
 import com.acrescrypto.zksync.net.noise.VariableLengthHandshakeState;
+import com.acrescrypto.zksync.utility.MetricsRegistry;
 import com.acrescrypto.zksync.utility.RateLimitedOutputStream;
+import com.acrescrypto.zksync.utility.BandwidthAllocator;
 import com.acrescrypto.zksync.utility.BandwidthMonitor;
 import com.acrescrypto.zksync.utility.RateLimitedInputStream;
 import com.acrescrypto.zksync.utility.Util;
@@ -50,6 +52,8 @@ public class TCPPeerSocket extends PeerSocket {
 	protected Socket socket;
 	protected RateLimitedOutputStream out;
 	protected RateLimitedInputStream in;
+	protected BandwidthAllocator allocatorTx, allocatorRx; // this peer's share of the swarm's
+	protected MetricsRegistry.Metric bytesTxMetric, bytesRxMetric;
 	protected boolean isLocalRoleClient;
 	protected CryptoSupport crypto;
 	protected Key localChainKey, remoteChainKey;
@@ -188,7 +192,10 @@ public class TCPPeerSocket extends PeerSocket {
 					byte[] id = crypto.hash(Util.concat(handshake.getHash(), swarm.config.getArchiveId()));
 					byte[] proof = swarm.getConfig().getAccessor().temporalProof(0, 0, handshake.getHash());
 					
+					int idTag = TCPPeerAdvertisementIndex.idTag(crypto, ad.getPubKey().getBytes(), swarm.config.getArchiveId());
+					
 					builder.add("idHash", Util.bytesToHex(id))
+					       .add("idTag", idTag)
 					       .add("proof", Util.bytesToHex(proof))
 					       .add("port", swarm.getConfig().getMaster().getTCPListener().getPort());
 				}
@@ -327,6 +334,11 @@ public class TCPPeerSocket extends PeerSocket {
 		if(connection != null) {
 			connection.close();
 		}
+
+		if(allocatorTx != null) allocatorTx.remove();
+		if(allocatorRx != null) allocatorRx.remove();
+		MetricsRegistry.sharedInstance().remove(bytesTxMetric);
+		MetricsRegistry.sharedInstance().remove(bytesRxMetric);
 	}
 
 	@Override
@@ -380,12 +392,23 @@ public class TCPPeerSocket extends PeerSocket {
 		socket.setKeepAlive(true);
 		socket.setTcpNoDelay(true);
 		
+		this.allocatorTx = swarm.getBandwidthAllocatorTx().child();
+		this.allocatorRx = swarm.getBandwidthAllocatorRx().child();
 		this.out = new RateLimitedOutputStream(socket.getOutputStream(),
-				swarm.getBandwidthAllocatorTx(),
+				allocatorTx,
 				swarm.getBandwidthMonitorTx());
 		this.in = new RateLimitedInputStream(socket.getInputStream(),
-				swarm.getBandwidthAllocatorRx(),
+				allocatorRx,
 				swarm.getBandwidthMonitorRx());
+		
+		String archiveId = Util.formatArchiveId(swarm.config.getArchiveId()), peer = address + ":" + socket.getPort();
+		MetricsRegistry registry = MetricsRegistry.sharedInstance();
+		this.bytesTxMetric = registry.counterFunction("zksync_peer_bytes_total", "Bytes exchanged with each connected peer",
+				()->out.getMonitor().getLifetimeBytes(),
+				"archive", archiveId, "peer", peer, "direction", "tx");
+		this.bytesRxMetric = registry.counterFunction("zksync_peer_bytes_total", "Bytes exchanged with each connected peer",
+				()->in.getMonitor().getLifetimeBytes(),
+				"archive", archiveId, "peer", peer, "direction", "rx");
 	}
 
 	protected void makeThreads() {
@@ -7,6 +7,7 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -14,6 +15,7 @@ import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.apache.commons.lang3.mutable.MutableInt;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +30,7 @@ import com.acrescrypto.zksync.net.noise.CipherState;
 import com.acrescrypto.zksync.net.noise.SipObfuscator;
 import com.acrescrypto.zksync.net.noise.VariableLengthHandshakeState;
 import com.acrescrypto.zksync.utility.BandwidthMonitor;
+import com.acrescrypto.zksync.utility.GroupedThreadPool;
 import com.acrescrypto.zksync.utility.RateLimitedInputStream;
 import com.acrescrypto.zksync.utility.RateLimitedOutputStream;
 import com.acrescrypto.zksync.utility.Util;
@@ -45,10 +48,12 @@ public class TCPPeerSocketListener {
 	protected ZKMaster master;
 	protected Thread thread;
 	protected Logger logger = LoggerFactory.getLogger(TCPPeerSocketListener.class);
-	protected LinkedList<TCPPeerAdvertisementListener> adListeners;
-	protected boolean closed, established;
+	protected TCPPeerAdvertisementIndex adListeners;
+	protected boolean closed;
 	protected PrivateDHKey identityKey;
 	protected LinkedList<SubscriptionToken<?>> subscriptions = new LinkedList<>();
+	protected TCPHandshakeAdmission admission;
+	protected GroupedThreadPool handshakePool;
 	
 	protected BandwidthMonitor bandwidthMonitorTx, bandwidthMonitorRx;
 	
@@ -64,10 +69,11 @@ public class TCPPeerSocketListener {
 		this.crypto = master.getCrypto();
 		this.blacklist = master.getBlacklist();
 		this.master = master;
-		this.adListeners = new LinkedList<>();
+		this.adListeners = new TCPPeerAdvertisementIndex();
 		this.identityKey = crypto.makePrivateDHKey(); // TODO Noise: cache static key to disk
 		this.bandwidthMonitorRx = new BandwidthMonitor(master.getBandwidthMonitorRx());
 		this.bandwidthMonitorTx = new BandwidthMonitor(master.getBandwidthMonitorTx());
+		this.admission = new TCPHandshakeAdmission(master.getGlobalConfig());
 		
 		logger.info("Swarm - -: TCP listener public key: {}",
 				Util.formatPubKey(identityKey.publicKey()));
@@ -104,8 +110,14 @@ public class TCPPeerSocketListener {
 		}));
 	}
 	
-	protected void startListening() {
+	protected synchronized void startListening() {
 		closed = false;
+		if(handshakePool == null || handshakePool.isShutdown()) {
+			handshakePool = GroupedThreadPool.newFixedThreadPool(master.getThreadGroup(),
+					"TCPPeerSocketListener handshake",
+					master.getGlobalConfig().getInt("net.swarm.handshakeThreads"));
+		}
+		
 		this.thread = new Thread(master.getThreadGroup(), ()->listenThread() );
 		this.thread.start();
 	}
@@ -136,6 +148,12 @@ public class TCPPeerSocketListener {
 		}
 		subscriptions.clear();
 		
+		synchronized(this) {
+			if(handshakePool != null) {
+				handshakePool.shutdownNow();
+			}
+		}
+		
 		if(listenSocket != null) {
 			listenSocket.close();
 			if(master.getGlobalConfig().getBool("net.swarm.upnp")) {
@@ -144,22 +162,18 @@ public class TCPPeerSocketListener {
 		}
 	}
 	
-	public synchronized void advertise(PeerSwarm swarm) {
+	public void advertise(PeerSwarm swarm) {
 		adListeners.add(new TCPPeerAdvertisementListener(swarm, this));
 		swarm.config.getAccessor().forceAdvertisement();
 	}
 	
-	public synchronized void stopAdvertising(PeerSwarm swarm) {
+	public void stopAdvertising(PeerSwarm swarm) {
 		// TODO API: (test) stopAdvertising
-		adListeners.removeIf((listener)->listener.swarm == swarm);
+		adListeners.remove(swarm);
 	}
 	
-	public synchronized TCPPeerAdvertisementListener listenerForSwarm(PeerSwarm swarm) {
-		for(TCPPeerAdvertisementListener listener : adListeners) {
-			if(listener.swarm == swarm) return listener;
-		}
-		
-		return null;
+	public TCPPeerAdvertisementListener listenerForSwarm(PeerSwarm swarm) {
+		return adListeners.listenerForSwarm(swarm);
 	}
 	
 	protected void listenThread() {
@@ -195,15 +209,48 @@ public class TCPPeerSocketListener {
 	}
 	
 	protected void processIncomingPeer(Socket socket) throws IOException {
-		if(blacklist.contains(socket.getInetAddress().getHostAddress())) {
-			logger.info("Swarm - {}: Rejected connection from blacklisted peer", socket.getInetAddress().getHostAddress());
+		String address = socket.getInetAddress().getHostAddress();
+		if(blacklist.contains(address)) {
+			logger.info("Swarm - {}: Rejected connection from blacklisted peer", address);
 			socket.close();
 			return;
 		}
 		
-		logger.debug("Swarm - {}: Accepted TCP connection from peer",
-				socket.getInetAddress().getHostAddress());
-		new Thread(master.getThreadGroup(), ()->peerThread(socket) ).start();
+		int rejection = admission.admit(address);
+		if(rejection != TCPHandshakeAdmission.REJECT_NONE) {
+			logger.debug("Swarm - {}: Rejected TCP connection from peer before handshake, reason {}",
+					address,
+					rejection);
+			socket.close();
+			return;
+		}
+		
+		logger.debug("Swarm - {}: Accepted TCP connection from peer", address);
+		
+		/* The deadline starts at admission, so connections waiting for a handshake thread count against it too. */
+		MutableBoolean finished = new MutableBoolean();
+		Util.ensure(TCPPeerSocket.maxHandshakeTimeMillis, 10, ()->finished.booleanValue(), ()->{
+			logger.debug("Swarm - {}: Closing socket since handshake was not completed within {}ms",
+					address,
+					TCPPeerSocket.maxHandshakeTimeMillis);
+			socket.close();
+		});
+		
+		try {
+			handshakePool.submit(()->{
+				try {
+					peerThread(socket);
+				} finally {
+					finished.setTrue();
+					admission.release(address);
+				}
+			});
+		} catch(RejectedExecutionException exc) {
+			// listener closed while we were accepting
+			finished.setTrue();
+			admission.release(address);
+			socket.close();
+		}
 	}
 	
 	protected void openSocket() {
@@ -245,8 +292,8 @@ public class TCPPeerSocketListener {
 		}
 	}
 	
-	protected synchronized void announceListening() {
-		for(TCPPeerAdvertisementListener listener : adListeners) {
+	protected void announceListening() {
+		for(TCPPeerAdvertisementListener listener : adListeners.listeners()) {
 			listener.announce();
 		}
 	}
@@ -278,13 +325,6 @@ public class TCPPeerSocketListener {
 	}
 	
 	protected TCPPeerSocket performResponderHandshake(Socket peerSocketRaw) throws IOException, ProtocolViolationException {
-		Util.ensure(TCPPeerSocket.maxHandshakeTimeMillis, 10, ()->established, ()->{
-			logger.debug("Swarm - {}: Closing socket since handshake was not completed within {}ms",
-					peerSocketRaw.getInetAddress().getHostAddress(),
-					TCPPeerSocket.maxHandshakeTimeMillis);
-			peerSocketRaw.close();
-		});
-		
 		if(adListeners.isEmpty()) {
 			throw new ProtocolViolationException(); // not ready to accept peers
 		}
@@ -362,10 +402,11 @@ public class TCPPeerSocketListener {
 				JsonObject json = reader.readObject();
 				byte[] idHash = Util.hexToBytes(json.getJsonString("idHash").getString());
 				byte[] proof = Util.hexToBytes(json.getJsonString("proof").getString());
+				int idTag = json.getInt("idTag", TCPPeerAdvertisementIndex.ID_TAG_NONE);
 				portNum.setValue(json.getInt("port"));
 				
 				try {
-					ad.value = findMatchingAdvertisement(handshake.getPreHash(), idHash);
+					ad.value = findMatchingAdvertisement(handshake.getPreHash(), idHash, idTag);
 				} catch (ProtocolViolationException e) {
 					throw new SecurityException("no archive matching request");
 				}
@@ -381,7 +422,6 @@ public class TCPPeerSocketListener {
 		);
 		
 		CipherState[] states = handshake.handshake(in, out);
-		established = true;
 		
 		return new TCPPeerSocket(ad.value.swarm,
 				handshake.getRemoteStaticKey(),
@@ -397,12 +437,10 @@ public class TCPPeerSocketListener {
 		return identityKey;
 	}
 
-	protected synchronized TCPPeerAdvertisementListener findMatchingAdvertisement(byte[] hsHash, byte[] idHash) throws ProtocolViolationException {
-		for(TCPPeerAdvertisementListener ad : adListeners) {
-			if(ad.matchesIdHash(hsHash, idHash)) return ad;
-		}
-		
-		throw new ProtocolViolationException();
+	protected TCPPeerAdvertisementListener findMatchingAdvertisement(byte[] hsHash, byte[] idHash, int idTag) throws ProtocolViolationException {
+		TCPPeerAdvertisementListener ad = adListeners.match(hsHash, idHash, idTag);
+		if(ad == null) throw new ProtocolViolationException();
+		return ad;
 	}
 	
 	protected void assertState(boolean state) throws ProtocolViolationException {
@@ -414,6 +452,10 @@ public class TCPPeerSocketListener {
 		return listenSocket != null && !closed;
 	}
 	
+	public TCPHandshakeAdmission getAdmission() {
+		return admission;
+	}
+	
 	public BandwidthMonitor getBandwidthMonitorRx() {
 		return bandwidthMonitorRx;
 	}
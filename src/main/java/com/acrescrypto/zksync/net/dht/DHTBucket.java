@@ -1,5 +1,6 @@
 package com.acrescrypto.zksync.net.dht;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
@@ -12,12 +13,14 @@ public class DHTBucket implements Comparable<DHTBucket> {
 	protected long               lastChanged = -1;
 	protected DHTID              min,
 	                             max;
+	protected int                spanBits; // bucket covers [min, min + 2^spanBits), or -1 if not so aligned
 	
 	public DHTBucket(DHTRoutingTable routingTable, DHTID min, DHTID max) {
 		this.routingTable = routingTable;
 		this.min          = min;
 		this.max          = max;
 		this.peers        = new ArrayList<DHTPeer>();
+		this.spanBits     = calculateSpanBits();
 	}
 	
 	public int maxCapacity() {
@@ -72,6 +75,7 @@ public class DHTBucket implements Comparable<DHTBucket> {
 		this.peers                     = new ArrayList<>(maxCapacity());
 		this.min                       = myMin;
 		this.max                       = myMax;
+		this.spanBits                  = calculateSpanBits();
 		
 		for(DHTPeer peer : oldPeers) {
 			if(includes(peer.getId())) {
@@ -105,6 +109,23 @@ public class DHTBucket implements Comparable<DHTBucket> {
 		markFresh(lastSeen);
 	}
 	
+	/** Number of low-order bits that vary between the IDs this bucket can include. Buckets are created by halving the
+	 * keyspace, so each spans a power-of-two-sized range aligned to its size, and every ID in it shares min's
+	 * remaining high-order bits. The XOR distance from some ID to min, with this many low bits cleared, is then a lower
+	 * bound on its distance to anything in the bucket. */
+	public int distanceLowBits() {
+		return spanBits < 0 ? Integer.MAX_VALUE : spanBits; // unaligned buckets get no bound beyond 0
+	}
+	
+	protected int calculateSpanBits() {
+		BigInteger span = max.id().subtract(min.id());
+		if(span.bitCount() != 1) return -1;
+		
+		int bits = span.bitLength() - 1;
+		if(min.id().getLowestSetBit() < bits && min.id().signum() != 0) return -1;
+		return bits;
+	}
+	
 	// returns a random ID that would be included in this bucket
 	public DHTID randomIdInRange() {
 		return max.randomLessThan(min);
@@ -2,6 +2,7 @@ package com.acrescrypto.zksync.net.dht;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedList;
 
@@ -19,6 +20,8 @@ import com.acrescrypto.zksync.fs.zkfs.config.SubscriptionService.SubscriptionTok
 import com.acrescrypto.zksync.net.Blacklist;
 import com.acrescrypto.zksync.utility.BandwidthMonitor;
 import com.acrescrypto.zksync.utility.GroupedThreadPool;
+import com.acrescrypto.zksync.utility.HashCache;
+import com.acrescrypto.zksync.utility.StateSignal;
 import com.acrescrypto.zksync.utility.Util;
 
 public class DHTClient {
@@ -71,6 +74,10 @@ public class DHTClient {
     protected DHTStatusCallback                statusCallback;
     protected LinkedList<SubscriptionToken<?>> subscriptions     = new LinkedList<>();
 
+    protected StateSignal                      stateSignal       = new StateSignal(); // signalled on status, routing table and initialization changes
+    protected HashCache<ByteBuffer,byte[]>     staticSecretCache; // remote static pubkey -> PrivateDHKey.sharedSecret with our static key
+    protected PrivateDHKey                     staticSecretCacheKey; // private key used to populate staticSecretCache
+
     public DHTClient(Key storageKey, ZKMaster master) {
         this.master            = master;
         this.storageKey        = storageKey;
@@ -173,6 +180,14 @@ public class DHTClient {
         }));
 
         subscriptions.add(config.subscribe("net.dht.bootstrap.peerfile").asString( (host) -> bootstrap() ));
+
+        subscriptions.add(config.subscribe("net.dht.staticSecretCacheSize").asInt((size)->{
+            try {
+                staticSecretCache().setCapacity(size);
+            } catch(IOException exc) {
+                logger.error("DHT -: Unable to resize static secret cache", exc);
+            }
+        }));
     }
 
     protected void start() {
@@ -231,6 +246,7 @@ public class DHTClient {
         threadPool.shutdownNow();
         routingTable.close();
         closeSubscriptions();
+        stateSignal.cancel();
     }
 
     public void purge() throws IOException {
@@ -257,6 +273,11 @@ public class DHTClient {
         return closed;
     }
 
+    /** Signalled whenever the client's status, routing table or initialization state changes; cancelled on close. */
+    public StateSignal getStateSignal() {
+        return stateSignal;
+    }
+
     public boolean isPaused() {
         return socketManager.isPaused();
     }
@@ -396,11 +417,55 @@ public class DHTClient {
         this.id         = DHTID.withKey(privateKey.publicKey());
     }
 
+    /** Shared secret between our static key and a remote peer's static key. This is fixed for any given peer, so
+     * rather than repeat the X25519 and HKDF operations for every datagram we send or receive, we keep a bounded
+     * cache of recently-used secrets. Returns a copy, so callers may zero it when they are done.
+     *
+     * Misses are computed outside the cache's lock, so that datagram processing workers meeting new peers at the
+     * same time don't wait on each other's key agreements. */
+    protected byte[] staticSharedSecret(PublicDHKey remoteStaticPubkey) {
+        HashCache<ByteBuffer,byte[]> cache = staticSecretCache();
+        ByteBuffer key = ByteBuffer.wrap(remoteStaticPubkey.getBytes().clone());
+        try {
+            synchronized(cache) {
+                if(cache.hasCached(key)) return cache.get(key).clone();
+            }
+
+            byte[] secret = privateKey.sharedSecret(remoteStaticPubkey);
+            synchronized(cache) {
+                if(cache.hasCached(key)) {
+                    Util.zero(secret);
+                    return cache.get(key).clone();
+                }
+
+                return cache.add(key, secret).clone();
+            }
+        } catch(IOException exc) {
+            // the lookup doesn't do any I/O, so this shouldn't happen
+            return privateKey.sharedSecret(remoteStaticPubkey);
+        }
+    }
+
+    protected synchronized HashCache<ByteBuffer,byte[]> staticSecretCache() {
+        if(staticSecretCache != null && staticSecretCacheKey == privateKey) {
+            return staticSecretCache;
+        }
+
+        PrivateDHKey key     = privateKey;
+        staticSecretCacheKey = key;
+        staticSecretCache    = new HashCache<ByteBuffer,byte[]>(
+                master.getGlobalConfig().getInt("net.dht.staticSecretCacheSize"),
+                (pubKeyBytes)->key.sharedSecret(crypto.makePublicDHKey(pubKeyBytes.array())),
+                (pubKeyBytes, secret)->Util.zero(secret)).instrument("dhtStaticSecrets");
+        return staticSecretCache;
+    }
+
     protected FS getStorage() {
         return master.getStorage();
     }
 
     protected synchronized void updateStatus(int newStatus) {
+        stateSignal.signal(); // listening state can change without a change in status
         if(lastStatus == newStatus) return;
         logger.debug("DHT -: status now {}, was {}, table size {}",
                 newStatus,
@@ -40,6 +40,7 @@ public class DHTClientSerializer {
 	public void purge() throws IOException {
 		unlinkIfExists(path());
 		unlinkIfExists(client.getRecordStore().path());
+		unlinkIfExists(client.getRecordStore().logPath());
 		unlinkIfExists(client.getRoutingTable().path());
 	}
 	
@@ -0,0 +1,169 @@
+package com.acrescrypto.zksync.net.dht;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.acrescrypto.zksync.utility.GroupedThreadPool;
+
+/** Decrypts and dispatches received DHT datagrams on a worker pool, so that the socket listener only has to receive.
+ *
+ * Datagrams are queued by sender address and port. A sender's datagrams are handled by at most one worker at a time,
+ * in the order they arrived, since responses and the requests they answer have to be matched up in order; datagrams
+ * from different senders are handled in parallel. Workers take up to a batch of datagrams from one sender at a time.
+ * The queue is bounded, and datagrams arriving while it is full are dropped, just as the OS would drop them if we
+ * weren't keeping up with the socket.
+ */
+public class DHTDatagramProcessor {
+	protected class Datagram {
+		String     senderAddress;
+		int        senderPort;
+		ByteBuffer data;
+
+		Datagram(String senderAddress, int senderPort, ByteBuffer data) {
+			this.senderAddress = senderAddress;
+			this.senderPort    = senderPort;
+			this.data          = data;
+		}
+	}
+
+	protected DHTClient                                  client;
+	protected GroupedThreadPool                          pool;
+	protected LinkedHashMap<String,LinkedList<Datagram>> pending = new LinkedHashMap<>(); // sender -> datagrams, oldest sender first
+	protected HashSet<String>                            busy    = new HashSet<>(); // senders a worker is currently handling
+	protected int                                        queued;
+	protected boolean                                    closed;
+	protected AtomicLong                                 numProcessed = new AtomicLong(),
+	                                                     numBatches   = new AtomicLong(),
+	                                                     numDropped   = new AtomicLong();
+	private Logger logger = LoggerFactory.getLogger(DHTDatagramProcessor.class);
+
+	public DHTDatagramProcessor(DHTClient client) {
+		int threads = client.getMaster().getGlobalConfig().getInt("net.dht.processingThreads");
+		if(threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+
+		this.client = client;
+		this.pool   = GroupedThreadPool.newFixedThreadPool(client.getThreadGroup(), "DHT datagram processor", threads);
+	}
+
+	/** Queue a datagram to be processed. Returns false if it was dropped because the queue is full or we're closed. */
+	public boolean submit(String senderAddress, int senderPort, ByteBuffer data) {
+		String sender = senderAddress + ":" + senderPort;
+		synchronized(this) {
+			if(closed || queued >= client.getMaster().getGlobalConfig().getInt("net.dht.processingQueueSize")) {
+				numDropped.incrementAndGet();
+				return false;
+			}
+
+			pending.computeIfAbsent(sender, (s)->new LinkedList<>()).add(new Datagram(senderAddress, senderPort, data));
+			queued++;
+		}
+
+		return schedule();
+	}
+
+	public synchronized int queued() {
+		return queued;
+	}
+
+	public long getNumProcessed() {
+		return numProcessed.get();
+	}
+
+	public long getNumBatches() {
+		return numBatches.get();
+	}
+
+	public long getNumDropped() {
+		return numDropped.get();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public void close() {
+		synchronized(this) {
+			closed = true;
+			pending.clear();
+			queued = 0;
+		}
+
+		pool.shutdownNow();
+	}
+
+	protected boolean schedule() {
+		try {
+			pool.submit(()->processBatch());
+			return true;
+		} catch(RejectedExecutionException exc) {
+			return false; // closed while we were submitting; close() already threw out whatever was pending
+		}
+	}
+
+	protected void processBatch() {
+		Map.Entry<String,LinkedList<Datagram>> batch = nextBatch();
+		if(batch == null) return;
+
+		numBatches.incrementAndGet();
+		try {
+			for(Datagram datagram : batch.getValue()) {
+				try {
+					client.getProtocolManager().processMessage(datagram.senderAddress, datagram.senderPort, datagram.data);
+					numProcessed.incrementAndGet();
+				} catch(Exception exc) {
+					logger.error("DHT {}:{}: Caught exception processing datagram",
+							datagram.senderAddress,
+							datagram.senderPort,
+							exc);
+				}
+			}
+		} finally {
+			finishedSender(batch.getKey());
+		}
+	}
+
+	/* Every submit() schedules one processBatch() call, but a batch may take several datagrams, and senders that
+	 * another worker is already handling are skipped; calls that find nothing to do simply return. */
+	protected synchronized Map.Entry<String,LinkedList<Datagram>> nextBatch() {
+		Iterator<Map.Entry<String,LinkedList<Datagram>>> it = pending.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String,LinkedList<Datagram>> entry = it.next();
+			if(busy.contains(entry.getKey())) continue;
+
+			LinkedList<Datagram> queue = entry.getValue(), batch = new LinkedList<>();
+			int maxBatch = client.getMaster().getGlobalConfig().getInt("net.dht.processingBatchSize");
+			while(!queue.isEmpty() && batch.size() < maxBatch) {
+				batch.add(queue.removeFirst());
+			}
+
+			// anything left over goes to the back of the line so one chatty sender can't starve the rest
+			it.remove();
+			if(!queue.isEmpty()) pending.put(entry.getKey(), queue);
+			busy.add(entry.getKey());
+			queued -= batch.size();
+			return Map.entry(entry.getKey(), batch);
+		}
+
+		return null;
+	}
+
+	/** Datagrams that arrived from a sender while we were busy with it may have had their processBatch() calls skip
+	 * them, so make sure someone comes back for them. */
+	protected void finishedSender(String sender) {
+		synchronized(this) {
+			busy.remove(sender);
+			if(closed || !pending.containsKey(sender)) return;
+		}
+
+		schedule();
+	}
+}
@@ -1,22 +1,30 @@
 package com.acrescrypto.zksync.net.dht;
 
 import java.math.BigInteger;
-import java.nio.ByteBuffer;
 
 import com.acrescrypto.zksync.crypto.CryptoSupport;
 import com.acrescrypto.zksync.crypto.PublicDHKey;
 
+/** Fixed-width unsigned integer identifying a position in the DHT keyspace.
+ *
+ * Stored as big-endian 64-bit words (words[0] is most significant), with at least one spare bit above the
+ * 8*length bits of the ID itself so that DHTID.max, the exclusive upper bound of the keyspace, is representable.
+ * XOR-distance comparisons (compareDistances, compareDistanceTo) operate on the words directly so that lookups
+ * and routing table scans do not allocate.
+ */
 public class DHTID implements Comparable<DHTID>, Sendable {
-	protected BigInteger id;
+	protected long[]     words;
 	protected int        length;
 	protected int        hash;
 	
 	public static DHTID zero(int length) {
-		return new DHTID(BigInteger.valueOf(0), length);
+		return new DHTID(new long[numWords(length)], length);
 	}
 	
 	public static DHTID max(int length) {
-		return new DHTID(BigInteger.valueOf(2).pow(8*length), length);
+		long[] words = new long[numWords(length)];
+		setBit(words, 8*length);
+		return new DHTID(words, length);
 	}
 	
 	public static DHTID withKey(PublicDHKey key) {
@@ -24,19 +32,41 @@ public class DHTID implements Comparable<DHTID>, Sendable {
 	}
 	
 	public static DHTID withBytes(byte[] id) {
-		byte[] effectiveId = id;
-		
-		if((id[0] & 0x80) != 0) {
-			// ensure that all numbers are considered positive.
-			effectiveId = new byte[id.length + 1];
-			System.arraycopy(id, 0, effectiveId, 1, id.length);
+		long[] words = new long[numWords(id.length)];
+		for(int i = 0; i < id.length; i++) {
+			int bit = 8*(id.length - 1 - i);
+			words[words.length - 1 - bit/64] |= (id[i] & 0xffL) << (bit % 64);
 		}
 		
-		return new DHTID(new BigInteger(effectiveId), id.length);
+		return new DHTID(words, id.length);
+	}
+	
+	protected static int numWords(int length) {
+		return length/8 + 1; // always leaves at least one spare bit above the top of the keyspace
+	}
+	
+	protected static void setBit(long[] words, int bit) {
+		words[words.length - 1 - bit/64] |= 1L << (bit % 64);
 	}
 	
 	public DHTID(BigInteger id, int length) {
-		this.id     = id;
+		if(id.signum() < 0 || id.bitLength() > 64*numWords(length)) {
+			throw new IllegalArgumentException("DHTID out of range");
+		}
+		
+		this.words  = new long[numWords(length)];
+		this.length = length;
+		
+		byte[] bytes = id.toByteArray();
+		for(int i = 0; i < bytes.length; i++) {
+			int bit = 8*(bytes.length - 1 - i);
+			if(bit >= 64*words.length) continue; // sign byte
+			words[words.length - 1 - bit/64] |= (bytes[i] & 0xffL) << (bit % 64);
+		}
+	}
+	
+	protected DHTID(long[] words, int length) {
+		this.words  = words;
 		this.length = length;
 	}
 	
@@ -51,16 +81,67 @@ public class DHTID implements Comparable<DHTID>, Sendable {
 	}
 	
 	public DHTID xor(DHTID other) {
-		return new DHTID(id.xor(other.id), length);
+		long[] result = new long[words.length];
+		for(int i = 0; i < words.length; i++) {
+			result[i] = words[i] ^ other.words[i];
+		}
+		
+		return new DHTID(result, length);
+	}
+	
+	/** Compare the XOR distances from this ID to a and b, without allocating. Returns a negative number if a is
+	 * closer to this ID than b, 0 if they are equidistant, and a positive number if b is closer. IDs of differing
+	 * lengths are compared as though zero-extended to the longest of them. */
+	public int compareDistances(DHTID a, DHTID b) {
+		return compareDistances(a, 0, b, 0);
+	}
+	
+	/** As compareDistances(a, b), but with the lowest aLowBits bits of the distance to a and the lowest bLowBits bits
+	 * of the distance to b taken to be 0. */
+	public int compareDistances(DHTID a, int aLowBits, DHTID b, int bLowBits) {
+		int n = Math.max(words.length, Math.max(a.words.length, b.words.length));
+		for(int i = n - 1; i >= 0; i--) {
+			long w  = wordFromLow(i),
+			     da = (w ^ a.wordFromLow(i)) & highBitsMask(i, aLowBits),
+			     db = (w ^ b.wordFromLow(i)) & highBitsMask(i, bLowBits);
+			if(da != db) return Long.compareUnsigned(da, db);
+		}
+		
+		return 0;
+	}
+	
+	/** Compare the XOR distance from this ID to a against an existing distance, without allocating. */
+	public int compareDistanceTo(DHTID a, DHTID distance) {
+		int n = Math.max(words.length, Math.max(a.words.length, distance.words.length));
+		for(int i = n - 1; i >= 0; i--) {
+			long da = wordFromLow(i) ^ a.wordFromLow(i),
+			     d  = distance.wordFromLow(i);
+			if(da != d) return Long.compareUnsigned(da, d);
+		}
+		
+		return 0;
+	}
+	
+	/** The i'th word counting up from the least significant, or 0 past the top of this ID. */
+	protected long wordFromLow(int i) {
+		return i < words.length ? words[words.length - 1 - i] : 0;
+	}
+	
+	/** Mask selecting the bits of the i'th word from the bottom that lie at or above bit number lowBits. */
+	protected static long highBitsMask(int i, int lowBits) {
+		long bit = lowBits - 64L*i;
+		if(bit <= 0)  return -1L;
+		if(bit >= 64) return 0;
+		return -1L << bit;
 	}
 	
 	public DHTID midpoint(DHTID other) {
-		BigInteger avg = id.add(other.id).shiftRight(1);
+		BigInteger avg = id().add(other.id()).shiftRight(1);
 		return new DHTID(avg, length);
 	}
 	
 	public DHTID randomLessThan(DHTID min) {
-		BigInteger delta = id.add(min.id.negate());
+		BigInteger delta = id().add(min.id().negate());
 		
 		/* ideal is a uniform random number in [0, delta), which this isn't;
 		 * we'll get something in the right range, but there is a slight bias.
@@ -83,7 +164,7 @@ public class DHTID implements Comparable<DHTID>, Sendable {
 			r = r.add(negativeDelta);
 		}
 		
-		BigInteger x    = r.add(min.id);
+		BigInteger x    = r.add(min.id());
 		DHTID      res  = new DHTID(x, length);
 		
 		return res;
@@ -93,39 +174,36 @@ public class DHTID implements Comparable<DHTID>, Sendable {
 	public int hashCode() {
 		if(hash != 0) return hash;
 		
-		byte[] bytes  = id.toByteArray();
-		byte[] hashed = CryptoSupport
-				.defaultCrypto()
-				.hash(bytes);
-		this  .hash   = ByteBuffer.wrap(hashed).getInt();
+		// skip leading zero words so that equal values of differing lengths hash alike, consistent with equals
+		int h = 1, i = 0;
+		while(i < words.length && words[i] == 0) i++;
+		for(; i < words.length; i++) {
+			h = 31*h + Long.hashCode(words[i]);
+		}
+		
+		this.hash = h;
 		return hash;
 	}
-
+	
 	@Override
 	public int compareTo(DHTID other) {
-		return id.compareTo(other.id);
+		if(words.length != other.words.length) {
+			return id().compareTo(other.id());
+		}
+		
+		for(int i = 0; i < words.length; i++) {
+			if(words[i] != other.words[i]) return Long.compareUnsigned(words[i], other.words[i]);
+		}
+		
+		return 0;
 	}
 	
 	@Override
 	public byte[] serialize() {
-		/** BigInteger serializes to the minimum bytes to represent the number in two's
-		 * complement, meaning we get a sign bit. Therefore, we can have an integer that is
-		 * as short as 1 byte, or as long as length+1 bytes.
-		 * 
-		 * Care is taken to make sure we always initialize the BigInteger with a sign bit of 0,
-		 * so it shows as a positive number. Therefore, the leading bits of the serialized BigInt
-		 * will also be 0.
-		 */
-		
 		byte[] serialized = new byte[length];
-		byte[] fromBigInt = id.toByteArray();
-		
-		if(fromBigInt.length > length) {
-			assert(fromBigInt.length == length + 1); // hopefully this just has room for a sign bit, adding an extra byte
-			System.arraycopy(fromBigInt, 1, serialized, 0,      serialized.length);
-		} else {
-			int offset = serialized.length - fromBigInt.length;
-			System.arraycopy(fromBigInt, 0, serialized, offset, fromBigInt.length);
+		for(int i = 0; i < length; i++) {
+			int bit = 8*(length - 1 - i);
+			serialized[i] = (byte) (words[words.length - 1 - bit/64] >>> (bit % 64));
 		}
 		
 		return serialized;
@@ -138,7 +216,7 @@ public class DHTID implements Comparable<DHTID>, Sendable {
 		}
 		
 		if(o instanceof DHTID) {
-			return id.equals(((DHTID) o).id);
+			return compareTo((DHTID) o) == 0;
 		}
 		
 		return false;
@@ -150,18 +228,25 @@ public class DHTID implements Comparable<DHTID>, Sendable {
 	}
 	
 	public String toFullString() {
-		return id.toString(16);
+		return id().toString(16);
 	}
 	
 	public String toShortString() {
 		return toString().substring(0, 7);
 	}
-
+	
 	public int getLength() {
 		return length;
 	}
-
+	
 	public BigInteger id() {
-		return id;
+		byte[] bytes = new byte[1 + 8*words.length]; // leading 0 byte keeps the BigInteger positive
+		for(int i = 0; i < words.length; i++) {
+			for(int j = 0; j < 8; j++) {
+				bytes[1 + 8*i + j] = (byte) (words[i] >>> (56 - 8*j));
+			}
+		}
+		
+		return new BigInteger(bytes);
 	}
 }
@@ -239,8 +239,7 @@ public class DHTMessage {
 		
 		CryptoSupport crypto             = peer.client.crypto;
 		
-		PrivateDHKey  ephPrivkey         = crypto.makePrivateDHKey(),
-			          localStaticPrivkey = peer.client.getPrivateKey();
+		PrivateDHKey  ephPrivkey         = crypto.makePrivateDHKey();
 		
 		PublicDHKey   localStaticPubkey  = peer.client.getPublicKey(),
 				      remoteStaticPubkey = peer.getKey(),
@@ -250,7 +249,7 @@ public class DHTMessage {
 		              blankIv            = new byte[crypto.symIvLength()],
 		              networkId          = peer.client.getNetworkId(),
 		              ephSharedSecret    = ephPrivkey        .sharedSecret(peer.getKey()),
-		              staticSharedSecret = localStaticPrivkey.sharedSecret(peer.getKey());
+		              staticSharedSecret = peer.client.staticSharedSecret(peer.getKey());
 		
 		Key[]         keys               = new Key[3];
 		              keys[0]            = new Key(crypto, crypto.expandAndDestroy(
@@ -377,7 +376,7 @@ public class DHTMessage {
 				                            new byte[0]));
 		byte[]        staticPubkeyRaw    = keys[1].decryptUnauthenticated(blankIv, encryptedStaticKey);
 		PublicDHKey   remoteStaticPubkey = crypto.makePublicDHKey(staticPubkeyRaw);
-		byte[]        staticSharedSecret = localStaticPrivkey.sharedSecret(remoteStaticPubkey);
+		byte[]        staticSharedSecret = client.staticSharedSecret(remoteStaticPubkey);
 		
 		              keys[2]            = new Key(crypto, crypto.expandAndDestroy(
                                             Util.concat(
@@ -18,6 +18,7 @@ import com.acrescrypto.zksync.exceptions.UnsupportedProtocolException;
 import com.acrescrypto.zksync.net.Blacklist;
 import com.acrescrypto.zksync.net.dht.DHTClient.LookupCallback;
 import com.acrescrypto.zksync.net.dht.DHTMessage.DHTMessageCallback;
+import com.acrescrypto.zksync.utility.MetricsRegistry;
 import com.acrescrypto.zksync.utility.Util;
 
 public class DHTProtocolManager {
@@ -57,6 +58,27 @@ public class DHTProtocolManager {
 	protected boolean                        autofind          = true,
 			                                 initialized       = false;
 	protected LinkedList<RecentSaltSet>      recentSaltSets    = new LinkedList<>();
+	
+	protected final static MetricsRegistry.Histogram
+		lookupTimer    = operationTimer("lookup"),
+		addRecordTimer = operationTimer("addRecord");
+	protected final static MetricsRegistry.Counter
+		lookupsFailed    = operationFailures("lookup"),
+		addRecordsFailed = operationFailures("addRecord"),
+		recordsReceived  = MetricsRegistry.sharedInstance().counter("zksync_dht_records_received_total",
+				"Records received in response to DHT lookups");
+	
+	protected static MetricsRegistry.Histogram operationTimer(String op) {
+		return MetricsRegistry.sharedInstance().histogram("zksync_dht_operation_seconds",
+				"Time for a DHT search operation to complete",
+				"op", op);
+	}
+	
+	protected static MetricsRegistry.Counter operationFailures(String op) {
+		return MetricsRegistry.sharedInstance().counter("zksync_dht_operations_failed_total",
+				"DHT search operations that found no peers",
+				"op", op);
+	}
 
 	private Logger logger = LoggerFactory.getLogger(DHTProtocolManager.class);
 	
@@ -102,6 +124,7 @@ public class DHTProtocolManager {
 			}
 			
 			initialized = true;
+			client.getStateSignal().signal();
 			finishedOperation(op);
 		}, (record)->{
 			// just ignore records here
@@ -113,7 +136,7 @@ public class DHTProtocolManager {
 			Util.setThreadName("DHTClient autoFindPeers");
 			logger.debug("DHT -: Starting autoFindPeers thread");
 			while(!client.isClosed()) {
-				Util.blockOnPoll(
+				client.getStateSignal().waitWhile(
 						() ->
 							!client.isClosed() && (
 									 client.getRoutingTable().allPeers().isEmpty() 
@@ -132,8 +155,11 @@ public class DHTProtocolManager {
 	}
 
 	public void lookup(DHTID searchId, Key lookupKey, LookupCallback callback) {
+		long startNs = MetricsRegistry.startTimer();
 		addOperation(new DHTSearchOperation(this.client, searchId, lookupKey, (op, peers)->{
+			lookupTimer.observeSince(startNs);
 			if(peers == null || peers.isEmpty()) {
+				lookupsFailed.increment();
 				client.updateStatus(DHTClient.STATUS_QUESTIONABLE);
 			}
 			
@@ -154,13 +180,17 @@ public class DHTProtocolManager {
 						client.getId().toShortString(),
 						record.routingInfo());
 			}
+			recordsReceived.increment();
 			callback.receivedRecord(record);
 		}));
 	}
 	
 	public void addRecord(DHTID searchId, Key lookupKey, DHTRecord record) {
+		long startNs = MetricsRegistry.startTimer();
 		addOperation(new DHTSearchOperation(this.client, searchId, lookupKey, (op, peers)->{
+			addRecordTimer.observeSince(startNs);
 			if(peers == null || peers.isEmpty()) {
+				addRecordsFailed.increment();
 				client.updateStatus(DHTClient.STATUS_QUESTIONABLE);
 			}
 			
@@ -194,6 +224,7 @@ public class DHTProtocolManager {
 	
 	public void markUninitialized() {
 		initialized = false;
+		client.getStateSignal().signal();
 	}
 	
 	public boolean isInitialized() {
@@ -459,7 +490,8 @@ public class DHTProtocolManager {
 	}
 
 	public void setAutofind(boolean autofind) {
-		this.autofind = autofind;		
+		this.autofind = autofind;
+		client.getStateSignal().signal();
 	}
 	
 	public boolean getAutofind() {
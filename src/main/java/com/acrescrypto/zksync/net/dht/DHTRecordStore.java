@@ -1,29 +1,54 @@
 package com.acrescrypto.zksync.net.dht;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.crypto.Key;
 import com.acrescrypto.zksync.crypto.MutableSecureFile;
 import com.acrescrypto.zksync.exceptions.EINVALException;
+import com.acrescrypto.zksync.exceptions.ENOENTException;
+import com.acrescrypto.zksync.fs.File;
 import com.acrescrypto.zksync.exceptions.UnsupportedProtocolException;
 import com.acrescrypto.zksync.utility.Util;
 
+/** Records other peers have asked us to store, by ID.
+ *
+ * IDs are spread across shards with their own locks, so inserts and lookups for different IDs don't contend. Entries
+ * are also kept in an index ordered by the time we received them, so pruning only visits entries that have actually
+ * expired.
+ *
+ * The store is persisted as a snapshot plus an append-only log. Each accepted record is appended to the log as a
+ * separately encrypted entry; expirations aren't logged at all, since the received time is stored with each entry and
+ * expired entries are dropped when the store is read back. Once the log holds more than COMPACTION_SLACK entries
+ * beyond what is live in the store, the store is compacted into a new snapshot and the log is started over.
+ */
 public class DHTRecordStore {
+	public final static int NUM_SHARDS       =   16;
+	public final static int COMPACTION_SLACK = 1024; // stale log entries tolerated before compacting
+	
 	public class StoreEntry {
 		protected DHTRecord record;
 		protected byte[]    token;
 		protected long      receivedTime;
+		protected DHTID     id;
+		protected long      sequence = nextSequence.getAndIncrement(); // breaks ties in the expiration index
 		
 		public StoreEntry(DHTRecord record, byte[] token) {
 			this.record         = record;
@@ -112,14 +137,32 @@ public class DHTRecordStore {
 		}
 	}
 	
+	protected class Shard {
+		protected HashMap<DHTID,ArrayList<StoreEntry>> entriesById = new HashMap<>();
+	}
+	
 	protected DHTClient client;
-	protected HashMap<DHTID,ArrayList<StoreEntry>> entriesById = new HashMap<>();
+	protected Shard[] shards;
+	protected ConcurrentSkipListSet<StoreEntry> expirationIndex = new ConcurrentSkipListSet<>(
+			Comparator.comparingLong((StoreEntry entry)->entry.receivedTime)
+			          .thenComparingLong((StoreEntry entry)->entry.sequence));
+	protected AtomicInteger numIds = new AtomicInteger();
+	protected AtomicInteger numRecords = new AtomicInteger();
+	protected AtomicLong nextSequence = new AtomicLong();
+	
+	protected Key logKey;
+	protected final Object logLock = new Object();
+	protected int logEntries;
 	private Logger logger = LoggerFactory.getLogger(DHTRecordStore.class);
 	
-	protected DHTRecordStore() {}
+	protected DHTRecordStore() {
+		initShards();
+	}
 
 	public DHTRecordStore(DHTClient client) {
 		this.client = client;
+		this.logKey = client.recordStoreKey();
+		initShards();
 		read();
 	}
 	
@@ -137,67 +180,77 @@ public class DHTRecordStore {
 		client.threadPool.submit(()->addRecordIfReachable(id, token, record));
 	}
 	
-	public synchronized Map<DHTID, Collection<StoreEntry>> records() {
+	public Map<DHTID, Collection<StoreEntry>> records() {
 		HashMap<DHTID, Collection<StoreEntry>> map = new HashMap<>();
-		for(DHTID id : entriesById.keySet()) {
-			LinkedList<StoreEntry> list = new LinkedList<>();
-			for(StoreEntry entry : entriesById.get(id)) {
-				list.add(entry);
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				for(DHTID id : shard.entriesById.keySet()) {
+					map.put(id, new LinkedList<>(shard.entriesById.get(id)));
+				}
 			}
-			
-			map.put(id, list);
 		}
 		
 		return map;
 	}
 	
-	public synchronized Collection<DHTRecord> recordsForId(DHTID id, byte[] token) {
+	public Collection<DHTRecord> recordsForId(DHTID id, byte[] token) {
 		LinkedList<DHTRecord> records = new LinkedList<>();
-		Collection<StoreEntry> entries = entriesById.getOrDefault(id, new ArrayList<>(0));
+		Shard shard = shardForId(id);
 		
-		for(StoreEntry entry : entries) {
-			if(!Util.safeEquals(token, entry.token)) {
-				continue;
+		synchronized(shard) {
+			Collection<StoreEntry> entries = shard.entriesById.getOrDefault(id, new ArrayList<>(0));
+			for(StoreEntry entry : entries) {
+				if(!Util.safeEquals(token, entry.token)) {
+					continue;
+				}
+				
+				records.add(entry.record);
 			}
-			
-			records.add(entry.record);
 		}
 		
 		return records;
 	}
 	
 	public void dump() {
-		System.out.println("\tRecord store:  " + entriesById.size() + " keys");
-		for(DHTID id : entriesById.keySet()) {
-			System.out.println("\t\t" + id.toShortString() + " " + entriesById.get(id).size());
-			for(StoreEntry entry : entriesById.get(id)) {
+		Map<DHTID, Collection<StoreEntry>> records = records();
+		System.out.println("\tRecord store:  " + records.size() + " keys");
+		for(DHTID id : records.keySet()) {
+			System.out.println("\t\t" + id.toShortString() + " " + records.get(id).size());
+			for(StoreEntry entry : records.get(id)) {
 				System.out.println("\t\t\t" + entry.record);
 			}
 		}
 	}
 
+	/** Whether a record could be added for an ID right now. Prunes first if the ID or store is full, but never while
+	 * holding a shard lock, since pruning needs to take the locks of other shards. */
 	@SuppressWarnings("unlikely-arg-type")
-	protected synchronized boolean hasRoomForRecord(DHTID id, DHTRecord record) throws IOException {
+	protected boolean hasRoomForRecord(DHTID id, DHTRecord record) throws IOException {
 		int maxIds          = client.getMaster().getGlobalConfig().getInt("net.dht.store.maxIds");
 		int maxRecordsPerId = client.getMaster().getGlobalConfig().getInt("net.dht.store.maxRecordsPerId");
+		Shard shard = shardForId(id);
 		
-		if(!entriesById.containsKey(id)) {
-			if(entriesById.size() >= maxIds) prune();
-			if(entriesById.size() >= maxIds) return false;
-			return true;
+		for(int attempt = 0; attempt < 2; attempt++) {
+			if(attempt > 0) prune();
+			synchronized(shard) {
+				ArrayList<StoreEntry> entriesForId = shard.entriesById.get(id);
+				if(entriesForId == null) {
+					if(numIds.get() < maxIds) return true;
+					continue;
+				}
+				
+				for(StoreEntry entry : entriesForId) {
+					if(entry.equals(record)) return false;
+				}
+				
+				if(entriesForId.size() < maxRecordsPerId) return true;
+			}
 		}
 		
-		ArrayList<StoreEntry> entriesForId = entriesById.get(id);
-		for(StoreEntry entry : entriesForId) {
-			if(entry.equals(record)) return false;
-		}
-		if(entriesForId.size() >= maxRecordsPerId) prune();
-		if(entriesForId.size() >= maxRecordsPerId) return false;
-		return true;
+		return false;
 	}
 	
 	protected void addRecordIfReachable(DHTID id, byte[] token, DHTRecord record) {
-		int maxRecordsPerId = client.getMaster().getGlobalConfig().getInt("net.dht.store.maxRecordsPerId");
 		Util.setThreadName("Add record worker");
 		try {
 			if(!record.isReachable()) {
@@ -207,95 +260,229 @@ public class DHTRecordStore {
 				return;
 			}
 			
-			synchronized(this) {
-				if(!hasRoomForRecord(id, record)) return;
-				
-				if(!entriesById.containsKey(id)) {
-					entriesById.put(id, new ArrayList<StoreEntry>(maxRecordsPerId));
-				}
-				
-				ArrayList<StoreEntry> entriesForId = entriesById.get(id);
-				if(entriesForId.size() >= maxRecordsPerId) prune();
-				if(entriesForId.size() >= maxRecordsPerId) return;
-				entriesForId.add(new StoreEntry(record, token));
-				
-				logger.info("Added record from {} for ID {}; {} records for ID, {} ids in store",
-						record.routingInfo(),
-						id.toShortString(),
-						entriesForId.size(),
-						entriesById.size());
-
-				write();
+			if(!hasRoomForRecord(id, record)) return;
+			
+			StoreEntry entry = new StoreEntry(record, token);
+			int numForId;
+			synchronized(shardForId(id)) {
+				numForId = insert(id, entry, true);
 			}
+			if(numForId < 0) return;
+			
+			logger.info("Added record from {} for ID {}; {} records for ID, {} ids in store",
+					record.routingInfo(),
+					id.toShortString(),
+					numForId,
+					numIds.get());
+			
+			append(entry);
 		} catch(IOException exc) {
 			logger.error("Caught exception adding record to record store", exc);
 		}
 		Util.setThreadName("Idle worker");
 	}
 	
+	protected Shard shardForId(DHTID id) {
+		return shards[Math.floorMod(id.hashCode(), shards.length)];
+	}
+	
+	protected void initShards() {
+		shards = new Shard[NUM_SHARDS];
+		for(int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard();
+		}
+	}
+	
+	/** Put an entry in its shard and the expiration index. Caller must hold the shard's lock if other threads can see
+	 * the store. With enforceLimits set, the entry is refused if the store is out of room for it. Returns the number of
+	 * entries now held for the ID, or -1 if the entry was refused or duplicates one we already have. */
+	protected int insert(DHTID id, StoreEntry entry, boolean enforceLimits) {
+		Shard shard = shardForId(id);
+		ArrayList<StoreEntry> entriesForId = shard.entriesById.get(id);
+		if(entriesForId == null) {
+			if(enforceLimits) {
+				int maxIds = client.getMaster().getGlobalConfig().getInt("net.dht.store.maxIds");
+				if(!reserveId(maxIds)) return -1;
+			} else {
+				numIds.incrementAndGet();
+			}
+			
+			entriesForId = new ArrayList<>();
+			shard.entriesById.put(id, entriesForId);
+		} else {
+			int maxRecordsPerId = client.getMaster().getGlobalConfig().getInt("net.dht.store.maxRecordsPerId");
+			if(enforceLimits && entriesForId.size() >= maxRecordsPerId) return -1;
+			for(StoreEntry existing : entriesForId) {
+				if(existing.equals(entry)) return -1;
+			}
+		}
+		
+		entry.id = id;
+		entriesForId.add(entry);
+		expirationIndex.add(entry);
+		numRecords.incrementAndGet();
+		return entriesForId.size();
+	}
+	
+	protected boolean reserveId(int maxIds) {
+		while(true) {
+			int count = numIds.get();
+			if(count >= maxIds) return false;
+			if(numIds.compareAndSet(count, count+1)) return true;
+		}
+	}
+	
 	protected String path() {
 		return "dht-record-store";
 	}
 	
-	protected synchronized void write() throws IOException {
-		MutableSecureFile file = MutableSecureFile.atPath(client.getStorage(), path(), client.recordStoreKey());
+	protected String logPath() {
+		return path() + ".log";
+	}
+	
+	/** Add an entry to the log, compacting the store instead if the log has too much in it that's no longer live. */
+	protected void append(StoreEntry entry) throws IOException {
+		byte[] logEntry = serializeLogEntry(entry);
+		synchronized(logLock) {
+			if(++logEntries > numRecords.get() + COMPACTION_SLACK) {
+				compact();
+				return;
+			}
+			
+			try(File file = client.getStorage().open(logPath(), File.O_WRONLY|File.O_CREAT|File.O_APPEND)) {
+				file.write(logEntry);
+			}
+		}
+	}
+	
+	/** Write everything in the store to a new snapshot, and start the log over. */
+	protected void compact() throws IOException {
+		synchronized(logLock) {
+			write();
+			
+			try {
+				client.getStorage().unlink(logPath());
+			} catch(ENOENTException exc) {}
+			logEntries = 0;
+		}
+	}
+	
+	protected void write() throws IOException {
+		MutableSecureFile file = MutableSecureFile.atPath(client.getStorage(), path(), logKey);
 		file.write(serialize(), 0);
 	}
 	
 	protected void read() {
-		MutableSecureFile file = MutableSecureFile.atPath(client.getStorage(), path(), client.recordStoreKey());
+		MutableSecureFile file = MutableSecureFile.atPath(client.getStorage(), path(), logKey);
 		try {
 			deserialize(ByteBuffer.wrap(file.read()));
+		} catch(ENOENTException exc) {
 		} catch(IOException|SecurityException exc) {
-			entriesById.clear();
+			clear();
+		}
+		
+		boolean needsCompaction = false;
+		try {
+			needsCompaction = !readLog(client.getStorage().read(logPath()));
+		} catch(ENOENTException exc) {
+		} catch(IOException exc) {
+			needsCompaction = true;
 		}
 		
 		try {
 			prune();
+			if(needsCompaction || logEntries > numRecords.get() + COMPACTION_SLACK) {
+				compact();
+			}
 		} catch(IOException exc) {
+			logger.error("Caught exception compacting record store", exc);
 		}
 	}
 	
-	protected synchronized byte[] serialize() {
-		LinkedList<byte[]> serializedPieces = new LinkedList<>();
-		int totalLen = 0;
+	protected byte[] serializeLogEntry(StoreEntry entry) {
+		byte[] idSer = entry.id.serialize(), entrySer = entry.serialize();
+		byte[] iv = logKey.getCrypto().rng(logKey.getCrypto().symIvLength());
+		byte[] ciphertext = logKey.encrypt(iv,
+				ByteBuffer.allocate(idSer.length + entrySer.length).put(idSer).put(entrySer).array(),
+				0);
 		
-		for(DHTID id : entriesById.keySet()) {
-			serializedPieces.add(id.serialize());
-			serializedPieces.add(ByteBuffer.allocate(4).putInt(entriesById.get(id).size()).array());
-			totalLen += id.serialize().length + 4;
-			
-			for(StoreEntry entry : entriesById.get(id)) {
-				byte[] serialized = entry.serialize();
-				serializedPieces.add(serialized);
-				totalLen += serialized.length;
-			}			
+		return ByteBuffer.allocate(4 + iv.length + ciphertext.length)
+				.putInt(iv.length + ciphertext.length)
+				.put(iv)
+				.put(ciphertext)
+				.array();
+	}
+	
+	/** Replay log entries into the store. Stops at the first entry that is truncated or fails to decrypt, as happens if
+	 * we died partway through an append; returns false if that happened, so the caller can compact the damage away. */
+	protected boolean readLog(byte[] log) {
+		ByteBuffer buf = ByteBuffer.wrap(log);
+		int ivLength = logKey.getCrypto().symIvLength();
+		
+		while(buf.hasRemaining()) {
+			try {
+				int length = buf.getInt();
+				if(length < ivLength || length > buf.remaining()) return false;
+				byte[] iv = new byte[ivLength];
+				byte[] ciphertext = new byte[length - ivLength];
+				buf.get(iv);
+				buf.get(ciphertext);
+				
+				ByteBuffer plaintext = ByteBuffer.wrap(logKey.decrypt(iv, ciphertext));
+				byte[] idRaw = new byte[client.idLength()];
+				plaintext.get(idRaw);
+				insert(DHTID.withBytes(idRaw), new StoreEntry(plaintext), false);
+				logEntries++;
+			} catch(BufferUnderflowException|SecurityException|UnsupportedProtocolException exc) {
+				logger.warn("DHT record store log is damaged after {} entries; discarding remainder", logEntries);
+				return false;
+			}
 		}
 		
-		ByteBuffer buf = ByteBuffer.allocate(4+totalLen);
-		buf.putInt(entriesById.keySet().size());
-		for(byte[] piece : serializedPieces) {
-			buf.put(piece);
+		return true;
+	}
+	
+	protected byte[] serialize() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int totalIds = 0;
+		out.write(new byte[4], 0, 4); // placeholder for ID count
+		
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				for(DHTID id : shard.entriesById.keySet()) {
+					ArrayList<StoreEntry> entriesForId = shard.entriesById.get(id);
+					byte[] idSer = id.serialize();
+					out.write(idSer, 0, idSer.length);
+					out.write(Util.serializeInt(entriesForId.size()), 0, 4);
+					
+					for(StoreEntry entry : entriesForId) {
+						byte[] serialized = entry.serialize();
+						out.write(serialized, 0, serialized.length);
+					}
+					
+					totalIds++;
+				}
+			}
 		}
-
-		return buf.array();
+		
+		byte[] serialized = out.toByteArray();
+		ByteBuffer.wrap(serialized).putInt(totalIds);
+		return serialized;
 	}
 	
-	protected synchronized void deserialize(ByteBuffer serialized) throws EINVALException {
-		entriesById.clear();
+	protected void deserialize(ByteBuffer serialized) throws EINVALException {
+		clear();
 		try {
 			int numIds = serialized.getInt();
 			for(int i = 0; i < numIds; i++) {
 				byte[] idRaw = new byte[client.idLength()];
 				serialized.get(idRaw);
 				DHTID id = DHTID.withBytes(idRaw);
-				ArrayList<StoreEntry> entriesForId = new ArrayList<>();
-				entriesById.put(id, entriesForId);
 				
 				int numEntriesForId = serialized.getInt();
 				for(int j = 0; j < numEntriesForId; j++) {
 					try {
-						entriesForId.add(new StoreEntry(serialized));
+						insert(id, new StoreEntry(serialized), false);
 					} catch(UnsupportedProtocolException exc) {
 						throw new EINVALException(path());
 					}
@@ -306,42 +493,58 @@ public class DHTRecordStore {
 		}
 	}
 	
-	protected synchronized void prune() throws IOException {
-		boolean dirty = false;
-		LinkedList<DHTID> removeLists = new LinkedList<DHTID>();
-		for(DHTID id : entriesById.keySet()) {
-			ArrayList<StoreEntry> entriesForId = entriesById.get(id);
-			dirty |= entriesForId.removeIf((entry)->entry.isExpired());
-			if(entriesForId.size() == 0) {
-				removeLists.add(id);
+	/** Drop expired entries. Only the entries that have expired are visited, oldest first. */
+	protected void prune() throws IOException {
+		Iterator<StoreEntry> itr = expirationIndex.iterator();
+		while(itr.hasNext()) {
+			StoreEntry entry = itr.next();
+			if(!entry.isExpired()) break;
+			
+			Shard shard = shardForId(entry.id);
+			synchronized(shard) {
+				if(!expirationIndex.remove(entry)) continue; // someone else pruned it first
+				ArrayList<StoreEntry> entriesForId = shard.entriesById.get(entry.id);
+				if(entriesForId == null || !entriesForId.remove(entry)) continue;
+				numRecords.decrementAndGet();
+				
+				if(entriesForId.isEmpty()) {
+					shard.entriesById.remove(entry.id);
+					numIds.decrementAndGet();
+				}
 			}
 		}
-		
-		dirty |= !removeLists.isEmpty();
-		for(DHTID id : removeLists) {
-			entriesById.remove(id);
-		}
-		
-		if(dirty) {
-			write();
-		}
 	}
 	
-	public synchronized int numIds() {
-		return entriesById.size();
+	public int numIds() {
+		return numIds.get();
 	}
 
-	public synchronized int numRecords() {
-		int totalRecords = 0;
-		for(ArrayList<StoreEntry> list : entriesById.values()) {
-			totalRecords += list.size();
-		}
-		
-		return totalRecords;
+	public int numRecords() {
+		return numRecords.get();
 	}
 
 	public void reset() {
 		logger.info("Purging DHT record store");
-		entriesById.clear();
+		clear();
+		
+		try {
+			compact();
+		} catch(IOException exc) {
+			logger.error("Caught exception writing record store", exc);
+		}
+	}
+	
+	protected void clear() {
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				for(ArrayList<StoreEntry> entriesForId : shard.entriesById.values()) {
+					numRecords.addAndGet(-entriesForId.size());
+					numIds.decrementAndGet();
+					expirationIndex.removeAll(entriesForId);
+				}
+				
+				shard.entriesById.clear();
+			}
+		}
 	}
 }
@@ -101,25 +101,53 @@ public class DHTRoutingTable {
 	}
 	
 	public synchronized Collection<DHTPeer> closestPeers(DHTID id, int numPeers) {
-		DHTID greatestDistance = null;
-		DHTPeer mostDistantPeer = null;
-		ArrayList<DHTPeer> closest = new ArrayList<>(numPeers);
+		/* Visit buckets in order of the closest any of their members could be to id, starting from the bucket
+		 * containing id itself, and stop once no remaining bucket can beat the peers we already have. The next bucket
+		 * is picked by a scan of the ones left rather than sorting them all up front, since we usually stop after a
+		 * handful. */
+		ArrayList<DHTPeer> closest = new ArrayList<>(numPeers+1); // sorted by ascending distance from id
+		if(numPeers <= 0) return closest;
 		
-		for(DHTPeer peer : allPeers()) {
-			DHTID distance = peer.id.xor(id);
-			if(closest.size() < numPeers || distance.compareTo(greatestDistance) <= 0) {
-				if(closest.size() >= numPeers) {
-					closest.remove(mostDistantPeer);
+		boolean[] visited = new boolean[buckets.size()];
+		while(true) {
+			DHTBucket bucket = null;
+			int bucketIndex = -1;
+			for(int i = 0; i < buckets.size(); i++) {
+				DHTBucket candidate = buckets.get(i);
+				if(visited[i]) continue;
+				if(candidate.peers.isEmpty()) {
+					visited[i] = true;
+					continue;
+				}
+				
+				if(bucket == null || id.compareDistances(candidate.min, candidate.distanceLowBits(),
+						bucket.min, bucket.distanceLowBits()) < 0) {
+					bucket      = candidate;
+					bucketIndex = i;
+				}
+			}
+			
+			if(bucket == null) break;
+			visited[bucketIndex] = true;
+			
+			if(closest.size() >= numPeers) {
+				DHTPeer mostDistant = closest.get(closest.size()-1);
+				if(id.compareDistances(mostDistant.id, 0, bucket.min, bucket.distanceLowBits()) < 0) break;
+			}
+			
+			for(DHTPeer peer : bucket.peers) {
+				if(closest.size() >= numPeers && id.compareDistances(peer.id, closest.get(closest.size()-1).id) > 0) {
+					continue;
+				}
+				
+				int index = closest.size();
+				while(index > 0 && id.compareDistances(peer.id, closest.get(index-1).id) < 0) {
+					index--;
 				}
 				
-				closest.add(peer);
-				greatestDistance = null;
-				for(DHTPeer listed : closest) {
-					DHTID listedDistance = listed.id.xor(id);
-					if(greatestDistance == null || listedDistance.compareTo(greatestDistance) > 0) {
-						greatestDistance = listedDistance;
-						mostDistantPeer = listed;
-					}
+				closest.add(index, peer);
+				if(closest.size() > numPeers) {
+					closest.remove(closest.size()-1);
 				}
 			}
 		}
@@ -161,6 +189,7 @@ public class DHTRoutingTable {
 		if(bucket.hasCapacity()) {
 			bucket.add(peer, lastSeen);
 			allPeers.add(peer);
+			client.getStateSignal().signal();
 			logger.info("DHT {}:{}: Added peer to routing table, table has {} peers",
 					peer.address,
 					peer.port,
@@ -1,6 +1,7 @@
 package com.acrescrypto.zksync.net.dht;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.TreeSet;
 
@@ -24,7 +25,9 @@ public class DHTSearchOperation {
 	protected DHTID                         searchId;
 	protected DHTClient                     client;
 	protected HashSet<DHTPeer>              queried      = new HashSet<DHTPeer>();
-	protected TreeSet<DHTPeer>              closestPeers = new TreeSet<>((a,b)->a.id.xor(searchId).compareTo(b.id.xor(searchId)));
+	protected HashMap<DHTPeer,Integer>      hopCounts    = new HashMap<>(); // peer -> number of hops taken to learn of it (1 = from our routing table)
+	protected int                           numQueries, maxHops;
+	protected TreeSet<DHTPeer>              closestPeers = new TreeSet<>((a,b)->searchId.compareDistances(a.id, b.id));
 	protected SearchOperationPeerCallback   peerCallback;
 	protected SearchOperationRecordCallback recordCallback;
 	protected SnoozeThread                  timeout;
@@ -71,7 +74,7 @@ public class DHTSearchOperation {
 				client.routingTable.allPeers().size());
 		
 		for(DHTPeer peer : client.routingTable.allPeers()) {
-			addIfBetter(peer);
+			addIfBetter(peer, 1);
 		}
 		
 		if(closestPeers.isEmpty()) {
@@ -86,9 +89,20 @@ public class DHTSearchOperation {
 		return this;
 	}
 	
-	protected synchronized void addIfBetter(DHTPeer peer) {
+	/** Number of FIND_NODE requests issued by this search. */
+	public synchronized int getNumQueries() {
+		return numQueries;
+	}
+	
+	/** Greatest number of hops from our routing table to any peer queried by this search. */
+	public synchronized int getMaxHops() {
+		return maxHops;
+	}
+	
+	protected synchronized void addIfBetter(DHTPeer peer, int hops) {
 		if(closestPeers.contains(peer)) return;
 		closestPeers.add(peer);
+		hopCounts.putIfAbsent(peer, hops);
 		
 		int maxResults = client.getMaster().getGlobalConfig().getInt("net.dht.maxResults");
 		
@@ -100,22 +114,25 @@ public class DHTSearchOperation {
 	protected synchronized void requestNodes(DHTPeer peer) {
 		if(cancelled) return;
 		
+		int hops = hopCounts.getOrDefault(peer, 1);
 		queried.add(peer);
 		activeQueries++;
+		numQueries++;
+		maxHops = Math.max(maxHops, hops);
 		peer.findNode(searchId, lookupKey, (peers, isFinal)->{
-			handleFindNodeResults(peers, isFinal);
+			handleFindNodeResults(peers, isFinal, hops + 1);
 		}, (record)->{
 			if(cancelled) return;
 			recordCallback.searchOperationDiscoveredRecord(record);
 		});
 	}
 	
-	protected synchronized void handleFindNodeResults(Collection<DHTPeer> peers, boolean isFinal) {
+	protected synchronized void handleFindNodeResults(Collection<DHTPeer> peers, boolean isFinal, int hops) {
 		if(cancelled || timeout.isCancelled()) return;
 		
 		if(peers != null) {
 			for(DHTPeer peer : peers) {
-				addIfBetter(peer);
+				addIfBetter(peer, hops);
 			}
 			
 			for(DHTPeer peer : closestPeers) {
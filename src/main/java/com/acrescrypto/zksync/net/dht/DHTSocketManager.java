@@ -6,8 +6,10 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,14 +19,18 @@ import com.acrescrypto.zksync.utility.Util;
 import com.dosse.upnp.UPnP;
 
 public class DHTSocketManager {
-	protected DHTClient           client;
-	protected BandwidthMonitor    monitorTx,
-	                              monitorRx;
-	protected DatagramSocket      socket;
-	protected String              bindAddress;
-	protected Thread              socketListenerThread;
-	protected boolean             paused;
-	protected int                 bindPort;
+	protected DHTClient                 client;
+	protected BandwidthMonitor          monitorTx,
+	                                    monitorRx;
+	protected DatagramSocket            socket;
+	protected ArrayList<DatagramSocket> extraSockets = new ArrayList<>(); // bound to the same port as socket, if net.dht.numSockets > 1
+	protected DHTTransport              transport; // used instead of socket when set
+	protected DHTDatagramProcessor      processor; // decrypts and dispatches what the socket listeners receive
+	protected String                    bindAddress;
+	protected Thread                    socketListenerThread;
+	protected ArrayList<Thread>         extraSocketListenerThreads = new ArrayList<>();
+	protected boolean                   paused;
+	protected int                       bindPort;
 
 	private Logger logger = LoggerFactory.getLogger(DHTSocketManager.class);
 
@@ -53,19 +59,54 @@ public class DHTSocketManager {
 				
 		openSocket();
 
+		if(transport != null) return; // transport delivers to receivedDatagram on its own threads
+		synchronized(this) {
+			if(processor == null || processor.isClosed()) {
+				processor = new DHTDatagramProcessor(client);
+			}
+		}
+		
 		if(socketListenerThread == null || !socketListenerThread.isAlive()) {
-			socketListenerThread = new Thread(client.getThreadGroup(), ()->socketListener());
+			socketListenerThread = new Thread(client.getThreadGroup(), ()->socketListener(0));
 			socketListenerThread.start();
 		}
+		
+		startExtraSocketListeners();
+	}
+	
+	protected synchronized void startExtraSocketListeners() {
+		for(int i = 0; i < extraSockets.size(); i++) {
+			if(i < extraSocketListenerThreads.size() && extraSocketListenerThreads.get(i).isAlive()) continue;
+			int index = i+1;
+			Thread thread = new Thread(client.getThreadGroup(), ()->socketListener(index));
+			if(i < extraSocketListenerThreads.size()) {
+				extraSocketListenerThreads.set(i, thread);
+			} else {
+				extraSocketListenerThreads.add(thread);
+			}
+			
+			thread.start();
+		}
 	}
 	
 	public void pause() {
 		paused   = true;
 		int port = getPort();
 		
+		if(transport != null) {
+			transport.close();
+			return;
+		}
+		
 		if(socket != null) {
 			socket.close();
 		}
+		
+		closeExtraSockets();
+		
+		synchronized(this) {
+			if(processor != null) processor.close();
+		}
 
 		if(port > 0 && client.getMaster().getGlobalConfig().getBool("net.dht.upnp")) {
 			UPnP.closePortUDP(port);
@@ -77,6 +118,7 @@ public class DHTSocketManager {
 	}
 	
 	public int getPort() {
+		if(transport != null) return transport.isOpen() ? transport.getPort() : -1;
 		if(socket == null) return -1;
 		return socket.getLocalPort();
 	}
@@ -94,14 +136,31 @@ public class DHTSocketManager {
 	}
 	
 	public boolean isListening() {
+		if(transport != null) return !paused && transport.isOpen();
 		return !paused && socket != null;
 	}
 	
+	public DHTDatagramProcessor getProcessor() {
+		return processor;
+	}
+	
+	public DHTTransport getTransport() {
+		return transport;
+	}
 	
+	/** Route datagrams through a transport instead of a UDP socket. Must be set before listen(). */
+	public void setTransport(DHTTransport transport) {
+		this.transport = transport;
+	}
 	
 	protected void openSocket() throws SocketException {
 		if(paused) return;
 		
+		if(transport != null) {
+			openTransport();
+			return;
+		}
+		
 		InetAddress addr;
 		try {
 			addr = InetAddress.getByName(bindAddress);
@@ -120,13 +179,16 @@ public class DHTSocketManager {
 			}
 		}
 		
+		closeExtraSockets();
+		int numSockets = client.getMaster().getGlobalConfig().getInt("net.dht.numSockets");
+		
 		while(true) {
 			try {
-				socket = new DatagramSocket(bindPort, addr);
-				socket.setReuseAddress(true);
+				socket = bindSocket(addr, bindPort, numSockets > 1);
 				client.getMaster().getGlobalConfig().set("net.dht.lastport", socket.getLocalPort());;
 				
 				logger.info("DHT -: listening on UDP port " + getPort());
+				openExtraSockets(addr, numSockets-1);
 				
 				checkUPnP();
 				client.updateStatus(DHTClient.STATUS_QUESTIONABLE);
@@ -142,6 +204,74 @@ public class DHTSocketManager {
 		}
 	}
 	
+	protected DatagramSocket bindSocket(InetAddress addr, int port, boolean reusePort) throws SocketException {
+		DatagramSocket skt = new DatagramSocket(null);
+		try {
+			if(reusePort) {
+				try {
+					skt.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				} catch(UnsupportedOperationException|IOException exc) {
+					logger.warn("DHT -: SO_REUSEPORT not available; using a single socket");
+				}
+			}
+			
+			skt.bind(new InetSocketAddress(addr, port));
+			skt.setReuseAddress(true);
+			return skt;
+		} catch(SocketException exc) {
+			skt.close();
+			throw exc;
+		}
+	}
+	
+	/** Bind more sockets to the same port as our main one, so the OS can spread incoming datagrams across several
+	 * listener threads. The OS picks a socket by hashing the sender, so each peer still lands on one socket. Needs
+	 * SO_REUSEPORT; if we can't get it, we carry on with just the main socket. */
+	protected void openExtraSockets(InetAddress addr, int count) {
+		for(int i = 0; i < count; i++) {
+			try {
+				DatagramSocket skt = bindSocket(addr, socket.getLocalPort(), true);
+				synchronized(this) {
+					extraSockets.add(skt);
+				}
+			} catch(SocketException exc) {
+				logger.warn("DHT -: Unable to bind additional socket to UDP port {}; using {} socket(s)",
+						socket.getLocalPort(),
+						1 + extraSockets.size(),
+						exc);
+				return;
+			}
+		}
+	}
+	
+	protected synchronized void closeExtraSockets() {
+		for(DatagramSocket skt : extraSockets) {
+			skt.close();
+		}
+		
+		extraSockets.clear();
+	}
+	
+	protected synchronized DatagramSocket socketForListener(int index) {
+		if(index == 0) return socket;
+		return index <= extraSockets.size() ? extraSockets.get(index-1) : null;
+	}
+	
+	protected void openTransport() throws SocketException {
+		client.updateStatus(DHTClient.STATUS_ESTABLISHING);
+		if(transport.isOpen()) transport.close();
+		
+		try {
+			transport.open(bindAddress, bindPort, (address, port, data)->receivedDatagram(address, port, data));
+		} catch(SocketException exc) {
+			client.updateStatus(DHTClient.STATUS_OFFLINE);
+			throw exc;
+		}
+		
+		logger.info("DHT -: listening on transport {}:{}", transport.getAddress(), getPort());
+		client.updateStatus(DHTClient.STATUS_QUESTIONABLE);
+	}
+	
 	protected void checkUPnP() {
 		boolean useUPnP = client.getMaster().getGlobalConfig().getBool("net.dht.upnp");
 		
@@ -152,6 +282,7 @@ public class DHTSocketManager {
 	}
 	
 	protected void setUPnPEnabled(boolean enabled) {
+		if(transport != null) return;
 		if(enabled) {
 			checkUPnP();
 		} else if(getPort() > 0 && UPnP.isMappedUDP(getPort())) {
@@ -159,14 +290,18 @@ public class DHTSocketManager {
 		}
 	}
 	
-	protected void socketListener() {
-		Util.setThreadName("DHTSocketManager socketListener " + Util.bytesToHex(client.getPublicKey().getBytes(), 4) + " " + getPort());
+	/** Receive datagrams on one of our sockets and hand them to the processor. Listener 0 is on the main socket, and
+	 * is the one responsible for rebinding if something goes wrong; listeners on the extra sockets exit once their
+	 * socket goes away. */
+	protected void socketListener(int index) {
+		Util.setThreadName("DHTSocketManager socketListener " + Util.bytesToHex(client.getPublicKey().getBytes(), 4) + " " + getPort() + (index > 0 ? "." + index : ""));
 		int lastPort = -1;
 		
 		while(!paused) {
-			DatagramSocket skt = socket;
+			DatagramSocket skt = socketForListener(index);
 			try {
 				if(skt == null) {
+					if(index > 0) return;
 					System.out.println("Waiting for socket to open");
 					Util.sleep(10);
 					continue;
@@ -178,19 +313,20 @@ public class DHTSocketManager {
 				byte[] receiveData = new byte[maxDatagramSize];
 				DatagramPacket packet = new DatagramPacket(receiveData, receiveData.length);
 				skt.receive(packet);
-				monitorRx.observeTraffic(packet.getLength());
-				logger.trace("DHT {}:{}: received {} bytes",
-						packet.getAddress().getHostAddress(),
-						packet.getPort(),
-						packet.getLength());
-				ByteBuffer buf = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
-				client.getProtocolManager().processMessage(
+				receivedDatagram(
 						packet.getAddress().getHostAddress(),
 						packet.getPort(),
-						buf
+						ByteBuffer.wrap(packet.getData(), 0, packet.getLength())
 					);
 			} catch(IOException exc) {
 				if(paused) return;
+				if(index > 0) {
+					if(socketForListener(index) != skt) return; // replaced by a rebind, which started a new listener
+					logger.warn("DHT -: socket listener thread {} encountered IOException", index, exc);
+					Util.sleep(client.getMaster().getGlobalConfig().getInt("net.dht.socketCycleDelayMs"));
+					continue;
+				}
+				
 				if(skt.getLocalPort() == lastPort && !skt.isClosed()) {
 					logger.error("DHT -: socket listener thread encountered IOException", exc);
 				} else {
@@ -202,6 +338,7 @@ public class DHTSocketManager {
 				Util.sleep(socketCycleDelayMs); // add in a delay to prevent a fail loop from gobbling CPU / spamming log
 				try {
 					openSocket();
+					startExtraSocketListeners();
 				} catch (SocketException e) {
 					logger.error("DHT -: socket listener thread encountered IOException rebinding socket", exc);
 					Util.sleep(socketOpenFailCycleDelayMs); // wait even longer if we know the socket is dead and the OS isn't giving it back
@@ -216,9 +353,41 @@ public class DHTSocketManager {
 		}
 	}
 	
+	protected void receivedDatagram(String senderAddress, int senderPort, ByteBuffer data) {
+		monitorRx.observeTraffic(data.remaining());
+		logger.trace("DHT {}:{}: received {} bytes",
+				senderAddress,
+				senderPort,
+				data.remaining());
+		
+		DHTDatagramProcessor proc = processor;
+		if(transport != null || proc == null) {
+			// transports already deliver on their own threads, and we process inline if we aren't listening
+			client.getProtocolManager().processMessage(senderAddress, senderPort, data);
+		} else if(!proc.submit(senderAddress, senderPort, data)) {
+			logger.debug("DHT {}:{}: Dropped datagram; processing queue is full",
+					senderAddress,
+					senderPort);
+		}
+	}
+	
 	protected synchronized void sendDatagram(DatagramPacket packet) {
 		if(paused) return;
 		
+		if(transport != null) {
+			try {
+				transport.send(packet);
+				monitorTx.observeTraffic(packet.getLength());
+			} catch(IOException exc) {
+				logger.warn("DHT {}:{}: Encountered exception sending on DHT transport",
+						packet.getAddress().getHostAddress(),
+						packet.getPort(),
+						exc);
+			}
+			
+			return;
+		}
+		
 		for(int i = 0; i < 2; i++) {
 			try {
 				socket.send(packet);
@@ -267,6 +436,7 @@ public class DHTSocketManager {
 	}
 	
 	public String getSocketAddress() {
+		if(transport != null) return transport.getAddress();
 		try {
 			InetSocketAddress addr = (InetSocketAddress) socket.getLocalSocketAddress();
 			return addr.getAddress().getHostAddress();
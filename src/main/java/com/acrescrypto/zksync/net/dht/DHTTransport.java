@@ -0,0 +1,22 @@
+package com.acrescrypto.zksync.net.dht;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/** Datagram transport for DHTSocketManager, used in place of its UDP socket when set (e.g. to run many clients
+ * over a simulated network in a single JVM). Implementations deliver inbound datagrams to the receiver supplied in
+ * open() on threads of their own choosing. */
+public interface DHTTransport {
+	interface DatagramReceiver {
+		void receivedDatagram(String senderAddress, int senderPort, ByteBuffer data);
+	}
+
+	void open(String address, int port, DatagramReceiver receiver) throws SocketException;
+	void send(DatagramPacket packet) throws IOException;
+	void close();
+	boolean isOpen();
+	String getAddress();
+	int getPort();
+}
@@ -105,6 +105,8 @@ public class DHTZKArchiveDiscovery implements ArchiveDiscovery {
 			synchronized(entry) {
 				entry.notifyAll();
 			}
+			
+			accessor.getMaster().getDHTClient().getStateSignal().signal(); // wake threads still waiting for the DHT
 		}
 	}
 
@@ -114,7 +116,8 @@ public class DHTZKArchiveDiscovery implements ArchiveDiscovery {
 				Util.bytesToHex(entry.accessor.temporalSeedId(0)));
 		while(isDiscovering(entry.accessor)) {
 			try {
-				Util.blockOnPoll(()->isDiscovering(entry.accessor) && !entry.accessor.getMaster().getDHTClient().isInitialized());
+				DHTClient client = entry.accessor.getMaster().getDHTClient();
+				client.getStateSignal().waitWhile(()->isDiscovering(entry.accessor) && !client.isInitialized());
 				if(isDiscovering(entry.accessor)) {
 					discover(entry);
 				}
@@ -140,10 +143,8 @@ public class DHTZKArchiveDiscovery implements ArchiveDiscovery {
 		
 		while(isAdvertising(entry.accessor)) {
 			try {
-				Util.blockOnPoll( () ->
-					   isAdvertising(entry.accessor)
-					&& !entry.accessor.getMaster().getDHTClient().isInitialized()
-				  );
+				DHTClient client = entry.accessor.getMaster().getDHTClient();
+				client.getStateSignal().waitWhile(()->isAdvertising(entry.accessor) && !client.isInitialized());
 				if(isAdvertising(entry.accessor) && entry.canSend()) {
 					advertise(entry);
 					entry.resetSendTime();
@@ -1,54 +1,121 @@
 package com.acrescrypto.zksync.utility;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import org.apache.commons.lang3.mutable.MutableInt;
-
+/** Hierarchical token-bucket bandwidth allocator.
+ *
+ * Allocators form a tree for each direction of traffic: ZKMaster holds the root, each PeerSwarm hangs a node for its
+ * archive off of that, and each TCPPeerSocket hangs a node for its peer off of its swarm's. Any node may have a rate
+ * limit of its own, enforced by a token bucket that refills continuously at that rate and holds up to burstMs worth of
+ * tokens (or one allocation interval's worth, if that is more). Streams draw bytes through BandwidthAllocations
+ * attached to a node, and every limited node on the path to the root has to have the tokens.
+ *
+ * As long as nobody is going short, allocations take tokens directly. Once an allocation has to wait, its whole path
+ * is marked contended, and everything beneath a contended node queues for the next allocation round instead. Rounds
+ * are run once per allocation interval by whichever waiting thread gets there first. A round divides the available
+ * tokens by weighted max-min fairness, recursively from the root: each node splits what it is offered between its
+ * children and its own waiting allocations in proportion to their weight (allocations count as weight 1), and whatever
+ * one member cannot use goes back to the others. Bytes granted in a round expire at the next one.
+ *
+ * All state in a tree is guarded by the root's monitor.
+ */
 public class BandwidthAllocator {
 	public static long DEFAULT_ALLOCATION_INTERVAL_MS = 100;
 	
+	private BandwidthAllocator parent;
+	private ArrayList<BandwidthAllocator> children = new ArrayList<>();
+	private double weight = 1.0;
+	private long bytesPerSecond;
+	private long childBytesPerSecond = -1; // rate limit given to new children
+	private double tokens;
+	private long lastRefill;
+	private boolean contended; // some allocation beneath this node went short in the last round
+	private boolean removed;
+	
+	// only meaningful on the root
 	private long allocationIntervalMs;
-	private long allocationPool;
+	private long burstMs;
 	private long reallocationTime;
-	private long bytesPerSecond;
 	private boolean reallocating;
-	private Map<BandwidthAllocation,Long> pendingAllocations = new HashMap<>();
+	private int round;
+	private LinkedHashMap<BandwidthAllocation,Long> pendingAllocations = new LinkedHashMap<>();
 	
 	public class BandwidthAllocation {
 		long expirationTime;
 		long bytesRemaining;
+		long granted; // scratch space for reallocate()
 		
 		public BandwidthAllocation() {}
 		
+		public BandwidthAllocator getAllocator() {
+			return BandwidthAllocator.this;
+		}
+		
+		/** Reserve bytes ahead of time. They are good until the end of the next allocation interval. */
 		public void expect(long expectation) {
-			bytesRemaining += requestBytes(expectation);
+			long reserved = requestBytes(expectation);
+			synchronized(root()) {
+				bytesRemaining += reserved;
+				expirationTime = Math.max(expirationTime, Util.currentTimeMillis() + root().allocationIntervalMs);
+			}
 		}
 		
+		/** Request up to requestSize bytes, blocking until at least one is available. Returns number of bytes that may
+		 * be sent or received, or 0 if the thread is interrupted while waiting (its interrupt status is left set). */
 		public long requestBytes(long requestSize) {
-			if(isUnlimited()) return requestSize;
-			if(bytesRemaining <= 0 || Util.currentTimeMillis() >= expirationTime) {
-				renew(requestSize);
+			while(true) {
+				long allowed = tryRequestBytes(requestSize);
+				if(allowed > 0 || requestSize <= 0) return allowed;
+				if(!awaitRound(this)) return 0;
 			}
-			
-			long allowed = Math.min(bytesRemaining, requestSize);
-			if(allowed < requestSize) {
-				allowed += requestExtra(requestSize - allowed);
+		}
+		
+		/** Request up to requestSize bytes without blocking. If none are available, the allocation is queued for the
+		 * next round. */
+		public long tryRequestBytes(long requestSize) {
+			if(isUnlimited()) return requestSize;
+			BandwidthAllocator root = root();
+			synchronized(root) {
+				long now = Util.currentTimeMillis();
+				if(now >= expirationTime) bytesRemaining = 0;
+				
+				long allowed = Math.min(bytesRemaining, requestSize);
+				bytesRemaining -= allowed;
+				if(allowed < requestSize && !root.pendingAllocations.containsKey(this)) {
+					allowed += takeTokens(requestSize - allowed, now);
+				}
+				
+				if(allowed == 0 && requestSize > 0) {
+					enqueue(this, requestSize);
+				}
+				
+				return allowed;
 			}
-			
-			bytesRemaining -= allowed;
-			return allowed;
 		}
 		
+		/** Give up any bytes left over, and wait for the next round to grant more. */
 		public void renew(long requested) {
-			renewAllocation(this, requested);
+			if(requested <= 0) return;
+			synchronized(root()) {
+				bytesRemaining = 0;
+				enqueue(this, requested);
+			}
+			
+			awaitRound(this);
 		}
 		
 		public long getBytesRemaining() {
-			if(Util.currentTimeMillis() >= expirationTime) {
-				bytesRemaining = 0;
+			synchronized(root()) {
+				if(Util.currentTimeMillis() >= expirationTime) {
+					bytesRemaining = 0;
+				}
+				return bytesRemaining;
 			}
-			return bytesRemaining;
 		}
 		
 		public long getExpirationTime() {
@@ -58,105 +125,405 @@ public class BandwidthAllocator {
 	
 	public BandwidthAllocator(long bytesPerSecond, long allocationIntervalMs) {
 		this.allocationIntervalMs = allocationIntervalMs;
+		this.burstMs = allocationIntervalMs;
 		this.bytesPerSecond = bytesPerSecond;
+		this.lastRefill = Util.currentTimeMillis();
+		this.tokens = Math.max(0, bytesPerInterval());
 	}
 	
 	public BandwidthAllocator(long bytesPerSecond) {
 		this(bytesPerSecond, DEFAULT_ALLOCATION_INTERVAL_MS);
 	}
 	
+	protected BandwidthAllocator(BandwidthAllocator parent, double weight, long bytesPerSecond) {
+		this.parent = parent;
+		this.weight = weight;
+		this.bytesPerSecond = bytesPerSecond;
+		this.lastRefill = Util.currentTimeMillis();
+		this.tokens = Math.max(0, bytesPerInterval());
+	}
+	
+	/** Create a node beneath this one, limited to the current child rate limit. Its share of this node's bandwidth
+	 * under contention is proportional to weight. */
+	public BandwidthAllocator child(double weight) {
+		synchronized(root()) {
+			BandwidthAllocator child = new BandwidthAllocator(this, weight, childBytesPerSecond);
+			children.add(child);
+			return child;
+		}
+	}
+	
+	public BandwidthAllocator child() {
+		return child(1.0);
+	}
+	
+	/** Detach this node from the tree. Allocations beneath it become unlimited, so nothing is left waiting on it. */
+	public void remove() {
+		BandwidthAllocator root = root();
+		synchronized(root) {
+			if(parent == null || removed) return;
+			removed = true;
+			parent.children.remove(this);
+			root.notifyAll();
+		}
+	}
+	
 	public BandwidthAllocation requestAllocation() {
 		return new BandwidthAllocation();
 	}
 	
-	protected void renewAllocation(BandwidthAllocation allocation, long bytesRequested) {
-		boolean willReallocate = false;
-		synchronized(this) {
-			pendingAllocations.put(allocation, bytesRequested);
-			allocation.bytesRemaining = 0;
-			if(reallocating) {
-				try {
-					this.wait(); // woken after we call reallocate()
-				} catch (InterruptedException e) {}
-			} else {
-				// first thread to renew their allocation is responsible for calling reallocate()
-				willReallocate = reallocating = true;
+	public BandwidthAllocator root() {
+		BandwidthAllocator node = this;
+		while(node.parent != null) node = node.parent;
+		return node;
+	}
+	
+	public BandwidthAllocator getParent() {
+		return parent;
+	}
+	
+	protected void enqueue(BandwidthAllocation allocation, long bytesRequested) {
+		root().pendingAllocations.put(allocation, bytesRequested);
+		for(BandwidthAllocator node = this; node != null; node = node.parent) {
+			node.contended = true;
+		}
+	}
+	
+	/** Block until a round has served the allocation, running the round ourselves if nobody else is. Returns false if
+	 * the thread is interrupted first, in which case the allocation is taken out of the queue and the interrupt status
+	 * is restored. */
+	protected boolean awaitRound(BandwidthAllocation allocation) {
+		BandwidthAllocator root = root();
+		while(true) {
+			synchronized(root) {
+				if(!root.pendingAllocations.containsKey(allocation)) return true;
+				if(root.reallocating) {
+					try {
+						root.wait(); // woken after reallocate()
+					} catch (InterruptedException e) {
+						root.pendingAllocations.remove(allocation);
+						Thread.currentThread().interrupt();
+						return false;
+					}
+					continue;
+				}
+				
+				// first thread to find no round in progress is responsible for running the next one
+				root.reallocating = true;
+			}
+			
+			boolean interrupted = false;
+			try {
+				synchronized(root) {
+					long delay;
+					// a round can't hand anything out while the root's rate is 0, so hold off until that changes
+					while((delay = root.reallocationTime - Util.currentTimeMillis()) > 0 || root.bytesPerInterval() <= 0) {
+						if(allocation.getAllocator().isRemoved()) break;
+						root.wait(Math.max(1, delay > 0 ? delay : root.allocationIntervalMs));
+					}
+				}
+			} catch(InterruptedException exc) {
+				interrupted = true;
+			} finally {
+				synchronized(root) {
+					if(interrupted) {
+						// leave the round to the next waiter to come along
+						root.pendingAllocations.remove(allocation);
+					} else {
+						root.reallocate();
+					}
+					
+					root.reallocating = false;
+					root.notifyAll();
+				}
+			}
+			
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+				return false;
 			}
 		}
+	}
+	
+	/** Take bytes directly from the buckets along our path, provided nobody on it is waiting on a round. */
+	protected long takeTokens(long bytesRequested, long now) {
+		long available = bytesRequested;
+		for(BandwidthAllocator node = this; node != null; node = node.parent) {
+			if(node.contended) return 0;
+			if(node.isLimited()) {
+				node.refill(now);
+				available = Math.min(available, (long) node.tokens);
+			}
+		}
+		
+		if(available <= 0) return 0;
+		for(BandwidthAllocator node = this; node != null; node = node.parent) {
+			if(node.isLimited()) node.tokens -= available;
+		}
 		
-		if(willReallocate) {
-			while(Util.currentTimeMillis() < reallocationTime || bytesPerInterval() <= 0) {
-				Util.sleep(reallocationTime - Util.currentTimeMillis());
+		return available;
+	}
+	
+	/** Bytes that could be taken right now without waiting on a round. */
+	public long extraBytesAvailable() {
+		synchronized(root()) {
+			if(isUnlimited()) return Long.MAX_VALUE;
+			long available = Long.MAX_VALUE;
+			long now = Util.currentTimeMillis();
+			for(BandwidthAllocator node = this; node != null; node = node.parent) {
+				if(node.contended) return 0;
+				if(node.isLimited()) {
+					node.refill(now);
+					available = Math.min(available, (long) node.tokens);
+				}
 			}
 			
-			reallocate();
+			return available;
 		}
 	}
 	
-	public long extraBytesAvailable() {
-		return allocationPool;
+	protected void refill(long now) {
+		if(isLimited()) {
+			long elapsed = Math.max(0, now - lastRefill);
+			tokens = Math.min(burstBytes(), tokens + elapsed*bytesPerSecond/1000.0);
+		}
+		
+		lastRefill = now;
 	}
 	
-	protected boolean hasExtra() {
-		return allocationPool > 0;
+	protected void refillTree(long now) {
+		refill(now);
+		for(BandwidthAllocator child : children) {
+			child.refillTree(now);
+		}
 	}
 	
-	protected synchronized long requestExtra(long bytesRequested) {
-		long allocation = Math.min(allocationPool, bytesRequested);
-		allocationPool -= allocation;
-		return allocation;
+	protected double burstBytes() {
+		BandwidthAllocator root = root();
+		return Math.max(bytesPerSecond/1000.0*root.allocationIntervalMs, bytesPerSecond/1000.0*root.burstMs);
 	}
 	
-	protected synchronized void reallocate() {
-		allocationPool = bytesPerInterval();
-		MutableInt remaining = new MutableInt(pendingAllocations.size());
-		reallocationTime = Util.currentTimeMillis() + allocationIntervalMs;
+	/** Run an allocation round. Caller must hold the root's monitor. */
+	protected void reallocate() {
+		long now = Util.currentTimeMillis();
+		refillTree(now);
+		reallocationTime = now + allocationIntervalMs;
 		
-		while(allocationPool > 0 && remaining.intValue() > 0) {
-			long averagePortion = allocationPool / remaining.intValue();
-			pendingAllocations.forEach((allocation, bytesRequested)->{
-				if(allocation.bytesRemaining >= bytesRequested) return;
-				long bytesAllocated = Math.min(bytesRequested - allocation.bytesRemaining, averagePortion);
-				allocationPool -= bytesAllocated;
-				allocation.bytesRemaining += bytesAllocated;
+		HashMap<BandwidthAllocator,ArrayList<BandwidthAllocation>> waiting = new HashMap<>();
+		HashSet<BandwidthAllocator> hungry = new HashSet<>();
+		Iterator<BandwidthAllocation> it = pendingAllocations.keySet().iterator();
+		while(it.hasNext()) {
+			BandwidthAllocation allocation = it.next();
+			BandwidthAllocator node = allocation.getAllocator();
+			if(node.isRemoved()) {
+				it.remove(); // requestBytes will find itself unlimited and go on its way
+				continue;
+			}
+			
+			allocation.granted = 0;
+			waiting.computeIfAbsent(node, (n)->new ArrayList<>()).add(allocation);
+			for(; node != null && hungry.add(node); node = node.parent);
+		}
+		
+		distribute(Long.MAX_VALUE, waiting, hungry);
+		round++;
+		
+		clearContention();
+		it = pendingAllocations.keySet().iterator();
+		while(it.hasNext()) {
+			BandwidthAllocation allocation = it.next();
+			long requested = pendingAllocations.get(allocation);
+			if(allocation.granted < requested) {
+				// still short; nobody beneath these nodes jumps the queue until the next round
+				for(BandwidthAllocator node = allocation.getAllocator(); node != null; node = node.parent) {
+					node.contended = true;
+				}
+			}
+			
+			if(allocation.granted > 0) {
+				allocation.bytesRemaining = allocation.granted;
 				allocation.expirationTime = reallocationTime;
-				if(allocation.bytesRemaining >= bytesRequested) {
-					remaining.decrement();
+				it.remove();
+			}
+		}
+	}
+	
+	/** Hand out up to offer bytes to the waiting allocations beneath this node, weighted max-min fair. Returns the
+	 * number of bytes handed out. */
+	protected long distribute(long offer,
+			Map<BandwidthAllocator,ArrayList<BandwidthAllocation>> waiting,
+			HashSet<BandwidthAllocator> hungry) {
+		long budget = isLimited() ? Math.min(offer, (long) tokens) : offer;
+		
+		ArrayList<Object> members = new ArrayList<>();
+		for(BandwidthAllocator child : children) {
+			if(hungry.contains(child)) members.add(child);
+		}
+		
+		if(waiting.containsKey(this)) members.addAll(waiting.get(this));
+		if(members.isEmpty() || budget <= 0) return 0;
+		
+		// rotate the starting point each round, so nobody is always first in line for the remainder
+		int start = root().round % members.size();
+		ArrayList<Object> active = new ArrayList<>(members.size());
+		active.addAll(members.subList(start, members.size()));
+		active.addAll(members.subList(0, start));
+		
+		long remaining = budget;
+		while(remaining > 0 && !active.isEmpty()) {
+			double totalWeight = 0;
+			for(Object member : active) {
+				totalWeight += memberWeight(member);
+			}
+			
+			long roundStart = remaining;
+			Iterator<Object> it = active.iterator();
+			while(it.hasNext() && remaining > 0) {
+				Object member = it.next();
+				double share = (double) roundStart * memberWeight(member) / totalWeight;
+				long portion = (long) Math.max(1, Math.min(remaining, Math.floor(share)));
+				
+				if(member instanceof BandwidthAllocator) {
+					long used = ((BandwidthAllocator) member).distribute(portion, waiting, hungry);
+					remaining -= used;
+					if(used < portion) it.remove(); // it's taken all it can use
+				} else {
+					BandwidthAllocation allocation = (BandwidthAllocation) member;
+					long wanted = pendingAllocations().get(allocation) - allocation.granted;
+					long given = Math.min(portion, wanted);
+					allocation.granted += given;
+					remaining -= given;
+					if(given == wanted) it.remove();
 				}
-			});
+			}
 		}
 		
-		pendingAllocations.clear();
-		reallocating = false;
-		this.notifyAll();
+		long used = budget - remaining;
+		if(isLimited()) tokens -= used;
+		return used;
+	}
+	
+	protected double memberWeight(Object member) {
+		if(member instanceof BandwidthAllocator) return ((BandwidthAllocator) member).weight;
+		return 1.0;
+	}
+	
+	protected Map<BandwidthAllocation,Long> pendingAllocations() {
+		return root().pendingAllocations;
+	}
+	
+	protected void clearContention() {
+		contended = false;
+		for(BandwidthAllocator child : children) {
+			child.clearContention();
+		}
 	}
 	
 	public long getAllocationIntervalMs() {
-		return allocationIntervalMs;
+		return root().allocationIntervalMs;
 	}
 	
 	public void setBytesPerSecond(long bytesPerSecond) {
-		this.bytesPerSecond = bytesPerSecond;
+		synchronized(root()) {
+			refill(Util.currentTimeMillis());
+			this.bytesPerSecond = bytesPerSecond;
+			if(isLimited()) tokens = Math.min(tokens, burstBytes());
+			root().notifyAll(); // a round may be held up waiting for the rate to come off of 0
+		}
 	}
 	
 	public long getBytesPerSecond() {
 		return bytesPerSecond;
 	}
 	
+	/** Tightest rate limit on the path to the root, or -1 if there is none. */
+	public long getEffectiveBytesPerSecond() {
+		synchronized(root()) {
+			long effective = -1;
+			for(BandwidthAllocator node = this; node != null; node = node.parent) {
+				if(!node.isLimited()) continue;
+				if(effective < 0 || node.bytesPerSecond < effective) effective = node.bytesPerSecond;
+			}
+			
+			return effective;
+		}
+	}
+	
+	/** Set the rate limit for children created from now on, and apply it to existing children. */
+	public void setChildBytesPerSecond(long childBytesPerSecond) {
+		synchronized(root()) {
+			this.childBytesPerSecond = childBytesPerSecond;
+			for(BandwidthAllocator child : children) {
+				child.setBytesPerSecond(childBytesPerSecond);
+			}
+		}
+	}
+	
+	public long getChildBytesPerSecond() {
+		return childBytesPerSecond;
+	}
+	
+	public double getWeight() {
+		return weight;
+	}
+	
+	public void setWeight(double weight) {
+		synchronized(root()) {
+			this.weight = weight;
+		}
+	}
+	
+	/** Set how long an idle limited node may save up tokens for, tree-wide. Never less than one allocation interval. */
+	public void setBurstMs(long burstMs) {
+		synchronized(root()) {
+			root().burstMs = burstMs;
+		}
+	}
+	
+	public long getBurstMs() {
+		return root().burstMs;
+	}
+	
 	public void setReallocationTime(long reallocationTime) {
-		this.reallocationTime = reallocationTime;
+		synchronized(root()) {
+			root().reallocationTime = reallocationTime;
+		}
 	}
-
+	
 	public long getReallocationTime() {
-		return reallocationTime;
+		synchronized(root()) {
+			return root().reallocationTime;
+		}
 	}
 	
 	public long bytesPerInterval() {
-		if(isUnlimited()) return Long.MAX_VALUE;
-		return (long) (bytesPerSecond/1000.0 * allocationIntervalMs);
+		if(!isLimited()) return Long.MAX_VALUE;
+		return (long) (bytesPerSecond/1000.0 * getAllocationIntervalMs());
 	}
 	
+	public boolean isRemoved() {
+		synchronized(root()) {
+			for(BandwidthAllocator node = this; node != null; node = node.parent) {
+				if(node.removed) return true;
+			}
+			
+			return false;
+		}
+	}
+	
+	/** True if neither this node nor any of its ancestors has a rate limit, or the node has been removed. */
 	public boolean isUnlimited() {
-		return bytesPerSecond < 0;
+		synchronized(root()) {
+			for(BandwidthAllocator node = this; node != null; node = node.parent) {
+				if(node.removed) return true;
+				if(node.isLimited()) return false;
+			}
+			
+			return true;
+		}
+	}
+	
+	protected boolean isLimited() {
+		return bytesPerSecond >= 0;
 	}
 }
@@ -1,41 +1,36 @@
 package com.acrescrypto.zksync.utility;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/** Tracks the rate of traffic passing through a stream, socket, swarm or the whole process.
+ *
+ * Traffic is counted in a fixed ring of buckets, each sampleDurationMs wide and aligned to multiples of that duration,
+ * with enough of them to cover sampleExpirationMs. observeTraffic takes no locks: it finds the bucket for the current
+ * time, replacing it by compare-and-set if it is left over from an earlier turn of the ring, and adds to it
+ * atomically, so the only allocation is one bucket per sampleDurationMs. Parents are kept in a copy-on-write array,
+ * so passing observations up the chain is just as cheap. Rates are worked out from the ring when someone asks for
+ * them.
+ */
 public class BandwidthMonitor {
 	private int sampleDurationMs;
 	private int sampleExpirationMs;
-	private long lastRecalculationTime;
-	private long currentBytesInInterval;
 	private long startTime;
-	private long currentRateBytesPerSecond;
-	private long lifetimeBytes;
+	private LongAdder lifetimeBytes = new LongAdder();
 	
-	private LinkedList<BandwidthMonitor> parents = new LinkedList<>();
-	private LinkedList<Sample> samples = new LinkedList<>();
-	private Sample currentSample;
+	private volatile BandwidthMonitor[] parents = new BandwidthMonitor[0];
+	private AtomicReferenceArray<Bucket> buckets;
 	
-	class Sample {
-		long timeStart, finishTime, expirationTime;
-		long bytesSeen;
+	static class Bucket {
+		final long epoch; // bucket covers [epoch*sampleDurationMs, (epoch+1)*sampleDurationMs)
+		final long timeStart; // first observation in the bucket; the bucket expires sampleExpirationMs after this
+		final AtomicLong bytesSeen = new AtomicLong();
 		
-		public Sample() {
-			this.timeStart = Util.currentTimeMillis();
-			this.finishTime = Util.currentTimeMillis() + sampleDurationMs;
-			this.expirationTime = Util.currentTimeMillis() + sampleExpirationMs;
-			this.bytesSeen = 0;
-		}
-		
-		public boolean isFinished() {
-			return Util.currentTimeMillis() >= finishTime;
-		}
-		
-		public boolean isExpired() {
-			return Util.currentTimeMillis() >= expirationTime;
-		}
-		
-		public void addObservation(long bytes) {
-			this.bytesSeen += bytes;
+		Bucket(long epoch, long timeStart) {
+			this.epoch = epoch;
+			this.timeStart = timeStart;
 		}
 	}
 	
@@ -45,95 +40,104 @@ public class BandwidthMonitor {
 		this.sampleDurationMs = sampleDurationMs;
 		this.sampleExpirationMs = sampleExpirationMs;
 		this.startTime = Util.currentTimeMillis();
+		if(sampleDurationMs > 0 && sampleExpirationMs > 0) {
+			// enough buckets that everything inside the expiration window has a bucket of its own
+			this.buckets = new AtomicReferenceArray<>(sampleExpirationMs/sampleDurationMs + 2);
+		}
 	}
 	
 	public BandwidthMonitor(BandwidthMonitor parent) {
-		this.sampleDurationMs = parent.sampleDurationMs;
-		this.sampleExpirationMs = parent.sampleExpirationMs;
-		this.startTime = Util.currentTimeMillis();
+		this(parent.sampleDurationMs, parent.sampleExpirationMs);
 		this.addParent(parent);
 	}
 	
 	public void clear() {
-		this.samples.clear();
-		this.currentSample = null;
-		this.lastRecalculationTime = 0;
+		if(buckets == null) return;
+		for(int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, null);
+		}
 	}
-
+	
 	public long observeTraffic(long bytes) {
 		if(bytes <= 0) return bytes; // passthrough without doing anything
-		LinkedList<BandwidthMonitor> parentClone;
-		synchronized(this) {
-			lifetimeBytes += bytes;
-			if(sampleDurationMs == -1 && sampleExpirationMs == -1) return bytes;
-
-			parentClone = new LinkedList<>(parents);
-			if(currentSample == null || currentSample.isFinished()) {
-				currentSample = new Sample();
-				samples.add(currentSample);
-			}
-			
-			currentSample.addObservation(bytes);
-		}
-		
-		for(BandwidthMonitor parent : parentClone) {
-			parent.observeTraffic(bytes);
-		}
-		
+		recordWithParents(bytes, Util.currentTimeMillis());
 		return bytes;
 	}
 	
-	protected synchronized void recalculate() {
-		long totalSeen       = 0,
-			 oldestTimestamp = Math.max(
-						startTime,
-						Util.currentTimeMillis() - sampleExpirationMs
-					);
-		
-		samples.removeIf((sample)->sample.isExpired());
-		if(currentSample != null && currentSample.isExpired()) {
-			currentSample = null;
+	protected void recordWithParents(long bytes, long now) {
+		record(bytes, now);
+		for(BandwidthMonitor parent : parents) {
+			parent.recordWithParents(bytes, now);
 		}
-
-		if(currentSample == null) {
-			currentRateBytesPerSecond = 0;
-			return;
-		}
-
+	}
+	
+	protected void record(long bytes, long now) {
+		lifetimeBytes.add(bytes);
+		if(buckets == null) return;
 		
-		for(Sample sample : samples) {
-			totalSeen += sample.bytesSeen;
-			oldestTimestamp = Math.min(oldestTimestamp, sample.timeStart);
+		long epoch = now / sampleDurationMs;
+		int index = (int) (epoch % buckets.length());
+		while(true) {
+			Bucket bucket = buckets.get(index);
+			if(bucket != null && bucket.epoch == epoch) {
+				bucket.bytesSeen.addAndGet(bytes);
+				return;
+			}
+			
+			buckets.compareAndSet(index, bucket, new Bucket(epoch, now)); // if we lose the race, use the winner's bucket
 		}
-		
-		long sampleInterval = Util.currentTimeMillis() - oldestTimestamp;
-		currentRateBytesPerSecond = (long) ((1.0 * totalSeen) / (sampleInterval / 1000.0));
-		currentBytesInInterval = totalSeen;
-		lastRecalculationTime = Util.currentTimeMillis();
 	}
 	
-	protected void checkCalculation() {
-		if(Util.currentTimeMillis() > lastRecalculationTime) {
-			recalculate();
+	/** Sum the live buckets, returning { bytes seen, first observation in oldest live bucket }. */
+	protected long[] tally(long now) {
+		long totalSeen = 0, oldestStart = Long.MAX_VALUE;
+		if(buckets == null) return new long[] { 0, oldestStart };
+		
+		for(int i = 0; i < buckets.length(); i++) {
+			Bucket bucket = buckets.get(i);
+			if(bucket == null) continue;
+			
+			long bucketStart = bucket.timeStart;
+			if(now >= bucketStart + sampleExpirationMs || bucketStart > now) continue;
+			long seen = bucket.bytesSeen.get();
+			if(seen == 0) continue;
+			
+			totalSeen += seen;
+			oldestStart = Math.min(oldestStart, bucketStart);
 		}
+		
+		return new long[] { totalSeen, oldestStart };
 	}
 	
 	public synchronized void addParent(BandwidthMonitor parent) {
-		parents.add(parent);
+		BandwidthMonitor[] newParents = Arrays.copyOf(parents, parents.length + 1);
+		newParents[parents.length] = parent;
+		parents = newParents;
 	}
 	
 	public synchronized void removeParent(BandwidthMonitor parent) {
-		parents.remove(parent);
+		for(int i = 0; i < parents.length; i++) {
+			if(parents[i] != parent) continue;
+			BandwidthMonitor[] newParents = new BandwidthMonitor[parents.length - 1];
+			System.arraycopy(parents, 0, newParents, 0, i);
+			System.arraycopy(parents, i + 1, newParents, i, parents.length - i - 1);
+			parents = newParents;
+			return;
+		}
 	}
 	
 	public long getBytesPerSecond() {
-		checkCalculation();
-		return currentRateBytesPerSecond;
+		long now = Util.currentTimeMillis();
+		long[] tally = tally(now);
+		if(tally[0] == 0) return 0;
+		
+		long oldestTimestamp = Math.min(tally[1], Math.max(startTime, now - sampleExpirationMs));
+		long sampleInterval = Math.max(1, now - oldestTimestamp);
+		return (long) ((1.0 * tally[0]) / (sampleInterval / 1000.0));
 	}
 	
 	public long getBytesInInterval() {
-		checkCalculation();
-		return currentBytesInInterval;
+		return tally(Util.currentTimeMillis())[0];
 	}
 	
 	public int getSampleDurationMs() {
@@ -145,7 +149,7 @@ public class BandwidthMonitor {
 	}
 	
 	public long getLifetimeBytes() {
-		return lifetimeBytes;
+		return lifetimeBytes.sum();
 	}
 	
 	public String toString() {
@@ -1,5 +1,7 @@
 package com.acrescrypto.zksync.utility;
 
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -67,8 +69,17 @@ public class GroupedThreadPool {
 		return executor.submit(task);
 	}
 
-	public void shutdownNow() {
-		executor.shutdownNow();
+	public <T> Future<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	/** Returns the tasks that were still queued, and so will never run. */
+	public List<Runnable> shutdownNow() {
+		return executor.shutdownNow();
 	}
 
 	public boolean isShutdown() {
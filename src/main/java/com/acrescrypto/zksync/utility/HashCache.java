@@ -22,6 +22,7 @@ public class HashCache<K,V> {
 	
 	CacheLookup<K,V> lookup;
 	CacheEvict<K,V> evict;
+	MetricsRegistry.Counter hits, misses;
 	
 	public HashCache(int capacity, CacheLookup<K,V> lookup, CacheEvict<K,V> evict) {
 		this.capacity = capacity;
@@ -33,13 +34,26 @@ public class HashCache<K,V> {
 		this(existing.capacity, lookup, evict);
 		cache = new ConcurrentHashMap<>(existing.cache);
 		evictionQueue = new LinkedList<>(existing.evictionQueue);
+		hits = existing.hits;
+		misses = existing.misses;
+	}
+	
+	/** Count hits and misses in the shared metrics registry, under the given cache name. Caches with the same name
+	 * share counters. */
+	public HashCache<K,V> instrument(String name) {
+		MetricsRegistry registry = MetricsRegistry.sharedInstance();
+		hits = registry.counter("zksync_cache_hits_total", "Cache lookups satisfied from the cache", "cache", name);
+		misses = registry.counter("zksync_cache_misses_total", "Cache lookups that had to load the value", "cache", name);
+		return this;
 	}
 	
 	public synchronized V get(K key) throws IOException {
 		V result = cache.getOrDefault(key, null);
 		if(result == null) {
+			if(misses != null) misses.increment();
 			result = add(key);
 		} else {
+			if(hits != null) hits.increment();
 			resetKey(key);
 		}
 		return result;
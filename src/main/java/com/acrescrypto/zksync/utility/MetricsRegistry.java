@@ -0,0 +1,296 @@
+package com.acrescrypto.zksync.utility;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/** In-process registry of counters, gauges and histograms, exported by zksyncweb in Prometheus text format and as
+ * JSON.
+ *
+ * Metrics are identified by name plus label values; asking for the same name and labels twice gets the same metric,
+ * so call sites can look theirs up once and keep it. Recording is a no-op while metrics are disabled (the default;
+ * see the metrics.enabled config key), and timers don't even read the clock, so instrumented hot paths cost a field
+ * read and a branch. Gauges are evaluated only when the registry is read.
+ */
+public class MetricsRegistry {
+	public static volatile boolean enabled = false;
+
+	public final static double[] DEFAULT_LATENCY_BUCKETS = {
+			0.000010, 0.000050, 0.000100, 0.000500,
+			0.001, 0.005, 0.010, 0.050, 0.100, 0.500,
+			1.0, 5.0, 10.0 };
+
+	private static MetricsRegistry sharedInstance = new MetricsRegistry();
+
+	protected ConcurrentHashMap<String,Metric> metrics = new ConcurrentHashMap<>();
+
+	public static MetricsRegistry sharedInstance() {
+		return sharedInstance;
+	}
+
+	/** Start timing something for a histogram. Returns 0 without reading the clock if metrics are disabled. */
+	public static long startTimer() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	public abstract static class Metric {
+		protected final String name, help;
+		protected final String[] labels; // alternating label names and values
+
+		protected Metric(String name, String help, String[] labels) {
+			if(labels.length % 2 != 0) throw new IllegalArgumentException("labels must be name/value pairs");
+			this.name = name;
+			this.help = help;
+			this.labels = labels;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getHelp() {
+			return help;
+		}
+
+		public LinkedHashMap<String,String> getLabels() {
+			LinkedHashMap<String,String> map = new LinkedHashMap<>();
+			for(int i = 0; i < labels.length; i += 2) {
+				map.put(labels[i], labels[i+1]);
+			}
+
+			return map;
+		}
+
+		public abstract String getType();
+
+		protected abstract void writePrometheus(StringBuilder out);
+
+		protected String labelString(String... extra) {
+			if(labels.length == 0 && extra.length == 0) return "";
+			StringBuilder sb = new StringBuilder("{");
+			for(String[] set : new String[][] { labels, extra }) {
+				for(int i = 0; i < set.length; i += 2) {
+					if(sb.length() > 1) sb.append(",");
+					sb.append(set[i]).append("=\"").append(escape(set[i+1])).append("\"");
+				}
+			}
+
+			return sb.append("}").toString();
+		}
+
+		protected static String escape(String value) {
+			return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		}
+
+		protected static String format(double value) {
+			if(value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+				return Long.toString((long) value);
+			}
+
+			return Double.toString(value);
+		}
+	}
+
+	public static class Counter extends Metric {
+		protected final LongAdder value = new LongAdder();
+
+		protected Counter(String name, String help, String[] labels) {
+			super(name, help, labels);
+		}
+
+		public void increment() {
+			if(!enabled) return;
+			value.increment();
+		}
+
+		public void add(long n) {
+			if(!enabled) return;
+			value.add(n);
+		}
+
+		public long getValue() {
+			return value.sum();
+		}
+
+		@Override
+		public String getType() {
+			return "counter";
+		}
+
+		@Override
+		protected void writePrometheus(StringBuilder out) {
+			out.append(name).append(labelString()).append(" ").append(getValue()).append("\n");
+		}
+	}
+
+	/** Value read from a supplier whenever the registry is read. May be reported as a counter, for totals that are
+	 * already kept elsewhere. */
+	public static class Gauge extends Metric {
+		protected final DoubleSupplier supplier;
+		protected final String type;
+
+		protected Gauge(String name, String help, String type, DoubleSupplier supplier, String[] labels) {
+			super(name, help, labels);
+			this.type = type;
+			this.supplier = supplier;
+		}
+
+		public double getValue() {
+			return supplier.getAsDouble();
+		}
+
+		@Override
+		public String getType() {
+			return type;
+		}
+
+		@Override
+		protected void writePrometheus(StringBuilder out) {
+			out.append(name).append(labelString()).append(" ").append(format(getValue())).append("\n");
+		}
+	}
+
+	public static class Histogram extends Metric {
+		protected final double[] bounds;
+		protected final LongAdder[] bucketCounts; // one per bound, plus one for everything above the last
+		protected final DoubleAdder sum = new DoubleAdder();
+		protected final LongAdder count = new LongAdder();
+
+		protected Histogram(String name, String help, double[] bounds, String[] labels) {
+			super(name, help, labels);
+			this.bounds = bounds;
+			this.bucketCounts = new LongAdder[bounds.length + 1];
+			for(int i = 0; i < bucketCounts.length; i++) {
+				bucketCounts[i] = new LongAdder();
+			}
+		}
+
+		public void observe(double value) {
+			if(!enabled) return;
+			int i = 0;
+			while(i < bounds.length && value > bounds[i]) i++;
+			bucketCounts[i].increment();
+			sum.add(value);
+			count.increment();
+		}
+
+		/** Record the seconds elapsed since a time obtained from MetricsRegistry.startTimer(). */
+		public void observeSince(long startNanos) {
+			if(!enabled || startNanos == 0) return;
+			observe((System.nanoTime() - startNanos) / 1e9);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getSum() {
+			return sum.sum();
+		}
+
+		/** Cumulative counts, keyed by upper bound, as Prometheus reports them. */
+		public LinkedHashMap<String,Long> getBuckets() {
+			LinkedHashMap<String,Long> buckets = new LinkedHashMap<>();
+			long cumulative = 0;
+			for(int i = 0; i < bucketCounts.length; i++) {
+				cumulative += bucketCounts[i].sum();
+				buckets.put(i < bounds.length ? format(bounds[i]) : "+Inf", cumulative);
+			}
+
+			return buckets;
+		}
+
+		@Override
+		public String getType() {
+			return "histogram";
+		}
+
+		@Override
+		protected void writePrometheus(StringBuilder out) {
+			getBuckets().forEach((le, cumulative)->{
+				out.append(name).append("_bucket").append(labelString("le", le))
+				   .append(" ").append(cumulative).append("\n");
+			});
+
+			out.append(name).append("_sum").append(labelString()).append(" ").append(format(getSum())).append("\n");
+			out.append(name).append("_count").append(labelString()).append(" ").append(getCount()).append("\n");
+		}
+	}
+
+	public Counter counter(String name, String help, String... labels) {
+		return register(new Counter(name, help, labels));
+	}
+
+	public Histogram histogram(String name, String help, String... labels) {
+		return histogram(name, help, DEFAULT_LATENCY_BUCKETS, labels);
+	}
+
+	public Histogram histogram(String name, String help, double[] bounds, String... labels) {
+		return register(new Histogram(name, help, bounds, labels));
+	}
+
+	/** Register a gauge, replacing any existing metric with the same name and labels. */
+	public Gauge gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+		Gauge gauge = new Gauge(name, help, "gauge", supplier, labels);
+		metrics.put(key(gauge), gauge);
+		return gauge;
+	}
+
+	/** Register a counter whose value is kept elsewhere, replacing any existing metric with the same name and
+	 * labels. */
+	public Gauge counterFunction(String name, String help, DoubleSupplier supplier, String... labels) {
+		Gauge gauge = new Gauge(name, help, "counter", supplier, labels);
+		metrics.put(key(gauge), gauge);
+		return gauge;
+	}
+
+	public void remove(Metric metric) {
+		if(metric == null) return;
+		metrics.remove(key(metric), metric);
+	}
+
+	/** All registered metrics, sorted by name so that metrics sharing a name are adjacent. */
+	public Collection<Metric> getMetrics() {
+		ArrayList<Metric> list = new ArrayList<>(metrics.values());
+		list.sort(Comparator.comparing((Metric m)->m.name).thenComparing((m)->String.join(",", m.labels)));
+		return list;
+	}
+
+	/** Render every metric in the Prometheus text exposition format, version 0.0.4. */
+	public String toPrometheusText() {
+		StringBuilder out = new StringBuilder();
+		String lastName = null;
+		for(Metric metric : getMetrics()) {
+			if(!metric.name.equals(lastName)) {
+				out.append("# HELP ").append(metric.name).append(" ")
+				   .append(metric.help.replace("\\", "\\\\").replace("\n", "\\n")).append("\n");
+				out.append("# TYPE ").append(metric.name).append(" ").append(metric.getType()).append("\n");
+				lastName = metric.name;
+			}
+
+			metric.writePrometheus(out);
+		}
+
+		return out.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	protected <T extends Metric> T register(T metric) {
+		Metric existing = metrics.putIfAbsent(key(metric), metric);
+		if(existing == null) return metric;
+		if(existing.getClass() != metric.getClass()) {
+			throw new IllegalArgumentException("Metric " + metric.name + " already registered as " + existing.getType());
+		}
+
+		return (T) existing;
+	}
+
+	protected static String key(Metric metric) {
+		return metric.name + "\0" + String.join("\0", metric.labels);
+	}
+}
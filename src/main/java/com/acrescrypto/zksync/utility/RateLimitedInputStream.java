@@ -2,6 +2,7 @@ package com.acrescrypto.zksync.utility;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,7 +30,7 @@ public class RateLimitedInputStream extends InputStream {
 
 	@Override
 	public int read() throws IOException {
-		allocation.requestBytes(1); // guaranteed to return 1
+		if(allocation.requestBytes(1) == 0) throw new InterruptedIOException(); // otherwise guaranteed to return 1
 		monitor.observeTraffic(1);
 		return input.read();
 	}
@@ -42,6 +43,7 @@ public class RateLimitedInputStream extends InputStream {
 	@Override
 	public int read(byte[] buf, int offset, int length) throws IOException {
 		int readLen = (int) allocation.requestBytes(length);
+		if(readLen == 0 && length > 0) throw new InterruptedIOException();
 		int actualReadLen = input.read(buf, offset, readLen);
 //		logger.trace("RateLimitedInputStream rx {} bytes, authorized {}, requested {}",
 //				actualReadLen,
@@ -53,11 +55,13 @@ public class RateLimitedInputStream extends InputStream {
 	@Override
 	public long skip(long numSkipped) throws IOException {
 		int skipLen = (int) allocation.requestBytes(numSkipped);
+		if(skipLen == 0 && numSkipped > 0) throw new InterruptedIOException();
 		return monitor.observeTraffic(input.skip(skipLen));
 	}
 	
 	@Override
 	public int available() throws IOException {
+		if(allocator.isUnlimited()) return input.available();
 		return (int) Math.min(input.available(),
 				allocator.extraBytesAvailable() + allocation.getBytesRemaining());
 	}
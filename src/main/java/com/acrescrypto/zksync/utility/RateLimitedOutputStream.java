@@ -1,6 +1,7 @@
 package com.acrescrypto.zksync.utility;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 
 import org.slf4j.Logger;
@@ -41,7 +42,7 @@ public class RateLimitedOutputStream extends OutputStream {
 	
 	@Override
 	public void write(int b) throws IOException {
-		allocation.requestBytes(1); // guaranteed to return 1
+		if(allocation.requestBytes(1) == 0) throw new InterruptedIOException(); // otherwise guaranteed to return 1
 		output.write(b);
 		monitor.observeTraffic(1);
 	}
@@ -51,6 +52,7 @@ public class RateLimitedOutputStream extends OutputStream {
 		int written = 0;
 		while(written < len) {
 			int writeLen = (int) allocation.requestBytes(len - written);
+			if(writeLen == 0) throw new InterruptedIOException();
 //			logger.trace("RateLimitedOutputStream tx {} bytes, requested {}", writeLen, len);
 			output.write(b,  off + written, writeLen);
 			if(!allocator.isUnlimited()) flush(); // buffering weakens our control over bandwidth usage 
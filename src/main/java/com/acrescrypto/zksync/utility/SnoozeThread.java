@@ -1,6 +1,12 @@
 package com.acrescrypto.zksync.utility;
 
-public class SnoozeThread {
+/** Runs a callback once a delay has passed without the delay being renewed by snooze(), or once a maximum time has
+ * passed, whichever comes first. Despite the name, SnoozeThreads don't have threads of their own; they are timers on
+ * the SnoozeThreadSupervisor's wheel, and their callbacks run on its thread pool.
+ *
+ * Our fields are read by the supervisor's timer thread, so they are only touched under our lock. The supervisor takes
+ * our lock while holding its own, so we let go of ours before calling into it. */
+public class SnoozeThread implements TimerWheel.Timed {
 	public interface SnoozeThreadCallback {
 		void callback();
 	}
@@ -12,6 +18,7 @@ public class SnoozeThread {
 	private boolean cancelled;
 	private boolean callbackOnManualCancel;
 	SnoozeThreadCallback callback;
+	TimerWheel.Node<SnoozeThread> wheelNode; // guarded by SnoozeThreadSupervisor
 	
 	public SnoozeThread(long delayMs, boolean callbackOnManualCancel, SnoozeThreadCallback callback) {
 		this(delayMs, -1, callbackOnManualCancel, callback);
@@ -27,65 +34,87 @@ public class SnoozeThread {
 		SnoozeThreadSupervisor.shared().add(this);
 	}
 	
-	public synchronized void cancel() {
-		this.cancelled = true;
-		SnoozeThreadSupervisor.shared().update();
+	public void cancel() {
+		synchronized(this) {
+			this.cancelled = true;
+		}
+		
+		SnoozeThreadSupervisor.shared().cancelled(this);
 	}
 	
-	public boolean isCancelled() {
+	public synchronized boolean isCancelled() {
 		return this.cancelled;
 	}
 	
-	public boolean isExpired() {
+	public synchronized boolean isExpired() {
 		return System.currentTimeMillis() >= expiration;
 	}
 	
-	public void runTask() {
+	/** Called by the supervisor when the timer comes due. Returns false if the timer was already cancelled. */
+	synchronized boolean markFired() {
+		if(cancelled) return false;
 		cancelled = true;
+		return true;
+	}
+	
+	public void runTask() {
+		synchronized(this) {
+			cancelled = true;
+		}
+		
 		callback.callback();
 	}
 	
+	/** Push the expiration back to delayMs from now, up to the deadline. This doesn't touch the supervisor; the wheel
+	 * notices the new expiration when the old one comes up. */
 	public synchronized boolean snooze() {
 		if(cancelled) return false;
 		this.expiration = Math.min(deadline, System.currentTimeMillis() + delayMs);
 		return true;
 	}
 	
-	public long getFireTime() {
+	@Override
+	public synchronized long getFireTime() {
 		return Math.min(deadline, expiration);
 	}
 	
-	public long getDeadline() {
+	public synchronized long getDeadline() {
 		return deadline;
 	}
 	
-	public long getExpirationMs() {
+	public synchronized long getExpirationMs() {
 		return expiration;
 	}
 	
-	public long getMaxTimeMs() {
+	public synchronized long getMaxTimeMs() {
 		return maxTimeMs;
 	}
 	
 	public void setDelayMs(long delayMs) {
-		if(delayMs == this.delayMs) return;
+		synchronized(this) {
+			if(delayMs == this.delayMs) return;
+			
+			long newExpiration = this.expiration - this.delayMs + delayMs;
+			this.delayMs = delayMs;
+			this.expiration = newExpiration;
+		}
 		
-		long newExpiration = this.expiration - this.delayMs + delayMs;
-		this.delayMs = delayMs;
-		this.expiration = newExpiration;
 		SnoozeThreadSupervisor.shared().reevaluate(this);
 	}
 	
 	public void setMaxTimeMs(long maxTimeMs) {
-		if(maxTimeMs == this.maxTimeMs) return;
-
-		long newDeadline = this.deadline - this.maxTimeMs + maxTimeMs;
-		this.maxTimeMs = maxTimeMs;
-		this.deadline = newDeadline;
+		synchronized(this) {
+			if(maxTimeMs == this.maxTimeMs) return;
+			
+			long newDeadline = this.deadline - this.maxTimeMs + maxTimeMs;
+			this.maxTimeMs = maxTimeMs;
+			this.deadline = newDeadline;
+		}
+		
 		SnoozeThreadSupervisor.shared().reevaluate(this);
 	}
 
-	public long getDelayMs() {
+	public synchronized long getDelayMs() {
 		return delayMs;
 	}
 
@@ -1,13 +1,17 @@
 package com.acrescrypto.zksync.utility;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
 
+/** Keeps every SnoozeThread on a shared TimerWheel, watched by a single monitor thread. Due callbacks are handed to a
+ * small thread pool, so the number of pending timers doesn't affect the number of threads. Items are taken off the
+ * wheel under the supervisor's lock, and their callbacks are handed off only after it is released. */
 public class SnoozeThreadSupervisor {
 	static SnoozeThreadSupervisor shared;
 	
-	protected LinkedList<SnoozeThread> items = new LinkedList<>();
-	protected SnoozeThread nextExpiredItem;
+	protected TimerWheel<SnoozeThread> wheel = new TimerWheel<>(System.currentTimeMillis());
+	protected long nextCheckTime = Long.MAX_VALUE; // when the monitor thread next plans to wake
 	protected GroupedThreadPool threadPool = GroupedThreadPool.newFixedThreadPool("SnoozeThreadSupervisor", 4);
 	protected boolean closed;
 	
@@ -24,31 +28,49 @@ public class SnoozeThreadSupervisor {
 	}
 	
 	public synchronized void add(SnoozeThread item) {
-		items.add(item);
-		if(nextExpiredItem == null || item.getFireTime() < nextExpiredItem.getFireTime()) {
-			nextExpiredItem = item;
-			this.notifyAll();
-		}
+		if(item.wheelNode != null) return;
+		item.wheelNode = wheel.add(item, System.currentTimeMillis());
+		wakeIfSooner(item);
 	}
 	
-	/** Notify the supervisor that a SnoozeThread has changed */
+	/** Notify the supervisor that a SnoozeThread's delay or maximum time has changed */
 	public synchronized void reevaluate(SnoozeThread item) {
-		items.remove(item);
-		if(nextExpiredItem == item) {
-			nextExpiredItem = null;
+		if(item.isCancelled()) {
+			unschedule(item);
+		} else if(item.wheelNode == null) {
+			add(item);
+		} else {
+			wheel.reschedule(item.wheelNode);
+			wakeIfSooner(item);
+		}
+	}
+	
+	/** Notify the supervisor that a SnoozeThread has been cancelled. Runs its callback if it asked for one on manual
+	 * cancellation, unless the timer had already fired. */
+	public void cancelled(SnoozeThread item) {
+		synchronized(this) {
+			if(!unschedule(item)) return;
 		}
 		
-		if(!item.isCancelled()) {
-			add(item);
+		if(item.isCalledBackOnManualCancel()) {
+			runCallback(item);
 		}
 	}
 	
-	public boolean isEmpty() {
-		return items.isEmpty();
+	public synchronized boolean isEmpty() {
+		return wheel.isEmpty();
+	}
+	
+	public synchronized int size() {
+		return wheel.size();
 	}
 	
 	public synchronized void reset() {
-		items.clear();
+		for(SnoozeThread item : wheel.items()) {
+			item.wheelNode = null;
+		}
+		
+		wheel.clear();
 	}
 	
 	public synchronized void close() {
@@ -61,72 +83,100 @@ public class SnoozeThreadSupervisor {
 	
 	protected void monitorThread() {
 		Util.setThreadName("SnoozeThreadSupervisor monitor");
-		while(!closed) {
-			prune(true);
-			
+		ArrayList<SnoozeThread> due = new ArrayList<>();
+		while(true) {
 			synchronized(this) {
-				long waitTime = Long.MAX_VALUE;
-				
-				if(nextExpiredItem != null) {
-					waitTime = nextExpiredItem.getFireTime() - System.currentTimeMillis();
-				}
+				if(closed) return;
+				long now = System.currentTimeMillis();
+				wheel.advance(now, (item)->{
+					if(fire(item)) due.add(item);
+				});
 				
-				if(waitTime > 0) {
+				nextCheckTime = wheel.nextCheckTime();
+				long waitTime = nextCheckTime == Long.MAX_VALUE ? 0 : nextCheckTime - now;
+				if(due.isEmpty() && (waitTime > 0 || nextCheckTime == Long.MAX_VALUE)) {
 					try {
 						this.wait(waitTime);
 					} catch (InterruptedException e) {}
 				}
 			}
+			
+			for(SnoozeThread item : due) {
+				runCallback(item);
+			}
+			
+			due.clear();
 		}
 	}
 	
+	protected void wakeIfSooner(SnoozeThread item) {
+		if(item.getFireTime() >= nextCheckTime) return;
+		nextCheckTime = item.getFireTime();
+		this.notifyAll();
+	}
+	
+	protected boolean unschedule(SnoozeThread item) {
+		if(item.wheelNode == null) return false;
+		wheel.remove(item.wheelNode);
+		item.wheelNode = null;
+		return true;
+	}
+	
+	/** Take a due item off the wheel. Returns true if its callback should run, which the caller does once it has
+	 * released the supervisor's lock. */
+	protected boolean fire(SnoozeThread item) {
+		item.wheelNode = null;
+		return item.markFired();
+	}
+	
 	protected void runCallback(SnoozeThread item) {
-		if(threadPool.isShutdown()) return;
-		threadPool.submit(()->{
-			item.runTask();
-		});
+		try {
+			threadPool.submit(()->{
+				item.runTask();
+			});
+		} catch(RejectedExecutionException exc) {
+			// supervisor was closed while we weren't holding the lock
+		}
 	}
 	
-	public synchronized void prune(boolean runTasks) {
-		LinkedList<SnoozeThread> newList = new LinkedList<>();
-		nextExpiredItem = null;
-
-		for(SnoozeThread item : items) {
-			if(!item.isExpired() && !item.isCancelled()) {
-				newList.add(item);
-				if(nextExpiredItem == null || item.getFireTime() < nextExpiredItem.getFireTime()) {
-					nextExpiredItem = item;
+	/** Drop cancelled and expired items, running the callbacks of the expired ones if runTasks is set. Walks the
+	 * whole wheel, so this is for tests and diagnostics rather than routine use. */
+	public void prune(boolean runTasks) {
+		ArrayList<SnoozeThread> due = new ArrayList<>();
+		synchronized(this) {
+			long now = System.currentTimeMillis();
+			for(SnoozeThread item : wheel.items()) {
+				if(item.isCancelled()) {
+					unschedule(item);
+				} else if(item.isExpired() || item.getFireTime() <= now) {
+					unschedule(item);
+					if(runTasks && item.markFired()) due.add(item);
 				}
-				
-				continue;
-			}
-			
-			// item must be expired or cancelled
-			
-			if(runTasks && (item.isExpired() || item.isCalledBackOnManualCancel())) {
-				runCallback(item);
 			}
 		}
 		
-		items = newList;
+		for(SnoozeThread item : due) {
+			runCallback(item);
+		}
 	}
-
-	public Collection<SnoozeThread> getItems() {
-		return items;
+	
+	/** Snapshot of pending items. Walks the whole wheel. */
+	public synchronized Collection<SnoozeThread> getItems() {
+		return wheel.items();
 	}
 	
 	public synchronized String report() {
-		String output = "Pending snooze threads: " + items.size() + "\n";
-		for(SnoozeThread item : items) {
+		String output = "Pending snooze threads: " + wheel.size() + "\n";
+		for(SnoozeThread item : wheel.items()) {
 			output += "\t" + item.getDelayMs() + "ms " + item.callback.getClass().getSimpleName() + "\n";
 		}
-		return output; 
+		return output;
 	}
-
+	
 	public synchronized void dump() {
 		System.out.println(report());
 	}
-
+	
 	public synchronized void update() {
 		this.notifyAll();
 	}
@@ -0,0 +1,68 @@
+package com.acrescrypto.zksync.utility;
+
+import com.acrescrypto.zksync.utility.Util.WaitTest;
+
+/** Wakes threads waiting on some piece of state as soon as that state changes.
+ *
+ * Waiters supply a test, as with Util.waitUntil, and block for as long as it passes. Whoever changes the state the
+ * test looks at calls signal() afterwards, and every waiter re-runs its test. Tests are run without holding the
+ * signal's lock, so signal() may be called while holding other locks. The signal counts changes rather than setting a
+ * flag, so a change that lands between a waiter's test and its wait is not lost.
+ *
+ * cancel() wakes every waiter for good, and later waits return without blocking. Owners cancel their signal when
+ * they close, so that nobody is left waiting on state that will never change again.
+ */
+public class StateSignal {
+	protected long    generation;
+	protected boolean cancelled;
+
+	/** Wake all waiters so that they re-run their tests. */
+	public synchronized void signal() {
+		generation++;
+		this.notifyAll();
+	}
+
+	/** Wake all waiters, and stop any future wait from blocking. */
+	public synchronized void cancel() {
+		cancelled = true;
+		signal();
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** Block for as long as test passes. Returns true if the test stopped passing, or false if the wait timed out, the
+	 * signal was cancelled or the thread was interrupted first. An interrupted thread keeps its interrupt status. A
+	 * timeout of zero or less waits indefinitely. */
+	public boolean waitWhile(long timeoutMs, WaitTest test) {
+		long deadline = timeoutMs <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMs;
+		while(true) {
+			long seen;
+			synchronized(this) {
+				if(cancelled) return !test.test();
+				seen = generation;
+			}
+
+			if(!test.test()) return true;
+
+			synchronized(this) {
+				while(generation == seen) {
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0) return false;
+
+					try {
+						this.wait(deadline == Long.MAX_VALUE ? 0 : remaining);
+					} catch(InterruptedException exc) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+			}
+		}
+	}
+
+	public boolean waitWhile(WaitTest test) {
+		return waitWhile(0, test);
+	}
+}
@@ -0,0 +1,278 @@
+package com.acrescrypto.zksync.utility;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/** Hierarchical timing wheel, after Varghese and Lauck, with a resolution of one millisecond.
+ *
+ * Level 0 has 256 one-millisecond slots. Each level above it has 64 slots, each as wide as a full turn of the level
+ * below, so five levels cover about 50 days; timers further out than that sit in the top level and are re-placed
+ * when they come due. When a level's current slot comes up, its timers are cascaded into the levels below. Adding or
+ * removing a timer is constant-time, and advancing the wheel skips over turns in which nothing is scheduled.
+ *
+ * A timer is placed according to its fire time when it is added. If the fire time has moved later by the time its
+ * slot comes up, it is simply placed again, so pushing a timer back costs nothing up front. Timers whose fire time
+ * moves earlier must be rescheduled explicitly.
+ *
+ * Not thread-safe; callers are expected to synchronize.
+ */
+public class TimerWheel<T extends TimerWheel.Timed> {
+	public interface Timed {
+		/** Time, in milliseconds, at or after which this timer is due. */
+		long getFireTime();
+	}
+
+	/** A timer's place in the wheel. */
+	public static class Node<T> {
+		protected T       item;
+		protected Node<T> prev, next;
+		protected int     level = -1, slot;
+
+		protected Node(T item) {
+			this.item = item;
+		}
+
+		public T getItem() {
+			return item;
+		}
+
+		public boolean isScheduled() {
+			return level >= 0;
+		}
+	}
+
+	public final static int[] LEVEL_BITS = { 8, 6, 6, 6, 6 };
+	public final static int   LEVELS     = LEVEL_BITS.length;
+
+	protected final int[]       shifts = new int[LEVELS];
+	protected final Node<T>[][] heads;
+	protected final Node<T>[][] tails;
+	protected final int[]       counts = new int[LEVELS];
+	protected final long        maxDelta;
+	protected long              currentTick; // next tick to be processed
+	protected int               size;
+
+	public TimerWheel(long startTime) {
+		heads = newLevels();
+		tails = newLevels();
+
+		int shift = 0;
+		for(int level = 0; level < LEVELS; level++) {
+			shifts[level] = shift;
+			heads[level] = newSlots(1 << LEVEL_BITS[level]);
+			tails[level] = newSlots(1 << LEVEL_BITS[level]);
+			shift += LEVEL_BITS[level];
+		}
+
+		this.maxDelta    = (1L << shift) - 1;
+		this.currentTick = startTime;
+	}
+
+	/** Schedule an item at its current fire time. now is only consulted if the wheel is empty, to catch up a wheel
+	 * that has sat idle. */
+	public Node<T> add(T item, long now) {
+		if(size == 0 && now > currentTick) currentTick = now;
+		Node<T> node = new Node<>(item);
+		place(node);
+		return node;
+	}
+
+	/** Remove a node from the wheel. Does nothing if the node is not scheduled. */
+	public void remove(Node<T> node) {
+		if(!node.isScheduled()) return;
+		unlink(node);
+	}
+
+	/** Re-place a scheduled node after its fire time has moved earlier. */
+	public void reschedule(Node<T> node) {
+		if(!node.isScheduled()) return;
+		unlink(node);
+		place(node);
+	}
+
+	/** Process every tick up to and including now, handing each timer that has come due to the callback, in order of
+	 * fire time to the millisecond. Due nodes are no longer scheduled when the callback receives them. */
+	public void advance(long now, Consumer<T> due) {
+		while(currentTick <= now) {
+			if(counts[0] == 0) {
+				// nothing can come due before the next cascade from a non-empty level, so skip straight to it
+				int level = 1;
+				while(level < LEVELS && counts[level] == 0) level++;
+				if(level == LEVELS) {
+					currentTick = now + 1;
+					break;
+				}
+
+				long granularity = 1L << shifts[level];
+				long boundary = (currentTick + granularity - 1) & ~(granularity - 1);
+				if(boundary > now) {
+					currentTick = now + 1;
+					break;
+				}
+
+				currentTick = boundary;
+			}
+
+			cascade();
+
+			int index = (int) (currentTick & (heads[0].length - 1));
+			Node<T> node = heads[0][index];
+			heads[0][index] = tails[0][index] = null;
+			while(node != null) {
+				Node<T> next = node.next;
+				counts[0]--;
+				size--;
+				node.prev = node.next = null;
+				node.level = -1;
+
+				if(node.item.getFireTime() <= now) {
+					due.accept(node.item);
+				} else {
+					place(node);
+				}
+
+				node = next;
+			}
+
+			currentTick++;
+		}
+	}
+
+	/** Earliest time at which advance() may have something to do, or Long.MAX_VALUE if the wheel is empty. */
+	public long nextCheckTime() {
+		long next = Long.MAX_VALUE;
+		if(counts[0] > 0) {
+			int mask = heads[0].length - 1;
+			for(int i = 0; i <= mask; i++) {
+				if(heads[0][(int) ((currentTick + i) & mask)] != null) {
+					next = currentTick + i;
+					break;
+				}
+			}
+		}
+
+		for(int level = 1; level < LEVELS; level++) {
+			if(counts[level] == 0) continue;
+			long granularity = 1L << shifts[level];
+			return Math.min(next, (currentTick + granularity - 1) & ~(granularity - 1));
+		}
+
+		return next;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public ArrayList<T> items() {
+		ArrayList<T> items = new ArrayList<>(size);
+		for(Node<T>[] level : heads) {
+			for(Node<T> node : level) {
+				for(; node != null; node = node.next) {
+					items.add(node.item);
+				}
+			}
+		}
+
+		return items;
+	}
+
+	public void clear() {
+		for(int level = 0; level < LEVELS; level++) {
+			for(int slot = 0; slot < heads[level].length; slot++) {
+				for(Node<T> node = heads[level][slot]; node != null; node = node.next) {
+					node.level = -1;
+				}
+
+				heads[level][slot] = tails[level][slot] = null;
+			}
+
+			counts[level] = 0;
+		}
+
+		size = 0;
+	}
+
+	/** Redistribute the current slot of every level whose turn is starting at currentTick, top level first. */
+	protected void cascade() {
+		for(int level = LEVELS - 1; level >= 1; level--) {
+			if((currentTick & ((1L << shifts[level]) - 1)) != 0) continue;
+			if(counts[level] == 0) continue;
+
+			int index = (int) ((currentTick >> shifts[level]) & (heads[level].length - 1));
+			Node<T> node = heads[level][index];
+			heads[level][index] = tails[level][index] = null;
+			while(node != null) {
+				Node<T> next = node.next;
+				counts[level]--;
+				size--;
+				node.prev = node.next = null;
+				node.level = -1;
+				place(node);
+				node = next;
+			}
+		}
+	}
+
+	protected void place(Node<T> node) {
+		long fireTime = Math.max(node.item.getFireTime(), currentTick);
+		long delta = fireTime - currentTick;
+		if(delta > maxDelta) {
+			delta = maxDelta;
+			fireTime = currentTick + maxDelta;
+		}
+
+		int level = 0;
+		while(level < LEVELS - 1 && delta >= 1L << shifts[level + 1]) level++;
+
+		int index = (int) ((fireTime >> shifts[level]) & (heads[level].length - 1));
+		node.level = level;
+		node.slot = index;
+		node.prev = tails[level][index];
+		node.next = null;
+		if(node.prev != null) {
+			node.prev.next = node;
+		} else {
+			heads[level][index] = node;
+		}
+
+		tails[level][index] = node;
+		counts[level]++;
+		size++;
+	}
+
+	protected void unlink(Node<T> node) {
+		int level = node.level, index = node.slot;
+		if(node.prev != null) {
+			node.prev.next = node.next;
+		} else {
+			heads[level][index] = node.next;
+		}
+
+		if(node.next != null) {
+			node.next.prev = node.prev;
+		} else {
+			tails[level][index] = node.prev;
+		}
+
+		node.prev = node.next = null;
+		node.level = -1;
+		counts[level]--;
+		size--;
+	}
+
+	// Java can't create arrays of a generic type, but an array of Node<?> only ever holds our own Node<T>s
+	@SuppressWarnings("unchecked")
+	protected static <T> Node<T>[][] newLevels() {
+		return (Node<T>[][]) new Node<?>[LEVELS][];
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static <T> Node<T>[] newSlots(int size) {
+		return (Node<T>[]) new Node<?>[size];
+	}
+}
@@ -196,12 +196,6 @@ public class Util {
 		return true;
 	}
 	
-	public static void blockOnPoll(WaitTest test) {
-		while(test.test()) {
-			sleep(1);
-		}
-	}
-	
 	public static void delay(long delay, AnonymousCallback action) {
 		new SnoozeThread(delay, false, ()->{try { action.cb(); } catch(Exception exc) {}}).hashCode();
 	}
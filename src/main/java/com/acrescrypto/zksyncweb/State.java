@@ -18,13 +18,16 @@ import com.acrescrypto.zksync.fs.FSPath;
 import com.acrescrypto.zksync.fs.ramfs.RAMFS;
 import com.acrescrypto.zksync.fs.zkfs.PassphraseProvider;
 import com.acrescrypto.zksync.fs.zkfs.RevisionTag;
+import com.acrescrypto.zksync.fs.zkfs.StoredAccess.ActivationCallback;
+import com.acrescrypto.zksync.fs.zkfs.StoredAccess.HibernationCallback;
+import com.acrescrypto.zksync.fs.zkfs.StoredAccessRecord;
 import com.acrescrypto.zksync.fs.zkfs.ZKArchiveConfig;
 import com.acrescrypto.zksync.fs.zkfs.ZKFS;
 import com.acrescrypto.zksync.fs.zkfs.ZKFSManager;
 import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
 import com.acrescrypto.zksync.utility.Util;
 
-public class State implements AutoCloseable {
+public class State implements AutoCloseable, ActivationCallback, HibernationCallback {
     public static boolean TEST_MODE = false;
     
 	public class TrackedFS {
@@ -116,11 +119,15 @@ public class State implements AutoCloseable {
 	
 	public State(byte[] passphrase, String path) throws IOException {
 		this.master = ZKMaster.openAtPath(new OneTimePassphraseProvider(passphrase), path);
+		master.storedAccess().addActivationCallback(this);
+		master.storedAccess().addHibernationCallback(this);
 		initManagers();
 	}
 	
 	public State(byte[] passphrase, FS storage) throws IOException {
 		this.master = ZKMaster.open(new OneTimePassphraseProvider(passphrase), storage);
+		master.storedAccess().addActivationCallback(this);
+		master.storedAccess().addHibernationCallback(this);
 		initManagers();
 	}
 	
@@ -154,27 +161,79 @@ public class State implements AutoCloseable {
 		archiveId = Util.fromWebSafeBase64(archiveId);
 		for(ZKArchiveConfig config : getOpenConfigs()) {
 			String b64 = Base64.getEncoder().encodeToString(config.getArchiveId());
-			if(b64.startsWith(archiveId)) return config;
+			if(b64.startsWith(archiveId)) {
+				StoredAccessRecord record = master.storedAccess().recordForArchiveId(config.getArchiveId());
+				if(record != null) record.touch(); // keeps the archive from hibernating
+				return config;
+			}
+		}
+		
+		for(StoredAccessRecord record : master.storedAccess().records()) {
+			String b64 = Base64.getEncoder().encodeToString(record.getArchiveId());
+			if(b64.startsWith(archiveId)) return configForArchiveId(record.getArchiveId());
 		}
 		
 		return null;
 	}
 	
 	public ZKArchiveConfig configForArchiveId(byte[] archiveId) {
-		for(ZKArchiveConfig config : getOpenConfigs()) {
-			if(Arrays.equals(config.getArchiveId(), archiveId)) {
-				try {
-					activeFs(config);
-				} catch (IOException exc) {
-					logger.error("Caught exception instantiating active FS for archive {}",
-							Util.bytesToHex(archiveId),
-							exc);
-				}
-				return config;
-			}
+		ZKArchiveConfig config;
+		try {
+			config = master.activateArchive(archiveId);
+		} catch (IOException exc) {
+			logger.error("Caught exception activating archive {}",
+					Util.bytesToHex(archiveId),
+					exc);
+			return null;
 		}
 		
-		return null;
+		if(config == null) return null;
+		
+		try {
+			activeFs(config);
+		} catch (IOException exc) {
+			logger.error("Caught exception instantiating active FS for archive {}",
+					Util.bytesToHex(archiveId),
+					exc);
+		}
+		
+		return config;
+	}
+	
+	/* Archives may still be starting in the background when we're constructed, so each one gets its manager (and
+	 * with it its saved advertising and mirroring settings) as soon as it is ready. */
+	@Override
+	public void activatedArchive(ZKArchiveConfig config) {
+		try {
+			activeManager(config);
+		} catch (IOException exc) {
+			logger.error("Caught exception instantiating active FS for archive {}",
+					Util.bytesToHex(config.getArchiveId()),
+					exc);
+		}
+	}
+	
+	@Override
+	public boolean mayHibernate(ZKArchiveConfig config) {
+		ZKFSManager manager = activeFilesystems.get(config);
+		if(manager == null) return true;
+		return !manager.isAutocommiting()
+		    && !manager.isAutofollowing()
+		    && !manager.isAutomirroring();
+	}
+	
+	@Override
+	public void willHibernate(ZKArchiveConfig config) {
+		ZKFSManager manager = activeFilesystems.remove(config);
+		if(manager == null) return;
+		
+		try {
+			manager.close();
+		} catch (IOException exc) {
+			logger.error("Caught exception closing FS manager for hibernating archive {}",
+					Util.bytesToHex(config.getArchiveId()),
+					exc);
+		}
 	}
 	
 	public ZKFS activeFs(ZKArchiveConfig config) throws IOException {
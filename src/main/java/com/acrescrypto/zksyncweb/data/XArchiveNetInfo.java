@@ -30,8 +30,8 @@ public class XArchiveNetInfo {
 		this.bytesPerSecondTx = config.getSwarm().getBandwidthMonitorTx().getBytesPerSecond();
 		this.bytesPerSecondRx = config.getSwarm().getBandwidthMonitorRx().getBytesPerSecond();
 		
-		this.maxBytesPerSecondTx = config.getSwarm().getBandwidthAllocatorTx().getBytesPerSecond();
-		this.maxBytesPerSecondRx = config.getSwarm().getBandwidthAllocatorRx().getBytesPerSecond();
+		this.maxBytesPerSecondTx = config.getSwarm().getBandwidthAllocatorTx().getEffectiveBytesPerSecond();
+		this.maxBytesPerSecondRx = config.getSwarm().getBandwidthAllocatorRx().getEffectiveBytesPerSecond();
 
 		this.lifetimeBytesTx = config.getSwarm().getBandwidthMonitorTx().getLifetimeBytes();
 		this.lifetimeBytesRx = config.getSwarm().getBandwidthMonitorRx().getLifetimeBytes();
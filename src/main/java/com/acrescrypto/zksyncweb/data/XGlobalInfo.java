@@ -13,6 +13,7 @@ public class XGlobalInfo {
 	private Long                   lifetimeBytesTx;
 	private Long                   lifetimeBytesRx;
 	private Integer                numArchives;
+	private Integer                numArchivesStarting;
 	private HashMap<String,Object> settings;
 	private Boolean                isListening;
 	private Long                   memoryUsed;
@@ -29,6 +30,7 @@ public class XGlobalInfo {
 		info.lifetimeBytesTx    = master.getBandwidthMonitorTx().getLifetimeBytes();
 		info.lifetimeBytesRx    = master.getBandwidthMonitorRx().getLifetimeBytes();
 		info.numArchives        = master.allConfigs().size();
+		info.numArchivesStarting = master.storedAccess().numPendingStartup();
 		info.isListening        = master.getTCPListener().isListening();
 		info.settings           = master.getGlobalConfig().asHash();
 		info.memoryUsed         = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
@@ -63,6 +65,14 @@ public class XGlobalInfo {
 		this.numArchives = numArchives;
 	}
 
+	public Integer getNumArchivesStarting() {
+		return numArchivesStarting;
+	}
+
+	public void setNumArchivesStarting(Integer numArchivesStarting) {
+		this.numArchivesStarting = numArchivesStarting;
+	}
+
 	public HashMap<String,Object> getSettings() {
 		return settings;
 	}
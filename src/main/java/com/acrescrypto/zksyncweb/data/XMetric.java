@@ -0,0 +1,103 @@
+package com.acrescrypto.zksyncweb.data;
+
+import java.util.LinkedHashMap;
+
+import com.acrescrypto.zksync.utility.MetricsRegistry.Counter;
+import com.acrescrypto.zksync.utility.MetricsRegistry.Gauge;
+import com.acrescrypto.zksync.utility.MetricsRegistry.Histogram;
+import com.acrescrypto.zksync.utility.MetricsRegistry.Metric;
+
+public class XMetric {
+	private String name;
+	private String type;
+	private String help;
+	private LinkedHashMap<String,String> labels;
+	private Double value;
+	private LinkedHashMap<String,Long> buckets;
+	private Double sum;
+	private Long count;
+	
+	public XMetric() {}
+	
+	public XMetric(Metric metric) {
+		this.name = metric.getName();
+		this.type = metric.getType();
+		this.help = metric.getHelp();
+		this.labels = metric.getLabels();
+		
+		if(metric instanceof Counter) {
+			this.value = (double) ((Counter) metric).getValue();
+		} else if(metric instanceof Gauge) {
+			this.value = ((Gauge) metric).getValue();
+		} else if(metric instanceof Histogram) {
+			Histogram histogram = (Histogram) metric;
+			this.buckets = histogram.getBuckets();
+			this.sum = histogram.getSum();
+			this.count = histogram.getCount();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getHelp() {
+		return help;
+	}
+
+	public void setHelp(String help) {
+		this.help = help;
+	}
+
+	public LinkedHashMap<String, String> getLabels() {
+		return labels;
+	}
+
+	public void setLabels(LinkedHashMap<String, String> labels) {
+		this.labels = labels;
+	}
+
+	public Double getValue() {
+		return value;
+	}
+
+	public void setValue(Double value) {
+		this.value = value;
+	}
+
+	public LinkedHashMap<String, Long> getBuckets() {
+		return buckets;
+	}
+
+	public void setBuckets(LinkedHashMap<String, Long> buckets) {
+		this.buckets = buckets;
+	}
+
+	public Double getSum() {
+		return sum;
+	}
+
+	public void setSum(Double sum) {
+		this.sum = sum;
+	}
+
+	public Long getCount() {
+		return count;
+	}
+
+	public void setCount(Long count) {
+		this.count = count;
+	}
+}
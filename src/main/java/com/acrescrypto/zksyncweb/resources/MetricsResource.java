@@ -0,0 +1,35 @@
+package com.acrescrypto.zksyncweb.resources;
+
+import java.util.ArrayList;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import com.acrescrypto.zksync.utility.MetricsRegistry;
+import com.acrescrypto.zksync.utility.MetricsRegistry.Metric;
+import com.acrescrypto.zksyncweb.data.XAPIResponse;
+import com.acrescrypto.zksyncweb.data.XMetric;
+
+@Path("/metrics")
+public class MetricsResource {
+	/** Prometheus text exposition format, for scrapers. */
+	@GET
+	@Produces("text/plain; version=0.0.4")
+	public String getMetrics() {
+		return MetricsRegistry.sharedInstance().toPrometheusText();
+	}
+	
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@Path("/json")
+	public XAPIResponse getMetricsJson() {
+		ArrayList<XMetric> metrics = new ArrayList<>();
+		for(Metric metric : MetricsRegistry.sharedInstance().getMetrics()) {
+			metrics.add(new XMetric(metric));
+		}
+		
+		throw XAPIResponse.withWrappedPayload("metrics", metrics);
+	}
+}
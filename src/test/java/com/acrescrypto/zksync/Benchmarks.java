@@ -13,12 +13,42 @@ import org.junit.runners.Suite;
 import com.acrescrypto.zksync.crypto.CryptoBenchmark;
 import com.acrescrypto.zksync.exceptions.BenchmarkFinishedException;
 import com.acrescrypto.zksync.fs.FSBenchmarks;
+import com.acrescrypto.zksync.fs.backedfs.BackedFSBenchmark;
+import com.acrescrypto.zksync.fs.zkfs.CommitBenchmark;
+import com.acrescrypto.zksync.fs.zkfs.FreeListBenchmark;
+import com.acrescrypto.zksync.fs.zkfs.InodeTableMaintenanceBenchmark;
+import com.acrescrypto.zksync.fs.zkfs.SnapshotBenchmark;
+import com.acrescrypto.zksync.fs.zkfs.StoredAccessBenchmark;
+import com.acrescrypto.zksync.net.PageVerifierBenchmark;
+import com.acrescrypto.zksync.net.PeerConnectionWaitBenchmark;
+import com.acrescrypto.zksync.net.TCPPeerSocketListenerBenchmark;
+import com.acrescrypto.zksync.net.dht.DHTBenchmark;
+import com.acrescrypto.zksync.net.dht.DHTRecordStoreBenchmark;
+import com.acrescrypto.zksync.net.dht.DHTSimulationBenchmark;
+import com.acrescrypto.zksync.net.dht.DHTSocketBenchmark;
+import com.acrescrypto.zksync.utility.BandwidthMonitorBenchmark;
+import com.acrescrypto.zksync.utility.SnoozeThreadBenchmark;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	FSBenchmarks.class,
-	CryptoBenchmark.class
+	CryptoBenchmark.class,
+	DHTBenchmark.class,
+	DHTRecordStoreBenchmark.class,
+	DHTSimulationBenchmark.class,
+	DHTSocketBenchmark.class,
+	TCPPeerSocketListenerBenchmark.class,
+	PageVerifierBenchmark.class,
+	StoredAccessBenchmark.class,
+	FreeListBenchmark.class,
+	CommitBenchmark.class,
+	SnapshotBenchmark.class,
+	InodeTableMaintenanceBenchmark.class,
+	PeerConnectionWaitBenchmark.class,
+	SnoozeThreadBenchmark.class,
+	BandwidthMonitorBenchmark.class,
+	BackedFSBenchmark.class
 })
 
 public class Benchmarks {
@@ -4,6 +4,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 import com.acrescrypto.zksync.fs.localfs.LocalFSBenchmark;
+import com.acrescrypto.zksync.fs.localfs.LocalFSPageWriteBenchmark;
 import com.acrescrypto.zksync.fs.ramfs.RAMFSBenchmark;
 import com.acrescrypto.zksync.fs.zkfs.ZKFSLocalBenchmark;
 import com.acrescrypto.zksync.fs.zkfs.ZKFSRAMBenchmark;
@@ -12,6 +13,7 @@ import com.acrescrypto.zksync.fs.zkfs.ZKFSRAMBenchmark;
 @Suite.SuiteClasses({
 	RAMFSBenchmark.class,
 	LocalFSBenchmark.class,
+	LocalFSPageWriteBenchmark.class,
 	ZKFSRAMBenchmark.class,
 	ZKFSLocalBenchmark.class,
 })
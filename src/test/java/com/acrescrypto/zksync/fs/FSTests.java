@@ -4,6 +4,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 import com.acrescrypto.zksync.fs.backedfs.BackedFSTest;
+import com.acrescrypto.zksync.fs.backedfs.CacheManagerTest;
 import com.acrescrypto.zksync.fs.localfs.LocalFSTests;
 import com.acrescrypto.zksync.fs.ramfs.RAMFSTests;
 import com.acrescrypto.zksync.fs.swarmfs.SwarmFSTest;
@@ -16,6 +17,7 @@ import com.acrescrypto.zksync.fs.zkfs.ZKFSTests;
 	RAMFSTests.class,
 	ZKFSTests.class,
 	BackedFSTest.class,
+	CacheManagerTest.class,
 	SwarmFSTest.class
 })
 
@@ -0,0 +1,151 @@
+package com.acrescrypto.zksync.fs.backedfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.exceptions.ENOENTException;
+import com.acrescrypto.zksync.fs.Stat;
+import com.acrescrypto.zksync.fs.ramfs.RAMFS;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Many readers pulling overlapping sets of pages through a BackedFS whose cache starts out empty, the way page
+ * requests pile up when an archive is first opened over the network. Reports throughput and how many fetches actually
+ * reached the backup FS, which should be one per page however many readers wanted it. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BackedFSBenchmark {
+	public final static int NUM_READERS = 500;
+	public final static int NUM_PAGES = 10000;
+	public final static int READS_PER_READER = 200;
+	public final static int PAGE_SIZE = 1024;
+	
+	/** Flat in-memory FS, so that the benchmark measures BackedFS rather than path handling in RAMFS. Reads cost a
+	 * fixed latency, to stand in for the swarm when used as the backup FS. */
+	static class MapFS extends RAMFS {
+		ConcurrentHashMap<String,byte[]> pages = new ConcurrentHashMap<>();
+		int latencyMs;
+		AtomicInteger reads = new AtomicInteger();
+		
+		@Override
+		public boolean exists(String path, boolean followLinks) {
+			return pages.containsKey(path);
+		}
+		
+		@Override
+		public boolean exists(String path) {
+			return pages.containsKey(path);
+		}
+		
+		@Override
+		public Stat stat(String path) throws IOException {
+			byte[] data = pages.get(path);
+			if(data == null) throw new ENOENTException(path);
+			Stat stat = new Stat();
+			stat.setType(Stat.TYPE_REGULAR_FILE);
+			stat.setSize(data.length);
+			return stat;
+		}
+		
+		@Override
+		public byte[] read(String path) throws IOException {
+			reads.incrementAndGet();
+			if(latencyMs > 0) Util.sleep(latencyMs);
+			byte[] data = pages.get(path);
+			if(data == null) throw new ENOENTException(path);
+			return data;
+		}
+		
+		@Override
+		public void write(String path, byte[] contents, int offset, int length) {
+			pages.put(path, Arrays.copyOfRange(contents, offset, offset+length));
+		}
+		
+		@Override
+		public void applyStat(String path, Stat stat) {}
+		
+		@Override
+		public void mkdir(String path) {} // flat namespace; RAMFS's constructor makes "/" before our fields are set
+	}
+
+	@BeforeClass
+	public static void beforeAll() {
+		Benchmarks.beginBenchmarkSuite("BackedFS with " + NUM_READERS + " readers over " + NUM_PAGES + " missing pages");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		Benchmarks.finishBenchmarkSuite();
+	}
+	
+	static String pagePath(int i) {
+		return String.format("/page-%05d", i);
+	}
+	
+	void readConcurrently(String name, int latencyMs, boolean sameOrder) throws IOException, InterruptedException {
+		MapFS backup = new MapFS();
+		byte[] page = new byte[PAGE_SIZE];
+		for(int i = 0; i < NUM_PAGES; i++) {
+			backup.write(pagePath(i), page);
+		}
+		
+		backup.latencyMs = latencyMs;
+		BackedFS backedFS = new BackedFS(new MapFS(), backup);
+		AtomicInteger failures = new AtomicInteger();
+		ArrayList<Thread> readers = new ArrayList<>();
+		
+		long startNs = System.nanoTime();
+		for(int i = 0; i < NUM_READERS; i++) {
+			Random random = new Random(sameOrder ? 0 : i); // same seed means every reader wants the same page at once
+			Thread reader = new Thread(()->{
+				for(int j = 0; j < READS_PER_READER; j++) {
+					try {
+						backedFS.read(pagePath(random.nextInt(NUM_PAGES)));
+					} catch(IOException exc) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+			readers.add(reader);
+			reader.start();
+		}
+		
+		for(Thread reader : readers) {
+			reader.join();
+		}
+		
+		long elapsedMs = (System.nanoTime() - startNs)/(1000*1000);
+		int numReads = NUM_READERS*READS_PER_READER;
+		Benchmarks.output(String.format("\t%50s: %.03f reads/s (%d reads in %d ms, %d backup fetches, %d failures)",
+				name,
+				1000.0 * numReads / Math.max(1, elapsedMs),
+				numReads,
+				elapsedMs,
+				backup.reads.get(),
+				failures.get()));
+	}
+	
+	@Test
+	public void testConcurrentReadsWithFetchLatency() throws IOException, InterruptedException {
+		readConcurrently("testConcurrentReadsWithFetchLatency", 20, false);
+	}
+	
+	@Test
+	public void testConcurrentReadsWithoutFetchLatency() throws IOException, InterruptedException {
+		readConcurrently("testConcurrentReadsWithoutFetchLatency", 0, false);
+	}
+	
+	@Test
+	public void testConcurrentReadsOfSamePagesWithFetchLatency() throws IOException, InterruptedException {
+		readConcurrently("testConcurrentReadsOfSamePagesWithFetchLatency", 20, true);
+	}
+}
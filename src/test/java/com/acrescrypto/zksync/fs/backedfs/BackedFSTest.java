@@ -6,9 +6,11 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.junit.After;
@@ -19,6 +21,7 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.exceptions.ClosedException;
 import com.acrescrypto.zksync.exceptions.ENOENTException;
 import com.acrescrypto.zksync.exceptions.SwarmTimeoutException;
 import com.acrescrypto.zksync.fs.Directory;
@@ -770,7 +773,7 @@ public class BackedFSTest extends FSTestBase {
 	
 	@Test
 	public void testEnsurePresentBlocksOnPendingPathsIndefinitelyForNegativeTimeout() {
-		backedFS.pendingPaths.add(UNCACHED_FILE);
+		backedFS.pendingFetches.put(UNCACHED_FILE, new CompletableFuture<>());
 		MutableBoolean finished = new MutableBoolean();
 		
 		new Thread(()->{
@@ -784,17 +787,14 @@ public class BackedFSTest extends FSTestBase {
 		}).start();
 		
 		assertFalse(Util.waitUntil(500, ()->finished.booleanValue()));
-		backedFS.pendingPaths.remove(UNCACHED_FILE);
-		synchronized(backedFS) {
-			backedFS.notifyAll();
-		}
+		backedFS.pendingFetches.remove(UNCACHED_FILE).complete(null);
 		
 		assertTrue(Util.waitUntil(50, ()->finished.booleanValue()));
 	}
 	
 	@Test
 	public void testEnsurePresentThrowsExceptionImmediatelyIfPathPendingAndZeroTimeout() {
-		backedFS.pendingPaths.add(UNCACHED_FILE);
+		backedFS.pendingFetches.put(UNCACHED_FILE, new CompletableFuture<>());
 		MutableBoolean finished = new MutableBoolean();
 		
 		new Thread(()->{
@@ -814,7 +814,7 @@ public class BackedFSTest extends FSTestBase {
 	
 	@Test
 	public void testEnsurePresentThrowsExceptionAfterTimeoutIfPathPendingAndTimeoutPositive() {
-		backedFS.pendingPaths.add(UNCACHED_FILE);
+		backedFS.pendingFetches.put(UNCACHED_FILE, new CompletableFuture<>());
 		MutableBoolean finished = new MutableBoolean();
 		long startTime = System.currentTimeMillis();
 		int timeoutMs = 50;
@@ -839,7 +839,7 @@ public class BackedFSTest extends FSTestBase {
 	
 	@Test
 	public void testEnsurePresentDeductsPendingPathWaitTimeFromReadTimeout() {
-		backedFS.pendingPaths.add(UNCACHED_FILE);
+		backedFS.pendingFetches.put(UNCACHED_FILE, new CompletableFuture<>());
 		MutableBoolean finished = new MutableBoolean();
 		int timeoutMs = 100;
 		
@@ -857,10 +857,7 @@ public class BackedFSTest extends FSTestBase {
 		int delay = 25;
 		Util.sleep(delay);
 		assertFalse(finished.booleanValue());
-		synchronized(backedFS) {
-			backedFS.pendingPaths.remove(UNCACHED_FILE);
-			backedFS.notifyAll();
-		}
+		backedFS.pendingFetches.remove(UNCACHED_FILE).complete(null);
 		
 		assertTrue(Util.waitUntil(timeoutMs + 25, ()->finished.booleanValue()));
 		assertTrue(backupFS.requestedTimeout <= timeoutMs - delay);
@@ -869,7 +866,7 @@ public class BackedFSTest extends FSTestBase {
 
 	@Test
 	public void testEnsurePresentPassesMaxLongToFilesystemReadIfTimeoutNegativeAndWaitedOnPendingPath() {
-		backedFS.pendingPaths.add(UNCACHED_FILE);
+		backedFS.pendingFetches.put(UNCACHED_FILE, new CompletableFuture<>());
 		MutableBoolean finished = new MutableBoolean();
 		
 		new Thread(()->{
@@ -886,12 +883,127 @@ public class BackedFSTest extends FSTestBase {
 		int delay = 25;
 		Util.sleep(delay);
 		assertFalse(finished.booleanValue());
-		synchronized(backedFS) {
-			backedFS.pendingPaths.remove(UNCACHED_FILE);
-			backedFS.notifyAll();
-		}
+		backedFS.pendingFetches.remove(UNCACHED_FILE).complete(null);
 		
 		assertTrue(Util.waitUntil(25, ()->finished.booleanValue()));
 		assertEquals(Long.MAX_VALUE, backupFS.requestedTimeout.longValue());
 	}
+
+	@Test
+	public void testEnsurePresentRetriesIfPendingFetchTimedOut() {
+		CompletableFuture<Void> fetch = new CompletableFuture<>();
+		backedFS.pendingFetches.put(UNCACHED_FILE, fetch);
+		MutableBoolean finished = new MutableBoolean();
+		
+		new Thread(()->{
+			try {
+				backedFS.ensurePresent(UNCACHED_FILE, -1);
+			} catch(IOException exc) {
+				exc.printStackTrace();
+				fail();
+			}
+			
+			finished.setTrue();
+		}).start();
+		
+		Util.sleep(25);
+		assertFalse(finished.booleanValue());
+		backedFS.pendingFetches.remove(UNCACHED_FILE);
+		fetch.completeExceptionally(new SwarmTimeoutException(UNCACHED_FILE));
+		
+		assertTrue(Util.waitUntil(50, ()->finished.booleanValue()));
+		assertEquals(1, backupFS.readPaths.getOrDefault(UNCACHED_FILE, 0).intValue());
+	}
+	
+	@Test
+	public void testEnsurePresentPassesOnOtherExceptionsFromPendingFetch() {
+		CompletableFuture<Void> fetch = new CompletableFuture<>();
+		backedFS.pendingFetches.put(UNCACHED_FILE, fetch);
+		MutableBoolean finished = new MutableBoolean();
+		
+		new Thread(()->{
+			try {
+				backedFS.ensurePresent(UNCACHED_FILE, -1);
+				fail();
+			} catch(ENOENTException exc) {
+				finished.setTrue();
+			} catch(IOException exc) {
+				exc.printStackTrace();
+				fail();
+			}
+		}).start();
+		
+		Util.sleep(25);
+		backedFS.pendingFetches.remove(UNCACHED_FILE);
+		fetch.completeExceptionally(new ENOENTException(UNCACHED_FILE));
+		
+		assertTrue(Util.waitUntil(50, ()->finished.booleanValue()));
+		assertFalse(backupFS.accessed);
+	}
+	
+	@Test
+	public void testEnsurePresentThrowsInterruptedIOExceptionAndKeepsInterruptIfInterruptedWhilePathPending() throws InterruptedException {
+		backedFS.pendingFetches.put(UNCACHED_FILE, new CompletableFuture<>());
+		MutableBoolean finished = new MutableBoolean();
+		
+		Thread thread = new Thread(()->{
+			try {
+				backedFS.ensurePresent(UNCACHED_FILE, -1);
+				fail();
+			} catch(InterruptedIOException exc) {
+				assertTrue(Thread.currentThread().isInterrupted());
+				finished.setTrue();
+			} catch(IOException exc) {
+				exc.printStackTrace();
+				fail();
+			}
+		});
+		thread.start();
+		
+		Util.sleep(25);
+		thread.interrupt();
+		thread.join(1000);
+		assertTrue(finished.booleanValue());
+	}
+	
+	@Test
+	public void testCancelFetchThrowsClosedExceptionToWaiters() {
+		backedFS.pendingFetches.put(UNCACHED_FILE, new CompletableFuture<>());
+		MutableBoolean finished = new MutableBoolean();
+		
+		new Thread(()->{
+			try {
+				backedFS.ensurePresent(UNCACHED_FILE, -1);
+				fail();
+			} catch(ClosedException exc) {
+				finished.setTrue();
+			} catch(IOException exc) {
+				exc.printStackTrace();
+				fail();
+			}
+		}).start();
+		
+		Util.sleep(25);
+		backedFS.cancelPendingFetches();
+		assertTrue(Util.waitUntil(50, ()->finished.booleanValue()));
+		assertEquals(0, backedFS.numPendingFetches());
+	}
+	
+	@Test
+	public void testEnsurePresentDoesNotWaitOnFetchesForOtherPaths() throws IOException {
+		backedFS.pendingFetches.put(NONEXISTENT_FILE, new CompletableFuture<>());
+		backedFS.ensurePresent(UNCACHED_FILE, 0);
+		assertTrue(cacheFS.exists(UNCACHED_FILE));
+	}
+	
+	@Test
+	public void testEnsurePresentClearsPendingFetchWhenDone() throws IOException {
+		backedFS.ensurePresent(UNCACHED_FILE, -1);
+		try {
+			backedFS.ensurePresent(NONEXISTENT_FILE, -1);
+			fail();
+		} catch(ENOENTException exc) {}
+		
+		assertEquals(0, backedFS.numPendingFetches());
+	}
 }
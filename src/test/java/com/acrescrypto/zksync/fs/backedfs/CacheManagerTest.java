@@ -0,0 +1,459 @@
+package com.acrescrypto.zksync.fs.backedfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.fs.File;
+import com.acrescrypto.zksync.fs.ramfs.RAMFS;
+import com.acrescrypto.zksync.utility.Util;
+
+public class CacheManagerTest {
+	final static String INDEX_PATH = "index/pagecache";
+
+	RAMFS cacheFS, backupFS, indexFS;
+	BackedFS backedFS;
+	CacheManager cache;
+	ArrayList<String> evicted;
+
+	byte[] pageData(int i) {
+		byte[] data = new byte[100];
+		for(int j = 0; j < data.length; j++) {
+			data[j] = (byte) (i + j);
+		}
+
+		return data;
+	}
+
+	String pagePath(int i) {
+		return "pages/" + i;
+	}
+
+	void fetchPages(int count) throws IOException {
+		for(int i = 0; i < count; i++) {
+			backedFS.read(pagePath(i));
+		}
+	}
+
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+
+	@Before
+	public void beforeEach() throws IOException {
+		cacheFS = new RAMFS();
+		backupFS = new RAMFS();
+		indexFS = new RAMFS();
+		for(int i = 0; i < 16; i++) {
+			backupFS.write(pagePath(i), pageData(i));
+		}
+
+		backedFS = new BackedFS(cacheFS, backupFS);
+		cache = backedFS.getCache();
+		evicted = new ArrayList<>();
+		cache.setEvictionListener((path)->evicted.add(path));
+		cache.openIndex(indexFS, INDEX_PATH);
+	}
+
+	@After
+	public void afterEach() throws IOException {
+		cache.close();
+		cacheFS.close();
+		backupFS.close();
+		indexFS.close();
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.assertTidy();
+		TestUtils.stopDebugMode();
+	}
+
+	@Test
+	public void testFetchedPagesAreRefetchable() throws IOException {
+		fetchPages(4);
+		assertEquals(4, cache.numRefetchable());
+		assertEquals(400, cache.getRefetchableBytes());
+		assertTrue(cache.isRefetchable(pagePath(0)));
+	}
+
+	@Test
+	public void testUnlimitedBudgetDoesNotEvict() throws IOException {
+		fetchPages(16);
+		assertEquals(16, cache.numRefetchable());
+		assertTrue(evicted.isEmpty());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsedPagesWhenOverBudget() throws IOException {
+		cache.setBudgetBytes(300);
+		fetchPages(5);
+
+		assertEquals(3, cache.numRefetchable());
+		assertEquals(300, cache.getRefetchableBytes());
+		assertFalse(cacheFS.exists(pagePath(0)));
+		assertFalse(cacheFS.exists(pagePath(1)));
+		assertTrue(cacheFS.exists(pagePath(4)));
+		assertEquals(2, evicted.size());
+		assertTrue(evicted.contains(pagePath(0)));
+		assertTrue(evicted.contains(pagePath(1)));
+	}
+
+	@Test
+	public void testReadingPageMakesItMostRecentlyUsed() throws IOException {
+		fetchPages(3);
+		backedFS.read(pagePath(0));
+		cache.setBudgetBytes(200);
+
+		assertTrue(cacheFS.exists(pagePath(0)));
+		assertFalse(cacheFS.exists(pagePath(1)));
+		assertTrue(cacheFS.exists(pagePath(2)));
+	}
+
+	@Test
+	public void testLoweringBudgetEvictsImmediately() throws IOException {
+		fetchPages(10);
+		cache.setBudgetBytes(500);
+		assertEquals(5, cache.numRefetchable());
+		assertEquals(5, evicted.size());
+	}
+
+	@Test
+	public void testKeepsMostRecentlyUsedPageEvenIfOverBudget() throws IOException {
+		cache.setBudgetBytes(50);
+		fetchPages(2);
+		assertEquals(1, cache.numRefetchable());
+		assertTrue(cacheFS.exists(pagePath(1)));
+	}
+
+	@Test
+	public void testEvictedPagesAreFetchedAgainOnRead() throws IOException {
+		cache.setBudgetBytes(100);
+		fetchPages(2);
+		assertFalse(cacheFS.exists(pagePath(0)));
+		assertArrayEquals(pageData(0), backedFS.read(pagePath(0)));
+		assertTrue(cacheFS.exists(pagePath(0)));
+	}
+
+	@Test
+	public void testOpenFetchesAgainIfPageEvictedBeforeOpen() throws IOException {
+		MutableBoolean raced = new MutableBoolean();
+		RAMFS racyFS = new RAMFS() {
+			@Override
+			public File open(String path, int mode) throws IOException {
+				if(raced.isFalse()) {
+					raced.setTrue();
+					unlink(path); // as if evicted just after ensurePresent
+				}
+
+				return super.open(path, mode);
+			}
+		};
+
+		BackedFS racyBackedFS = new BackedFS(racyFS, backupFS);
+		racyBackedFS.read(pagePath(0));
+		try(File file = racyBackedFS.open(pagePath(0), File.O_RDONLY)) {
+			assertArrayEquals(pageData(0), file.read());
+		}
+
+		assertTrue(raced.booleanValue());
+		racyBackedFS.getCache().close();
+		racyFS.close();
+	}
+
+	@Test
+	public void testLocallyWrittenPagesArePinned() throws IOException {
+		cache.setBudgetBytes(100);
+		backedFS.write("local/0", pageData(100));
+		backedFS.write("local/1", pageData(101));
+		fetchPages(4);
+
+		assertTrue(cacheFS.exists("local/0"));
+		assertTrue(cacheFS.exists("local/1"));
+		assertFalse(cache.isRefetchable("local/0"));
+	}
+
+	@Test
+	public void testWritingOverRefetchablePagePinsIt() throws IOException {
+		fetchPages(2);
+		backedFS.write(pagePath(0), pageData(100));
+		cache.setBudgetBytes(0);
+
+		assertFalse(cache.isRefetchable(pagePath(0)));
+		assertArrayEquals(pageData(100), cacheFS.read(pagePath(0)));
+	}
+
+	@Test
+	public void testTruncatePinsPage() throws IOException {
+		fetchPages(1);
+		backedFS.truncate(pagePath(0), 10);
+		assertFalse(cache.isRefetchable(pagePath(0)));
+	}
+
+	@Test
+	public void testUnlinkForgetsPage() throws IOException {
+		fetchPages(2);
+		backedFS.unlink(pagePath(0));
+		assertFalse(cache.isRefetchable(pagePath(0)));
+		assertEquals(100, cache.getRefetchableBytes());
+	}
+
+	@Test
+	public void testMoveForgetsSourceAndPinsDest() throws IOException {
+		fetchPages(2);
+		backedFS.mv(pagePath(0), "moved");
+		assertFalse(cache.isRefetchable(pagePath(0)));
+		assertFalse(cache.isRefetchable("moved"));
+	}
+
+	@Test
+	public void testWriteRefetchableMarksPageRefetchable() throws IOException {
+		backedFS.writeRefetchable("swarm/0", pageData(0));
+		assertTrue(cache.isRefetchable("swarm/0"));
+		assertArrayEquals(pageData(0), cacheFS.read("swarm/0"));
+	}
+
+	@Test
+	public void testWriteRefetchableKeepsLocallyWrittenPagePinned() throws IOException {
+		backedFS.write("local/0", pageData(0));
+		backedFS.writeRefetchable("local/0", pageData(0));
+		cache.setBudgetBytes(0);
+		assertFalse(cache.isRefetchable("local/0"));
+		assertTrue(cacheFS.exists("local/0"));
+	}
+
+	@Test
+	public void testPagesAlreadyInCacheArePinned() throws IOException {
+		cacheFS.write("preexisting", pageData(0));
+		cache.setBudgetBytes(0);
+		fetchPages(2);
+		assertTrue(cacheFS.exists("preexisting"));
+		assertFalse(cache.isRefetchable("preexisting"));
+	}
+
+	@Test
+	public void testIndexPersistsRefetchablePages() throws IOException {
+		fetchPages(4);
+		backedFS.write(pagePath(1), pageData(100));
+		cache.close();
+
+		CacheManager reopened = new CacheManager(cacheFS);
+		reopened.openIndex(indexFS, INDEX_PATH);
+		assertEquals(3, reopened.numRefetchable());
+		assertFalse(reopened.isRefetchable(pagePath(1)));
+		assertEquals(300, reopened.getRefetchableBytes());
+		reopened.close();
+	}
+
+	@Test
+	public void testIndexPreservesRecencyOrder() throws IOException {
+		fetchPages(3);
+		cache.close();
+
+		CacheManager reopened = new CacheManager(cacheFS);
+		reopened.openIndex(indexFS, INDEX_PATH);
+		reopened.touch(pagePath(0));
+		reopened.setBudgetBytes(200);
+		assertTrue(reopened.isRefetchable(pagePath(0)));
+		assertFalse(reopened.isRefetchable(pagePath(1)));
+		assertTrue(reopened.isRefetchable(pagePath(2)));
+		reopened.close();
+	}
+
+	@Test
+	public void testEvictionListenerRunsWithoutLock() throws IOException {
+		MutableBoolean heldLock = new MutableBoolean();
+		cache.setEvictionListener((path)->{
+			if(Thread.holdsLock(cache)) heldLock.setTrue();
+			evicted.add(path);
+		});
+
+		cache.setBudgetBytes(100);
+		fetchPages(3);
+		assertEquals(2, evicted.size());
+		assertFalse(heldLock.booleanValue());
+	}
+
+	@Test
+	public void testPinWaitsForUnlinkOfEvictedPage() throws Exception {
+		CountDownLatch unlinking = new CountDownLatch(1), release = new CountDownLatch(1);
+		RAMFS slowFS = new RAMFS() {
+			@Override
+			public void unlink(String path) throws IOException {
+				unlinking.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException exc) {}
+				super.unlink(path);
+			}
+		};
+
+		CacheManager slowCache = new CacheManager(slowFS);
+		for(int i = 0; i < 2; i++) {
+			slowFS.write(pagePath(i), pageData(i));
+			slowCache.addRefetchable(pagePath(i), pageData(i).length);
+		}
+
+		MutableBoolean pinned = new MutableBoolean();
+		Thread evictor = new Thread(()->slowCache.setBudgetBytes(100));
+		Thread pinner = new Thread(()->{
+			slowCache.pin(pagePath(0));
+			pinned.setTrue();
+		});
+
+		evictor.start();
+		assertTrue(unlinking.await(1000, TimeUnit.MILLISECONDS));
+		assertEquals(1, slowCache.numRefetchable()); // we can get the lock while the unlink is in progress
+
+		pinner.start();
+		Util.sleep(50);
+		assertFalse(pinned.booleanValue());
+
+		release.countDown();
+		evictor.join(1000);
+		pinner.join(1000);
+		assertTrue(pinned.booleanValue());
+		assertFalse(slowFS.exists(pagePath(0)));
+
+		slowCache.close();
+		slowFS.close();
+	}
+
+	@Test
+	public void testOpenIndexReplaysEvictionsToListener() throws IOException {
+		cache.setBudgetBytes(200);
+		fetchPages(4);
+		cache.close();
+
+		ArrayList<String> replayed = new ArrayList<>();
+		CacheManager reopened = new CacheManager(cacheFS);
+		reopened.setEvictionListener((path)->replayed.add(path));
+		reopened.openIndex(indexFS, INDEX_PATH);
+		assertEquals(2, replayed.size());
+		assertTrue(replayed.contains(pagePath(0)));
+		assertTrue(replayed.contains(pagePath(1)));
+		reopened.close();
+	}
+
+	@Test
+	public void testOpenIndexDoesNotReplayPagesFetchedAgainAfterEviction() throws IOException {
+		cache.setBudgetBytes(100);
+		fetchPages(2);
+		backedFS.read(pagePath(0));
+		cache.close();
+
+		ArrayList<String> replayed = new ArrayList<>();
+		CacheManager reopened = new CacheManager(cacheFS);
+		reopened.setEvictionListener((path)->replayed.add(path));
+		reopened.openIndex(indexFS, INDEX_PATH);
+		assertFalse(replayed.contains(pagePath(0)));
+		assertTrue(replayed.contains(pagePath(1)));
+		reopened.close();
+	}
+
+	@Test
+	public void testIndexIsCompactedWhenLong() throws IOException {
+		for(int i = 0; i < 2000; i++) {
+			cache.addRefetchable(pagePath(0), 100);
+		}
+
+		cache.close();
+		assertTrue(indexFS.stat(INDEX_PATH).getSize() < 2000*10);
+
+		CacheManager reopened = new CacheManager(cacheFS);
+		reopened.openIndex(indexFS, INDEX_PATH);
+		assertEquals(1, reopened.numRefetchable());
+		assertEquals(100, reopened.getRefetchableBytes());
+		reopened.close();
+	}
+
+	@Test
+	public void testCompactionDuringEvictionKeepsEvictionRecords() throws IOException {
+		fetchPages(8);
+		synchronized(cache) {
+			cache.indexRecords = 2*cache.numRefetchable() + 1024; // the first eviction record sets off a compaction
+		}
+
+		cache.setBudgetBytes(200);
+		assertEquals(6, evicted.size());
+		cache.close();
+
+		ArrayList<String> replayed = new ArrayList<>();
+		CacheManager reopened = new CacheManager(cacheFS);
+		reopened.setEvictionListener((path)->replayed.add(path));
+		reopened.openIndex(indexFS, INDEX_PATH);
+		for(int i = 0; i < 6; i++) {
+			assertTrue(replayed.contains(pagePath(i)));
+		}
+
+		assertEquals(2, reopened.numRefetchable());
+		reopened.close();
+	}
+
+	@Test
+	public void testHotTierDisabledByDefault() throws IOException {
+		fetchPages(1);
+		assertEquals(0, cache.getHotBytes());
+		assertNull(cache.hotRead(pagePath(0)));
+	}
+
+	@Test
+	public void testHotTierServesRepeatedReads() throws IOException {
+		cache.setHotBudgetBytes(1000);
+		fetchPages(1);
+		cacheFS.unlink(pagePath(0)); // behind the cache manager's back, so only the hot tier has it
+		assertArrayEquals(pageData(0), backedFS.read(pagePath(0)));
+	}
+
+	@Test
+	public void testHotTierReturnsCopies() throws IOException {
+		cache.setHotBudgetBytes(1000);
+		fetchPages(1);
+		backedFS.read(pagePath(0))[0] ^= 1;
+		assertArrayEquals(pageData(0), backedFS.read(pagePath(0)));
+	}
+
+	@Test
+	public void testHotTierIsInvalidatedByWrites() throws IOException {
+		cache.setHotBudgetBytes(1000);
+		fetchPages(1);
+		backedFS.write(pagePath(0), pageData(100));
+		assertArrayEquals(pageData(100), backedFS.read(pagePath(0)));
+	}
+
+	@Test
+	public void testHotTierIsInvalidatedByEviction() throws IOException {
+		cache.setHotBudgetBytes(1000);
+		fetchPages(2);
+		cache.setBudgetBytes(100);
+		assertNull(cache.hotRead(pagePath(0)));
+	}
+
+	@Test
+	public void testHotTierStaysWithinBudget() throws IOException {
+		cache.setHotBudgetBytes(350);
+		fetchPages(8);
+		assertEquals(300, cache.getHotBytes());
+		assertNull(cache.hotRead(pagePath(0)));
+		assertArrayEquals(pageData(7), cache.hotRead(pagePath(7)));
+
+		cache.setHotBudgetBytes(100);
+		assertEquals(100, cache.getHotBytes());
+	}
+}
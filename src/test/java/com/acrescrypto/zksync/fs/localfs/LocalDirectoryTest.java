@@ -1,8 +1,13 @@
 package com.acrescrypto.zksync.fs.localfs;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeFalse;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.AfterClass;
@@ -11,7 +16,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.fs.Directory;
 import com.acrescrypto.zksync.fs.DirectoryTestBase;
+import com.acrescrypto.zksync.fs.Stat;
 import com.acrescrypto.zksync.utility.Util;
 
 public class LocalDirectoryTest extends DirectoryTestBase {
@@ -56,4 +63,70 @@ public class LocalDirectoryTest extends DirectoryTestBase {
 		assumeFalse("Symlinks not tested on Windows", Util.isWindows());
 		super.testWalkSetsBrokenSymlinkFlagWhenAppropriate();
 	}
+	
+	@Test
+	public void testStatEntriesMatchesStatOfEachEntry() throws IOException {
+		scratch.write("dir/file", "contents".getBytes());
+		scratch.mkdir("dir/subdir");
+		try(LocalDirectory dir = (LocalDirectory) scratch.opendir("dir")) {
+			LinkedHashMap<String,Stat> stats = dir.statEntries(0);
+			assertEquals(2, stats.size());
+			assertEquals(scratch.stat("dir/file"), stats.get("file"));
+			assertEquals(scratch.stat("dir/subdir"), stats.get("subdir"));
+		}
+	}
+	
+	@Test
+	public void testStatEntriesIncludesDotDirsWhenRequested() throws IOException {
+		scratch.mkdirp("dir/subdir");
+		try(LocalDirectory dir = (LocalDirectory) scratch.opendir("dir/subdir")) {
+			LinkedHashMap<String,Stat> stats = dir.statEntries(Directory.LIST_OPT_INCLUDE_DOT_DOTDOT);
+			assertEquals(scratch.stat("dir/subdir").getInodeId(), stats.get(".").getInodeId());
+			assertEquals(scratch.stat("dir").getInodeId(), stats.get("..").getInodeId());
+		}
+	}
+	
+	@Test
+	public void testStatEntriesFollowsSymlinksByDefault() throws IOException {
+		assumeFalse("Symlinks not tested on Windows", Util.isWindows());
+		scratch.write("dir/file", "contents".getBytes());
+		scratch.symlink("file", "dir/link");
+		try(LocalDirectory dir = (LocalDirectory) scratch.opendir("dir")) {
+			assertTrue(dir.statEntries(0).get("link").isRegularFile());
+			assertTrue(dir.statEntries(Directory.LIST_OPT_DONT_FOLLOW_SYMLINKS).get("link").isSymlink());
+		}
+	}
+	
+	@Test
+	public void testStatEntriesGivesLstatForBrokenSymlinks() throws IOException {
+		assumeFalse("Symlinks not tested on Windows", Util.isWindows());
+		scratch.mkdir("dir");
+		scratch.symlink("nonexistent", "dir/link");
+		try(LocalDirectory dir = (LocalDirectory) scratch.opendir("dir")) {
+			assertTrue(dir.statEntries(0).get("link").isSymlink());
+		}
+	}
+	
+	@Test
+	public void testStatEntriesIsEmptyForUnreadableDirectory() throws IOException {
+		assumeFalse("Permissions not tested on Windows", Util.isWindows());
+		assumeFalse("Permissions don't apply to superuser", Util.isSuperuser());
+		scratch.write("dir/locked/file", "contents".getBytes());
+		scratch.chmod("dir/locked", 0);
+		try(LocalDirectory dir = (LocalDirectory) scratch.opendir("dir/locked")) {
+			LinkedHashMap<String,Stat> stats = dir.statEntries(0);
+			assertFalse(stats.containsKey("file"));
+		} finally {
+			scratch.chmod("dir/locked", 0755);
+		}
+	}
+	
+	@Test
+	public void testStatEntriesIsEmptyForEmptyDirectory() throws IOException {
+		scratch.mkdir("empty");
+		try(LocalDirectory dir = (LocalDirectory) scratch.opendir("empty")) {
+			assertTrue(dir.statEntries(0).isEmpty());
+			assertNull(dir.statEntries(0).get("anything"));
+		}
+	}
 }
@@ -5,24 +5,85 @@ import java.io.IOException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Test;
 
 import com.acrescrypto.zksync.Benchmarks;
 import com.acrescrypto.zksync.fs.FSBenchmark;
 
 public class LocalFSBenchmark extends FSBenchmark {
+	public final static int NUM_STAT_FILES = 100*1000;
+	public final static int NUM_STAT_DIRECTORIES = 256;
+
 	@BeforeClass
 	public static void beforeAll() {
 		Benchmarks.beginBenchmarkSuite("LocalFS");
 	}
-	
+
 	@Before
 	public void beforeEach() throws IOException {
 		storage = new LocalFS("/tmp/localfs-benchmark");
 		if(!storage.exists("/")) storage.mkdir("/");
 	}
-	
+
 	@After
 	public void afterEach() throws IOException {
 		storage.purge();
 	}
+
+	String statPath(int i) {
+		return String.format("stat/%02x/%d", i % NUM_STAT_DIRECTORIES, i);
+	}
+
+	void makeStatFiles() throws IOException {
+		byte[] contents = new byte[16];
+		for(int i = 0; i < NUM_STAT_FILES; i++) {
+			storage.write(statPath(i), contents);
+		}
+	}
+
+	void outputStatRate(String name, int numStats, long startNs) {
+		long elapsedNs = System.nanoTime() - startNs;
+		Benchmarks.output(String.format("\t%50s: %.01f stats/s (%d stats in %d ms)",
+				name,
+				numStats / (elapsedNs / 1e9),
+				numStats,
+				elapsedNs/(1000*1000)));
+	}
+
+	@Test
+	public void benchmarkStatThroughput() throws IOException {
+		makeStatFiles();
+		long startNs = System.nanoTime();
+		for(int i = 0; i < NUM_STAT_FILES; i++) {
+			storage.lstat(statPath(i));
+		}
+
+		outputStatRate("benchmarkStatThroughput", NUM_STAT_FILES, startNs);
+	}
+
+	@Test
+	public void benchmarkStatEntriesThroughput() throws IOException {
+		makeStatFiles();
+		int numStats = 0;
+		long startNs = System.nanoTime();
+		for(int i = 0; i < NUM_STAT_DIRECTORIES; i++) {
+			try(LocalDirectory dir = (LocalDirectory) storage.opendir(String.format("stat/%02x", i))) {
+				numStats += dir.statEntries(0).size();
+			}
+		}
+
+		outputStatRate("benchmarkStatEntriesThroughput", numStats, startNs);
+	}
+
+	@Test
+	public void benchmarkWalkThroughput() throws IOException {
+		makeStatFiles();
+		int[] numStats = new int[1];
+		long startNs = System.nanoTime();
+		try(LocalDirectory dir = (LocalDirectory) storage.opendir("stat")) {
+			dir.walk((path, stat, isBrokenSymlink, parent)->numStats[0]++);
+		}
+
+		outputStatRate("benchmarkWalkThroughput", numStats[0], startNs);
+	}
 }
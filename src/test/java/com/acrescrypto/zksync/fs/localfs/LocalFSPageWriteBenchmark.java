@@ -0,0 +1,102 @@
+package com.acrescrypto.zksync.fs.localfs;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Compares the ways pages can be written to a LocalFS: in place, atomically, and atomically with a sync per page or
+ * one sync barrier per commit-sized group. Pages go into two-level shard directories, as page storage lays them
+ * out. */
+public class LocalFSPageWriteBenchmark {
+	public final static int PAGE_SIZE = 64*1024;
+	public final static int NUM_PAGES = 2000;
+	public final static int PAGES_PER_COMMIT = 200;
+
+	LocalFS storage;
+	String[] paths;
+	byte[] page;
+
+	@BeforeClass
+	public static void beforeAll() {
+		Benchmarks.beginBenchmarkSuite("LocalFS page writes");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	@Before
+	public void beforeEach() throws IOException {
+		storage = new LocalFS("/tmp/zksync-benchmark/pagewrite");
+		if(storage.exists("/")) storage.purge();
+		storage.mkdirp("/");
+
+		Random random = new Random(0);
+		page = new byte[PAGE_SIZE];
+		random.nextBytes(page);
+
+		paths = new String[NUM_PAGES];
+		for(int i = 0; i < NUM_PAGES; i++) {
+			byte[] tag = new byte[16];
+			random.nextBytes(tag);
+			String hex = Util.bytesToHex(tag);
+			paths[i] = hex.substring(0, 2) + "/" + hex.substring(2, 4) + "/" + hex.substring(4);
+		}
+	}
+
+	@After
+	public void afterEach() throws IOException {
+		storage.purge();
+		storage.close();
+	}
+
+	interface PageWriter {
+		void write(int i) throws IOException;
+	}
+
+	void writePages(String name, int pagesPerBatch, PageWriter writer) throws IOException {
+		long startNs = System.nanoTime();
+		for(int i = 0; i < NUM_PAGES; i++) {
+			if(pagesPerBatch > 0 && i % pagesPerBatch == 0) storage.beginWriteBatch();
+			writer.write(i);
+			if(pagesPerBatch > 0 && (i+1) % pagesPerBatch == 0) storage.endWriteBatch();
+		}
+
+		long elapsedNs = System.nanoTime() - startNs;
+		Benchmarks.output(String.format("\t%50s: %.01f pages/s (%d pages of %d bytes in %d ms)",
+				name,
+				NUM_PAGES / (elapsedNs / 1e9),
+				NUM_PAGES,
+				PAGE_SIZE,
+				elapsedNs/(1000*1000)));
+	}
+
+	@Test
+	public void testWriteInPlace() throws IOException {
+		writePages("testWriteInPlace", 0, (i)->storage.write(paths[i], page));
+	}
+
+	@Test
+	public void testWriteAtomic() throws IOException {
+		writePages("testWriteAtomic", 0, (i)->storage.writeAtomic(paths[i], page));
+	}
+
+	@Test
+	public void testWriteAtomicSyncingEachPage() throws IOException {
+		writePages("testWriteAtomicSyncingEachPage", 1, (i)->storage.writeAtomic(paths[i], page));
+	}
+
+	@Test
+	public void testWriteAtomicGroupCommit() throws IOException {
+		writePages("testWriteAtomicGroupCommit", PAGES_PER_COMMIT, (i)->storage.writeAtomic(paths[i], page));
+	}
+}
@@ -5,6 +5,13 @@ import static org.junit.Assume.assumeTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.junit.*;
 
@@ -12,13 +19,82 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.exceptions.EISDIRException;
+import com.acrescrypto.zksync.fs.Directory;
+import com.acrescrypto.zksync.fs.FS;
 import com.acrescrypto.zksync.fs.FSPath;
 import com.acrescrypto.zksync.fs.FSTestBase;
+import com.acrescrypto.zksync.fs.File;
 import com.acrescrypto.zksync.fs.Stat;
+import com.acrescrypto.zksync.fs.backedfs.BackedFS;
+import com.acrescrypto.zksync.fs.zkfs.ZKArchive;
+import com.acrescrypto.zksync.fs.zkfs.ZKFS;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
 import com.acrescrypto.zksync.utility.Util;
 
 
 public class LocalFSTest extends FSTestBase {
+	/** Fails writeAtomic at a chosen step, the way a crash would, and records syncs instead of making them. */
+	class FaultyLocalFS extends LocalFS {
+		boolean failWrite, failRename;
+		ArrayList<Path> syncedFiles = new ArrayList<>(), syncedDirectories = new ArrayList<>();
+
+		FaultyLocalFS() {
+			super(scratch());
+		}
+
+		@Override
+		protected void writeTemporary(Path temp, byte[] contents) throws IOException {
+			if(!failWrite) {
+				super.writeTemporary(temp, contents);
+				return;
+			}
+
+			super.writeTemporary(temp, Arrays.copyOf(contents, contents.length/2));
+			throw new IOException("simulated failure writing " + temp);
+		}
+
+		@Override
+		protected void renameTemporary(Path temp, Path target) throws IOException {
+			if(failRename) throw new IOException("simulated failure renaming " + temp);
+			super.renameTemporary(temp, target);
+		}
+
+		@Override
+		protected void syncFile(Path file) throws IOException {
+			syncedFiles.add(file);
+			super.syncFile(file);
+		}
+
+		@Override
+		protected void syncDirectory(Path dir) throws IOException {
+			syncedDirectories.add(dir);
+			super.syncDirectory(dir);
+		}
+	}
+
+	/** Records every file synced by itself or any FS scoped from it, e.g. the page storage of a ZKMaster's archives. */
+	class SyncRecordingLocalFS extends LocalFS {
+		Set<Path> syncedFiles;
+
+		SyncRecordingLocalFS(FSPath root, Set<Path> syncedFiles) {
+			super(root);
+			this.syncedFiles = syncedFiles;
+		}
+
+		@Override
+		public LocalFS scopedFS(String subpath) throws IOException {
+			if(!exists(subpath)) mkdirp(subpath);
+			return new SyncRecordingLocalFS(root.join(subpath), syncedFiles);
+		}
+
+		@Override
+		protected void syncFile(Path file) throws IOException {
+			syncedFiles.add(file);
+			super.syncFile(file);
+		}
+	}
+
 	public static String scratch() {
 		return FSPath.with("/tmp/zksync-test/localfs").toNative();
 	}
@@ -241,4 +317,284 @@ public class LocalFSTest extends FSTestBase {
 		if(!Util.isSuperuser()) return;
 		super.testChgrp();
 	}
+
+	int numEntries(FS fs, String path) throws IOException {
+		try(Directory dir = fs.opendir(path)) {
+			return dir.list().size();
+		}
+	}
+
+	@Test
+	public void testWriteRecreatesDirectoryRemovedBehindItsBack() throws IOException {
+		scratch.write("removed/file", "first".getBytes());
+		FileUtils.deleteDirectory(new java.io.File(scratch(), "removed"));
+		scratch.write("removed/file", "second".getBytes());
+		assertArrayEquals("second".getBytes(), scratch.read("removed/file"));
+	}
+
+	@Test
+	public void testWriteRecreatesDirectoryAfterRmdir() throws IOException {
+		scratch.write("rmdired/file", "first".getBytes());
+		scratch.unlink("rmdired/file");
+		scratch.rmdir("rmdired");
+		scratch.write("rmdired/file", "second".getBytes());
+		assertArrayEquals("second".getBytes(), scratch.read("rmdired/file"));
+	}
+
+	@Test
+	public void testWriteAtomicWritesFile() throws IOException {
+		scratch.writeAtomic("atomic/shard/page", "contents".getBytes());
+		assertArrayEquals("contents".getBytes(), scratch.read("atomic/shard/page"));
+		assertEquals(1, numEntries(scratch, "atomic/shard"));
+	}
+
+	@Test
+	public void testWriteAtomicReplacesExistingFile() throws IOException {
+		scratch.write("atomic-replace", "a much longer old version".getBytes());
+		scratch.writeAtomic("atomic-replace", "new".getBytes());
+		assertArrayEquals("new".getBytes(), scratch.read("atomic-replace"));
+	}
+
+	@Test
+	public void testWriteAtomicReplacesSymlinksRatherThanWritingThrough() throws IOException {
+		assumeTrue("Symlinks not tested on Windows", !Util.isWindows());
+		scratch.write("atomic-target", "target".getBytes());
+		scratch.symlink("atomic-target", "atomic-link");
+		scratch.writeAtomic("atomic-link", "replaced".getBytes());
+
+		assertTrue(scratch.lstat("atomic-link").isRegularFile());
+		assertArrayEquals("target".getBytes(), scratch.read("atomic-target"));
+	}
+
+	@Test
+	public void testWriteAtomicRecreatesDirectoryRemovedBehindItsBack() throws IOException {
+		scratch.writeAtomic("atomic-removed/page", "first".getBytes());
+		FileUtils.deleteDirectory(new java.io.File(scratch(), "atomic-removed"));
+		scratch.writeAtomic("atomic-removed/page", "second".getBytes());
+		assertArrayEquals("second".getBytes(), scratch.read("atomic-removed/page"));
+	}
+
+	@Test(expected=EISDIRException.class)
+	public void testWriteAtomicThrowsEISDIRForDirectories() throws IOException {
+		scratch.mkdirp("atomic-dir/child");
+		scratch.writeAtomic("atomic-dir", "contents".getBytes());
+	}
+
+	@Test
+	public void testWriteAtomicFailureWhileWritingLeavesOldContents() throws IOException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.writeAtomic("faulty/page", "old contents".getBytes());
+			fs.failWrite = true;
+			try {
+				fs.writeAtomic("faulty/page", "new contents that never arrive".getBytes());
+				fail();
+			} catch(IOException exc) {}
+
+			assertArrayEquals("old contents".getBytes(), fs.read("faulty/page"));
+			assertEquals(1, numEntries(fs, "faulty"));
+		}
+	}
+
+	@Test
+	public void testWriteAtomicFailureWhileWritingNewFileLeavesNothing() throws IOException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.failWrite = true;
+			try {
+				fs.writeAtomic("faulty-new/page", "contents".getBytes());
+				fail();
+			} catch(IOException exc) {}
+
+			assertFalse(fs.exists("faulty-new/page"));
+			assertEquals(0, numEntries(fs, "faulty-new"));
+		}
+	}
+
+	@Test
+	public void testWriteAtomicFailureWhileRenamingLeavesOldContents() throws IOException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.writeAtomic("faulty-rename/page", "old contents".getBytes());
+			fs.failRename = true;
+			try {
+				fs.writeAtomic("faulty-rename/page", "new contents".getBytes());
+				fail();
+			} catch(IOException exc) {}
+
+			assertArrayEquals("old contents".getBytes(), fs.read("faulty-rename/page"));
+			assertEquals(1, numEntries(fs, "faulty-rename"));
+		}
+	}
+
+	@Test
+	public void testWriteAtomicDoesNotSyncOutsideBatch() throws IOException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.writeAtomic("unbatched/page", "contents".getBytes());
+			assertTrue(fs.syncedFiles.isEmpty());
+			assertTrue(fs.syncedDirectories.isEmpty());
+		}
+	}
+
+	@Test
+	public void testEndWriteBatchSyncsEachFileAndDirectoryOnce() throws IOException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.beginWriteBatch();
+			fs.writeAtomic("batch/a/0", "0".getBytes());
+			fs.writeAtomic("batch/a/1", "1".getBytes());
+			fs.writeAtomic("batch/b/0", "2".getBytes());
+			fs.writeAtomic("batch/b/0", "3".getBytes());
+			assertTrue(fs.syncedFiles.isEmpty());
+
+			fs.endWriteBatch();
+			assertEquals(3, fs.syncedFiles.size());
+			assertEquals(2, fs.syncedDirectories.size());
+			assertTrue(fs.syncedDirectories.contains(fs.qualifiedPathNative("batch/a")));
+			assertTrue(fs.syncedDirectories.contains(fs.qualifiedPathNative("batch/b")));
+		}
+	}
+
+	@Test
+	public void testNestedWriteBatchesSyncWhenOutermostEnds() throws IOException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.beginWriteBatch();
+			fs.beginWriteBatch();
+			fs.writeAtomic("nested/0", "0".getBytes());
+			fs.endWriteBatch();
+			assertTrue(fs.syncedFiles.isEmpty());
+
+			fs.writeAtomic("nested/1", "1".getBytes());
+			fs.endWriteBatch();
+			assertEquals(2, fs.syncedFiles.size());
+		}
+	}
+
+	@Test
+	public void testEndWriteBatchSyncsWritesFromOtherThreads() throws IOException, InterruptedException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.beginWriteBatch();
+			Thread thread = new Thread(()->{
+				try {
+					fs.writeAtomic("other-thread/page", "contents".getBytes());
+				} catch(IOException exc) {
+					fail();
+				}
+			});
+			thread.start();
+			thread.join();
+
+			fs.endWriteBatch();
+			assertEquals(1, fs.syncedFiles.size());
+			assertTrue(fs.syncedFiles.contains(fs.qualifiedPathNative("other-thread/page")));
+		}
+	}
+
+	@Test
+	public void testEndWriteBatchSyncsWritesMadeBeforeBatch() throws IOException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.writeAtomic("before-batch/page", "contents".getBytes());
+			fs.beginWriteBatch();
+			fs.endWriteBatch();
+			assertEquals(1, fs.syncedFiles.size());
+			assertEquals(1, fs.syncedDirectories.size());
+		}
+	}
+
+	@Test
+	public void testEndWriteBatchDoesNotSyncFilesTwice() throws IOException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.writeAtomic("synced-once/page", "contents".getBytes());
+			fs.beginWriteBatch();
+			fs.endWriteBatch();
+			fs.beginWriteBatch();
+			fs.endWriteBatch();
+			assertEquals(1, fs.syncedFiles.size());
+		}
+	}
+
+	@Test
+	public void testCommitSyncsPagesOfFilesClosedBeforeCommit() throws IOException {
+		Set<Path> synced = ConcurrentHashMap.newKeySet();
+		SyncRecordingLocalFS storage = new SyncRecordingLocalFS(FSPath.with(scratch()).join("master"), synced);
+		try(ZKMaster master = ZKMaster.open(ZKMaster.demoPassphraseProvider(), storage)) {
+			ZKArchive archive = master.createDefaultArchive();
+			try(ZKFS fs = archive.openBlank()) {
+				byte[] contents = new byte[4*archive.getConfig().getPageSize()];
+				new Random(1).nextBytes(contents);
+				try(File file = fs.open("closed-before-commit", File.O_WRONLY|File.O_CREAT)) {
+					file.write(contents);
+				}
+
+				fs.commit();
+			}
+
+			LocalFS pageStorage = (LocalFS) ((BackedFS) archive.getStorage()).getCacheFS();
+			ArrayList<Path> stored = new ArrayList<>();
+			Files.walk(pageStorage.qualifiedPathNative("/")).filter((path)->Files.isRegularFile(path)).forEach(stored::add);
+			assertTrue(stored.size() > 4);
+			for(Path path : stored) {
+				assertTrue(path.toString(), synced.contains(path));
+			}
+
+			archive.close();
+		}
+	}
+
+	@Test
+	public void testRemoveAbandonedTemporariesDeletesOnlyWriteAtomicTemporaries() throws IOException {
+		scratch.write("abandoned/.page.tmp1f2e3d4c5b6a7980", "partial".getBytes());
+		scratch.write("abandoned/.page.tmpnothex", "keep".getBytes());
+		scratch.write("abandoned/.hidden", "keep".getBytes());
+		scratch.writeAtomic("abandoned/page", "keep".getBytes());
+
+		scratch.removeAbandonedTemporaries();
+		assertFalse(scratch.exists("abandoned/.page.tmp1f2e3d4c5b6a7980"));
+		assertTrue(scratch.exists("abandoned/.page.tmpnothex"));
+		assertTrue(scratch.exists("abandoned/.hidden"));
+		assertTrue(scratch.exists("abandoned/page"));
+	}
+
+	@Test
+	public void testEndWriteBatchToleratesFilesRemovedDuringBatch() throws IOException {
+		try(FaultyLocalFS fs = new FaultyLocalFS()) {
+			fs.beginWriteBatch();
+			fs.writeAtomic("removed-in-batch/page", "contents".getBytes());
+			fs.unlink("removed-in-batch/page");
+			fs.endWriteBatch();
+		}
+	}
+
+	@Test
+	public void testWriteStillWritesThroughHardlinks() throws IOException {
+		scratch.write("inplace", "old".getBytes());
+		scratch.link("inplace", "inplace-link");
+		scratch.write("inplace", "new".getBytes());
+		assertArrayEquals("new".getBytes(), scratch.read("inplace-link"));
+		try(File file = scratch.open("inplace", File.O_RDONLY)) {
+			assertEquals(3, file.getStat().getSize());
+		}
+	}
+
+	@Test
+	public void testStatSharesNameCacheBetweenInstances() throws IOException {
+		assumeTrue("Owner names not tested on Windows", !Util.isWindows());
+		LocalFS.cachedUserNames.clear();
+		LocalFS.cachedGroupNames.clear();
+		Stat stat = scratch.stat("regularfile");
+
+		try(LocalFS other = new LocalFS(scratch())) {
+			assertTrue(LocalFS.cachedUserNames.containsKey(stat.getUid()));
+			assertTrue(LocalFS.cachedGroupNames.containsKey(stat.getGid()));
+			assertEquals(stat.getUser(), other.stat("regularfile").getUser());
+			assertEquals(stat.getGroup(), other.stat("regularfile").getGroup());
+		}
+	}
+
+	@Test
+	public void testNameCacheIsBounded() throws IOException {
+		LocalFS.cachedUserNames.clear();
+		for(int i = 0; i < 2*LocalFS.MAX_CACHED_NAMES; i++) {
+			LocalFS.cacheName(LocalFS.cachedUserNames, new LocalFS.CachedName("user" + i, i));
+		}
+
+		assertTrue(LocalFS.cachedUserNames.size() <= LocalFS.MAX_CACHED_NAMES);
+		LocalFS.cachedUserNames.clear();
+	}
 }
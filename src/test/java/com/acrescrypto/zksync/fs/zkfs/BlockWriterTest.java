@@ -0,0 +1,196 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.utility.Util;
+
+public class BlockWriterTest {
+	CryptoSupport crypto;
+	ZKMaster master;
+	ZKArchive archive;
+	BlockWriter writer;
+
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+
+	@Before
+	public void beforeEach() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		archive = master.createDefaultArchive();
+		crypto = master.getCrypto();
+		writer = master.getBlockWriter();
+	}
+
+	@After
+	public void afterEach() throws IOException {
+		Util.setCurrentTimeNanos(-1);
+		archive.close();
+		master.close();
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.stopDebugMode();
+		TestUtils.assertTidy();
+	}
+
+	Block makeBlock(int seed) throws IOException {
+		Block block = new Block(archive);
+		byte[] data = crypto.hash(Util.serializeInt(seed));
+		block.addData(seed, 0, Block.INDEX_TYPE_PAGE, data, 0, data.length);
+		return block;
+	}
+
+	@Test
+	public void testWriteAsyncQueuesBlockWithoutStoringIt() throws IOException {
+		Block block = makeBlock(0);
+		block.writeAsync();
+
+		assertFalse(block.isWritable());
+		assertFalse(block.getStorageTag().isFinalized());
+		assertEquals(1, writer.queued());
+		assertEquals(1, writer.getNumQueued());
+	}
+
+	@Test
+	public void testWritePendingBlocksStoresQueuedBlocks() throws IOException {
+		Block block = makeBlock(0);
+		block.writeAsync();
+		archive.writePendingBlocks();
+
+		assertTrue(block.getStorageTag().isFinalized());
+		assertTrue(archive.getStorage().exists(block.getStorageTag().path()));
+		assertEquals(0, writer.queued());
+	}
+
+	@Test
+	public void testGetTagBytesStoresQueuedBlock() throws IOException {
+		Block block = makeBlock(0);
+		block.writeAsync();
+		byte[] tagBytes = block.getStorageTag().getTagBytes();
+
+		assertTrue(block.getStorageTag().isFinalized());
+		assertTrue(archive.getStorage().exists(block.getStorageTag().path()));
+		assertEquals(0, writer.queued());
+
+		archive.writePendingBlocks(); // harmless to write it a second time
+		assertArrayEquals(tagBytes, block.getStorageTag().getTagBytes());
+	}
+
+	@Test
+	public void testQueuedBlocksHaveSameTagAsInlineBlocks() throws IOException {
+		Block inline = makeBlock(0), queued = makeBlock(0);
+		inline.write();
+		queued.writeAsync();
+		archive.writePendingBlocks();
+
+		assertArrayEquals(inline.getStorageTag().getTagBytes(), queued.getStorageTag().getTagBytes());
+	}
+
+	@Test
+	public void testWritesInlineIfQueueSizeIsZero() throws IOException {
+		master.getGlobalConfig().set("fs.settings.blockWriteQueueSize", 0);
+		Block block = makeBlock(0);
+		block.writeAsync();
+
+		assertTrue(block.getStorageTag().isFinalized());
+		assertEquals(0, writer.getNumQueued());
+		assertEquals(1, writer.getNumInline());
+	}
+
+	@Test
+	public void testStoresOldestBlockWhenQueueIsFull() throws IOException {
+		master.getGlobalConfig().set("fs.settings.blockWriteQueueSize", 2);
+		Block[] blocks = new Block[3];
+		for(int i = 0; i < blocks.length; i++) {
+			blocks[i] = makeBlock(i);
+			blocks[i].writeAsync();
+		}
+
+		assertTrue(blocks[0].getStorageTag().isFinalized());
+		assertFalse(blocks[1].getStorageTag().isFinalized());
+		assertFalse(blocks[2].getStorageTag().isFinalized());
+		assertEquals(2, writer.queued());
+	}
+
+	@Test
+	public void testCloseStoresQueuedBlocks() throws IOException {
+		Block block = makeBlock(0);
+		block.writeAsync();
+		writer.close();
+
+		assertTrue(writer.isClosed());
+		assertTrue(block.getStorageTag().isFinalized());
+		assertTrue(archive.getStorage().exists(block.getStorageTag().path()));
+	}
+
+	@Test
+	public void testWritesInlineAfterClose() throws IOException {
+		writer.close();
+		Block block = makeBlock(0);
+		block.writeAsync();
+
+		assertTrue(block.getStorageTag().isFinalized());
+		assertEquals(1, writer.getNumInline());
+	}
+
+	@Test
+	public void testCommitStoresQueuedBlocks() throws IOException {
+		try(ZKFS fs = archive.openBlank()) {
+			fs.write("file", crypto.rng(4*archive.getConfig().getPageSize()));
+			fs.commit();
+		}
+
+		assertEquals(0, writer.queued());
+		assertTrue(writer.getNumQueued() > 0);
+	}
+
+	@Test
+	public void testCommitsAreIdenticalToInlineCommits() throws IOException {
+		// small pages, so each file's page tree has several chunks
+		try(ZKArchive smallArchive = master.createArchive(4096, "")) {
+			int tagsPerChunk = smallArchive.getConfig().getPageSize() / crypto.hashLength();
+			int numFiles = 4, fileSize = (tagsPerChunk+2)*smallArchive.getConfig().getPageSize();
+			RevisionTag base;
+			try(ZKFS fs = smallArchive.openBlank()) {
+				for(int i = 0; i < numFiles; i++) {
+					fs.write("file" + i, crypto.prng(Util.serializeInt(i)).getBytes(fileSize));
+				}
+
+				base = fs.commit();
+			}
+
+			RevisionTag[] revisions = new RevisionTag[2];
+			int[] queueSizes = { 0, 256 };
+			for(int i = 0; i < revisions.length; i++) {
+				master.getGlobalConfig().set("fs.settings.blockWriteQueueSize", queueSizes[i]);
+				Util.setCurrentTimeNanos(1000l*1000l*1000l);
+				try(ZKFS fs = base.getFS()) {
+					for(int j = 0; j < numFiles; j++) {
+						fs.write("file" + j, crypto.prng(Util.serializeInt(numFiles+j)).getBytes(fileSize));
+					}
+
+					revisions[i] = fs.commit();
+				}
+			}
+
+			assertTrue(writer.getNumQueued() > 0);
+			assertEquals(revisions[0], revisions[1]);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import java.io.IOException;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Rewrites every file in a revision of ten thousand files and commits, once encrypting and signing every block on
+ * the committing thread, and once handing them to the BlockWriter. Times the commit alone, and the rewrite and commit
+ * together, since pages sealed in the background while files are being written don't show up in the commit. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CommitBenchmark {
+	public final static int NUM_FILES = 10*1000;
+	public final static int FILE_SIZE = 4096;
+
+	static ZKMaster master;
+	static ZKArchive archive;
+	static RevisionTag base;
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		archive = master.createDefaultArchive();
+		try(ZKFS fs = archive.openBlank()) {
+			fs.skipIntegrity = true;
+			for(int i = 0; i < NUM_FILES; i++) {
+				fs.write(path(i), contents(i, 0));
+			}
+
+			base = fs.commit();
+		}
+
+		Benchmarks.beginBenchmarkSuite("Commit (" + NUM_FILES + " modified files)");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		archive.close();
+		master.close();
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	static String path(int i) {
+		return "dir" + (i % 100) + "/file" + i;
+	}
+
+	static byte[] contents(int i, int generation) {
+		return master.getCrypto().prng(Util.serializeInt(generation*NUM_FILES + i)).getBytes(FILE_SIZE);
+	}
+
+	void output(String name, long startNs) {
+		long elapsedNs = System.nanoTime() - startNs;
+		Benchmarks.output(String.format("\t%50s: %.01f files/s (%d files in %d ms)",
+				name,
+				NUM_FILES / (elapsedNs / 1e9),
+				NUM_FILES,
+				elapsedNs/(1000*1000)));
+	}
+
+	void rewriteAndCommit(String name, int queueSize, int generation) throws IOException {
+		master.getGlobalConfig().set("fs.settings.blockWriteQueueSize", queueSize);
+		try(ZKFS fs = base.getFS()) {
+			fs.skipIntegrity = true;
+			long startNs = System.nanoTime();
+			for(int i = 0; i < NUM_FILES; i++) {
+				fs.write(path(i), contents(i, generation));
+			}
+
+			long commitStartNs = System.nanoTime();
+			fs.commit();
+			output(name + " commit", commitStartNs);
+			output(name + " rewrite and commit", startNs);
+		}
+	}
+
+	@Test
+	public void testInline() throws IOException {
+		rewriteAndCommit("testInline", 0, 1);
+	}
+
+	@Test
+	public void testBlockWriter() throws IOException {
+		rewriteAndCommit("testBlockWriter", 256, 2);
+	}
+}
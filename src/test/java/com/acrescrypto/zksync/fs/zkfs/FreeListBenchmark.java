@@ -0,0 +1,95 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+
+/** Frees a million inode IDs, as a mass deletion would, commits and reloads the freelist, then reallocates every
+ * ID. Done once with consecutive IDs (deleting a whole tree) and once with every other ID (the worst case for range
+ * encoding). */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FreeListBenchmark {
+	public final static int NUM_INODES = 1000*1000;
+
+	static ZKMaster master;
+	ZKArchive archive;
+	ZKFS fs;
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		Benchmarks.beginBenchmarkSuite("FreeList (" + NUM_INODES + " inodes)");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		master.close();
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	@Before
+	public void beforeEach() throws IOException {
+		archive = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "");
+		fs = archive.openBlank();
+	}
+
+	@After
+	public void afterEach() throws IOException {
+		fs.close();
+		archive.close();
+	}
+
+	void output(String name, long startNs) {
+		long elapsedNs = System.nanoTime() - startNs;
+		Benchmarks.output(String.format("\t%50s: %.01f inodes/s (%d inodes in %d ms)",
+				name,
+				NUM_INODES / (elapsedNs / 1e9),
+				NUM_INODES,
+				elapsedNs/(1000*1000)));
+	}
+
+	void deleteAndReallocate(String name, long stride) throws IOException {
+		long first = InodeTable.USER_INODE_ID_START;
+		FreeList freelist = fs.inodeTable.freelist;
+
+		long startNs = System.nanoTime();
+		for(long i = 0; i < NUM_INODES; i++) {
+			freelist.freeInodeId(first + stride*i);
+		}
+		output(name + " free", startNs);
+
+		startNs = System.nanoTime();
+		freelist.commit();
+		output(name + " commit", startNs);
+
+		startNs = System.nanoTime();
+		freelist = new FreeList(fs.inodeTable.inodeWithId(InodeTable.INODE_ID_FREELIST));
+		long sum = 0;
+		for(long i = 0; i < NUM_INODES; i++) {
+			sum += freelist.issueInodeId() - first;
+		}
+		output(name + " reload and issue", startNs);
+
+		assertEquals(stride * ((long) NUM_INODES) * (NUM_INODES - 1) / 2, sum);
+	}
+
+	@Test
+	public void testConsecutiveIds() throws IOException {
+		deleteAndReallocate("testConsecutiveIds", 1);
+	}
+
+	@Test
+	public void testAlternatingIds() throws IOException {
+		deleteAndReallocate("testAlternatingIds", 2);
+	}
+}
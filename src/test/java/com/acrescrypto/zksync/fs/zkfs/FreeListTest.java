@@ -3,6 +3,8 @@ package com.acrescrypto.zksync.fs.zkfs;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.security.Security;
 import java.util.Collection;
 import java.util.Stack;
@@ -11,6 +13,8 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.*;
 
 import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.exceptions.EINVALException;
+import com.acrescrypto.zksync.fs.File;
 import com.acrescrypto.zksync.fs.zkfs.FreeList.FreeListExhaustedException;
 
 public class FreeListTest {
@@ -51,7 +55,7 @@ public class FreeListTest {
 		fs.write("placeholder", "bar".getBytes()); // need an inode ID bigger than the one we unlink
 		long inodeId = fs.stat("test").getInodeId();
 		fs.unlink("test");
-		assertEquals((Long) inodeId, fs.inodeTable.freelist.available.pop());
+		assertEquals(inodeId, fs.inodeTable.freelist.issueInodeId());
 	}
 	
 	@Test
@@ -66,7 +70,7 @@ public class FreeListTest {
 	@Test
 	public void testFreelistEmptyAtInit() throws IOException {
 		assertEquals(0, fs.inodeTable.freelist.getStat().getSize());
-		assertTrue(fs.inodeTable.freelist.available.isEmpty());
+		assertTrue(fs.inodeTable.freelist.isEmpty());
 	}
 	
 	@Test
@@ -87,7 +91,7 @@ public class FreeListTest {
 		fs = tag.getFS();
 		for(int i = numFiles-1; i >= 0; i--) {
 			if(i % 2 == 0) continue;
-			assertEquals(witnessedIds.pop(),
+			assertEquals(witnessedIds.remove(0), // lowest first
 					(Long) fs.inodeTable.freelist.issueInodeId());
 		}
 		
@@ -104,7 +108,7 @@ public class FreeListTest {
 		 * 2. Commit
 		 * 3. Re-open the FS (force freelist reload)
 		 * 4. Put another inodeId Y into the freelist. 
-		 * 5. Issue an inodeId from the freelist without committing. (This will be Y.)
+		 * 5. Issue an inodeId from the freelist without committing. (This will be Y, the lower of the two.)
 		 * 6. Commit
 		 * 
 		 * The serialized commit would not have inodeId X in the freelist, despite it being free.
@@ -113,17 +117,254 @@ public class FreeListTest {
 		fs.write("file1", new byte[0]);
 		fs.write("file2", new byte[0]);
 		fs.write("file3", new byte[0]);
-		fs.unlink("file1");
+		fs.unlink("file2");
 		RevisionTag tag = fs.commitAndClose();
 		
 		fs = tag.getFS();
-		fs.unlink("file2");
+		fs.unlink("file1");
 		fs.write("replacement1", new byte[0]);
 		tag = fs.commitAndClose();
 		
 		fs = tag.getFS();
 		Collection<Long> entries = fs.inodeTable.freelist.allEntries();
-		assertTrue(entries.contains(InodeTable.USER_INODE_ID_START));
+		assertTrue(entries.contains(InodeTable.USER_INODE_ID_START+1));
 		assertEquals(1, entries.size());
 	}
+	
+	/** write raw bytes into the freelist's file, bypassing its own serialization */
+	void writeRaw(ByteBuffer buf) throws IOException {
+		FreeList freelist = fs.inodeTable.freelist;
+		freelist.truncate(0);
+		freelist.seek(0, File.SEEK_SET);
+		freelist.write(buf.array());
+		freelist.flush();
+	}
+	
+	@Test
+	public void testConsecutiveIdsShareARange() throws IOException {
+		FreeList freelist = fs.inodeTable.freelist;
+		for(long i = 100; i < 200; i++) freelist.freeInodeId(i);
+		for(long i = 300; i > 250; i--) freelist.freeInodeId(i);
+		assertEquals(150, freelist.size());
+		assertEquals(2, freelist.numRanges());
+	}
+	
+	@Test
+	public void testFreeingGapMergesRanges() throws IOException {
+		FreeList freelist = fs.inodeTable.freelist;
+		freelist.freeInodeId(100);
+		freelist.freeInodeId(102);
+		assertEquals(2, freelist.numRanges());
+		freelist.freeInodeId(101);
+		assertEquals(1, freelist.numRanges());
+		assertEquals(3, freelist.size());
+	}
+	
+	@Test
+	public void testFreeingListedIdIsNoop() throws IOException {
+		FreeList freelist = fs.inodeTable.freelist;
+		freelist.freeInodeId(100);
+		freelist.freeInodeId(101);
+		freelist.freeInodeId(100);
+		assertEquals(2, freelist.size());
+		assertEquals(1, freelist.numRanges());
+	}
+	
+	@Test
+	public void testContainsChecksRanges() throws IOException {
+		FreeList freelist = fs.inodeTable.freelist;
+		for(long i = 100; i < 110; i++) freelist.freeInodeId(i);
+		freelist.freeInodeId(200);
+		
+		assertFalse(freelist.contains(99));
+		assertTrue(freelist.contains(100));
+		assertTrue(freelist.contains(109));
+		assertFalse(freelist.contains(110));
+		assertFalse(freelist.contains(199));
+		assertTrue(freelist.contains(200));
+		assertFalse(freelist.contains(201));
+	}
+	
+	@Test
+	public void testIssuesLowestIdFirst() throws IOException {
+		FreeList freelist = fs.inodeTable.freelist;
+		freelist.freeInodeId(200);
+		for(long i = 100; i < 103; i++) freelist.freeInodeId(i);
+		
+		assertEquals(100, freelist.issueInodeId());
+		assertEquals(101, freelist.issueInodeId());
+		assertEquals(2, freelist.numRanges());
+		assertEquals(102, freelist.issueInodeId());
+		assertEquals(1, freelist.numRanges());
+		assertEquals(200, freelist.issueInodeId());
+		assertTrue(freelist.isEmpty());
+		assertEquals(0, freelist.numRanges());
+	}
+	
+	@Test
+	public void testReusesRoomFreedByIssuedRanges() throws IOException {
+		FreeList freelist = fs.inodeTable.freelist;
+		for(long i = 0; i < 64; i++) freelist.freeInodeId(100 + 2*i);
+		for(int i = 0; i < 32; i++) freelist.issueInodeId();
+		assertEquals(32, freelist.head);
+		
+		freelist.freeInodeId(99); // in front of everything, so it takes a slot we've issued past
+		assertEquals(31, freelist.head);
+		freelist.freeInodeId(1000); // at the end, which compacts once the arrays are full
+		assertEquals(34, freelist.numRanges());
+		
+		assertEquals(99, freelist.issueInodeId());
+		for(long i = 32; i < 64; i++) {
+			assertEquals(100 + 2*i, freelist.issueInodeId());
+		}
+		
+		assertEquals(1000, freelist.issueInodeId());
+		assertTrue(freelist.isEmpty());
+	}
+	
+	@Test
+	public void testSerializesRanges() throws IOException {
+		FreeList freelist = fs.inodeTable.freelist;
+		for(long i = 100; i < 10000; i++) freelist.freeInodeId(i);
+		freelist.freeInodeId(20000);
+		freelist.commit();
+		
+		freelist.seek(0, File.SEEK_SET);
+		ByteBuffer buf = ByteBuffer.wrap(freelist.read((int) freelist.getSize()));
+		assertEquals(FreeList.FORMAT_MAGIC, buf.getInt());
+		assertEquals(FreeList.FORMAT_VERSION, buf.getInt());
+		assertEquals(100, FreeList.getVarint(buf));
+		assertEquals(9900, FreeList.getVarint(buf));
+		assertEquals(10000, FreeList.getVarint(buf)); // gap from 10000 to 20000
+		assertEquals(1, FreeList.getVarint(buf));
+		assertFalse(buf.hasRemaining());
+	}
+	
+	@Test
+	public void testVarintsRoundTrip() throws IOException {
+		long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1 };
+		ByteBuffer buf = ByteBuffer.allocate(FreeList.MAX_VARINT_SIZE*values.length);
+		for(long value : values) FreeList.putVarint(buf, value);
+		
+		assertEquals(1+1+1+2+2+3+5+9+10, buf.position());
+		buf.flip();
+		for(long value : values) assertEquals(value, FreeList.getVarint(buf));
+	}
+	
+	@Test
+	public void testEmptyListSerializesToEmptyFile() throws IOException {
+		FreeList freelist = fs.inodeTable.freelist;
+		freelist.freeInodeId(100);
+		freelist.commit();
+		freelist.issueInodeId();
+		freelist.commit();
+		assertEquals(0, freelist.getSize());
+	}
+	
+	@Test
+	public void testDeserializesRanges() throws IOException {
+		for(int i = 0; i < 100; i++) fs.write("file"+i, new byte[0]);
+		fs.write("placeholder", new byte[0]);
+		ArrayList<Long> unlinked = new ArrayList<>();
+		for(int i = 0; i < 100; i++) {
+			if(i % 10 == 3) continue;
+			unlinked.add(fs.stat("file"+i).getInodeId());
+			fs.unlink("file"+i);
+		}
+		
+		RevisionTag tag = fs.commitAndClose();
+		fs = tag.getFS();
+		
+		FreeList freelist = fs.inodeTable.freelist;
+		assertEquals(unlinked.size(), freelist.size());
+		assertEquals(11, freelist.numRanges());
+		assertEquals(unlinked, freelist.allEntries());
+	}
+	
+	@Test
+	public void testMigratesLegacyFormat() throws IOException {
+		for(int i = 0; i < 10; i++) fs.write("file"+i, new byte[0]);
+		long base = fs.stat("file0").getInodeId();
+		fs.write("placeholder", new byte[0]); // ensure the last inode ID is not unlinked
+		for(int i = 0; i < 10; i++) fs.unlink("file"+i);
+		
+		// legacy lists are a stack of raw IDs, bottom first, possibly unordered and with repeats
+		long[] offsets = new long[] { 7, 6, 5, 0, 1, 2, 3, 4, 1 };
+		ByteBuffer legacy = ByteBuffer.allocate(8*offsets.length);
+		for(long offset : offsets) {
+			legacy.putLong(base + offset);
+		}
+		
+		writeRaw(legacy);
+		RevisionTag tag = fs.commitAndClose();
+		fs = tag.getFS();
+		
+		FreeList freelist = fs.inodeTable.freelist;
+		assertEquals(8*offsets.length, freelist.getSize());
+		assertEquals(8, freelist.size());
+		assertEquals(1, freelist.numRanges());
+		assertTrue(freelist.contains(base));
+		assertTrue(freelist.contains(base+7));
+		assertFalse(freelist.contains(base+8));
+		
+		fs.write("new", new byte[0]);
+		assertEquals(base, fs.stat("new").getInodeId());
+		tag = fs.commitAndClose();
+		fs = tag.getFS();
+		
+		freelist = fs.inodeTable.freelist;
+		assertEquals(FreeList.HEADER_SIZE + 2, freelist.getSize());
+		assertEquals(7, freelist.size());
+		assertTrue(freelist.contains(base+7));
+		assertFalse(freelist.contains(base));
+	}
+	
+	@Test(expected=EINVALException.class)
+	public void testRefusesUnsupportedVersion() throws IOException {
+		writeRaw(ByteBuffer.allocate(FreeList.HEADER_SIZE + 2)
+				.putInt(FreeList.FORMAT_MAGIC)
+				.putInt(FreeList.FORMAT_VERSION+1)
+				.put((byte) 100)
+				.put((byte) 1));
+		RevisionTag tag = fs.commitAndClose();
+		fs = tag.getFS();
+		fs.inodeTable.freelist.contains(100);
+	}
+	
+	@Test(expected=EINVALException.class)
+	public void testRefusesTruncatedRanges() throws IOException {
+		writeRaw(ByteBuffer.allocate(FreeList.HEADER_SIZE + 2)
+				.putInt(FreeList.FORMAT_MAGIC)
+				.putInt(FreeList.FORMAT_VERSION)
+				.put((byte) 100)
+				.put((byte) 0x81)); // continuation bit set, but no more bytes
+		RevisionTag tag = fs.commitAndClose();
+		fs = tag.getFS();
+		fs.inodeTable.freelist.contains(100);
+	}
+	
+	@Test
+	public void testFailedLoadLeavesListUnloadedAndEmpty() throws IOException {
+		writeRaw(ByteBuffer.allocate(FreeList.HEADER_SIZE + 4)
+				.putInt(FreeList.FORMAT_MAGIC)
+				.putInt(FreeList.FORMAT_VERSION)
+				.put((byte) 100)
+				.put((byte) 1)
+				.put((byte) 0) // adjacent to the previous range, which can't happen
+				.put((byte) 1));
+		RevisionTag tag = fs.commitAndClose();
+		fs = tag.getFS();
+		
+		FreeList freelist = fs.inodeTable.freelist;
+		for(int i = 0; i < 2; i++) {
+			try {
+				freelist.contains(100);
+				fail();
+			} catch(EINVALException exc) {}
+			
+			assertFalse(freelist.loaded);
+			assertEquals(0, freelist.numRanges);
+			assertEquals(0, freelist.numIds);
+		}
+	}
 }
@@ -0,0 +1,91 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import java.io.IOException;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Builds a revision of ten thousand files across a hundred directories, then deletes every other file, and times
+ * rebuilding the link counts and defragmenting the inode table of that revision, the way a merge does. */
+public class InodeTableMaintenanceBenchmark {
+	public final static int NUM_FILES = 10*1000;
+	public final static int NUM_DIRS  = 100;
+
+	static ZKMaster master;
+	static ZKArchive archive;
+	static RevisionTag fragmented;
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		archive = master.createDefaultArchive();
+		try(ZKFS fs = archive.openBlank()) {
+			fs.skipIntegrity = true;
+			for(int i = 0; i < NUM_FILES; i++) {
+				fs.write(path(i), Util.serializeInt(i));
+			}
+
+			for(int i = 0; i < NUM_FILES; i += 2) {
+				fs.unlink(path(i));
+			}
+
+			fragmented = fs.commit();
+		}
+
+		Benchmarks.beginBenchmarkSuite("Inode table maintenance (" + NUM_FILES/2 + " files, " + NUM_FILES/2 + " holes)");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		archive.close();
+		master.close();
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	static String path(int i) {
+		return "dir" + (i % NUM_DIRS) + "/file" + i;
+	}
+
+	void output(String name, long startNs) {
+		long elapsedNs = System.nanoTime() - startNs;
+		Benchmarks.output(String.format("\t%50s: %.01f inodes/s (%d inodes in %d ms)",
+				name,
+				NUM_FILES / (elapsedNs / 1e9),
+				NUM_FILES,
+				elapsedNs/(1000*1000)));
+	}
+
+	@Test
+	public void testRebuildLinkCounts() throws IOException {
+		try(ZKFS fs = fragmented.getFS()) {
+			long startNs = System.nanoTime();
+			fs.getInodeTable().rebuildLinkCounts();
+			output("testRebuildLinkCounts", startNs);
+		}
+	}
+
+	@Test
+	public void testDefragment() throws IOException {
+		try(ZKFS fs = fragmented.getFS()) {
+			long startNs = System.nanoTime();
+			fs.getInodeTable().defragment();
+			output("testDefragment", startNs);
+		}
+	}
+
+	@Test
+	public void testRebuildAndDefragmentAndCommit() throws IOException {
+		try(ZKFS fs = fragmented.getFS()) {
+			fs.skipIntegrity = true;
+			long startNs = System.nanoTime();
+			fs.getInodeTable().rebuildLinkCounts();
+			fs.getInodeTable().defragment();
+			fs.commit();
+			output("testRebuildAndDefragmentAndCommit", startNs);
+		}
+	}
+}
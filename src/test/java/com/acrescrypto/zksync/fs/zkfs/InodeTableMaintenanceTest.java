@@ -0,0 +1,481 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import org.apache.commons.lang3.mutable.MutableLong;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.exceptions.ENOENTException;
+import com.acrescrypto.zksync.fs.Directory;
+import com.acrescrypto.zksync.fs.zkfs.FreeList.FreeListExhaustedException;
+import com.acrescrypto.zksync.fs.zkfs.InodeTableMaintenance.Phase;
+import com.acrescrypto.zksync.utility.Util;
+
+public class InodeTableMaintenanceTest {
+	final static int NUM_DIRS = 8, FILES_PER_DIR = 40;
+
+	interface FSOperation {
+		void run(ZKFS fs) throws IOException;
+	}
+
+	class InterruptedProgress extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	ZKMaster master;
+	ZKArchive archive;
+	RevisionTag fragmented;
+
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+
+	@Before
+	public void beforeEach() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		archive = master.createDefaultArchive();
+		Util.setCurrentTimeNanos(1000l*1000l*1000l);
+		fragmented = makeFragmentedRevision();
+	}
+
+	@After
+	public void afterEach() {
+		Util.setCurrentTimeNanos(-1);
+		archive.close();
+		master.close();
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.stopDebugMode();
+		TestUtils.assertTidy();
+	}
+
+	static String path(int dir, int file) {
+		return "dir" + dir + "/file" + file;
+	}
+
+	RevisionTag makeFragmentedRevision() throws IOException {
+		try(ZKFS fs = archive.openBlank()) {
+			for(int i = 0; i < NUM_DIRS; i++) {
+				for(int j = 0; j < FILES_PER_DIR; j++) {
+					fs.write(path(i, j), Util.serializeInt(i*FILES_PER_DIR + j));
+				}
+			}
+
+			fs.mkdirp("nested/a/b/c");
+			fs.write("nested/a/b/c/deep", "deep".getBytes());
+			fs.link(path(NUM_DIRS-1, FILES_PER_DIR-1), "nested/a/hardlink");
+			fs.symlink("../../" + path(NUM_DIRS-1, FILES_PER_DIR-2), "nested/a/symlink");
+			fs.symlink("nonexistent", "nested/broken");
+
+			// punch holes in the low end of the table, leaving plenty of live inodes above them
+			for(int j = 0; j < FILES_PER_DIR; j += 2) {
+				fs.unlink(path(0, j));
+			}
+
+			for(int j = 0; j < FILES_PER_DIR; j++) {
+				fs.unlink(path(2, j));
+			}
+
+			fs.rmdir("dir2");
+			fs.unlink(path(1, 3));
+
+			return fs.commit();
+		}
+	}
+
+	/** Give inodes link counts that don't match the directory tree, and leave one inode with no links at all. */
+	void corruptLinkCounts(ZKFS fs) throws IOException {
+		fs.inodeForPath(path(3, 0)).setNlink(5);
+		fs.inodeForPath("nested/a/hardlink").setNlink(1);
+		fs.inodeForPath("nested/a/b").setNlink(7);
+		fs.inodeForPath("nested/broken", false).setNlink(0);
+
+		Inode orphan = fs.inodeForPath(path(4, 0));
+		fs.unlink(path(4, 0));
+		orphan.addLink();
+	}
+
+	/** Open every directory by path, so it's in the filesystem's directory cache and gets committed with it.
+	 * The legacy defragment loses changes to any directory that isn't. */
+	void cacheDirectories(ZKFS fs) throws IOException {
+		try(ZKDirectory root = fs.opendir("/")) {
+			for(String path : root.listRecursive(Directory.LIST_OPT_DONT_FOLLOW_SYMLINKS)) {
+				if(!fs.lstat(path).isDirectory()) continue;
+				fs.opendir(path).close();
+			}
+		}
+	}
+
+	RevisionTag runAndCommit(boolean cacheDirectories, FSOperation... ops) throws IOException {
+		try(ZKFS fs = fragmented.getFS()) {
+			if(cacheDirectories) cacheDirectories(fs);
+			for(FSOperation op : ops) {
+				op.run(fs);
+			}
+
+			return fs.commit();
+		}
+	}
+
+	void assertSameResult(FSOperation legacy, FSOperation current, FSOperation... setup) throws IOException {
+		FSOperation[] legacyOps = new FSOperation[setup.length+1], currentOps = new FSOperation[setup.length+1];
+		System.arraycopy(setup, 0, legacyOps, 0, setup.length);
+		System.arraycopy(setup, 0, currentOps, 0, setup.length);
+		legacyOps[setup.length] = legacy;
+		currentOps[setup.length] = current;
+
+		RevisionTag expected = runAndCommit(true, legacyOps);
+		RevisionTag actual = runAndCommit(true, currentOps);
+		assertArrayEquals(expected.getBytes(), actual.getBytes());
+		assertIntact(actual);
+	}
+
+	void assertIntact(RevisionTag revision) throws IOException {
+		try(ZKFS fs = revision.getFS()) {
+			for(int i = 0; i < NUM_DIRS; i++) {
+				if(i == 2) continue;
+				for(int j = 0; j < FILES_PER_DIR; j++) {
+					if(!fs.exists(path(i, j))) continue;
+					assertArrayEquals(Util.serializeInt(i*FILES_PER_DIR + j), fs.read(path(i, j)));
+				}
+			}
+
+			assertArrayEquals("deep".getBytes(), fs.read("nested/a/b/c/deep"));
+			assertArrayEquals(fs.read(path(NUM_DIRS-1, FILES_PER_DIR-1)), fs.read("nested/a/hardlink"));
+			assertArrayEquals(fs.read(path(NUM_DIRS-1, FILES_PER_DIR-2)), fs.read("nested/a/symlink"));
+		}
+	}
+
+	@Test
+	public void testRebuildLinkCountsMatchesLegacy() throws IOException {
+		assertSameResult((fs)->legacyRebuildLinkCounts(fs.getInodeTable()),
+				(fs)->fs.getInodeTable().rebuildLinkCounts());
+	}
+
+	@Test
+	public void testRebuildLinkCountsMatchesLegacyWithCorruptLinkCounts() throws IOException {
+		assertSameResult((fs)->legacyRebuildLinkCounts(fs.getInodeTable()),
+				(fs)->fs.getInodeTable().rebuildLinkCounts(),
+				(fs)->corruptLinkCounts(fs));
+	}
+
+	@Test
+	public void testRebuildLinkCountsRepairsLinkCounts() throws IOException {
+		try(ZKFS fs = fragmented.getFS()) {
+			long orphanId = fs.inodeForPath(path(4, 0)).getStat().getInodeId();
+			corruptLinkCounts(fs);
+			fs.getInodeTable().rebuildLinkCounts();
+
+			assertEquals(1, fs.inodeForPath(path(3, 0)).getNlink());
+			assertEquals(2, fs.inodeForPath("nested/a/hardlink").getNlink());
+			assertEquals(1, fs.inodeForPath("nested/broken", false).getNlink());
+			assertEquals(3, fs.inodeForPath("nested/a/b").getNlink()); // parent's entry, our ".", c's ".."
+			assertTrue(fs.getInodeTable().inodeWithId(orphanId).isDeleted());
+		}
+	}
+
+	@Test
+	public void testDefragmentMatchesLegacy() throws IOException {
+		assertSameResult((fs)->legacyDefragment(fs.getInodeTable()),
+				(fs)->fs.getInodeTable().defragment());
+	}
+
+	@Test
+	public void testRebuildAndDefragmentMatchesLegacy() throws IOException {
+		// this is what DiffSetResolver does after a merge
+		assertSameResult((fs)->{
+					legacyRebuildLinkCounts(fs.getInodeTable());
+					legacyDefragment(fs.getInodeTable());
+				},
+				(fs)->{
+					fs.getInodeTable().rebuildLinkCounts();
+					fs.getInodeTable().defragment();
+				},
+				(fs)->corruptLinkCounts(fs));
+	}
+
+	@Test
+	public void testDefragmentLeavesNoHoles() throws IOException {
+		try(ZKFS fs = fragmented.getFS()) {
+			InodeTable table = fs.getInodeTable();
+			fs.getInodeTable().defragment();
+
+			long nextInodeId = table.nextInodeId();
+			for(long i = InodeTable.USER_INODE_ID_START; i < nextInodeId; i++) {
+				assertFalse(table.inodeWithId(i).isDeleted());
+			}
+		}
+	}
+
+	@Test
+	public void testDefragmentPersistsUncachedDirectories() throws IOException {
+		long fragmentedNextId;
+		try(ZKFS fs = fragmented.getFS()) {
+			fragmentedNextId = fs.getInodeTable().nextInodeId();
+		}
+
+		RevisionTag revision = runAndCommit(false, (fs)->fs.getInodeTable().defragment());
+		try(ZKFS fs = revision.getFS()) {
+			assertTrue(fs.getInodeTable().nextInodeId() < fragmentedNextId);
+		}
+
+		assertIntact(revision);
+	}
+
+	@Test
+	public void testDefragmentPersistsInodesMovedToUnchangedPages() throws IOException {
+		// small pages, so inodes get moved to pages of the table that nothing else changes
+		archive.close();
+		archive = master.createArchive(4096, "");
+		fragmented = makeFragmentedRevision();
+
+		RevisionTag revision = runAndCommit(true, (fs)->fs.getInodeTable().defragment());
+		assertIntact(revision);
+	}
+
+	@Test
+	public void testReportsProgressForEachPhase() throws IOException {
+		LinkedList<Phase> phases = new LinkedList<>();
+		HashMap<Phase,Long> lastCompleted = new HashMap<>(), lastTotal = new HashMap<>();
+
+		try(ZKFS fs = fragmented.getFS()) {
+			InodeTableMaintenance maintenance = new InodeTableMaintenance(fs.getInodeTable());
+			maintenance.progressInterval = 1;
+			maintenance.setProgressCallback((phase, completed, total)->{
+				if(phases.isEmpty() || phases.getLast() != phase) phases.add(phase);
+				assertTrue(completed <= total);
+				assertTrue(completed >= lastCompleted.getOrDefault(phase, 0l));
+				lastCompleted.put(phase, completed);
+				lastTotal.put(phase, total);
+			});
+
+			maintenance.rebuildLinkCounts();
+			maintenance.defragment();
+		}
+
+		assertEquals(Phase.values().length, phases.size());
+		for(Phase phase : Phase.values()) {
+			assertEquals(phase, phases.get(phase.ordinal()));
+			assertEquals(lastTotal.get(phase), lastCompleted.get(phase));
+		}
+	}
+
+	@Test
+	public void testRebuildLinkCountsResumesAfterInterruption() throws IOException {
+		MutableLong reports = new MutableLong();
+		RevisionTag expected = runAndCommit(true,
+				(fs)->corruptLinkCounts(fs),
+				(fs)->legacyRebuildLinkCounts(fs.getInodeTable()));
+		RevisionTag actual = runAndCommit(true,
+				(fs)->corruptLinkCounts(fs),
+				(fs)->{
+					InodeTableMaintenance maintenance = new InodeTableMaintenance(fs.getInodeTable());
+					maintenance.progressInterval = 1;
+					maintenance.setProgressCallback((phase, completed, total)->{
+						if(phase == Phase.COUNT_LINKS && reports.incrementAndGet() == 3) {
+							Thread.currentThread().interrupt();
+						}
+					});
+
+					try {
+						maintenance.rebuildLinkCounts();
+						fail();
+					} catch(InterruptedIOException exc) {
+						assertTrue(Thread.interrupted());
+					}
+
+					maintenance.rebuildLinkCounts();
+				});
+
+		assertTrue(reports.longValue() > 3);
+		assertArrayEquals(expected.getBytes(), actual.getBytes());
+	}
+
+	@Test
+	public void testDefragmentResumesAfterFailure() throws IOException {
+		MutableLong failures = new MutableLong();
+		RevisionTag expected = runAndCommit(true, (fs)->legacyDefragment(fs.getInodeTable()));
+		RevisionTag actual = runAndCommit(true, (fs)->{
+			InodeTableMaintenance maintenance = new InodeTableMaintenance(fs.getInodeTable());
+			maintenance.progressInterval = 1;
+			int[] seen = new int[Phase.values().length];
+			maintenance.setProgressCallback((phase, completed, total)->{
+				if(++seen[phase.ordinal()] == 5) throw new InterruptedProgress();
+			});
+
+			while(true) {
+				try {
+					maintenance.defragment();
+					break;
+				} catch(InterruptedProgress exc) {
+					failures.increment();
+				}
+			}
+		});
+
+		assertEquals(3, failures.longValue()); // plan, renumber and remap each run more than 5 inodes
+		assertArrayEquals(expected.getBytes(), actual.getBytes());
+		assertIntact(actual);
+	}
+
+	@Test
+	public void testInodeTableResumesDefragmentAfterInterruption() throws IOException {
+		RevisionTag expected = runAndCommit(true, (fs)->legacyDefragment(fs.getInodeTable()));
+		for(Phase interruptedPhase : new Phase[] { Phase.PLAN_RENUMBERING, Phase.RENUMBER_INODES, Phase.REMAP_DIRECTORIES }) {
+			MutableLong reports = new MutableLong();
+			RevisionTag actual = runAndCommit(true, (fs)->{
+				InodeTable table = fs.getInodeTable();
+				table.pendingDefragment = new InodeTableMaintenance(table);
+				table.pendingDefragment.progressInterval = 1;
+				table.pendingDefragment.setProgressCallback((phase, completed, total)->{
+					if(phase == interruptedPhase && reports.incrementAndGet() == 3) {
+						Thread.currentThread().interrupt();
+					}
+				});
+
+				boolean threw = false;
+				try {
+					table.defragment();
+				} catch(InterruptedIOException exc) {
+					threw = true;
+				}
+
+				// planning stops where it is, but once inodes start moving we finish the job
+				assertTrue(Thread.interrupted());
+				assertEquals(interruptedPhase == Phase.PLAN_RENUMBERING, threw);
+				assertEquals(threw, table.pendingDefragment != null);
+
+				if(threw) table.defragment();
+				assertNull(table.pendingDefragment);
+			});
+
+			assertTrue(reports.longValue() > 3);
+			assertArrayEquals(expected.getBytes(), actual.getBytes());
+			assertIntact(actual);
+		}
+	}
+
+	@Test
+	public void testMaintenanceThreadsSetting() throws IOException {
+		master.getGlobalConfig().set("fs.settings.maintenanceThreads", 1);
+		assertSameResult((fs)->legacyDefragment(fs.getInodeTable()),
+				(fs)->fs.getInodeTable().defragment());
+	}
+
+	/** The path-walking rebuildLinkCounts this class replaced, kept as a reference implementation. */
+	static void legacyRebuildLinkCounts(InodeTable table) throws IOException {
+		ZKFS zkfs = table.zkfs;
+		zkfs.lockedOperation(()->{
+			table.freelist.clearList();
+			MutableLong maxInodeId = new MutableLong(table.nextInodeId()-1);
+			HashMap<Long,Integer> inodeCounts = new HashMap<>();
+
+			try(ZKDirectory dir = zkfs.opendir("/")) {
+				dir.walk(Directory.LIST_OPT_DONT_FOLLOW_SYMLINKS|Directory.LIST_OPT_INCLUDE_DOT_DOTDOT, (path, stat, isBroken, parent)->{
+					long inodeId = stat.getInodeId();
+					int nlinkCount = inodeCounts.getOrDefault(inodeId, 0) + 1;
+					inodeCounts.put(inodeId, nlinkCount);
+					if(inodeId > maxInodeId.longValue()) {
+						maxInodeId.setValue(inodeId);
+					}
+				});
+			}
+
+			for(long inodeId = maxInodeId.longValue(); inodeId >= 0; inodeId--) {
+				Inode inode = table.inodeWithId(inodeId);
+				int nlink = inodeCounts.getOrDefault(inodeId, 0);
+				if(inode.getNlink() != nlink) {
+					if(nlink == 0) {
+						inode.setNlink(0);
+						if((inode.getFlags() & Inode.FLAG_RETAIN) == 0) {
+							try {
+								table.unlink(inodeId);
+							} catch(ENOENTException exc) {}
+						}
+					} else {
+						inode.setNlink(nlink);
+					}
+				} else if(nlink == 0 && (inode.getFlags() & Inode.FLAG_RETAIN) == 0) {
+					inode.markDeleted();
+					if(inodeId >= InodeTable.USER_INODE_ID_START) {
+						table.freelist.freeInodeId(inodeId);
+					}
+				}
+			}
+
+			table.nextInodeId = -1;
+			table.setDirty(true);
+
+			return null;
+		});
+	}
+
+	/** The defragment this class replaced, kept as a reference implementation. */
+	static void legacyDefragment(InodeTable table) throws IOException {
+		ZKFS zkfs = table.zkfs;
+		HashMap<Long, Long> remappedIds = new HashMap<>();
+		long existingMaxId = table.nextInodeId()-1;
+
+		try {
+			for(long newInodeId = InodeTable.USER_INODE_ID_START; newInodeId < existingMaxId; newInodeId++) {
+				Inode inode = table.inodeWithId(newInodeId);
+				if(!inode.isDeleted()) continue;
+
+				for(long oldInodeId = existingMaxId; oldInodeId > newInodeId; oldInodeId--) {
+					Inode existing = table.inodeWithId(oldInodeId);
+					if(existing.isDeleted()) continue;
+					existingMaxId = oldInodeId - 1;
+					remappedIds.put(oldInodeId, newInodeId);
+
+					break;
+				}
+			}
+		} catch(FreeListExhaustedException exc) {}
+
+		for(long oldId : remappedIds.keySet()) {
+			long newId = remappedIds.get(oldId);
+			Inode existingLocation = table.inodeWithId(oldId);
+			Inode newLocation = table.inodeWithId(newId);
+
+			newLocation.deserialize(existingLocation.serialize());
+			newLocation.getStat().setInodeId(newId);
+			zkfs.updateCachedDirectoryInode(oldId, newLocation);
+			existingLocation.markDeleted();
+
+			table.changedFromOverrides.put(newId, table.getChangedFromInfo(oldId));
+		}
+
+		for(long inodeId = 0; inodeId <= existingMaxId; inodeId++) {
+			Inode inode = table.inodeWithId(inodeId);
+			if(inode.isDeleted()) continue;
+			if(!inode.getStat().isDirectory()) continue;
+
+			try(ZKDirectory dir = zkfs.opendirSemicache(inode)) {
+				dir.remap(remappedIds);
+				dir.setOverrideMtime(table.getStat().getMtime());
+			}
+		}
+
+		table.freelist.clearList();
+		table.nextInodeId = -1;
+		zkfs.markDirty();
+	}
+}
@@ -0,0 +1,106 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.fs.Stat;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Builds an archive with a few thousand files, then a run of revisions that each change a single file, and opens
+ * every one of those revisions read-only at once, walking each one's whole directory tree. Reports how long that
+ * takes and how much heap the open views hold on to between them. */
+public class SnapshotBenchmark {
+	public final static int NUM_FILES     = 5000;
+	public final static int NUM_DIRS      = 50;
+	public final static int NUM_REVISIONS = 100;
+
+	static ZKMaster master;
+	static ZKArchive archive;
+	static ArrayList<RevisionTag> revisions = new ArrayList<>();
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		master.getGlobalConfig().set("fs.settings.readOnlyFilesystemCacheSize", NUM_REVISIONS);
+		archive = master.createDefaultArchive();
+
+		try(ZKFS fs = archive.openBlank()) {
+			fs.skipIntegrity = true;
+			for(int i = 0; i < NUM_FILES; i++) {
+				fs.write(path(i), Util.serializeInt(i));
+			}
+
+			fs.commit();
+			for(int i = 0; i < NUM_REVISIONS; i++) {
+				fs.write(path(i), Util.serializeInt(NUM_FILES + i));
+				revisions.add(fs.commit());
+			}
+		}
+
+		Benchmarks.beginBenchmarkSuite("Read-only snapshots (" + NUM_REVISIONS + " revisions of " + NUM_FILES + " files)");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		archive.close();
+		master.close();
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	static String path(int i) {
+		return "dir" + (i % NUM_DIRS) + "/file" + i;
+	}
+
+	static long usedHeap() {
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+		}
+
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	@Test
+	public void testOpenConsecutiveRevisions() throws IOException {
+		ArrayList<ZKFS> views = new ArrayList<>();
+		long heapBefore = usedHeap();
+		long startNs = System.nanoTime(), numStats = 0;
+
+		try {
+			for(RevisionTag revision : revisions) {
+				ZKFS fs = archive.openRevisionReadOnly(revision);
+				views.add(fs);
+				try(ZKDirectory root = fs.opendir("/")) {
+					for(String path : root.listRecursive()) {
+						Stat stat = fs.stat(path);
+						if(stat.isRegularFile()) numStats++;
+					}
+				}
+			}
+
+			long elapsedNs = System.nanoTime() - startNs;
+			long heapHeld = usedHeap() - heapBefore;
+
+			Benchmarks.output(String.format("\t%50s: %.01f revisions/s (%d revisions, %d stats in %d ms)",
+					"testOpenConsecutiveRevisions",
+					NUM_REVISIONS / (elapsedNs / 1e9),
+					NUM_REVISIONS,
+					numStats,
+					elapsedNs/(1000*1000)));
+			Benchmarks.output(String.format("\t%50s: %.01f KiB/revision (%d KiB held by %d views)",
+					"testOpenConsecutiveRevisions heap",
+					heapHeld / 1024.0 / NUM_REVISIONS,
+					heapHeld / 1024,
+					NUM_REVISIONS));
+		} finally {
+			for(ZKFS fs : views) {
+				fs.close();
+			}
+		}
+	}
+}
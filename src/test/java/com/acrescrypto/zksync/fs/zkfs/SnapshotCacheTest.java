@@ -0,0 +1,279 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.utility.Util;
+
+public class SnapshotCacheTest {
+	final static int NUM_FILES = 100;
+
+	CryptoSupport crypto;
+	ZKMaster master;
+	ZKArchive archive;
+	RevisionTag[] revisions;
+	int bigFileSize;
+
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+
+	@Before
+	public void beforeEach() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		crypto = master.getCrypto();
+		// small pages, so the inode table spans several pages and big files have several page tree chunks
+		archive = master.createArchive(4096, "");
+		bigFileSize = (archive.getConfig().getTagsPerChunk()+2) * archive.getConfig().getPageSize();
+
+		revisions = new RevisionTag[2];
+		try(ZKFS fs = archive.openBlank()) {
+			for(int i = 0; i < NUM_FILES; i++) {
+				fs.write("dir/file" + i, Util.serializeInt(i));
+			}
+
+			fs.write("other/big", crypto.prng(Util.serializeInt(0)).getBytes(bigFileSize));
+			revisions[0] = fs.commit();
+
+			fs.write("dir/file0", Util.serializeInt(NUM_FILES));
+			fs.write("other/new", Util.serializeInt(NUM_FILES+1));
+			revisions[1] = fs.commit();
+		}
+	}
+
+	@After
+	public void afterEach() {
+		archive.close();
+		master.close();
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.stopDebugMode();
+		TestUtils.assertTidy();
+	}
+
+	ZKFS[] openViews() throws IOException {
+		ZKFS[] views = new ZKFS[revisions.length];
+		for(int i = 0; i < revisions.length; i++) {
+			views[i] = archive.openRevisionReadOnly(revisions[i]);
+		}
+
+		return views;
+	}
+
+	void closeViews(ZKFS[] views) throws IOException {
+		for(ZKFS fs : views) {
+			fs.close();
+		}
+	}
+
+	@Test
+	public void testReadOnlyViewsUseSnapshotCache() throws IOException {
+		ZKFS[] views = openViews();
+		assertSame(archive.getSnapshotCache(), views[0].getSnapshotCache());
+		closeViews(views);
+	}
+
+	@Test
+	public void testWritableViewsDoNotUseSnapshotCache() throws IOException {
+		try(ZKFS fs = archive.openRevision(revisions[0])) {
+			assertNull(fs.getSnapshotCache());
+		}
+	}
+
+	@Test
+	public void testViewsMarkedReadOnlyAfterOpeningDoNotUseSnapshotCache() throws IOException {
+		try(ZKFS shared = archive.openRevisionReadOnly(revisions[0]);
+			ZKFS fs = archive.openRevision(revisions[0]).setReadOnly()) {
+			assertNull(fs.getSnapshotCache());
+			assertNull(fs.getInodeTable().tree.getSnapshotCache());
+			
+			// load everything through the shared view first, so the marked view would find it in the cache
+			try(ZKDirectory dir0 = shared.opendir("dir"); ZKDirectory dir1 = fs.opendir("dir")) {
+				assertNull(dir1.tree.getSnapshotCache());
+				assertNotSame(dir0.entries, dir1.entries);
+			}
+			
+			try(ZKFile file0 = shared.open("other/big", ZKFile.O_RDONLY);
+				ZKFile file1 = fs.open("other/big", ZKFile.O_RDONLY)) {
+				assertNull(file1.tree.getSnapshotCache());
+				for(long i = 0; i < file0.tree.numChunks; i++) {
+					assertNotSame(file0.tree.chunkAtIndex(i).tags, file1.tree.chunkAtIndex(i).tags);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testReadOnlyViewsShareUnchangedInodes() throws IOException {
+		ZKFS[] views = openViews();
+		InodeTable table = views[0].getInodeTable();
+		Inode unchanged = views[0].inodeForPath("dir/file" + NUM_FILES/2);
+		long unchangedId = unchanged.getStat().getInodeId();
+		assertTrue(table.pageNumForInodeId(unchangedId) > 0);
+		
+		// make sure nothing that changed between the revisions shares a page with our inode
+		for(String path : new String[] { "dir/file0", "other", "other/new" }) {
+			long changedId = views[1].inodeForPath(path).getStat().getInodeId();
+			assertNotEquals(table.pageNumForInodeId(changedId), table.pageNumForInodeId(unchangedId));
+		}
+
+		assertSame(unchanged, views[1].getInodeTable().inodeWithId(unchangedId));
+		closeViews(views);
+	}
+
+	@Test
+	public void testReadOnlyViewsDoNotShareChangedInodes() throws IOException {
+		ZKFS[] views = openViews();
+		assertNotSame(views[0].inodeForPath("dir/file0"), views[1].inodeForPath("dir/file0"));
+		assertArrayEquals(Util.serializeInt(0), views[0].read("dir/file0"));
+		assertArrayEquals(Util.serializeInt(NUM_FILES), views[1].read("dir/file0"));
+		closeViews(views);
+	}
+
+	@Test
+	public void testWritableViewsDoNotShareInodes() throws IOException {
+		ZKFS[] views = openViews();
+		try(ZKFS fs = archive.openRevision(revisions[1])) {
+			String path = "dir/file" + (NUM_FILES-1);
+			assertNotSame(views[0].inodeForPath(path), fs.inodeForPath(path));
+			assertEquals(views[0].inodeForPath(path), fs.inodeForPath(path));
+		}
+
+		closeViews(views);
+	}
+
+	@Test
+	public void testReadOnlyViewsShareUnchangedDirectories() throws IOException {
+		ZKFS[] views = openViews();
+		try(ZKDirectory dir0 = views[0].opendir("dir"); ZKDirectory dir1 = views[1].opendir("dir")) {
+			assertSame(dir0.entries, dir1.entries);
+		}
+
+		closeViews(views);
+	}
+
+	@Test
+	public void testReadOnlyViewsDoNotShareChangedDirectories() throws IOException {
+		ZKFS[] views = openViews();
+		try(ZKDirectory dir0 = views[0].opendir("other"); ZKDirectory dir1 = views[1].opendir("other")) {
+			assertNotSame(dir0.entries, dir1.entries);
+			assertFalse(dir0.contains("new"));
+			assertTrue(dir1.contains("new"));
+			assertArrayEquals(Util.serializeInt(NUM_FILES+1), views[1].read("other/new"));
+		}
+
+		closeViews(views);
+	}
+
+	@Test
+	public void testDirectoryCopiesSharedEntriesBeforeChangingThem() throws IOException {
+		ZKFS[] views = openViews();
+		try(ZKDirectory dir0 = views[0].opendir("dir"); ZKDirectory dir1 = views[1].opendir("dir")) {
+			dir0.updateLink(dir0.inodeForName("file1"), "renamed");
+			assertTrue(dir0.contains("renamed"));
+			assertFalse(dir1.contains("renamed"));
+			assertNotSame(dir0.entries, dir1.entries);
+		}
+
+		closeViews(views);
+	}
+
+	@Test
+	public void testReadOnlyViewsSharePageTreeChunks() throws IOException {
+		ZKFS[] views = openViews();
+		try(ZKFile file0 = views[0].open("other/big", ZKFile.O_RDONLY);
+			ZKFile file1 = views[1].open("other/big", ZKFile.O_RDONLY)) {
+			assertTrue(file0.tree.numChunks > 1);
+			for(long i = 0; i < file0.tree.numChunks; i++) {
+				assertSame(file0.tree.chunkAtIndex(i).tags, file1.tree.chunkAtIndex(i).tags);
+			}
+		}
+
+		closeViews(views);
+	}
+
+	@Test
+	public void testPageTreeChunkCopiesSharedTagsBeforeChangingThem() throws IOException {
+		ZKFS[] views = openViews();
+		try(ZKFile file0 = views[0].open("other/big", ZKFile.O_RDONLY);
+			ZKFile file1 = views[1].open("other/big", ZKFile.O_RDONLY)) {
+			long index = file0.tree.numChunks - 1;
+			PageTreeChunk chunk0 = file0.tree.chunkAtIndex(index), chunk1 = file1.tree.chunkAtIndex(index);
+			StorageTag original = chunk1.getTag(0);
+			chunk0.loadTag(0, archive.getBlankStorageTag());
+
+			assertNotSame(chunk0.tags, chunk1.tags);
+			assertTrue(chunk0.getTag(0).isBlank());
+			assertSame(original, chunk1.getTag(0));
+		}
+
+		closeViews(views);
+	}
+
+	@Test
+	public void testReadOnlyViewsReadMultichunkFiles() throws IOException {
+		ZKFS[] views = openViews();
+		byte[] expected = crypto.prng(Util.serializeInt(0)).getBytes(bigFileSize);
+		for(ZKFS fs : views) {
+			assertArrayEquals(expected, fs.read("other/big"));
+		}
+
+		closeViews(views);
+	}
+
+	@Test
+	public void testReadOnlyViewsShareBlocks() throws IOException {
+		ZKFS[] views = openViews();
+		for(ZKFS fs : views) {
+			fs.read("other/big");
+		}
+
+		assertTrue(archive.getSnapshotCache().blocks.cachedSize() > 0);
+		closeViews(views);
+	}
+
+	@Test
+	public void testZeroSnapshotCacheSizeDisablesSharing() throws IOException {
+		master.getGlobalConfig().set("fs.settings.snapshotCacheSize", 0);
+		ZKFS[] views = openViews();
+		assertNull(views[0].getSnapshotCache());
+		try(ZKDirectory dir0 = views[0].opendir("dir"); ZKDirectory dir1 = views[1].opendir("dir")) {
+			assertNotSame(dir0.entries, dir1.entries);
+			assertEquals(dir0.entries, dir1.entries);
+		}
+
+		closeViews(views);
+	}
+
+	@Test
+	public void testCloseEmptiesCache() throws IOException {
+		ZKFS[] views = openViews();
+		try(ZKDirectory dir = views[0].opendir("dir")) {
+			assertNotNull(dir.entries);
+		}
+
+		closeViews(views);
+		archive.close();
+		assertEquals(0, archive.getSnapshotCache().directories.cachedSize());
+	}
+}
@@ -0,0 +1,142 @@
+package com.acrescrypto.zksync.fs.zkfs;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.fs.localfs.LocalFS;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigDefaults;
+import com.acrescrypto.zksync.utility.MemLogAppender;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Measures ZKMaster startup with a large number of stored archives, opening every archive up front versus leaving
+ * them dormant until activated. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class StoredAccessBenchmark {
+	public final static int NUM_ARCHIVES = 1000;
+	public final static String PATH = "/tmp/stored-access-benchmark";
+
+	static ZKMaster master;
+	static byte[][] archiveIds;
+	static int oldHistoryDepth;
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		ConfigDefaults.getActiveDefaults().setDefault("net.dht.enabled", false);
+		ConfigDefaults.getActiveDefaults().setDefault("net.swarm.enabled", false);
+		oldHistoryDepth = MemLogAppender.sharedInstance().getHistoryDepth();
+		MemLogAppender.sharedInstance().setHistoryDepth(0); // otherwise the log history swamps the heap measurements
+		// on disk rather than RAMFS, so that the heap measurements don't include archive storage
+		try(LocalFS fs = new LocalFS("/")) {
+			if(fs.exists(PATH)) fs.rmrf(PATH);
+		}
+
+		master = open();
+		ArchiveAccessor accessor = master.makeAccessorForPassphrase("benchmark".getBytes());
+		archiveIds = new byte[NUM_ARCHIVES][];
+
+		// write the records in one go, since storeArchiveAccess rewrites the whole file each time
+		for(int i = 0; i < NUM_ARCHIVES; i++) {
+			ZKArchiveConfig config = ZKArchiveConfig.create(accessor, "archive " + i, ZKArchive.DEFAULT_PAGE_SIZE);
+			archiveIds[i] = config.getArchiveId();
+			master.storedAccess.records.add(new StoredAccessRecord(config, StoredAccess.ACCESS_LEVEL_READWRITE));
+			config.close();
+		}
+
+		master.storedAccess.write();
+		Util.sleep(1000); // let the archives' threads wind down before measuring anything
+		Benchmarks.beginBenchmarkSuite("Stored archive startup (" + NUM_ARCHIVES + " archives)");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		master.close();
+		try(LocalFS fs = new LocalFS("/")) {
+			fs.rmrf(PATH);
+		} catch(IOException exc) {}
+		ConfigDefaults.resetDefaults();
+		MemLogAppender.sharedInstance().setHistoryDepth(oldHistoryDepth);
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	static ZKMaster open() throws IOException {
+		return ZKMaster.openAtPath((reason)->null, PATH);
+	}
+
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/** Open a fresh ZKMaster over the benchmark volume, reporting how long it took and what it kept resident. In
+	 * background startup, the time reported is until every archive is ready, not until the constructor returns. */
+	void startup(String description, boolean lazy, int startupThreads, boolean background) throws IOException {
+		master.getGlobalConfig().set("fs.archives.lazyActivation",    lazy);
+		master.getGlobalConfig().set("fs.archives.startupThreads",    startupThreads);
+		master.getGlobalConfig().set("fs.archives.backgroundStartup", background);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int threadsBefore = threads.getThreadCount();
+		long heapBefore = usedHeap();
+
+		long startTs = System.currentTimeMillis();
+		ZKMaster clone = open();
+		long returnedTs = System.currentTimeMillis();
+		clone.storedAccess.waitForStartup(-1);
+		long duration = System.currentTimeMillis() - startTs;
+
+		long heapAfter = usedHeap();
+		int threadsAfter = threads.getThreadCount();
+		int active = clone.storedAccess.numActiveRecords();
+		clone.close();
+		Util.waitUntil(10000, ()->threads.getThreadCount() <= threadsBefore); // so the next run starts from a clean heap
+
+		Benchmarks.output(String.format("\t%50s: %d ms to start (%d ms to first request); %d of %d archives active, heap +%.01f MiB, threads +%d",
+				description,
+				duration,
+				returnedTs - startTs,
+				active,
+				NUM_ARCHIVES,
+				(heapAfter - heapBefore)/(1024.0*1024.0),
+				threadsAfter - threadsBefore));
+	}
+
+	@Test
+	public void testThroughputActivateAndHibernate() throws IOException {
+		master.getGlobalConfig().set("fs.archives.lazyActivation", true);
+		try(ZKMaster clone = open()) {
+			Benchmarks.run("cycles", (i)->{
+				StoredAccessRecord record = clone.storedAccess.recordForArchiveId(archiveIds[i % NUM_ARCHIVES]);
+				record.activate();
+				clone.storedAccess.hibernate(record);
+			});
+		}
+	}
+
+	@Test
+	public void testStartupBackground() throws IOException {
+		startup("all archives opened in background, 4 threads", false, 4, true);
+	}
+
+	@Test
+	public void testStartupDormant() throws IOException {
+		startup("dormant until activated", true, 4, false);
+	}
+
+	@Test
+	public void testStartupEager() throws IOException {
+		startup("all archives opened, 4 threads", false, 4, false);
+	}
+
+	@Test
+	public void testStartupEagerSerial() throws IOException {
+		startup("all archives opened, 1 thread", false, 1, false);
+	}
+}
@@ -2,12 +2,17 @@ package com.acrescrypto.zksync.fs.zkfs;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.security.Security;
 import java.util.Arrays;
 
+import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.apache.commons.lang3.mutable.MutableInt;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -17,6 +22,7 @@ import org.junit.Test;
 
 import com.acrescrypto.zksync.TestUtils;
 import com.acrescrypto.zksync.fs.zkfs.config.ConfigDefaults;
+import com.acrescrypto.zksync.utility.Util;
 
 public class StoredAccessTest {
 	ZKMaster master;
@@ -44,6 +50,13 @@ public class StoredAccessTest {
 	@After
 	public void after() throws IOException {
 		master.close();
+		Util.setCurrentTimeMillis(-1);
+	}
+	
+	ZKMaster lazyClone(ZKArchiveConfig config) throws IOException {
+		master.getGlobalConfig().set("fs.archives.lazyActivation", true);
+		master.storedAccess.storeArchiveAccess(config, StoredAccess.ACCESS_LEVEL_READWRITE);
+		return ZKMaster.openTestVolume();
 	}
 	
 	@Test
@@ -146,4 +159,285 @@ public class StoredAccessTest {
 			}
 		}
 	}
+	
+	@Test
+	public void testLazyActivationLeavesStoredArchivesDormant() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			StoredAccessRecord record = clone.storedAccess.recordForArchiveId(config.archiveId);
+			assertFalse(record.isActive());
+			assertEquals(0, clone.allConfigs().size());
+			assertEquals(0, clone.storedAccess.numActiveRecords());
+		}
+	}
+	
+	@Test
+	public void testActivateArchiveOpensDormantArchive() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			ZKArchiveConfig activated = clone.activateArchive(config.archiveId);
+			assertEquals(config, activated);
+			assertNotNull(activated.getArchive());
+			assertTrue(clone.allConfigs().contains(config));
+			assertTrue(clone.storedAccess.recordForArchiveId(config.archiveId).isActive());
+		}
+	}
+	
+	@Test
+	public void testActivateArchiveReturnsNullForUnknownArchive() throws IOException {
+		assertNull(master.activateArchive(master.crypto.rng(master.crypto.hashLength())));
+	}
+	
+	@Test
+	public void testLazyActivationOpensArchivesWhoseSettingsNeedThem() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config) {
+			try(ZKFSManager manager = new ZKFSManager(config)) {
+				manager.setAutofollow(true);
+				manager.write();
+			}
+			
+			try(ZKMaster clone = lazyClone(config)) {
+				assertTrue(clone.storedAccess.recordForArchiveId(config.archiveId).isActive());
+				assertTrue(clone.allConfigs().contains(config));
+			}
+		}
+	}
+	
+	@Test
+	public void testHibernateIdleClosesIdleArchives() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			Util.setCurrentTimeMillis(1000000);
+			clone.getGlobalConfig().set("fs.archives.hibernateAfterMs", 1000);
+			ZKArchiveConfig activated = clone.activateArchive(config.archiveId);
+			
+			Util.setCurrentTimeMillis(1001000);
+			assertEquals(1, clone.storedAccess.hibernateIdle());
+			assertTrue(activated.isClosed());
+			assertFalse(clone.allConfigs().contains(config));
+			assertFalse(clone.storedAccess.recordForArchiveId(config.archiveId).isActive());
+		}
+	}
+	
+	@Test
+	public void testHibernateIdleSkipsRecentlyUsedArchives() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			Util.setCurrentTimeMillis(1000000);
+			clone.getGlobalConfig().set("fs.archives.hibernateAfterMs", 1000);
+			ZKArchiveConfig activated = clone.activateArchive(config.archiveId);
+			
+			Util.setCurrentTimeMillis(1000999);
+			assertEquals(0, clone.storedAccess.hibernateIdle());
+			assertFalse(activated.isClosed());
+		}
+	}
+	
+	@Test
+	public void testHibernateIdleSkipsArchivesWhenDisabled() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			Util.setCurrentTimeMillis(1000000);
+			ZKArchiveConfig activated = clone.activateArchive(config.archiveId);
+			
+			Util.setCurrentTimeMillis(Long.MAX_VALUE/2);
+			assertEquals(0, clone.storedAccess.hibernateIdle());
+			assertFalse(activated.isClosed());
+		}
+	}
+	
+	@Test
+	public void testHibernateIdleSkipsArchivesNotOpenedFromStorage() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config) {
+			Util.setCurrentTimeMillis(1000000);
+			master.getGlobalConfig().set("fs.archives.hibernateAfterMs", 1000);
+			master.storedAccess.storeArchiveAccess(config, StoredAccess.ACCESS_LEVEL_READWRITE);
+			
+			Util.setCurrentTimeMillis(1001000);
+			assertEquals(0, master.storedAccess.hibernateIdle());
+			assertFalse(config.isClosed());
+		}
+	}
+	
+	@Test
+	public void testHibernateSkipsArchivesWithRetainedViews() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			StoredAccessRecord record = clone.storedAccess.recordForArchiveId(config.archiveId);
+			ZKArchiveConfig activated = clone.activateArchive(config.archiveId);
+			ZKFS fs = activated.getArchive().openBlank();
+			
+			assertFalse(clone.storedAccess.hibernate(record));
+			assertFalse(activated.isClosed());
+			assertTrue(record.isActive());
+			
+			fs.retain().close();
+			assertFalse(clone.storedAccess.hibernate(record));
+			
+			fs.close();
+			assertTrue(clone.storedAccess.hibernate(record));
+			assertTrue(activated.isClosed());
+		}
+	}
+	
+	@Test
+	public void testHibernateIgnoresCachedReadOnlyViews() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			StoredAccessRecord record = clone.storedAccess.recordForArchiveId(config.archiveId);
+			ZKArchiveConfig activated = clone.activateArchive(config.archiveId);
+			RevisionTag revision = activated.getArchive().openBlank().commitAndClose();
+			
+			ZKFS fs = activated.getArchive().openRevisionReadOnly(revision);
+			assertFalse(clone.storedAccess.hibernate(record));
+			
+			fs.close(); // still in the archive's cache, but that goes when the archive closes
+			assertTrue(clone.storedAccess.hibernate(record));
+			assertTrue(activated.isClosed());
+		}
+	}
+	
+	@Test
+	public void testHibernationCallbackCanKeepArchiveActive() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			MutableBoolean notified = new MutableBoolean();
+			clone.storedAccess.addHibernationCallback(new StoredAccess.HibernationCallback() {
+				@Override public boolean mayHibernate(ZKArchiveConfig c) { return false; }
+				@Override public void willHibernate(ZKArchiveConfig c) { notified.setTrue(); }
+			});
+			
+			ZKArchiveConfig activated = clone.activateArchive(config.archiveId);
+			assertFalse(clone.storedAccess.hibernate(clone.storedAccess.recordForArchiveId(config.archiveId)));
+			assertFalse(activated.isClosed());
+			assertFalse(notified.booleanValue());
+		}
+	}
+	
+	@Test
+	public void testHibernationCallbackNotifiedBeforeClose() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			MutableBoolean wasOpen = new MutableBoolean();
+			clone.storedAccess.addHibernationCallback(new StoredAccess.HibernationCallback() {
+				@Override public boolean mayHibernate(ZKArchiveConfig c) { return true; }
+				@Override public void willHibernate(ZKArchiveConfig c) { wasOpen.setValue(!c.isClosed()); }
+			});
+			
+			clone.activateArchive(config.archiveId);
+			assertTrue(clone.storedAccess.hibernate(clone.storedAccess.recordForArchiveId(config.archiveId)));
+			assertTrue(wasOpen.booleanValue());
+		}
+	}
+	
+	@Test
+	public void testHibernatedArchivesReactivate() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			ZKArchiveConfig first = clone.activateArchive(config.archiveId);
+			clone.storedAccess.hibernate(clone.storedAccess.recordForArchiveId(config.archiveId));
+			
+			ZKArchiveConfig second = clone.activateArchive(config.archiveId);
+			assertNotSame(first, second);
+			assertFalse(second.isClosed());
+			assertEquals(1, clone.allConfigs().size());
+		}
+	}
+	
+	@Test
+	public void testDormantRecordsSurviveRewrite() throws IOException {
+		try(ZKArchiveConfig configA = master.createArchiveWithPassphrase(ZKArchive.DEFAULT_PAGE_SIZE, "", "pp0".getBytes()).config;
+			ZKArchiveConfig configB = master.createArchiveWithPassphrase(ZKArchive.DEFAULT_PAGE_SIZE, "", "pp1".getBytes()).config) {
+			try(ZKMaster clone = lazyClone(configA)) {
+				clone.storedAccess.storeArchiveAccess(configB, StoredAccess.ACCESS_LEVEL_READWRITE);
+			}
+			
+			master.getGlobalConfig().set("fs.archives.lazyActivation", false);
+			try(ZKMaster clone = ZKMaster.openTestVolume()) {
+				assertTrue(clone.allConfigs().contains(configA));
+				assertTrue(clone.allConfigs().contains(configB));
+			}
+		}
+	}
+	
+	@Test
+	public void testStartupOpensEveryStoredArchive() throws IOException {
+		master.getGlobalConfig().set("fs.archives.startupThreads", 2);
+		ZKArchiveConfig[] configs = new ZKArchiveConfig[3];
+		for(int i = 0; i < configs.length; i++) {
+			configs[i] = master.createArchiveWithPassphrase(ZKArchive.DEFAULT_PAGE_SIZE, "", ("pp" + i).getBytes()).config;
+			master.storedAccess.storeArchiveAccess(configs[i], StoredAccess.ACCESS_LEVEL_READWRITE);
+		}
+		
+		try(ZKMaster clone = ZKMaster.openTestVolume()) {
+			assertTrue(clone.storedAccess.isStartupComplete());
+			for(ZKArchiveConfig config : configs) {
+				assertTrue(clone.allConfigs().contains(config));
+				assertEquals(StoredAccessRecord.STATE_ACTIVE, clone.storedAccess.recordForArchiveId(config.archiveId).getState());
+			}
+		}
+		
+		for(ZKArchiveConfig config : configs) config.close();
+	}
+	
+	@Test
+	public void testBackgroundStartupOpensArchivesAfterConstruction() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config) {
+			master.getGlobalConfig().set("fs.archives.backgroundStartup", true);
+			master.storedAccess.storeArchiveAccess(config, StoredAccess.ACCESS_LEVEL_READWRITE);
+			
+			try(ZKMaster clone = ZKMaster.openTestVolume()) {
+				assertTrue(clone.storedAccess.waitForStartup(10000));
+				assertEquals(0, clone.storedAccess.numPendingStartup());
+				assertTrue(clone.allConfigs().contains(config));
+			}
+		}
+	}
+	
+	@Test
+	public void testCloseCompletesStartupOfArchivesStillQueued() throws IOException {
+		master.getGlobalConfig().set("fs.archives.startupThreads", 1);
+		master.getGlobalConfig().set("fs.archives.backgroundStartup", true);
+		ZKArchiveConfig[] configs = new ZKArchiveConfig[3];
+		for(int i = 0; i < configs.length; i++) {
+			configs[i] = master.createArchiveWithPassphrase(ZKArchive.DEFAULT_PAGE_SIZE, "", ("pp" + i).getBytes()).config;
+			master.storedAccess.storeArchiveAccess(configs[i], StoredAccess.ACCESS_LEVEL_READWRITE);
+		}
+		
+		ZKMaster clone = ZKMaster.openTestVolume();
+		clone.close();
+		assertTrue(Util.waitUntil(10000, ()->clone.storedAccess.isStartupComplete()));
+		assertEquals(0, clone.storedAccess.numPendingStartup());
+		
+		for(ZKArchiveConfig config : configs) config.close();
+	}
+	
+	@Test
+	public void testActivationCallbacksNotifiedWhenArchiveOpens() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			MutableInt notified = new MutableInt();
+			clone.storedAccess.addActivationCallback((c)->{
+				assertEquals(config, c);
+				notified.increment();
+			});
+			
+			clone.activateArchive(config.archiveId);
+			clone.activateArchive(config.archiveId);
+			assertEquals(1, notified.intValue());
+		}
+	}
+	
+	@Test
+	public void testRecordStateTracksLifecycle() throws IOException {
+		try(ZKArchiveConfig config = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "").config;
+			ZKMaster clone = lazyClone(config)) {
+			StoredAccessRecord record = clone.storedAccess.recordForArchiveId(config.archiveId);
+			assertEquals(StoredAccessRecord.STATE_DORMANT, record.getState());
+			record.activate();
+			assertEquals(StoredAccessRecord.STATE_ACTIVE, record.getState());
+			clone.storedAccess.hibernate(record);
+			assertEquals(StoredAccessRecord.STATE_DORMANT, record.getState());
+		}
+	}
 }
@@ -78,6 +78,21 @@ public class ZKArchiveTest {
 		assertFalse(archive.hasPageTag(tag));
 	}
 	
+	@Test
+	public void testHasPageTagReturnsFalseForPagesEvictedFromCache() throws IOException {
+		StorageTag[] tags = new StorageTag[2];
+		for(int i = 0; i < tags.length; i++) {
+			tags[i] = new StorageTag(crypto, crypto.rng(crypto.hashLength()));
+			config.storage.writeRefetchable(tags[i].path(), crypto.rng(archive.getConfig().getPageSize()));
+			archive.addPageTag(tags[i]);
+		}
+
+		assertTrue(archive.hasPageTag(tags[0]));
+		config.storage.getCache().setBudgetBytes(0);
+		assertFalse(archive.hasPageTag(tags[0]));
+		assertTrue(archive.hasPageTag(tags[1]));
+	}
+
 	@Test
 	public void testHasInodeReturnsTrueIfAllPagesOfRefTagInStorage() throws IOException {
 		for(int i = 0; i <= 2; i++) {
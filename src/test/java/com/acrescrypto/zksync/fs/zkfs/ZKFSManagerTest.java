@@ -446,6 +446,8 @@ public class ZKFSManagerTest {
 	@Test
 	public void testPersistentManagerInitializesFromDefault() throws IOException {
 		RevisionTag latest = archive.openBlank().commitAndClose();
+		// manager saves its settings when it hears about the new revision, on the revision list's callback pool
+		assertTrue(Util.waitUntil(1000, ()->archive.getConfig().getLocalStorage().exists(ZKFSManager.SETTINGS_PATH)));
 		
 		try(ZKFSManager persistent = new ZKFSManager(archive.getConfig())) {
 			assertFalse    (        persistent.isAutofollowing());
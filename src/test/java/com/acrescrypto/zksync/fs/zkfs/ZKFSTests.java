@@ -12,6 +12,9 @@ import com.acrescrypto.zksync.fs.zkfs.resolver.DiffSetTest;
 	RevisionListTest.class,
 	BlockTest.class,
 	BlockManagerTest.class,
+	BlockWriterTest.class,
+	SnapshotCacheTest.class,
+	InodeTableMaintenanceTest.class,
 	ZKFSTest.class,
 	ZKDirectoryTest.class,
 	ZKFileTest.class,
@@ -20,6 +20,7 @@ import org.junit.Test;
 import com.acrescrypto.zksync.TestUtils;
 import com.acrescrypto.zksync.crypto.Key;
 import com.acrescrypto.zksync.fs.FS;
+import com.acrescrypto.zksync.utility.MetricsRegistry;
 
 public class ZKMasterTest {
 	ZKMaster master;
@@ -270,6 +271,30 @@ public class ZKMasterTest {
 		archive.close();
 	}
 	
+	@Test
+	public void testMetricsFollowSavedSetting() throws IOException {
+		boolean wasEnabled = MetricsRegistry.enabled;
+		try {
+			master.getGlobalConfig().set("metrics.enabled", true);
+			assertTrue(MetricsRegistry.enabled);
+			MetricsRegistry.enabled = false;
+			try(ZKMaster reopened = ZKMaster.openTestVolume()) {
+				assertTrue(reopened.getGlobalConfig().getBool("metrics.enabled"));
+				assertTrue(MetricsRegistry.enabled);
+			}
+			
+			master.getGlobalConfig().set("metrics.enabled", false);
+			assertFalse(MetricsRegistry.enabled);
+			MetricsRegistry.enabled = true;
+			try(ZKMaster reopened = ZKMaster.openTestVolume()) {
+				assertFalse(reopened.getGlobalConfig().getBool("metrics.enabled"));
+				assertFalse(MetricsRegistry.enabled);
+			}
+		} finally {
+			MetricsRegistry.enabled = wasEnabled;
+		}
+	}
+	
 	@Test
 	public void testPurgeErasesStorage() throws IOException {
 		for(int i = 0; i < 32; i++) {
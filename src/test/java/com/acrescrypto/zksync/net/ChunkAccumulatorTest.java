@@ -27,6 +27,7 @@ import com.acrescrypto.zksync.fs.zkfs.ZKArchiveConfig;
 import com.acrescrypto.zksync.fs.zkfs.ZKFS;
 import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
 import com.acrescrypto.zksync.utility.Shuffler;
+import com.acrescrypto.zksync.utility.Util;
 
 
 public class ChunkAccumulatorTest {
@@ -362,4 +363,83 @@ public class ChunkAccumulatorTest {
 		
 		assertTrue(accumulator.isFinished());
 	}
+	
+	@Test
+	public void testAddChunkLeavesPagesUnderVerificationToVerifier() throws IOException {
+		accumulator.verifying = true;
+		for(int i = 0; i < chunks.length; i++) {
+			assertFalse(accumulator.addChunk(i, chunks[i], connections[0]));
+		}
+		
+		assertFalse(accumulator.isFinished());
+		accumulator.verifyPending();
+		assertTrue(accumulator.isFinished());
+		assertFalse(accumulator.verifying);
+		assertReceived();
+	}
+	
+	@Test
+	public void testReceiveChunkVerifiesPageOnVerifierThread() throws IOException {
+		long verified = master.getPageVerifier().getNumVerified();
+		for(int i = 0; i < chunks.length; i++) {
+			accumulator.receiveChunk(i, chunks[i], connections[0]);
+		}
+		
+		assertTrue(Util.waitUntil(1000, ()->swarm.receivedPage));
+		assertReceived();
+		assertTrue(master.getPageVerifier().getNumVerified() > verified);
+	}
+	
+	@Test
+	public void testReceiveChunkBlacklistsPeersSendingBadChunks() throws IOException {
+		for(int i = 0; i < chunks.length; i++) {
+			if(i == 1) {
+				byte[] invalidChunk = chunks[i].clone();
+				invalidChunk[0] ^= 0x01;
+				accumulator.receiveChunk(i, invalidChunk, connections[1]);
+			}
+			accumulator.receiveChunk(i, chunks[i], connections[0]);
+		}
+		
+		assertTrue(Util.waitUntil(1000, ()->swarm.receivedPage));
+		assertReceived();
+		assertNoViolation(connections[0]);
+		assertViolation(connections[1]);
+	}
+	
+	@Test
+	public void testReceiveChunkVerifiesInlineWhenVerifierQueueFull() throws IOException {
+		int oldSize = master.getGlobalConfig().getInt("net.swarm.pageVerifyQueueSize");
+		master.getGlobalConfig().set("net.swarm.pageVerifyQueueSize", 0);
+		try {
+			for(int i = 0; i < chunks.length; i++) {
+				accumulator.receiveChunk(i, chunks[i], connections[0]);
+			}
+			
+			assertTrue(accumulator.isFinished());
+			assertReceived();
+		} finally {
+			master.getGlobalConfig().set("net.swarm.pageVerifyQueueSize", oldSize);
+		}
+	}
+	
+	@Test
+	public void testReceiveChunkRetriesWhenNewVersionsArriveAfterFailedVerification() throws IOException {
+		int oldSize = master.getGlobalConfig().getInt("net.swarm.pageVerifyQueueSize");
+		master.getGlobalConfig().set("net.swarm.pageVerifyQueueSize", 0);
+		try {
+			byte[] invalidChunk = chunks[1].clone();
+			invalidChunk[0] ^= 0x01;
+			for(int i = 0; i < chunks.length; i++) {
+				accumulator.receiveChunk(i, i == 1 ? invalidChunk : chunks[i], connections[1]);
+			}
+			
+			assertFalse(accumulator.isFinished());
+			accumulator.receiveChunk(1, chunks[1], connections[0]);
+			assertTrue(accumulator.isFinished());
+			assertReceived();
+		} finally {
+			master.getGlobalConfig().set("net.swarm.pageVerifyQueueSize", oldSize);
+		}
+	}
 }
@@ -11,12 +11,14 @@ import com.acrescrypto.zksync.net.noise.NoiseTests;
 	BlacklistEntryTest.class,
 	BlacklistTest.class,
 	ChunkAccumulatorTest.class,
+	PageVerifierTest.class,
 	PageQueueTest.class,
 	PeerMessageIncomingTest.class,
 	PeerMessageOutgoingTest.class,
 	PeerSwarmTest.class,
 	TCPPeerAdvertisementTest.class,
 	TCPPeerAdvertisementListenerTest.class,
+	TCPHandshakeAdmissionTest.class,
 	TCPPeerSocketListenerTest.class,
 	TCPPeerSocketTest.class,
 	PeerConnectionTest.class,
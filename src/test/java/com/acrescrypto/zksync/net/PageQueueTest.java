@@ -528,6 +528,52 @@ public class PageQueueTest {
 		assertFalse(queue.hasNextChunk());
 	}
 	
+	@Test
+	public void testAddPageChunksEnqueuesOnlyChunksInRange() throws IOException {
+		assertTrue(numChunks >= 2);
+		queue.addPageChunks(0, new ChunkRange(pageTag.shortTag(), 1, numChunks-1));
+		HashSet<Integer> seenIndexes = new HashSet<Integer>();
+		
+		while(queue.hasNextChunk()) {
+			ChunkReference ref = queue.nextChunk();
+			assertTrue(pageTag.equals(ref.tag));
+			assertTrue(1 <= ref.index);
+			assertTrue(ref.index < numChunks);
+			assertFalse(seenIndexes.contains(ref.index));
+			seenIndexes.add(ref.index);
+		}
+		
+		assertEquals(numChunks-1, seenIndexes.size());
+	}
+	
+	@Test
+	public void testAddPageChunksMergesAdditionalRangesForSamePage() throws IOException {
+		queue.addPageChunks(0, new ChunkRange(pageTag.shortTag(), 0, 1));
+		queue.addPageChunks(0, new ChunkRange(pageTag.shortTag(), 0, numChunks));
+		assertQueueDrainOfSize(numChunks);
+	}
+	
+	@Test
+	public void testAddPageChunksToleratesNonexistentPages() throws IOException {
+		queue.addPageChunks(0, new ChunkRange(0, 0, 1));
+		assertFalse(queue.hasNextChunk());
+	}
+	
+	@Test
+	public void testAddPageTagSupersedesPendingChunkRange() throws IOException {
+		queue.addPageChunks(0, new ChunkRange(pageTag.shortTag(), 0, 1));
+		queue.addPageTag(0, pageTag);
+		assertQueueDrainOfSize(numChunks);
+	}
+	
+	@Test
+	public void testAddPageTagCancellationCancelsChunkRange() throws IOException {
+		queue.addPageChunks(0, new ChunkRange(pageTag.shortTag(), 0, numChunks));
+		queue.nextChunk();
+		queue.addPageTag(Integer.MIN_VALUE, pageTag);
+		assertFalse(queue.hasNextChunk());
+	}
+	
 	@Test
 	public void testAddInodeContentsEnqueuesAllPagesInRefTag() throws IOException {
 		HashSet<Long> seenPageTags = new HashSet<Long>();
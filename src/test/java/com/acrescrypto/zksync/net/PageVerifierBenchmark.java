@@ -0,0 +1,187 @@
+package com.acrescrypto.zksync.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.exceptions.ProtocolViolationException;
+import com.acrescrypto.zksync.fs.zkfs.PageTree;
+import com.acrescrypto.zksync.fs.zkfs.StorageTag;
+import com.acrescrypto.zksync.fs.zkfs.ZKArchive;
+import com.acrescrypto.zksync.fs.zkfs.ZKArchiveConfig;
+import com.acrescrypto.zksync.fs.zkfs.ZKFS;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Feeds complete pages into ChunkAccumulators from several simulated peer receive threads at once, comparing
+ * verification on the receive thread against handing pages to the PageVerifier. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PageVerifierBenchmark {
+	static class CountingSwarm extends PeerSwarm {
+		AtomicInteger received = new AtomicInteger();
+
+		public CountingSwarm(ZKArchiveConfig config) throws IOException { super(config); }
+		@Override protected void receivedPage(StorageTag tag) { received.incrementAndGet(); }
+	}
+
+	static class DummySocket extends PeerSocket {
+		int index;
+		boolean closed;
+
+		public DummySocket(int index, PeerSwarm swarm) {
+			super(swarm);
+			this.index = index;
+		}
+
+		@Override public String getAddress() { return "127.0.0." + index; }
+		@Override public PeerAdvertisement getAd() { return null; }
+		@Override public void write(byte[] data, int offset, int length) {}
+		@Override public int read(byte[] data, int offset, int length) { return -1; }
+		@Override public boolean isLocalRoleClient() { return false; }
+		@Override public void _close() { closed = true; }
+		@Override public boolean isClosed() { return closed; }
+		@Override public byte[] getSharedSecret() { return null; }
+		@Override public void handshake(PeerConnection conn) throws ProtocolViolationException, IOException { }
+		@Override public int getPeerType() throws UnsupportedOperationException { return -1; }
+	}
+
+	public final static int NUM_PAGES = 64;
+	public final static int NUM_PEERS = 8;
+	public final static int DURATION_MS = Benchmarks.DEFAULT_TEST_INTERVAL_MS;
+
+	static ZKMaster master;
+	static ZKArchive archive;
+	static CountingSwarm swarm;
+	static StorageTag[] tags;
+	static byte[][][] chunks;
+	static PeerConnection[] connections;
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		archive = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "");
+		tags = new StorageTag[NUM_PAGES];
+		chunks = new byte[NUM_PAGES][][];
+
+		try(ZKFS fs = archive.openBlank()) {
+			fs.write("file", master.getCrypto().rng(NUM_PAGES*archive.getConfig().getPageSize()));
+			fs.commit();
+			PageTree tree = new PageTree(fs.inodeForPath("file"));
+			for(int i = 0; i < NUM_PAGES; i++) {
+				tags[i] = tree.getPageTag(i);
+				chunks[i] = split(archive.getStorage().read(tags[i].path()));
+			}
+		}
+
+		swarm = new CountingSwarm(archive.getConfig());
+		connections = new PeerConnection[NUM_PEERS];
+		for(int i = 0; i < NUM_PEERS; i++) {
+			connections[i] = new PeerConnection(new DummySocket(i, swarm));
+		}
+
+		Benchmarks.beginBenchmarkSuite("Page verification");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		for(PeerConnection connection : connections) {
+			connection.close();
+		}
+
+		swarm.close();
+		archive.close();
+		master.close();
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	static byte[][] split(byte[] page) {
+		ByteBuffer buf = ByteBuffer.wrap(page);
+		byte[][] pageChunks = new byte[(int) Math.ceil((double) page.length/PeerMessage.FILE_CHUNK_SIZE)][];
+		for(int i = 0; buf.hasRemaining(); i++) {
+			pageChunks[i] = new byte[Math.min(PeerMessage.FILE_CHUNK_SIZE, buf.remaining())];
+			buf.get(pageChunks[i]);
+		}
+
+		return pageChunks;
+	}
+
+	/** Each peer thread repeatedly delivers a whole page to a fresh accumulator. Reports completed pages per second,
+	 * and the mean time each delivery held up its receive thread. */
+	void download(String description, boolean useVerifier) throws InterruptedException {
+		int oldQueueSize = master.getGlobalConfig().getInt("net.swarm.pageVerifyQueueSize");
+		if(!useVerifier) master.getGlobalConfig().set("net.swarm.pageVerifyQueueSize", 0);
+
+		AtomicInteger delivered = new AtomicInteger();
+		AtomicLong receiveNanos = new AtomicLong();
+		int receivedBefore = swarm.received.get();
+		long startTs = System.currentTimeMillis(), endTs = startTs + DURATION_MS;
+
+		/* Accumulators for the same tag share scratch files, and the swarm never has two at once. So each peer
+		 * delivers its own slice of the pages, and doesn't resend a page until the last copy has been verified. */
+		ArrayList<Thread> peers = new ArrayList<>();
+		for(int p = 0; p < NUM_PEERS; p++) {
+			int peerIndex = p;
+			PeerConnection connection = connections[p];
+			Thread peer = new Thread(()->{
+				ChunkAccumulator[] lastAccumulators = new ChunkAccumulator[NUM_PAGES];
+				for(int n = 0; System.currentTimeMillis() < endTs; n++) {
+					int page = (peerIndex + n*NUM_PEERS) % NUM_PAGES;
+					ChunkAccumulator last = lastAccumulators[page];
+					if(last != null) {
+						Util.waitUntil(10000, ()->last.isFinished());
+						synchronized(last) {} // finished is set before scratch files are cleaned up under the lock
+					}
+
+					ChunkAccumulator accumulator = new ChunkAccumulator(swarm, tags[page], chunks[page].length);
+					lastAccumulators[page] = accumulator;
+					long t0 = System.nanoTime();
+					try {
+						for(int i = 0; i < chunks[page].length; i++) {
+							accumulator.receiveChunk(i, chunks[page][i], connection);
+						}
+					} catch(IOException exc) {
+						exc.printStackTrace();
+						return;
+					}
+
+					receiveNanos.addAndGet(System.nanoTime() - t0);
+					delivered.incrementAndGet();
+				}
+			});
+			peers.add(peer);
+			peer.start();
+		}
+
+		for(Thread peer : peers) peer.join();
+		Util.waitUntil(10000, ()->swarm.received.get() - receivedBefore >= delivered.get());
+		long duration = System.currentTimeMillis() - startTs;
+		int completed = swarm.received.get() - receivedBefore;
+		master.getGlobalConfig().set("net.swarm.pageVerifyQueueSize", oldQueueSize);
+
+		Benchmarks.output(String.format("\t%50s: %.03f pages/s (%d pages in %d ms); receive thread busy %.01f us/page",
+				description,
+				1000.0*completed/duration,
+				completed,
+				duration,
+				receiveNanos.get()/1000.0/Math.max(1, delivered.get())));
+	}
+
+	@Test
+	public void testDownloadVerifyingInline() throws InterruptedException {
+		download(NUM_PEERS + " peers, verify on receive thread", false);
+	}
+
+	@Test
+	public void testDownloadVerifyingOffThread() throws InterruptedException {
+		download(NUM_PEERS + " peers, verify on PageVerifier", true);
+	}
+}
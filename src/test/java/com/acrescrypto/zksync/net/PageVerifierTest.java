@@ -0,0 +1,175 @@
+package com.acrescrypto.zksync.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.utility.Util;
+
+public class PageVerifierTest {
+	class DummyAccumulator extends ChunkAccumulator {
+		String name;
+		Thread verifiedOn;
+		
+		public DummyAccumulator(PeerSwarm swarm, String name) {
+			super(swarm, null, 0);
+			this.name = name;
+		}
+		
+		@Override
+		protected void verifyPending() {
+			verifiedOn = Thread.currentThread();
+			verified.add(name);
+		}
+	}
+	
+	class BlockingAccumulator extends DummyAccumulator {
+		public BlockingAccumulator(PeerSwarm swarm) {
+			super(swarm, "blocker");
+		}
+		
+		@Override
+		protected void verifyPending() {
+			synchronized(blocked) {
+				while(blocked.isTrue()) {
+					try {
+						blocked.wait();
+					} catch(InterruptedException exc) {
+						return;
+					}
+				}
+			}
+			
+			super.verifyPending();
+		}
+	}
+	
+	static ZKMaster master;
+	PageVerifier verifier;
+	PeerSwarm swarmA, swarmB;
+	List<String> verified;
+	MutableBoolean blocked;
+	
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+	
+	@Before
+	public void beforeEach() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		master.getGlobalConfig().set("net.swarm.pageVerifyThreads", 1);
+		verifier = new PageVerifier(master);
+		swarmA = new PeerSwarm() {};
+		swarmB = new PeerSwarm() {};
+		verified = Collections.synchronizedList(new ArrayList<>());
+		blocked = new MutableBoolean(true);
+	}
+	
+	@After
+	public void afterEach() {
+		unblock();
+		verifier.close();
+		master.close();
+	}
+	
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.stopDebugMode();
+		TestUtils.assertTidy();
+	}
+	
+	void unblock() {
+		synchronized(blocked) {
+			blocked.setFalse();
+			blocked.notifyAll();
+		}
+	}
+	
+	@Test
+	public void testVerifiesSubmittedAccumulatorsOnWorkerThread() {
+		DummyAccumulator accumulator = new DummyAccumulator(swarmA, "a");
+		assertTrue(verifier.submit(accumulator));
+		assertTrue(Util.waitUntil(1000, ()->accumulator.verifiedOn != null));
+		assertNotEquals(Thread.currentThread(), accumulator.verifiedOn);
+		assertEquals(1, verifier.getNumVerified());
+	}
+	
+	@Test
+	public void testRefusesSubmissionsBeyondQueueSize() {
+		master.getGlobalConfig().set("net.swarm.pageVerifyQueueSize", 2);
+		assertTrue(verifier.submit(new BlockingAccumulator(swarmA)));
+		assertTrue(Util.waitUntil(1000, ()->verifier.queued() == 0));
+		
+		assertTrue(verifier.submit(new DummyAccumulator(swarmA, "a1")));
+		assertTrue(verifier.submit(new DummyAccumulator(swarmA, "a2")));
+		assertFalse(verifier.submit(new DummyAccumulator(swarmA, "a3")));
+		assertEquals(1, verifier.getNumRefused());
+	}
+	
+	@Test
+	public void testRefusesSubmissionsAfterClose() {
+		verifier.close();
+		assertFalse(verifier.submit(new DummyAccumulator(swarmA, "a")));
+	}
+	
+	@Test
+	public void testCloseHandsBackQueuedAccumulators() {
+		verifier.submit(new BlockingAccumulator(swarmA));
+		assertTrue(Util.waitUntil(1000, ()->verifier.queued() == 0));
+		
+		DummyAccumulator accumulator = new DummyAccumulator(swarmA, "a");
+		accumulator.verifying = true;
+		assertTrue(verifier.submit(accumulator));
+		verifier.close();
+		assertFalse(accumulator.verifying);
+		assertEquals(0, verifier.queued());
+	}
+	
+	@Test
+	public void testBatchesAccumulatorsFromSameSwarm() {
+		verifier.submit(new BlockingAccumulator(swarmA));
+		assertTrue(Util.waitUntil(1000, ()->verifier.queued() == 0));
+		
+		verifier.submit(new DummyAccumulator(swarmA, "a1"));
+		verifier.submit(new DummyAccumulator(swarmB, "b1"));
+		verifier.submit(new DummyAccumulator(swarmA, "a2"));
+		verifier.submit(new DummyAccumulator(swarmA, "a3"));
+		unblock();
+		
+		assertTrue(Util.waitUntil(1000, ()->verified.size() == 5));
+		assertEquals(List.of("blocker", "a1", "a2", "a3", "b1"), verified);
+		assertEquals(3, verifier.getNumBatches());
+	}
+	
+	@Test
+	public void testRotatesSwarmsWhenBatchSizeExceeded() {
+		master.getGlobalConfig().set("net.swarm.pageVerifyBatchSize", 2);
+		verifier.submit(new BlockingAccumulator(swarmA));
+		assertTrue(Util.waitUntil(1000, ()->verifier.queued() == 0));
+		
+		verifier.submit(new DummyAccumulator(swarmA, "a1"));
+		verifier.submit(new DummyAccumulator(swarmA, "a2"));
+		verifier.submit(new DummyAccumulator(swarmA, "a3"));
+		verifier.submit(new DummyAccumulator(swarmB, "b1"));
+		unblock();
+		
+		assertTrue(Util.waitUntil(1000, ()->verified.size() == 5));
+		assertEquals(List.of("blocker", "a1", "a2", "b1", "a3"), verified);
+	}
+}
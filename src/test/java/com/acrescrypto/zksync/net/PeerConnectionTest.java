@@ -50,6 +50,7 @@ import com.acrescrypto.zksync.fs.zkfs.ZKFS;
 import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
 import com.acrescrypto.zksync.net.PageQueue.EverythingQueueItem;
 import com.acrescrypto.zksync.net.PageQueue.PageQueueItem;
+import com.acrescrypto.zksync.net.PageQueue.PageChunksQueueItem;
 import com.acrescrypto.zksync.net.PageQueue.QueueItem;
 import com.acrescrypto.zksync.net.PageQueue.InodeContentsQueueItem;
 import com.acrescrypto.zksync.net.PageQueue.RevisionQueueItem;
@@ -582,6 +583,26 @@ public class PeerConnectionTest {
 		assertFinished();
 	}
 	
+	@Test
+	public void testRequestPageChunks() throws IOException {
+		ArrayList<ChunkRange> ranges = new ArrayList<>();
+		for(int i = 0; i < 4; i++) {
+			ranges.add(new ChunkRange(Util.shortTag(crypto.rng(RefTag.REFTAG_SHORT_SIZE)), i, i+1));
+		}
+		
+		conn.requestPageChunks(Integer.MAX_VALUE, ranges);
+		assertReceivedCmd(PeerConnection.CMD_REQUEST_PAGE_CHUNKS);
+		assertReceivedBytes(Util.serializeInt(Integer.MAX_VALUE));
+		for(ChunkRange range : ranges) {
+			ByteBuffer rangeBytes = ByteBuffer.allocate(ChunkRange.SERIALIZED_SIZE);
+			rangeBytes.putLong(range.getShortTag());
+			rangeBytes.putInt(range.getFirstChunk());
+			rangeBytes.putInt(range.getNumChunks());
+			assertReceivedBytes(rangeBytes.array());
+		}
+		assertFinished();
+	}
+	
 	@Test
 	public void testRequestInodes() throws PeerCapabilityException, IOException {
 		int numInodes = 16;
@@ -1415,6 +1436,60 @@ public class PeerConnectionTest {
 		}
 	}
 	
+	@Test
+	public void testHandleRequestPageChunksAddsRequestedRangesToPageQueue() throws ProtocolViolationException, IOException {
+		try(ZKFS fs = archive.openBlank()) {
+			DummyPeerMessageIncoming msg = new DummyPeerMessageIncoming(
+					(byte) PeerConnection.CMD_REQUEST_PAGE_CHUNKS);
+			fs.write("file", new byte[2*archive.getConfig().getPageSize()]);
+			fs.commit();
+			StorageTag tag = new PageTree(fs.inodeForPath("file")).getPageTag(0);
+			
+			msg.receivedData((byte) 0, ByteBuffer.allocate(4).putInt(0).array());
+			msg.receivedData((byte) 0, ByteBuffer
+					.allocate(ChunkRange.SERIALIZED_SIZE)
+					.putLong(tag.shortTag())
+					.putInt(1)
+					.putInt(2)
+					.array());
+			msg.receivedData(PeerMessage.FLAG_FINAL, new byte[0]);
+			conn.handle(msg);
+			
+			assertQueuedItemLike((_item) -> {
+				if(!(_item instanceof PageChunksQueueItem)) return false;
+				PageChunksQueueItem item = (PageChunksQueueItem) _item;
+				return tag.equals(item.tag);
+			});
+		}
+	}
+	
+	@Test(expected=ProtocolViolationException.class)
+	public void testHandleRequestPageChunksTriggersViolationForRangePastEndOfPage() throws ProtocolViolationException {
+		int numChunks = swarm.numChunksPerPage();
+		DummyPeerMessageIncoming msg = new DummyPeerMessageIncoming((byte) PeerConnection.CMD_REQUEST_PAGE_CHUNKS);
+		msg.receivedData((byte) 0, ByteBuffer.allocate(4).putInt(0).array());
+		msg.receivedData(PeerMessage.FLAG_FINAL, ByteBuffer
+				.allocate(ChunkRange.SERIALIZED_SIZE)
+				.putLong(1234)
+				.putInt(numChunks-1)
+				.putInt(2)
+				.array());
+		conn.handle(msg);
+	}
+	
+	@Test(expected=ProtocolViolationException.class)
+	public void testHandleRequestPageChunksTriggersViolationForEmptyRange() throws ProtocolViolationException {
+		DummyPeerMessageIncoming msg = new DummyPeerMessageIncoming((byte) PeerConnection.CMD_REQUEST_PAGE_CHUNKS);
+		msg.receivedData((byte) 0, ByteBuffer.allocate(4).putInt(0).array());
+		msg.receivedData(PeerMessage.FLAG_FINAL, ByteBuffer
+				.allocate(ChunkRange.SERIALIZED_SIZE)
+				.putLong(1234)
+				.putInt(0)
+				.putInt(0)
+				.array());
+		conn.handle(msg);
+	}
+	
 	@Test
 	public void testHandleRequestPageTagsToleratesNonexistentTags() throws ProtocolViolationException, IOException {
 		StorageTag[] tags = new StorageTag[16];
@@ -1529,7 +1604,8 @@ public class PeerConnectionTest {
 		msg.receivedData(PeerMessage.FLAG_FINAL, new byte[0]);
 		
 		conn.handle(msg);
-		assertTrue(accumulator.isFinished());
+		// pages are verified on the master's PageVerifier, so completion is asynchronous
+		assertTrue(Util.waitUntil(1000, ()->accumulator.isFinished() && swarm.announcedTag != null));
 		assertEquals(tag, swarm.announcedTag);
 	}
 	
@@ -0,0 +1,104 @@
+package com.acrescrypto.zksync.net;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.crypto.Key;
+import com.acrescrypto.zksync.fs.zkfs.ArchiveAccessor;
+import com.acrescrypto.zksync.fs.zkfs.ZKArchive;
+import com.acrescrypto.zksync.fs.zkfs.ZKArchiveConfig;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Models NUM_PEERS connected peers whose handler threads are parked in PeerConnection.waitForFullInit while their
+ * archive is still opening, comparing the old 1ms polling loop against waiting on the config's StateSignal. Reports
+ * the CPU the waiters burn while idle, and how long after the archive starts opening the last of them notices. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PeerConnectionWaitBenchmark {
+	interface Waiter {
+		void waitForArchive(ZKArchiveConfig config);
+	}
+
+	public final static int NUM_PEERS = 128;
+	public final static int IDLE_MS   = Benchmarks.DEFAULT_TEST_INTERVAL_MS;
+
+	static ZKMaster master;
+	static ZKArchive archive;
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		master = ZKMaster.openBlankTestVolume();
+		archive = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "");
+		Benchmarks.beginBenchmarkSuite("Waiting for archive init with " + NUM_PEERS + " peers");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		archive.close();
+		master.close();
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	void measure(String description, Waiter waiter) throws IOException, InterruptedException {
+		ArchiveAccessor accessor = new ArchiveAccessor(master, archive.getConfig().getAccessor());
+		ZKArchiveConfig config = ZKArchiveConfig.openExisting(accessor,
+				archive.getConfig().getArchiveId(),
+				false,
+				Key.blank(master.getCrypto()));
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		AtomicLong lastReturnNs = new AtomicLong();
+		ArrayList<Thread> peers = new ArrayList<>();
+		for(int i = 0; i < NUM_PEERS; i++) {
+			Thread peer = new Thread(()->{
+				waiter.waitForArchive(config);
+				lastReturnNs.accumulateAndGet(System.nanoTime(), Math::max);
+			});
+			peers.add(peer);
+			peer.start();
+		}
+
+		Util.sleep(100); // let everyone settle into waiting
+		long cpuBefore = 0, cpuAfter = 0;
+		for(Thread peer : peers) cpuBefore += threads.getThreadCpuTime(peer.getId());
+		Util.sleep(IDLE_MS);
+		for(Thread peer : peers) cpuAfter += threads.getThreadCpuTime(peer.getId());
+
+		long openStartNs = System.nanoTime();
+		config.finishOpening();
+		long openedNs = System.nanoTime();
+		for(Thread peer : peers) peer.join();
+		config.close();
+
+		Benchmarks.output(String.format("\t%50s: idle CPU %.01f%% of one core; open took %.03f ms, all waiters back after %.03f ms",
+				description,
+				100.0*(cpuAfter - cpuBefore)/(IDLE_MS*1000.0*1000.0),
+				(openedNs - openStartNs)/(1000.0*1000.0),
+				(lastReturnNs.get() - openStartNs)/(1000.0*1000.0)));
+	}
+
+	@Test
+	public void testWaitPolling() throws IOException, InterruptedException {
+		// what waitForFullInit did before StateSignal
+		measure("1ms polling", (config)->{
+			while(config.getArchive() == null) {
+				Util.sleep(1);
+			}
+		});
+	}
+
+	@Test
+	public void testWaitStateSignal() throws IOException, InterruptedException {
+		measure("StateSignal", (config)->config.getStateSignal().waitWhile(()->config.getArchive() == null));
+	}
+}
@@ -9,9 +9,11 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -20,6 +22,7 @@ import org.junit.Test;
 import org.slf4j.LoggerFactory;
 
 import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.exceptions.SwarmTimeoutException;
 import com.acrescrypto.zksync.fs.zkfs.PageTree;
 import com.acrescrypto.zksync.fs.zkfs.RefTag;
 import com.acrescrypto.zksync.fs.zkfs.RevisionTag;
@@ -587,6 +590,72 @@ public class PeerSwarmTest {
 		swarm.receivedPage(tag);
 	}
 	
+	@Test
+	public void testWaitForPageDropsPageWaitOnTimeout() throws IOException {
+		byte[] tagBytes = archive.getCrypto().hash(Util.serializeInt(1));
+		StorageTag tag = new StorageTag(archive.getCrypto(), tagBytes);
+		
+		try {
+			swarm.waitForPage(0, tag, 20);
+			fail();
+		} catch(SwarmTimeoutException exc) {}
+		
+		assertFalse(swarm.pageWaits.containsKey(tag.shortTagPreserialized()));
+	}
+	
+	@Test
+	public void testWaitForPageKeepsPageWaitForOtherWaitersOnTimeout() throws IOException {
+		byte[] tagBytes = archive.getCrypto().hash(Util.serializeInt(1));
+		StorageTag tag = new StorageTag(archive.getCrypto(), tagBytes);
+		MutableBoolean waited = new MutableBoolean();
+		
+		new Thread(()->{
+			try {
+				swarm.waitForPage(0, tag);
+			} catch (IOException e) {
+				e.printStackTrace();
+				fail();
+			}
+			waited.setTrue();
+		}).start();
+		
+		assertTrue(Util.waitUntil(100, ()->swarm.pageWaits.containsKey(tag.shortTagPreserialized())));
+		try {
+			swarm.waitForPage(0, tag, 20);
+			fail();
+		} catch(SwarmTimeoutException exc) {}
+		
+		assertTrue(swarm.pageWaits.containsKey(tag.shortTagPreserialized()));
+		swarm.receivedPage(tag);
+		assertTrue(Util.waitUntil(100, ()->waited.isTrue()));
+	}
+	
+	@Test
+	public void testWaitForPageThrowsAndKeepsInterruptStatusWhenInterrupted() throws IOException {
+		byte[] tagBytes = archive.getCrypto().hash(Util.serializeInt(1));
+		StorageTag tag = new StorageTag(archive.getCrypto(), tagBytes);
+		MutableBoolean threw = new MutableBoolean(), interrupted = new MutableBoolean();
+		
+		Thread thread = new Thread(()->{
+			try {
+				swarm.waitForPage(0, tag);
+			} catch (InterruptedIOException exc) {
+				threw.setTrue();
+				interrupted.setValue(Thread.currentThread().isInterrupted());
+			} catch (IOException e) {
+				e.printStackTrace();
+				fail();
+			}
+		});
+		thread.start();
+		
+		assertTrue(Util.waitUntil(100, ()->swarm.pageWaits.containsKey(tag.shortTagPreserialized())));
+		thread.interrupt();
+		assertTrue(Util.waitUntil(100, ()->threw.isTrue()));
+		assertTrue(interrupted.isTrue());
+		assertFalse(swarm.pageWaits.containsKey(tag.shortTagPreserialized()));
+	}
+	
 	@Test
 	public void testAccumulatorForTagCreatesAnAccumulatorForNewTags() throws IOException {
 		byte[] tagBytes = archive.getCrypto().hash(Util.serializeInt(1));
@@ -628,7 +697,7 @@ public class PeerSwarmTest {
 		
 		swarm.requestTag(4321, shortTag);
 		for(DummyConnection conn : conns) {
-			assertEquals(shortTag, conn.requestedTag);
+			assertTrue(Util.waitUntil(500, ()->conn.requestedTag == shortTag));
 			assertEquals(4321, conn.requestedPriority);
 		}
 	}
@@ -658,7 +727,7 @@ public class PeerSwarmTest {
 		
 		swarm.requestTag(0, tag);
 		for(DummyConnection conn : conns) {
-			assertEquals(shortTag, conn.requestedTag);
+			assertTrue(Util.waitUntil(500, ()->conn.requestedTag == shortTag));
 		}
 	}
 	
@@ -40,7 +40,7 @@ public class RequestPoolTest {
 	
 	class DummyConnection extends PeerConnection {
 		boolean requestedAll, mockSeedOnly, setPaused, setPausedValue;
-		int requestedPriority;
+		int requestedPriority, pageTagRequestMessages;
 		RevisionTag requestedRevTag;
 		
 		LinkedList<RevisionTag> requestedRefTags = new LinkedList<>();
@@ -49,6 +49,7 @@ public class RequestPoolTest {
 		LinkedList<RevisionTag> requestedRevisionStructures = new LinkedList<>();
 		LinkedList<Long> requestedPageTags = new LinkedList<>();
 		LinkedList<Long> requestedInodeIds = new LinkedList<>();
+		LinkedList<ChunkRange> requestedChunkRanges = new LinkedList<>();
 		
 		@Override public void setPaused(boolean paused) {
 			this.setPaused = true;
@@ -57,10 +58,18 @@ public class RequestPoolTest {
 		
 		@Override public void requestAll() { requestedAll = true; }
 		@Override public void requestPageTags(int priority, Collection<Long> pageTags) {
+			pageTagRequestMessages++;
 			requestedPriority = priority;
 			requestedPageTags.addAll(pageTags);
 		}
 		
+		@Override public void requestPageChunks(int priority, Collection<ChunkRange> ranges) {
+			requestedPriority = priority;
+			synchronized(requestedChunkRanges) {
+				requestedChunkRanges.addAll(ranges);
+			}
+		}
+		
 		@Override public void requestPageTag(int priority, long shortTag) {
 			requestedPriority = priority;
 			requestedPageTags.add(shortTag);
@@ -120,6 +129,9 @@ public class RequestPoolTest {
 		conn = new DummyConnection();
 		defaultConn = new DummyConnection();
 		config.getSwarm().connections.add(defaultConn);
+		master.getGlobalConfig().set("net.swarm.pageRequestBatchMs", 0); // dispatch immediately unless test says otherwise
+		master.getGlobalConfig().set("net.swarm.pageRequestEndgameThreshold", 0);
+		master.getGlobalConfig().set("net.swarm.pageStripeMaxPeers", 1); // request whole pages unless test says otherwise
 		pool = new RequestPool(config);
 	}
 	
@@ -689,4 +701,218 @@ public class RequestPoolTest {
 		try { archive.getConfig().getLocalStorage().unlink(pool2.path()); } catch(ENOENTException exc) {}
 		assertFalse(Util.waitUntil(100, ()->archive.getConfig().getLocalStorage().exists(pool2.path())));
 	}
+	
+	@Test
+	public void testAddPageTagDirectsRequestToPeersAnnouncingTag() {
+		config.getSwarm().connections.add(conn);
+		conn.announcedTags.add(1234l);
+		pool.addPageTag(12, 1234l);
+		
+		assertTrue(conn.requestedPageTags.contains(1234l));
+		assertFalse(defaultConn.requestedPageTags.contains(1234l));
+	}
+	
+	@Test
+	public void testAddPageTagBroadcastsWhenNoPeerAnnouncedTag() {
+		config.getSwarm().connections.add(conn);
+		pool.addPageTag(12, 1234l);
+		
+		assertTrue(conn.requestedPageTags.contains(1234l));
+		assertTrue(defaultConn.requestedPageTags.contains(1234l));
+		assertTrue(pool.getPageScheduler().isUnsourced(1234l));
+	}
+	
+	@Test
+	public void testAddPageTagBalancesRequestsAcrossHolders() {
+		config.getSwarm().connections.add(conn);
+		for(long i = 0; i < 32; i++) {
+			conn.announcedTags.add(i);
+			defaultConn.announcedTags.add(i);
+		}
+		
+		master.getGlobalConfig().set("net.swarm.pageRequestBatchMs", 50);
+		for(long i = 0; i < 32; i++) {
+			pool.addPageTag(0, i);
+		}
+		
+		assertTrue(Util.waitUntil(500, ()->conn.requestedPageTags.size() + defaultConn.requestedPageTags.size() == 32));
+		assertEquals(16, conn.requestedPageTags.size());
+		assertEquals(16, defaultConn.requestedPageTags.size());
+	}
+	
+	@Test
+	public void testAddPageTagCoalescesRequestsWithinBatchWindow() {
+		master.getGlobalConfig().set("net.swarm.pageRequestBatchMs", 50);
+		for(long i = 0; i < 16; i++) {
+			pool.addPageTag(0, i);
+		}
+		
+		assertTrue(defaultConn.requestedPageTags.isEmpty());
+		assertTrue(Util.waitUntil(500, ()->defaultConn.requestedPageTags.size() == 16));
+		assertEquals(1, defaultConn.pageTagRequestMessages);
+	}
+	
+	@Test
+	public void testAddPageTagWidensFanoutOnRepeatedRequests() {
+		DummyConnection third = new DummyConnection();
+		config.getSwarm().connections.add(conn);
+		config.getSwarm().connections.add(third);
+		for(DummyConnection c : new DummyConnection[] { conn, defaultConn, third }) {
+			c.announcedTags.add(1234l);
+		}
+		
+		pool.addPageTag(12, 1234l);
+		assertEquals(1, conn.requestedPageTags.size() + defaultConn.requestedPageTags.size() + third.requestedPageTags.size());
+		pool.addPageTag(12, 1234l);
+		assertEquals(3, conn.requestedPageTags.size() + defaultConn.requestedPageTags.size() + third.requestedPageTags.size());
+	}
+	
+	@Test
+	public void testAddPageTagSendsToAllHoldersInEndgame() {
+		master.getGlobalConfig().set("net.swarm.pageRequestEndgameThreshold", 16);
+		config.getSwarm().connections.add(conn);
+		conn.announcedTags.add(1234l);
+		defaultConn.announcedTags.add(1234l);
+		
+		pool.addPageTag(12, 1234l);
+		assertTrue(conn.requestedPageTags.contains(1234l));
+		assertTrue(defaultConn.requestedPageTags.contains(1234l));
+	}
+	
+	@Test
+	public void testReceivedTagAnnouncementRedirectsUnsourcedTags() {
+		pool.addPageTag(12, 1234l);
+		assertTrue(pool.getPageScheduler().isUnsourced(1234l));
+		
+		config.getSwarm().connections.add(conn);
+		conn.announcedTags.add(1234l);
+		LinkedList<Long> announced = new LinkedList<>();
+		announced.add(1234l);
+		pool.receivedTagAnnouncement(conn, announced);
+		
+		assertTrue(conn.requestedPageTags.contains(1234l));
+		assertEquals(12, conn.requestedPriority);
+		assertFalse(pool.getPageScheduler().isUnsourced(1234l));
+	}
+	
+	@Test
+	public void testAddRequestsToPeerSkipsPageTagsAvailableFromOtherPeers() {
+		defaultConn.announcedTags.add(1l);
+		pool.addPageTag(0, 1l);
+		pool.addPageTag(0, 2l);
+		
+		pool.addRequestsToConnection(conn);
+		assertFalse(conn.requestedPageTags.contains(1l));
+		assertTrue(conn.requestedPageTags.contains(2l));
+	}
+	
+	@Test
+	public void testCancelPageTagBeforeDispatchDoesNotContactPeers() {
+		master.getGlobalConfig().set("net.swarm.pageRequestBatchMs", 50);
+		pool.addPageTag(12, 1234l);
+		pool.cancelPageTag(1234l);
+		
+		assertFalse(Util.waitUntil(100, ()->!defaultConn.requestedPageTags.isEmpty()));
+	}
+	
+	@Test
+	public void testAddPageTagStripesPageAcrossHolders() {
+		master.getGlobalConfig().set("net.swarm.pageStripeMaxPeers", 4);
+		config.getSwarm().connections.add(conn);
+		conn.announcedTags.add(1234l);
+		defaultConn.announcedTags.add(1234l);
+		
+		pool.addPageTag(12, 1234l);
+		assertTrue(conn.requestedPageTags.isEmpty());
+		assertTrue(defaultConn.requestedPageTags.isEmpty());
+		assertEquals(1, conn.requestedChunkRanges.size());
+		assertEquals(1, defaultConn.requestedChunkRanges.size());
+		assertTrue(pool.getPageScheduler().isStriped(1234l));
+		
+		// the two ranges should be disjoint and cover the whole page between them
+		int numChunks = config.getSwarm().numChunksPerPage();
+		boolean[] covered = new boolean[numChunks];
+		for(DummyConnection c : new DummyConnection[] { conn, defaultConn }) {
+			ChunkRange range = c.requestedChunkRanges.getFirst();
+			assertEquals(1234l, range.getShortTag());
+			for(int i = range.getFirstChunk(); i < range.getEndChunk(); i++) {
+				assertFalse(covered[i]);
+				covered[i] = true;
+			}
+		}
+		
+		for(boolean c : covered) assertTrue(c);
+	}
+	
+	@Test
+	public void testAddPageTagDoesNotStripeRepeatedRequests() {
+		master.getGlobalConfig().set("net.swarm.pageStripeMaxPeers", 4);
+		config.getSwarm().connections.add(conn);
+		conn.announcedTags.add(1234l);
+		defaultConn.announcedTags.add(1234l);
+		
+		pool.addPageTag(12, 1234l);
+		pool.addPageTag(12, 1234l);
+		assertEquals(1, conn.requestedChunkRanges.size());
+		assertEquals(1, defaultConn.requestedChunkRanges.size());
+		assertTrue(conn.requestedPageTags.contains(1234l));
+		assertTrue(defaultConn.requestedPageTags.contains(1234l));
+	}
+	
+	@Test
+	public void testStripeReassignsStragglingRangesToOtherHolders() {
+		master.getGlobalConfig().set("net.swarm.pageStripeMaxPeers", 4);
+		master.getGlobalConfig().set("net.swarm.pageStripeTimeoutMs", 10);
+		master.getGlobalConfig().set("net.swarm.pageStripeMaxReassignments", 1);
+		config.getSwarm().connections.add(conn);
+		conn.announcedTags.add(1234l);
+		defaultConn.announcedTags.add(1234l);
+		
+		pool.addPageTag(12, 1234l);
+		ChunkRange connRange = conn.requestedChunkRanges.getFirst();
+		ChunkRange defaultRange = defaultConn.requestedChunkRanges.getFirst();
+		
+		// nobody delivered anything, so each peer should get asked for the other's share
+		assertTrue(Util.waitUntil(500, ()->conn.requestedChunkRanges.size() == 2 && defaultConn.requestedChunkRanges.size() == 2));
+		assertEquals(defaultRange, conn.requestedChunkRanges.getLast());
+		assertEquals(connRange, defaultConn.requestedChunkRanges.getLast());
+		
+		// and we give up on re-assignment once we hit the limit
+		assertFalse(Util.waitUntil(100, ()->conn.requestedChunkRanges.size() > 2 || defaultConn.requestedChunkRanges.size() > 2));
+		assertFalse(pool.getPageScheduler().isStriped(1234l));
+	}
+	
+	@Test
+	public void testReceivedPageStopsTrackingStripe() {
+		master.getGlobalConfig().set("net.swarm.pageStripeMaxPeers", 4);
+		master.getGlobalConfig().set("net.swarm.pageStripeTimeoutMs", 10);
+		config.getSwarm().connections.add(conn);
+		conn.announcedTags.add(1234l);
+		defaultConn.announcedTags.add(1234l);
+		
+		pool.addPageTag(12, 1234l);
+		assertTrue(pool.getPageScheduler().isStriped(1234l));
+		pool.receivedPage(1234l);
+		assertFalse(pool.getPageScheduler().isStriped(1234l));
+		assertFalse(Util.waitUntil(100, ()->conn.requestedChunkRanges.size() > 1 || defaultConn.requestedChunkRanges.size() > 1));
+	}
+	
+	@Test
+	public void testPoolWithoutSchedulerRequestsPageTagsDirectly() throws IOException {
+		RequestPool bare = new RequestPool() {};
+		bare.config = config;
+		config.getSwarm().connections.add(conn);
+		
+		bare.addPageTag(12, 1234l);
+		assertEquals(12, conn.requestedPriority);
+		assertTrue(conn.requestedPageTags.contains(1234l));
+		
+		bare.receivedTagAnnouncement(conn, new LinkedList<>());
+		bare.addDataRequestsToConnection(defaultConn);
+		assertTrue(defaultConn.requestedPageTags.contains(1234l));
+		
+		bare.cancelPageTag(1234l);
+		assertEquals(PageQueue.CANCEL_PRIORITY, conn.requestedPriority);
+		bare.stop();
+	}
 }
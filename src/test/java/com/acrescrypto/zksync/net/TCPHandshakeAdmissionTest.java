@@ -0,0 +1,133 @@
+package com.acrescrypto.zksync.net;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigDefaults;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
+import com.acrescrypto.zksync.utility.Util;
+
+public class TCPHandshakeAdmissionTest {
+	ConfigFile config;
+	TCPHandshakeAdmission admission;
+
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+
+	@Before
+	public void beforeEach() {
+		Util.setCurrentTimeMillis(1000000);
+		config = new ConfigFile();
+		config.apply(ConfigDefaults.getActiveDefaults());
+		config.set("net.swarm.maxPendingHandshakes",                 4);
+		config.set("net.swarm.maxHandshakesPerAddress",              2);
+		config.set("net.swarm.handshakeAttemptsPerAddressPerSecond", 3);
+		admission = new TCPHandshakeAdmission(config);
+	}
+
+	@After
+	public void afterEach() {
+		Util.setCurrentTimeMillis(-1);
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.assertTidy();
+		TestUtils.stopDebugMode();
+	}
+
+	@Test
+	public void testAdmitsConnectionsWithinLimits() {
+		assertEquals(TCPHandshakeAdmission.REJECT_NONE, admission.admit("10.0.0.1"));
+		assertEquals(TCPHandshakeAdmission.REJECT_NONE, admission.admit("10.0.0.2"));
+		assertEquals(2, admission.inFlight());
+		assertEquals(1, admission.inFlight("10.0.0.1"));
+	}
+
+	@Test
+	public void testRejectsConnectionsBeyondPerAddressLimit() {
+		admission.admit("10.0.0.1");
+		admission.admit("10.0.0.1");
+		assertEquals(TCPHandshakeAdmission.REJECT_ADDRESS_LIMIT, admission.admit("10.0.0.1"));
+		assertEquals(TCPHandshakeAdmission.REJECT_NONE, admission.admit("10.0.0.2"));
+	}
+
+	@Test
+	public void testRejectsConnectionsBeyondGlobalLimit() {
+		for(int i = 0; i < 4; i++) {
+			assertEquals(TCPHandshakeAdmission.REJECT_NONE, admission.admit("10.0.0." + i));
+		}
+
+		assertEquals(TCPHandshakeAdmission.REJECT_GLOBAL_LIMIT, admission.admit("10.0.0.4"));
+	}
+
+	@Test
+	public void testReleaseFreesSlots() {
+		admission.admit("10.0.0.1");
+		admission.admit("10.0.0.1");
+		admission.release("10.0.0.1");
+		assertEquals(1, admission.inFlight());
+		assertEquals(TCPHandshakeAdmission.REJECT_NONE, admission.admit("10.0.0.1"));
+	}
+
+	@Test
+	public void testReleaseIgnoresUnknownAddresses() {
+		admission.release("10.0.0.1");
+		assertEquals(0, admission.inFlight());
+	}
+
+	@Test
+	public void testRejectsAttemptsBeyondRateLimit() {
+		for(int i = 0; i < 3; i++) {
+			admission.admit("10.0.0.1");
+			admission.release("10.0.0.1");
+		}
+
+		assertEquals(TCPHandshakeAdmission.REJECT_RATE_LIMIT, admission.admit("10.0.0.1"));
+		assertEquals(TCPHandshakeAdmission.REJECT_NONE, admission.admit("10.0.0.2"));
+	}
+
+	@Test
+	public void testRateLimitResetsAfterWindow() {
+		for(int i = 0; i < 4; i++) {
+			admission.admit("10.0.0.1");
+			admission.release("10.0.0.1");
+		}
+
+		Util.setCurrentTimeMillis(Util.currentTimeMillis() + TCPHandshakeAdmission.RATE_WINDOW_MS);
+		assertEquals(TCPHandshakeAdmission.REJECT_NONE, admission.admit("10.0.0.1"));
+	}
+
+	@Test
+	public void testRateLimitedAttemptsDoNotHoldSlots() {
+		for(int i = 0; i < 4; i++) {
+			if(admission.admit("10.0.0.1") == TCPHandshakeAdmission.REJECT_NONE) {
+				admission.release("10.0.0.1");
+			}
+		}
+
+		assertEquals(0, admission.inFlight());
+	}
+
+	@Test
+	public void testPrunesIdleAddresses() {
+		for(int i = 0; i < 8; i++) {
+			admission.admit("10.0.1." + i);
+			admission.release("10.0.1." + i);
+		}
+
+		admission.admit("10.0.0.1");
+		Util.setCurrentTimeMillis(Util.currentTimeMillis() + TCPHandshakeAdmission.RATE_WINDOW_MS);
+		admission.admit("10.0.0.2");
+		assertEquals(2, admission.sources.size());
+		assertEquals(1, admission.inFlight("10.0.0.1"));
+	}
+}
@@ -92,6 +92,15 @@ public class TCPPeerAdvertisementListenerTest {
 		assertFalse(listener.matchesIdHash(invalidKeyHash, invalidKeyHash));
 	}
 	
+	@Test
+	public void testIdTagIsKeyedToListenerIdentityAndArchive() {
+		int expected = TCPPeerAdvertisementIndex.idTag(master.getCrypto(),
+				socketListener.getIdentityKey().publicKey().getBytes(),
+				swarm.config.getArchiveId());
+		assertEquals(expected, listener.getIdTag());
+		assertTrue(listener.getIdTag() >= 0 && listener.getIdTag() < 1 << TCPPeerAdvertisementIndex.ID_TAG_BITS);
+	}
+	
 	@Test
 	public void testLocalAdReturnsWellFormattedAdvertisement() throws UnconnectableAdvertisementException {
 		TCPPeerAdvertisement ad = listener.localAd();
@@ -0,0 +1,267 @@
+package com.acrescrypto.zksync.net;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.fs.zkfs.ArchiveAccessor;
+import com.acrescrypto.zksync.fs.zkfs.ZKArchive;
+import com.acrescrypto.zksync.fs.zkfs.ZKArchiveConfig;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Measures inbound handshake handling in TCPPeerSocketListener over loopback. Every connection comes from
+ * 127.0.0.1, so the flood tests lift the per-address limits to model a flood from many addresses, leaving the
+ * global in-flight cap and handshake deadline as the only defences. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TCPPeerSocketListenerBenchmark {
+	static class CountingSwarm extends PeerSwarm {
+		AtomicInteger opened = new AtomicInteger();
+
+		public CountingSwarm(ZKArchiveConfig config) throws IOException { super(config); }
+		@Override public void advertiseSelf(PeerAdvertisement ad) {}
+		@Override public void openedConnection(PeerConnection connection) {
+			opened.incrementAndGet();
+			connection.close();
+		}
+	}
+
+	static class DummyConnection extends PeerConnection {
+	}
+
+	/** Stand-in for an advertised archive; only the fields used for handshake matching are populated. */
+	static class FillerAdListener extends TCPPeerAdvertisementListener {
+		FillerAdListener() {
+			this.swarm     = new PeerSwarm() {};
+			this.crypto    = master.getCrypto();
+			this.archiveId = crypto.rng(crypto.hashLength());
+			this.idTag     = TCPPeerAdvertisementIndex.idTag(crypto, TCPPeerSocketListenerBenchmark.listener.getIdentityKey().publicKey().getBytes(), archiveId);
+		}
+	}
+
+	public final static int FLOOD_CONNECTIONS = 5000;
+	public final static int FLOOD_HANDSHAKE_DEADLINE_MS = 1000;
+
+	static ZKMaster master;
+	static ZKArchive archive;
+	static ZKArchiveConfig clientConfig;
+	static TCPPeerSocketListener listener;
+	static CountingSwarm serverSwarm, clientSwarm;
+	static TCPPeerAdvertisement ad;
+	static ArrayList<FillerAdListener> fillers = new ArrayList<>();
+
+	@BeforeClass
+	public static void beforeAll() throws Exception {
+		TCPPeerSocket.disableMakeThreads = true;
+		master = ZKMaster.openBlankTestVolume();
+		archive = master.createArchive(ZKArchive.DEFAULT_PAGE_SIZE, "");
+		master.getGlobalConfig().set("net.swarm.enabled", true);
+		listener = master.getTCPListener();
+		serverSwarm = new CountingSwarm(archive.getConfig());
+		Util.waitUntil(1000, ()->listener.ready());
+		listener.advertise(serverSwarm);
+
+		byte[] encArchiveId = archive.getConfig().getEncryptedArchiveId(listener.getIdentityKey().publicKey().getBytes());
+		ad = new TCPPeerAdvertisement(listener.getIdentityKey().publicKey(), "127.0.0.1", listener.getPort(), encArchiveId);
+		ad.resolve();
+
+		ArchiveAccessor accessor2 = new ArchiveAccessor(master, archive.getConfig().getAccessor());
+		clientConfig = ZKArchiveConfig.openExisting(accessor2, archive.getConfig().getArchiveId());
+		clientSwarm = new CountingSwarm(clientConfig);
+
+		Benchmarks.beginBenchmarkSuite("TCP handshakes");
+	}
+
+	@AfterClass
+	public static void afterAll() throws IOException {
+		clientSwarm.close();
+		clientConfig.close();
+		serverSwarm.close();
+		listener.close();
+		archive.close();
+		master.close();
+		TCPPeerSocket.disableMakeThreads = false;
+		TCPPeerSocket.maxHandshakeTimeMillis = TCPPeerSocket.DEFAULT_MAX_HANDSHAKE_TIME_MILLIS;
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	@Before
+	public void beforeEach() {
+		master.getGlobalConfig().set("net.swarm.maxHandshakesPerAddress",              Integer.MAX_VALUE);
+		master.getGlobalConfig().set("net.swarm.handshakeAttemptsPerAddressPerSecond", Integer.MAX_VALUE);
+		TCPPeerSocket.maxHandshakeTimeMillis = FLOOD_HANDSHAKE_DEADLINE_MS;
+	}
+
+	@After
+	public void afterEach() {
+		Util.waitUntil(2*FLOOD_HANDSHAKE_DEADLINE_MS, ()->listener.getAdmission().inFlight() == 0);
+		hostArchives(1);
+	}
+
+	/** Pad the listener's advertisement index with stand-ins so that it hosts numArchives archives in total. */
+	void hostArchives(int numArchives) {
+		while(fillers.size() > numArchives - 1) {
+			listener.stopAdvertising(fillers.remove(fillers.size() - 1).swarm);
+		}
+
+		while(fillers.size() < numArchives - 1) {
+			FillerAdListener filler = new FillerAdListener();
+			fillers.add(filler);
+			listener.adListeners.add(filler);
+		}
+	}
+
+	/** Look up the benchmark archive's advertisement for a fresh handshake hash, with or without the idTag hint. */
+	Benchmarks.BenchmarkTest matcher(boolean tagged) {
+		byte[] archiveId = archive.getConfig().getArchiveId();
+		int idTag = tagged ? listener.listenerForSwarm(serverSwarm).getIdTag() : TCPPeerAdvertisementIndex.ID_TAG_NONE;
+		return (i)->{
+			byte[] hsHash = master.getCrypto().rng(master.getCrypto().hashLength());
+			byte[] idHash = master.getCrypto().hash(Util.concat(hsHash, archiveId));
+			listener.findMatchingAdvertisement(hsHash, idHash, idTag);
+		};
+	}
+
+	boolean handshake() {
+		try {
+			TCPPeerSocket socket = new TCPPeerSocket(clientSwarm, ad);
+			socket.handshake(new DummyConnection());
+			socket.close();
+			return true;
+		} catch(Exception exc) {
+			return false;
+		}
+	}
+
+	/** Open FLOOD_CONNECTIONS sockets that never speak, from a pool of client threads, while measuring the rate at
+	 * which a legitimate client completes handshakes. */
+	void flood(String description) throws InterruptedException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+		threads.resetPeakThreadCount();
+		int threadsBefore = threads.getThreadCount();
+
+		ConcurrentLinkedQueue<Socket> sockets = new ConcurrentLinkedQueue<>();
+		AtomicInteger remaining = new AtomicInteger(FLOOD_CONNECTIONS), failed = new AtomicInteger();
+		ArrayList<Thread> flooders = new ArrayList<>();
+		for(int i = 0; i < 16; i++) {
+			Thread flooder = new Thread(()->{
+				while(remaining.getAndDecrement() > 0) {
+					try {
+						Socket socket = new Socket();
+						socket.connect(new InetSocketAddress("127.0.0.1", listener.getPort()), 2000);
+						sockets.add(socket);
+					} catch(IOException exc) {
+						failed.incrementAndGet();
+					}
+				}
+			});
+			flooders.add(flooder);
+			flooder.start();
+		}
+
+		int openedBefore = serverSwarm.opened.get(), attempted = 0, peakInFlight = 0;
+		long startTs = System.currentTimeMillis();
+		while(flooders.stream().anyMatch((t)->t.isAlive())) {
+			handshake();
+			attempted++;
+			peakInFlight = Math.max(peakInFlight, listener.getAdmission().inFlight());
+		}
+
+		long duration = System.currentTimeMillis() - startTs;
+		int completed = serverSwarm.opened.get() - openedBefore;
+		long heapDuring = runtime.totalMemory() - runtime.freeMemory();
+
+		for(Thread flooder : flooders) flooder.join();
+		for(Socket socket : sockets) {
+			try { socket.close(); } catch(IOException exc) {}
+		}
+
+		Benchmarks.output(String.format("\t%50s: %d connects (%d failed) in %d ms; legitimate handshakes %d of %d (%.01f/s)",
+				description,
+				FLOOD_CONNECTIONS,
+				failed.get(),
+				duration,
+				completed,
+				attempted,
+				1000.0*completed/Math.max(1, duration)));
+		Benchmarks.output(String.format("\t%50s: peak threads +%d, heap +%.01f MiB, peak handshakes in flight %d",
+				"",
+				threads.getPeakThreadCount() - threadsBefore,
+				(heapDuring - heapBefore)/(1024.0*1024.0),
+				peakInFlight));
+	}
+
+	@Test
+	public void testHandshakeThroughput() {
+		Benchmarks.run("handshakes", (i)->handshake());
+	}
+
+	@Test
+	public void testHandshakeThroughputWith1000Archives() {
+		hostArchives(1000);
+		Benchmarks.run("handshakes", (i)->handshake());
+	}
+
+	@Test
+	public void testHandshakeThroughputWith10000Archives() {
+		hostArchives(10000);
+		Benchmarks.run("handshakes", (i)->handshake());
+	}
+
+	@Test
+	public void testHandshakeThroughputWith10Archives() {
+		hostArchives(10);
+		Benchmarks.run("handshakes", (i)->handshake());
+	}
+
+	@Test
+	public void testMatchTaggedWith10000Archives() {
+		hostArchives(10000);
+		Benchmarks.run("matches", matcher(true));
+	}
+
+	@Test
+	public void testMatchUntaggedWith10000Archives() {
+		hostArchives(10000);
+		Benchmarks.run("matches", matcher(false));
+	}
+
+	@Test
+	public void testMatchUntaggedWith1000Archives() {
+		hostArchives(1000);
+		Benchmarks.run("matches", matcher(false));
+	}
+
+	@Test
+	public void testConnectFloodDefaultLimits() throws InterruptedException {
+		flood("flood, default in-flight cap");
+	}
+
+	@Test
+	public void testConnectFloodLargeCap() throws InterruptedException {
+		int oldCap = master.getGlobalConfig().getInt("net.swarm.maxPendingHandshakes");
+		master.getGlobalConfig().set("net.swarm.maxPendingHandshakes", FLOOD_CONNECTIONS);
+		try {
+			flood("flood, in-flight cap " + FLOOD_CONNECTIONS);
+		} finally {
+			master.getGlobalConfig().set("net.swarm.maxPendingHandshakes", oldCap);
+		}
+	}
+}
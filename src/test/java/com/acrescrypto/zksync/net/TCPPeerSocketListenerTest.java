@@ -10,6 +10,7 @@ import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.net.ConnectException;
 
@@ -130,6 +131,15 @@ public class TCPPeerSocketListenerTest {
 		assertTrue(closed.isTrue());
 	}
 	
+	protected void assertSocketClosedWithin(Socket socket, int timeoutMs) throws IOException {
+		socket.setSoTimeout(timeoutMs);
+		try {
+			assertEquals(-1, socket.getInputStream().read());
+		} catch(SocketTimeoutException exc) {
+			fail("socket still open after " + timeoutMs + "ms");
+		} catch(IOException exc) {}
+	}
+	
 	protected byte[] readData(Socket socket, int length) {
 		class Holder { boolean closed; }
 		Holder holder = new Holder();
@@ -172,7 +182,7 @@ public class TCPPeerSocketListenerTest {
 	
 	@After
 	public void afterEach() throws IOException {
-		Util.waitUntil(10, ()->listener.established);
+		Util.waitUntil(10, ()->swarm.opened != null);
 		if(swarm.opened != null) {
 			swarm.opened.close();
 		}
@@ -310,6 +320,39 @@ public class TCPPeerSocketListenerTest {
 		assertEquals(swarm, adListener.swarm);
 	}
 	
+	@Test
+	public void testFindMatchingAdvertisementUsesIdTag() throws ProtocolViolationException {
+		listener.advertise(swarm);
+		byte[] hsHash = crypto.rng(crypto.hashLength());
+		byte[] idHash = crypto.hash(Util.concat(hsHash, archive.getConfig().getArchiveId()));
+		int idTag = TCPPeerAdvertisementIndex.idTag(crypto, listener.getIdentityKey().publicKey().getBytes(), archive.getConfig().getArchiveId());
+		assertEquals(listener.listenerForSwarm(swarm), listener.findMatchingAdvertisement(hsHash, idHash, idTag));
+	}
+	
+	@Test
+	public void testFindMatchingAdvertisementScansAllListenersWithoutIdTag() throws ProtocolViolationException {
+		listener.advertise(swarm);
+		byte[] hsHash = crypto.rng(crypto.hashLength());
+		byte[] idHash = crypto.hash(Util.concat(hsHash, archive.getConfig().getArchiveId()));
+		assertEquals(listener.listenerForSwarm(swarm), listener.findMatchingAdvertisement(hsHash, idHash, TCPPeerAdvertisementIndex.ID_TAG_NONE));
+	}
+	
+	@Test(expected=ProtocolViolationException.class)
+	public void testFindMatchingAdvertisementRejectsMismatchedIdTag() throws ProtocolViolationException {
+		listener.advertise(swarm);
+		byte[] hsHash = crypto.rng(crypto.hashLength());
+		byte[] idHash = crypto.hash(Util.concat(hsHash, archive.getConfig().getArchiveId()));
+		int idTag = listener.listenerForSwarm(swarm).getIdTag() ^ 1;
+		listener.findMatchingAdvertisement(hsHash, idHash, idTag);
+	}
+	
+	@Test
+	public void testStopAdvertisingRemovesListener() {
+		listener.advertise(swarm);
+		listener.stopAdvertising(swarm);
+		assertNull(listener.listenerForSwarm(swarm));
+	}
+	
 	@Test
 	public void testDisconnectsBlacklistedPeers() throws IOException {
 		listener.advertise(swarm);
@@ -325,6 +368,57 @@ public class TCPPeerSocketListenerTest {
 		socket.close();
 	}
 	
+	@Test
+	public void testDisconnectsPeersBeyondPendingHandshakeLimit() throws IOException {
+		master.getGlobalConfig().set("net.swarm.maxPendingHandshakes", 1);
+		listener.advertise(swarm);
+		Socket stalled = connect();
+		assertTrue(Util.waitUntil(100, ()->listener.getAdmission().inFlight() == 1));
+		Socket socket = connect();
+		assertSocketClosed(socket, true);
+		stalled.close();
+	}
+	
+	@Test
+	public void testDisconnectsPeersBeyondPerAddressHandshakeLimit() throws IOException {
+		master.getGlobalConfig().set("net.swarm.maxHandshakesPerAddress", 1);
+		listener.advertise(swarm);
+		Socket stalled = connect();
+		assertTrue(Util.waitUntil(100, ()->listener.getAdmission().inFlight("127.0.0.1") == 1));
+		Socket socket = connect();
+		assertSocketClosed(socket, true);
+		stalled.close();
+	}
+	
+	@Test
+	public void testDisconnectsPeersExceedingHandshakeAttemptRate() throws IOException {
+		master.getGlobalConfig().set("net.swarm.handshakeAttemptsPerAddressPerSecond", 1);
+		listener.advertise(swarm);
+		Socket first = connect();
+		Socket socket = connect();
+		assertSocketClosed(socket, true);
+		first.close();
+	}
+	
+	@Test
+	public void testDisconnectsStalledHandshakesAtDeadline() throws IOException {
+		listener.advertise(swarm);
+		Socket socket = connect();
+		assertSocketClosedWithin(socket, TCPPeerSocket.maxHandshakeTimeMillis + 100);
+		assertTrue(Util.waitUntil(100, ()->listener.getAdmission().inFlight() == 0));
+	}
+	
+	@Test
+	public void testHandshakeDeadlineAppliesAfterOtherPeersEstablish() throws IOException, UnconnectableAdvertisementException, UnsupportedProtocolException, ProtocolViolationException, BlacklistedException {
+		TCPPeerSocket peerSocket = peerSocket();
+		HandshakeState handshake = peerSocket.setupHandshakeState();
+		handshake.handshake(peerSocket.in, peerSocket.out);
+		assertTrue(Util.waitUntil(100, ()->swarm.opened != null));
+		
+		Socket socket = connect();
+		assertSocketClosedWithin(socket, TCPPeerSocket.maxHandshakeTimeMillis + 100);
+	}
+	
 	// TODO: unrecognized archive ID
 
 	@Test
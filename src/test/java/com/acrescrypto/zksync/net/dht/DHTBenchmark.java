@@ -0,0 +1,140 @@
+package com.acrescrypto.zksync.net.dht;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.crypto.Key;
+import com.acrescrypto.zksync.crypto.PublicDHKey;
+import com.acrescrypto.zksync.fs.ramfs.RAMFS;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigDefaults;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
+
+/** Measures DHT message encoding on a single core. The "cold" variants alternate between two peers with a
+ * one-entry static secret cache, so every message pays for the static-static X25519 and HKDF as it did before
+ * the cache existed. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class DHTBenchmark {
+	static class DummyMaster extends ZKMaster {
+		public DummyMaster() throws IOException {
+			this.storage      = new RAMFS();
+			this.globalConfig = new ConfigFile(storage, "config.json");
+			globalConfig.apply(ConfigDefaults.getActiveDefaults());
+		}
+	}
+
+	static class DummyClient extends DHTClient {
+		protected DummyClient() throws IOException {
+			this.master          = new DummyMaster();
+			this.crypto          = CryptoSupport.defaultCrypto();
+			this.privateKey      = this.crypto.makePrivateDHKey();
+			this.tagKey          = new Key(crypto);
+			this.networkId       = new byte[crypto.hashLength()];
+
+			this.routingTable    = new DummyRoutingTable(this);
+			this.protocolManager = new DHTProtocolManager(this);
+		}
+	}
+
+	static class DummyRoutingTable extends DHTRoutingTable {
+		public DummyRoutingTable(DummyClient client) {
+			this.client = client;
+		}
+
+		@Override public DHTPeer peerForMessage(String address, int port, PublicDHKey pubKey) throws UnknownHostException {
+			return new DHTPeer(client, address, port, pubKey.getBytes());
+		}
+
+		@Override public void verifiedPeer(DHTPeer peer) {}
+	}
+
+	static DummyClient[] senders, receivers;
+	static DHTPeer[][] peers; // peers[i][j] is receivers[j] as seen by senders[i]
+	static byte[] payload;
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		senders   = new DummyClient[] { new DummyClient(), new DummyClient() };
+		receivers = new DummyClient[] { new DummyClient(), new DummyClient() };
+		peers     = new DHTPeer[senders.length][receivers.length];
+
+		for(int i = 0; i < senders.length; i++) {
+			for(int j = 0; j < receivers.length; j++) {
+				peers[i][j] = new DHTPeer(senders[i], "127.0.0.1", 1000+j, receivers[j].getPublicKey());
+			}
+		}
+
+		payload = senders[0].crypto.rng(64);
+		Benchmarks.beginBenchmarkSuite("DHT");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	@Before
+	public void beforeEach() throws IOException {
+		setCacheSize(senders[0].getMaster().getGlobalConfig().getInt("net.dht.staticSecretCacheSize"));
+	}
+
+	void setCacheSize(int size) throws IOException {
+		for(DummyClient client : senders)   client.staticSecretCache().setCapacity(size);
+		for(DummyClient client : receivers) client.staticSecretCache().setCapacity(size);
+	}
+
+	byte[] serialize(DHTPeer peer) {
+		DHTMessage msg = new DHTMessage(peer, DHTMessage.CMD_PING, payload, null);
+		return msg.serialize(1, ByteBuffer.wrap(payload));
+	}
+
+	void roundTrip(int iteration) throws Exception {
+		int senderIdx = iteration % 2, receiverIdx = (iteration/2) % 2;
+		byte[] serialized = serialize(peers[senderIdx][receiverIdx]);
+		new DHTMessage(receivers[receiverIdx], "127.0.0.1", 2000+senderIdx, ByteBuffer.wrap(serialized));
+	}
+
+	@Test
+	public void testSerializeColdCache() throws IOException {
+		setCacheSize(1);
+		Benchmarks.run("messages", (i)->serialize(peers[0][i % 2]));
+	}
+
+	@Test
+	public void testSerializeWarmCache() {
+		Benchmarks.run("messages", (i)->serialize(peers[0][i % 2]));
+	}
+
+	@Test
+	public void testRoundTripColdCache() throws IOException {
+		setCacheSize(1);
+		Benchmarks.run("messages", (i)->roundTrip(i));
+	}
+
+	@Test
+	public void testRoundTripWarmCache() {
+		Benchmarks.run("messages", (i)->roundTrip(i));
+	}
+
+	@Test
+	public void testStaticSharedSecretUncached() {
+		PublicDHKey key = receivers[0].getPublicKey();
+		Benchmarks.run("secrets", (i)->senders[0].getPrivateKey().sharedSecret(key));
+	}
+
+	@Test
+	public void testStaticSharedSecretCached() {
+		PublicDHKey key = receivers[0].getPublicKey();
+		Benchmarks.run("secrets", (i)->senders[0].staticSharedSecret(key));
+	}
+}
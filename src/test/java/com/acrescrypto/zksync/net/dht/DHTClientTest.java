@@ -515,6 +515,51 @@ public class DHTClientTest {
 		assertTrue("Bind address should be wildcard: " + addr, matchesWildcard);
 	}
 	
+	@Test
+	public void testListenBindsExtraSocketsToSamePortIfConfigured() throws SocketException {
+		client.getMaster().getGlobalConfig().set("net.dht.numSockets", 3);
+		client.listen("127.0.0.1", 0);
+		
+		DHTSocketManager socketManager = client.getSocketManager();
+		assertEquals(2, socketManager.extraSockets.size());
+		for(DatagramSocket skt : socketManager.extraSockets) {
+			assertEquals(socketManager.socket.getLocalPort(), skt.getLocalPort());
+		}
+		
+		assertTrue(Util.waitUntil(100, ()->socketManager.extraSocketListenerThreads.size() == 2));
+		for(Thread thread : socketManager.extraSocketListenerThreads) {
+			assertTrue(thread.isAlive());
+		}
+	}
+	
+	@Test
+	public void testPauseClosesExtraSockets() throws SocketException {
+		client.getMaster().getGlobalConfig().set("net.dht.numSockets", 2);
+		client.listen("127.0.0.1", 0);
+		DatagramSocket extra = client.getSocketManager().extraSockets.get(0);
+		
+		client.getSocketManager().pause();
+		assertTrue(extra.isClosed());
+		assertTrue(client.getSocketManager().extraSockets.isEmpty());
+	}
+	
+	@Test
+	public void testReceivedDatagramsAreProcessedOnProcessor() throws ProtocolViolationException {
+		DHTPeer peerFromTable = client.routingTable.allPeers().iterator().next();
+		peerFromTable.ping();
+		remote.receivePacket(DHTMessage.CMD_PING).makeResponse(new ArrayList<>(0)).send();
+		
+		DHTDatagramProcessor processor = client.getSocketManager().getProcessor();
+		assertTrue(Util.waitUntil(100, ()->processor.getNumProcessed() == 1));
+	}
+	
+	@Test
+	public void testPauseClosesProcessor() {
+		DHTDatagramProcessor processor = client.getSocketManager().getProcessor();
+		client.getSocketManager().pause();
+		assertTrue(processor.isClosed());
+	}
+	
 	@Test(expected=SocketException.class)
 	public void testListenThrowsExceptionIfPortInUse() throws SocketException {
 		client.getMaster().getGlobalConfig().set("net.dht.port", remote.socket.getLocalPort());
@@ -1632,4 +1677,38 @@ public class DHTClientTest {
 			}
 		}
 	}
+	
+	@Test
+	public void testStaticSharedSecretMatchesPrivateKeySharedSecret() {
+		PublicDHKey remoteKey = crypto.makePrivateDHKey().publicKey();
+		byte[] expected = client.getPrivateKey().sharedSecret(remoteKey);
+		assertArrayEquals(expected, client.staticSharedSecret(remoteKey));
+		assertArrayEquals(expected, client.staticSharedSecret(remoteKey));
+	}
+	
+	@Test
+	public void testStaticSharedSecretReturnsCopyOfCachedValue() {
+		PublicDHKey remoteKey = crypto.makePrivateDHKey().publicKey();
+		byte[] expected = client.getPrivateKey().sharedSecret(remoteKey);
+		Util.zero(client.staticSharedSecret(remoteKey));
+		assertArrayEquals(expected, client.staticSharedSecret(remoteKey));
+	}
+	
+	@Test
+	public void testStaticSharedSecretRecalculatesWhenPrivateKeyChanges() {
+		PublicDHKey remoteKey = crypto.makePrivateDHKey().publicKey();
+		client.staticSharedSecret(remoteKey);
+		client.setPrivateKey(crypto.makePrivateDHKey());
+		assertArrayEquals(client.getPrivateKey().sharedSecret(remoteKey), client.staticSharedSecret(remoteKey));
+	}
+	
+	@Test
+	public void testStaticSecretCacheHonorsConfiguredCapacity() {
+		master.getGlobalConfig().set("net.dht.staticSecretCacheSize", 4);
+		for(int i = 0; i < 8; i++) {
+			client.staticSharedSecret(crypto.makePrivateDHKey().publicKey());
+		}
+		
+		assertEquals(4, client.staticSecretCache().cachedSize());
+	}
 }
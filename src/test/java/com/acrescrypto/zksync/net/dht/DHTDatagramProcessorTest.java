@@ -0,0 +1,200 @@
+package com.acrescrypto.zksync.net.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.fs.ramfs.RAMFS;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigDefaults;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
+import com.acrescrypto.zksync.utility.Util;
+
+public class DHTDatagramProcessorTest {
+	class DummyMaster extends ZKMaster {
+		public DummyMaster() throws IOException {
+			this.storage      = new RAMFS();
+			this.globalConfig = new ConfigFile(storage, "config.json");
+			globalConfig.apply(ConfigDefaults.getActiveDefaults());
+			globalConfig.set("net.dht.processingThreads", 2);
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	class DummyClient extends DHTClient {
+		public DummyClient() throws IOException {
+			this.master          = new DummyMaster();
+			this.threadGroup     = new ThreadGroup(Thread.currentThread().getThreadGroup(), "DummyClient");
+			this.protocolManager = new DummyProtocolManager(this);
+		}
+	}
+
+	/** Records what it processes. Datagrams whose first byte is 1 block until the gate opens. */
+	class DummyProtocolManager extends DHTProtocolManager {
+		List<String> processed = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch gate = new CountDownLatch(1);
+
+		public DummyProtocolManager(DummyClient client) {
+			this.client = client;
+		}
+
+		@Override
+		protected void processMessage(String senderAddress, int senderPort, ByteBuffer data) {
+			if(data.get(0) == 1) {
+				try {
+					gate.await(1000, TimeUnit.MILLISECONDS);
+				} catch(InterruptedException exc) {}
+			}
+
+			processed.add(senderAddress + ":" + senderPort + ":" + data.get(1));
+		}
+	}
+
+	DummyClient client;
+	DummyProtocolManager protocolManager;
+	DHTDatagramProcessor processor;
+
+	ByteBuffer datagram(int seq) {
+		return datagram(false, seq);
+	}
+
+	ByteBuffer datagram(boolean blocking, int seq) {
+		return ByteBuffer.wrap(new byte[] { (byte) (blocking ? 1 : 0), (byte) seq });
+	}
+
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.assertTidy();
+		TestUtils.stopDebugMode();
+	}
+
+	@Before
+	public void beforeEach() throws IOException {
+		client          = new DummyClient();
+		protocolManager = (DummyProtocolManager) client.getProtocolManager();
+		processor       = new DHTDatagramProcessor(client);
+	}
+
+	@After
+	public void afterEach() {
+		protocolManager.gate.countDown();
+		processor.close();
+	}
+
+	@Test
+	public void testProcessesSubmittedDatagrams() {
+		assertTrue(processor.submit("10.0.0.1", 1000, datagram(0)));
+		assertTrue(Util.waitUntil(100, ()->protocolManager.processed.contains("10.0.0.1:1000:0")));
+		assertTrue(Util.waitUntil(100, ()->processor.getNumProcessed() == 1));
+	}
+
+	@Test
+	public void testPreservesOrderForEachSender() {
+		int count = 100;
+		for(int i = 0; i < count; i++) {
+			processor.submit("10.0.0.1", 1000, datagram(i));
+		}
+
+		assertTrue(Util.waitUntil(1000, ()->protocolManager.processed.size() == count));
+		for(int i = 0; i < count; i++) {
+			assertEquals("10.0.0.1:1000:" + i, protocolManager.processed.get(i));
+		}
+	}
+
+	@Test
+	public void testTreatsPortsAsDistinctSenders() {
+		processor.submit("10.0.0.1", 1000, datagram(true, 0));
+		processor.submit("10.0.0.1", 1001, datagram(1));
+		assertTrue(Util.waitUntil(100, ()->protocolManager.processed.contains("10.0.0.1:1001:1")));
+	}
+
+	@Test
+	public void testProcessesOtherSendersWhileOneIsBusy() {
+		processor.submit("10.0.0.1", 1000, datagram(true, 0));
+		processor.submit("10.0.0.1", 1000, datagram(1));
+		processor.submit("10.0.0.2", 1000, datagram(2));
+
+		assertTrue(Util.waitUntil(100, ()->protocolManager.processed.contains("10.0.0.2:1000:2")));
+		assertFalse(protocolManager.processed.contains("10.0.0.1:1000:1"));
+
+		protocolManager.gate.countDown();
+		assertTrue(Util.waitUntil(100, ()->protocolManager.processed.size() == 3));
+		assertEquals("10.0.0.1:1000:0", protocolManager.processed.get(1));
+		assertEquals("10.0.0.1:1000:1", protocolManager.processed.get(2));
+	}
+
+	@Test
+	public void testDoesNotProcessOneSenderOnTwoWorkersAtOnce() {
+		// with two workers, the second datagram would jump ahead of the first if a worker could pick it up
+		processor.submit("10.0.0.1", 1000, datagram(true, 0));
+		assertTrue(Util.waitUntil(100, ()->processor.queued() == 0));
+		processor.submit("10.0.0.1", 1000, datagram(1));
+		assertFalse(Util.waitUntil(50, ()->protocolManager.processed.size() > 0));
+
+		protocolManager.gate.countDown();
+		assertTrue(Util.waitUntil(100, ()->protocolManager.processed.size() == 2));
+		assertEquals("10.0.0.1:1000:0", protocolManager.processed.get(0));
+	}
+
+	@Test
+	public void testTakesDatagramsInBatches() {
+		int batchSize = client.getMaster().getGlobalConfig().getInt("net.dht.processingBatchSize");
+		processor.submit("10.0.0.1", 1000, datagram(true, 0));
+		assertTrue(Util.waitUntil(100, ()->processor.queued() == 0));
+		for(int i = 1; i <= 2*batchSize; i++) {
+			processor.submit("10.0.0.1", 1000, datagram(i));
+		}
+
+		protocolManager.gate.countDown();
+		assertTrue(Util.waitUntil(1000, ()->protocolManager.processed.size() == 2*batchSize+1));
+		assertEquals(3, processor.getNumBatches());
+	}
+
+	@Test
+	public void testDropsDatagramsWhenQueueIsFull() {
+		client.getMaster().getGlobalConfig().set("net.dht.processingQueueSize", 4);
+		processor.submit("10.0.0.1", 1000, datagram(true, 0));
+		assertTrue(Util.waitUntil(100, ()->processor.queued() == 0));
+
+		for(int i = 1; i <= 4; i++) {
+			assertTrue(processor.submit("10.0.0.1", 1000, datagram(i)));
+		}
+
+		assertFalse(processor.submit("10.0.0.1", 1000, datagram(5)));
+		assertEquals(1, processor.getNumDropped());
+
+		protocolManager.gate.countDown();
+		assertTrue(Util.waitUntil(100, ()->protocolManager.processed.size() == 5));
+		assertFalse(protocolManager.processed.contains("10.0.0.1:1000:5"));
+	}
+
+	@Test
+	public void testRefusesDatagramsAfterClose() {
+		processor.close();
+		assertFalse(processor.submit("10.0.0.1", 1000, datagram(0)));
+		assertTrue(processor.isClosed());
+		assertEquals(1, processor.getNumDropped());
+	}
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.math.BigInteger;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -87,4 +88,75 @@ public class DHTIDTest {
 			assertTrue(low .compareTo(low)  == 0);
 		}
 	}
+	
+	@Test
+	public void testCompareDistancesMatchesXor() {
+		for(int i = 0; i < 1000; i++) {
+			DHTID target = DHTID.withBytes(crypto.rng(32)),
+			      a      = DHTID.withBytes(crypto.rng(32)),
+			      b      = DHTID.withBytes(crypto.rng(32));
+			int   expected = Integer.signum(a.xor(target).compareTo(b.xor(target)));
+			assertEquals(expected, Integer.signum(target.compareDistances(a, b)));
+			assertEquals(expected, Integer.signum(target.compareDistanceTo(a, b.xor(target))));
+		}
+	}
+	
+	@Test
+	public void testCompareDistancesReturnsZeroForSameId() {
+		DHTID target = DHTID.withBytes(crypto.rng(32)),
+		      a      = DHTID.withBytes(crypto.rng(32));
+		assertEquals(0, target.compareDistances(a, DHTID.withBytes(a.serialize())));
+		assertEquals(0, target.compareDistanceTo(a, a.xor(target)));
+	}
+	
+	@Test
+	public void testCompareDistancesIgnoresLowBits() {
+		DHTID target = DHTID.withBytes(Util.hexToBytes("00000000000000000000")),
+		      a      = DHTID.withBytes(Util.hexToBytes("0100000000000000000f")),
+		      b      = DHTID.withBytes(Util.hexToBytes("01000000000000000001"));
+		assertTrue (target.compareDistances(a,  0, b,  0) >  0);
+		assertEquals(0, target.compareDistances(a,  4, b,  4));
+		assertTrue (target.compareDistances(a,  4, b,  0) <  0);
+		assertEquals(0, target.compareDistances(a, 73, b, 73));
+		assertEquals(0, target.compareDistances(a, Integer.MAX_VALUE, target, 0));
+	}
+	
+	@Test
+	public void testCompareDistancesHandlesDifferingLengths() {
+		DHTID target = DHTID.withBytes(Util.hexToBytes("0000000000000000000000000000000000")),
+		      near   = DHTID.withBytes(Util.hexToBytes("01")),
+		      far    = DHTID.withBytes(Util.hexToBytes("ff00000000000000000000000000000000"));
+		assertTrue (target.compareDistances(near, far)  < 0);
+		assertTrue (near  .compareDistances(target, far) < 0);
+		assertEquals(0, target.compareDistances(near, DHTID.withBytes(Util.hexToBytes("000001"))));
+		assertTrue (target.compareDistanceTo(far, near) > 0);
+		assertEquals(0, near.compareDistanceTo(target, near));
+	}
+	
+	@Test
+	public void testMaxExceedsEveryId() {
+		for(int len = 1; len <= 64; len++) {
+			byte[] allOnes = new byte[len];
+			for(int i = 0; i < len; i++) allOnes[i] = (byte) 0xff;
+			
+			DHTID max = DHTID.max(len);
+			assertTrue(max.compareTo(DHTID.withBytes(allOnes)) > 0);
+			assertEquals(BigInteger.valueOf(2).pow(8*len), max.id());
+		}
+	}
+	
+	@Test
+	public void testBigIntegerRoundTrip() {
+		for(int len = 1; len <= 64; len++) {
+			DHTID id = DHTID.withBytes(crypto.rng(len));
+			assertEquals(id, new DHTID(id.id(), len));
+			assertArrayEquals(id.serialize(), new DHTID(id.id(), len).serialize());
+		}
+	}
+	
+	@Test
+	public void testEqualIdsHaveEqualHashCodes() {
+		byte[] raw = crypto.rng(32);
+		assertEquals(DHTID.withBytes(raw).hashCode(), DHTID.withBytes(raw.clone()).hashCode());
+	}
 }
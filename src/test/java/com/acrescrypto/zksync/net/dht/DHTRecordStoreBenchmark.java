@@ -0,0 +1,170 @@
+package com.acrescrypto.zksync.net.dht;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.crypto.Key;
+import com.acrescrypto.zksync.exceptions.UnsupportedProtocolException;
+import com.acrescrypto.zksync.fs.FS;
+import com.acrescrypto.zksync.fs.localfs.LocalFS;
+import com.acrescrypto.zksync.fs.ramfs.RAMFS;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigDefaults;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
+
+/** Loads a record store on disk with a million records, then times reading it back in, first from the log the
+ * inserts left behind and then from a compacted snapshot. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class DHTRecordStoreBenchmark {
+	public final static int NUM_RECORDS     = 1000*1000;
+	public final static int RECORDS_PER_ID  = 4;
+	public final static int RECORD_SIZE     = 64;
+
+	static class DummyMaster extends ZKMaster {
+		public DummyMaster() throws IOException {
+			this.storage      = new RAMFS();
+			this.globalConfig = new ConfigFile(storage, "config.json");
+			globalConfig.apply(ConfigDefaults.getActiveDefaults());
+			globalConfig.set("net.dht.store.maxIds",          NUM_RECORDS/RECORDS_PER_ID);
+			globalConfig.set("net.dht.store.maxRecordsPerId", RECORDS_PER_ID);
+		}
+	}
+
+	static class DummyClient extends DHTClient {
+		LocalFS storage;
+
+		protected DummyClient() throws IOException {
+			this.master          = new DummyMaster();
+			this.crypto          = CryptoSupport.defaultCrypto();
+			this.storageKey      = new Key(crypto);
+			this.storage         = new LocalFS("/tmp/zksync-benchmark/dhtrecordstore");
+			this.protocolManager = new DummyProtocolManager(this);
+
+			if(storage.exists("/")) storage.purge();
+			storage.mkdirp("/");
+		}
+
+		@Override
+		protected FS getStorage() { return storage; }
+	}
+
+	static class DummyProtocolManager extends DHTProtocolManager {
+		public DummyProtocolManager(DummyClient client) {
+			this.client = client;
+		}
+
+		@Override
+		protected DHTRecord deserializeRecord(DHTPeer peer, ByteBuffer serialized) throws UnsupportedProtocolException {
+			return new DummyRecord(serialized);
+		}
+	}
+
+	static class DummyRecord extends DHTRecord {
+		byte[] contents;
+
+		public DummyRecord(int i) {
+			contents = ByteBuffer.allocate(RECORD_SIZE).putInt(i).array();
+		}
+
+		public DummyRecord(ByteBuffer serialized) {
+			deserialize(serialized);
+		}
+
+		@Override
+		public byte[] serialize() {
+			return ByteBuffer.allocate(2+contents.length)
+					.putShort((short) contents.length)
+					.put(contents)
+					.array();
+		}
+
+		@Override
+		public void deserialize(ByteBuffer serialized) {
+			contents = new byte[serialized.getShort()];
+			serialized.get(contents);
+		}
+
+		@Override public boolean isValid() { return true; }
+		@Override public boolean isReachable() { return true; }
+		@Override public String routingInfo() { return ""; }
+		@Override public boolean equals(Object o) { return Arrays.equals(contents, ((DummyRecord) o).contents); }
+		@Override public int hashCode() { return Arrays.hashCode(contents); }
+	}
+
+	static DummyClient client;
+	static byte[] token;
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		client = new DummyClient();
+		token  = client.crypto.hash(new byte[1]);
+		Benchmarks.beginBenchmarkSuite("DHT record store");
+	}
+
+	@AfterClass
+	public static void afterAll() throws IOException {
+		client.storage.purge();
+		client.storage.close();
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	static DHTID idForRecord(int i) {
+		return DHTID.withBytes(client.crypto.hash(ByteBuffer.allocate(4).putInt(i/RECORDS_PER_ID).array()));
+	}
+
+	void output(String name, String unit, int count, long startNs) {
+		long elapsedNs = System.nanoTime() - startNs;
+		Benchmarks.output(String.format("\t%50s: %.01f %s/s (%d %s in %d ms)",
+				name,
+				count / (elapsedNs / 1e9),
+				unit,
+				count,
+				unit,
+				elapsedNs/(1000*1000)));
+	}
+
+	DHTRecordStore recover(String name) {
+		long startNs = System.nanoTime();
+		DHTRecordStore store = new DHTRecordStore(client);
+		output(name, "records", store.numRecords(), startNs);
+		assertEquals(NUM_RECORDS, store.numRecords());
+		return store;
+	}
+
+	@Test
+	public void testInsertRecords() throws IOException {
+		DHTRecordStore store = new DHTRecordStore(client);
+		long startNs = System.nanoTime();
+		for(int i = 0; i < NUM_RECORDS; i++) {
+			store.addRecordIfReachable(idForRecord(i), token, new DummyRecord(i));
+		}
+
+		output("testInsertRecords", "records", NUM_RECORDS, startNs);
+		assertEquals(NUM_RECORDS, store.numRecords());
+	}
+
+	@Test
+	public void testRecoverFromLog() {
+		recover("testRecoverFromLog");
+	}
+
+	@Test
+	public void testRecoverFromSnapshot() throws IOException {
+		DHTRecordStore store = new DHTRecordStore(client);
+		long startNs = System.nanoTime();
+		store.compact();
+		output("compact", "records", store.numRecords(), startNs);
+		recover("testRecoverFromSnapshot");
+	}
+}
@@ -177,7 +177,7 @@ public class DHTRecordStoreTest {
 			store.addRecordForId(id, token, record);
 		}
 		
-		assertTrue(Util.waitUntil(50, ()->store.entriesById.size() == maxIds()));
+		assertTrue(Util.waitUntil(50, ()->store.numIds() == maxIds()));
 		
 		DHTID id = makeId();
 		store.addRecordForId(id, token, new DummyRecord(maxIds()));
@@ -399,8 +399,9 @@ public class DHTRecordStoreTest {
 		DHTID id = makeId();
 		byte[] token = client.crypto.hash(new byte[1]);
 	
-		store.addRecordForId(id, token, new DummyRecord(0));
-		assertTrue(Util.waitUntil(100, ()->client.storage.exists(store.path())));
+		store.addRecordForIdBlocking(id, token, new DummyRecord(0));
+		store.compact();
+		assertTrue(client.storage.exists(store.path()));
 
 		byte[] data = client.storage.read(store.path());
 		data[9] ^= 0x20;
@@ -410,6 +411,123 @@ public class DHTRecordStoreTest {
 		assertEquals(0, store1.recordsForId(id, token).size());
 	}
 	
+	@Test
+	public void testInitWithCorruptedLog() throws IOException {
+		DHTID id = makeId();
+		byte[] token = client.crypto.hash(new byte[1]);
+	
+		store.addRecordForIdBlocking(id, token, new DummyRecord(0));
+
+		byte[] data = client.storage.read(store.logPath());
+		data[9] ^= 0x20;
+		client.storage.write(store.logPath(), data);
+		
+		DHTRecordStore store1 = new DHTRecordStore(client);
+		assertEquals(0, store1.recordsForId(id, token).size());
+	}
+	
+	@Test
+	public void testAddingRecordsAppendsToLogWithoutRewritingSnapshot() throws IOException {
+		byte[] token = client.crypto.hash(new byte[1]);
+		store.addRecordForIdBlocking(makeId(), token, new DummyRecord(0));
+		long logSize = client.storage.stat(store.logPath()).getSize();
+		
+		store.addRecordForIdBlocking(makeId(), token, new DummyRecord(1));
+		assertEquals(2*logSize, client.storage.stat(store.logPath()).getSize());
+		assertFalse(client.storage.exists(store.path()));
+	}
+	
+	@Test
+	public void testInitReplaysLogOnTopOfSnapshot() throws IOException {
+		DHTID id = makeId();
+		byte[] token = client.crypto.hash(new byte[1]);
+		store.addRecordForIdBlocking(id, token, new DummyRecord(0));
+		store.compact();
+		assertFalse(client.storage.exists(store.logPath()));
+		store.addRecordForIdBlocking(id, token, new DummyRecord(1));
+		
+		DHTRecordStore store1 = new DHTRecordStore(client);
+		assertEquals(2, store1.recordsForId(id, token).size());
+		assertTrue(store1.recordsForId(id, token).contains(new DummyRecord(0)));
+		assertTrue(store1.recordsForId(id, token).contains(new DummyRecord(1)));
+	}
+	
+	@Test
+	public void testInitKeepsLogEntriesBeforeTornAppend() throws IOException {
+		DHTID id = makeId();
+		byte[] token = client.crypto.hash(new byte[1]);
+		store.addRecordForIdBlocking(id, token, new DummyRecord(0));
+		store.addRecordForIdBlocking(id, token, new DummyRecord(1));
+		
+		byte[] data = client.storage.read(store.logPath());
+		client.storage.write(store.logPath(), Arrays.copyOf(data, data.length-1));
+		
+		DHTRecordStore store1 = new DHTRecordStore(client);
+		assertEquals(1, store1.recordsForId(id, token).size());
+		assertTrue(store1.recordsForId(id, token).contains(new DummyRecord(0)));
+		assertFalse(client.storage.exists(store.logPath())); // compacted away the damage
+		assertEquals(1, new DHTRecordStore(client).recordsForId(id, token).size());
+	}
+	
+	@Test
+	public void testLogIsCompactedOnceMostlyStale() throws IOException {
+		byte[] token = client.crypto.hash(new byte[1]);
+		Util.setCurrentTimeNanos(0);
+		store.addRecordForIdBlocking(makeId(), token, new DummyRecord(0));
+		Util.setCurrentTimeNanos(1000l*1000l*expirationTimeMs());
+		store.prune();
+		assertEquals(0, store.numRecords());
+		
+		store.logEntries = DHTRecordStore.COMPACTION_SLACK + 1; // one live record, plus the slack's worth of stale ones
+		DHTID id = makeId();
+		store.addRecordForIdBlocking(id, token, new DummyRecord(1));
+		assertFalse(client.storage.exists(store.logPath()));
+		assertTrue(client.storage.exists(store.path()));
+		
+		DHTRecordStore store1 = new DHTRecordStore(client);
+		assertEquals(1, store1.numRecords());
+		assertTrue(store1.recordsForId(id, token).contains(new DummyRecord(1)));
+	}
+	
+	@Test
+	public void testPruningUpdatesCounts() throws IOException {
+		byte[] token = client.crypto.hash(new byte[1]);
+		DHTID id = makeId();
+		Util.setCurrentTimeNanos(0);
+		store.addRecordForIdBlocking(id, token, new DummyRecord(0));
+		Util.setCurrentTimeNanos(1000l*1000l*expirationTimeMs()/2);
+		store.addRecordForIdBlocking(id, token, new DummyRecord(1));
+		store.addRecordForIdBlocking(makeId(), token, new DummyRecord(2));
+		assertEquals(2, store.numIds());
+		assertEquals(3, store.numRecords());
+		
+		Util.setCurrentTimeNanos(1000l*1000l*expirationTimeMs());
+		store.prune();
+		assertEquals(2, store.numIds());
+		assertEquals(2, store.numRecords());
+		
+		Util.setCurrentTimeNanos(2*1000l*1000l*expirationTimeMs());
+		store.prune();
+		assertEquals(0, store.numIds());
+		assertEquals(0, store.numRecords());
+	}
+	
+	@Test
+	public void testFullStoreAcceptsNewIdOnceExpiredEntriesArePruned() throws IOException {
+		byte[] token = client.crypto.hash(new byte[1]);
+		Util.setCurrentTimeNanos(0);
+		for(int i = 0; i < maxIds(); i++) {
+			store.addRecordForIdBlocking(makeId(), token, new DummyRecord(i));
+		}
+		
+		assertEquals(maxIds(), store.numIds());
+		Util.setCurrentTimeNanos(1000l*1000l*expirationTimeMs());
+		DHTID id = makeId();
+		store.addRecordForIdBlocking(id, token, new DummyRecord(maxIds()));
+		assertEquals(1, store.numIds());
+		assertEquals(1, store.recordsForId(id, token).size());
+	}
+	
 	@Test
 	public void testResetClearsRecords() throws IOException {
 		DHTID id = makeId();
@@ -420,4 +538,14 @@ public class DHTRecordStoreTest {
 		assertEquals(0, store.numRecords());
 		assertEquals(0, store.numIds());
 	}
+	
+	@Test
+	public void testResetIsPersisted() throws IOException {
+		DHTID id = makeId();
+		byte[] token = client.crypto.hash(new byte[1]);
+		store.addRecordForIdBlocking(id, token, new DummyRecord(0));
+		store.reset();
+		
+		assertEquals(0, new DHTRecordStore(client).numRecords());
+	}
 }
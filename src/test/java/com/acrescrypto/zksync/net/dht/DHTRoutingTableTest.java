@@ -320,6 +320,30 @@ public class DHTRoutingTableTest {
 		}
 	}
 	
+	@Test
+	public void testClosestPeersMatchesExhaustiveSearch() {
+		for(int i = 0; i < 1000; i++) {
+			table.suggestPeer(makeTestPeer(i));
+		}
+		
+		int numPeers = client.getMaster().getGlobalConfig().getInt("net.dht.maxResults");
+		for(int i = 0; i < 64; i++) {
+			// alternate between random targets and targets right next to our own ID, where buckets are finest
+			byte[] idBytes = client.crypto.rng(client.idLength());
+			if(i % 2 == 1) {
+				idBytes = client.getId().serialize();
+				idBytes[idBytes.length-1] ^= i;
+			}
+			
+			DHTID id = DHTID.withBytes(idBytes);
+			ArrayList<DHTPeer> expected = new ArrayList<>(table.allPeers());
+			expected.sort((a,b)->id.compareDistances(a.id, b.id));
+			
+			ArrayList<DHTPeer> closest = new ArrayList<>(table.closestPeers(id, numPeers));
+			assertEquals(expected.subList(0, numPeers), closest);
+		}
+	}
+	
 	@Test
 	public void testClosestPeersReturnsEmptyListIfTableEmpty() {
 		DHTID id = DHTID.withBytes(client.crypto.rng(client.idLength()));
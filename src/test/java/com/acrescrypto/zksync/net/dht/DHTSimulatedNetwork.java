@@ -0,0 +1,272 @@
+package com.acrescrypto.zksync.net.dht;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.crypto.Key;
+import com.acrescrypto.zksync.exceptions.InvalidBlacklistException;
+import com.acrescrypto.zksync.fs.ramfs.RAMFS;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigDefaults;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
+import com.acrescrypto.zksync.net.Blacklist;
+
+/** In-memory datagram network hosting many DHTClients in one JVM. Each client gets a SimulatedTransport with a
+ * 10.x.y.z address; datagrams are delivered on a small shared scheduler after a configurable latency, and may be
+ * dropped at random (lossRate) or filtered because the recipient is behind a simulated NAT (natRate). A NATed
+ * client only accepts datagrams from endpoints it has itself sent to, so it can make requests but is unreachable
+ * to peers that learn of it second-hand. */
+public class DHTSimulatedNetwork {
+	class SimulatedMaster extends ZKMaster {
+		public SimulatedMaster() throws IOException, InvalidBlacklistException {
+			super();
+			this.crypto       = CryptoSupport.defaultCrypto();
+			this.threadGroup  = DHTSimulatedNetwork.this.threadGroup;
+			this.storage      = new RAMFS();
+			this.blacklist    = new Blacklist(storage, "blacklist", new Key(crypto));
+			this.globalConfig = new ConfigFile(storage, "config.json");
+			globalConfig.apply(config);
+			setupBandwidth();
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	class SimulatedTransport implements DHTTransport {
+		String           address;
+		int              port;
+		boolean          behindNat;
+		DatagramReceiver receiver;
+		Set<String>      contacted = ConcurrentHashMap.newKeySet(); // endpoints we have sent to; NAT lets replies from these in
+
+		SimulatedTransport(String address, boolean behindNat) {
+			this.address   = address;
+			this.behindNat = behindNat;
+		}
+
+		@Override
+		public void open(String bindAddress, int bindPort, DatagramReceiver receiver) throws SocketException {
+			this.port     = bindPort == 0 ? SIMULATED_PORT : bindPort;
+			this.receiver = receiver;
+			endpoints.put(endpoint(address, port), this);
+		}
+
+		@Override
+		public void send(DatagramPacket packet) {
+			route(this, packet);
+		}
+
+		@Override
+		public void close() {
+			endpoints.remove(endpoint(address, port), this);
+			receiver = null;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return receiver != null;
+		}
+
+		@Override
+		public String getAddress() {
+			return address;
+		}
+
+		@Override
+		public int getPort() {
+			return port;
+		}
+
+		boolean accepts(String senderEndpoint) {
+			return !behindNat || contacted.contains(senderEndpoint);
+		}
+	}
+
+	public final static int SIMULATED_PORT = 49152;
+
+	protected ConfigFile                                   config      = new ConfigFile();
+	protected ThreadGroup                                  threadGroup = new ThreadGroup("DHTSimulatedNetwork");
+	protected ScheduledExecutorService                     scheduler;
+	protected ConcurrentHashMap<String,SimulatedTransport> endpoints   = new ConcurrentHashMap<>();
+	protected ArrayList<DHTClient>                         clients     = new ArrayList<>();
+	protected int                                          latencyMs, jitterMs;
+	protected double                                       lossRate, natRate;
+
+	protected AtomicInteger nextAddress        = new AtomicInteger(1);
+	protected AtomicLong    datagramsSent      = new AtomicLong(),
+	                        datagramsDelivered = new AtomicLong(),
+	                        datagramsLost      = new AtomicLong(),
+	                        datagramsFiltered  = new AtomicLong();
+
+	public DHTSimulatedNetwork(int latencyMs, int jitterMs, double lossRate, double natRate) {
+		this.latencyMs = latencyMs;
+		this.jitterMs  = jitterMs;
+		this.lossRate  = lossRate;
+		this.natRate   = natRate;
+		this.scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), (r)->{
+			Thread thread = new Thread(threadGroup, r, "DHTSimulatedNetwork delivery");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		config.apply(ConfigDefaults.getActiveDefaults());
+		config.set("net.dht.enabled",           false);
+		config.set("net.dht.bootstrap.enabled", false);
+		config.set("net.dht.upnp",              false);
+
+		// scale protocol timeouts to the simulated latency instead of the internet-scale defaults
+		int rttMs = 2*(latencyMs + jitterMs);
+		config.set("net.dht.messageRetryTimeMs",         2*rttMs + 50);
+		config.set("net.dht.messageExpirationTimeMs",    5*rttMs + 100);
+		config.set("net.dht.searchQueryTimeoutMs",       5*rttMs + 100);
+		config.set("net.dht.lookupResultMaxWaitTimeMs",  rttMs + 50);
+		config.set("net.dht.maxSearchQueryWaitTimeMs",   50*rttMs + 1000);
+	}
+
+	/** Configuration applied to clients added after this call. */
+	public ConfigFile getConfig() {
+		return config;
+	}
+
+	/** Add a client, seeded with up to numSeeds randomly chosen existing clients, and run its initial peer search
+	 * to completion (or timeout). */
+	public DHTClient addClient(int numSeeds) throws IOException, InvalidBlacklistException {
+		int    n       = nextAddress.getAndIncrement();
+		String address = "10." + ((n >> 16) & 0xff) + "." + ((n >> 8) & 0xff) + "." + (n & 0xff);
+
+		SimulatedMaster master = new SimulatedMaster();
+		DHTClient       client = new DHTClient(new Key(master.getCrypto()), master);
+		client.getSocketManager().setTransport(new SimulatedTransport(address, ThreadLocalRandom.current().nextDouble() < natRate));
+		client.getRoutingTable().reset();
+
+		ArrayList<DHTClient> seeds = getClients();
+		for(int i = 0; i < numSeeds && !seeds.isEmpty(); i++) {
+			DHTClient seed = seeds.remove(ThreadLocalRandom.current().nextInt(seeds.size()));
+			client.addPeer(peerFor(client, seed));
+		}
+
+		client.getSocketManager().listen(null, 0);
+		synchronized(this) {
+			clients.add(client);
+		}
+
+		search(client, client.getId(), new Key(master.getCrypto()));
+		return client;
+	}
+
+	/** Run a search from client to completion, returning the finished operation. */
+	public DHTSearchOperation search(DHTClient client, DHTID searchId, Key lookupKey) {
+		Object               lock = new Object();
+		DHTSearchOperation[] done = new DHTSearchOperation[1];
+		DHTSearchOperation   op   = new DHTSearchOperation(client, searchId, lookupKey, (finished, peers)->{
+			synchronized(lock) {
+				done[0] = finished;
+				lock.notifyAll();
+			}
+		}, (record)->{});
+
+		op.run();
+		synchronized(lock) {
+			while(done[0] == null) {
+				try {
+					lock.wait();
+				} catch(InterruptedException exc) {
+					op.cancel();
+					return op;
+				}
+			}
+		}
+
+		return op;
+	}
+
+	public DHTPeer peerFor(DHTClient owner, DHTClient target) throws IOException {
+		return new DHTPeer(owner, target.getSocketManager().getSocketAddress(), target.getPort(), target.getPublicKey().getBytes());
+	}
+
+	public synchronized ArrayList<DHTClient> getClients() {
+		return new ArrayList<>(clients);
+	}
+
+	public synchronized DHTClient randomClient() {
+		return clients.get(ThreadLocalRandom.current().nextInt(clients.size()));
+	}
+
+	public boolean isBehindNat(DHTClient client) {
+		return ((SimulatedTransport) client.getSocketManager().getTransport()).behindNat;
+	}
+
+	public long getDatagramsSent() {
+		return datagramsSent.get();
+	}
+
+	public long getDatagramsDelivered() {
+		return datagramsDelivered.get();
+	}
+
+	public long getDatagramsLost() {
+		return datagramsLost.get();
+	}
+
+	public long getDatagramsFiltered() {
+		return datagramsFiltered.get();
+	}
+
+	public void close() {
+		for(DHTClient client : getClients()) {
+			client.close();
+		}
+
+		scheduler.shutdownNow();
+	}
+
+	protected void route(SimulatedTransport sender, DatagramPacket packet) {
+		String senderEndpoint    = endpoint(sender.address, sender.port),
+		       recipientEndpoint = endpoint(packet.getAddress().getHostAddress(), packet.getPort());
+		byte[] data              = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+
+		datagramsSent.incrementAndGet();
+		sender.contacted.add(recipientEndpoint);
+
+		SimulatedTransport recipient = endpoints.get(recipientEndpoint);
+		if(recipient == null || ThreadLocalRandom.current().nextDouble() < lossRate) {
+			datagramsLost.incrementAndGet();
+			return;
+		}
+
+		if(!recipient.accepts(senderEndpoint)) {
+			datagramsFiltered.incrementAndGet();
+			return;
+		}
+
+		int delayMs = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextInt(jitterMs) : 0);
+		scheduler.schedule(()->{
+			DHTTransport.DatagramReceiver receiver = recipient.receiver;
+			if(receiver == null) {
+				datagramsLost.incrementAndGet();
+				return;
+			}
+
+			datagramsDelivered.incrementAndGet();
+			receiver.receivedDatagram(sender.address, sender.port, ByteBuffer.wrap(data));
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	protected static String endpoint(String address, int port) {
+		return address + ":" + port;
+	}
+}
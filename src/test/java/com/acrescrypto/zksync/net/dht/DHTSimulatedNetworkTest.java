@@ -0,0 +1,140 @@
+package com.acrescrypto.zksync.net.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.crypto.Key;
+import com.acrescrypto.zksync.crypto.PublicDHKey;
+import com.acrescrypto.zksync.exceptions.InvalidBlacklistException;
+import com.acrescrypto.zksync.net.TCPPeerAdvertisement;
+import com.acrescrypto.zksync.utility.Util;
+
+public class DHTSimulatedNetworkTest {
+	CryptoSupport       crypto;
+	DHTSimulatedNetwork network;
+
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+		TCPPeerAdvertisement.disableReachabilityTest = true;
+	}
+
+	@Before
+	public void beforeEach() {
+		crypto  = CryptoSupport.defaultCrypto();
+		network = new DHTSimulatedNetwork(1, 0, 0.0, 0.0);
+	}
+
+	@After
+	public void afterEach() {
+		network.close();
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TCPPeerAdvertisement.disableReachabilityTest = false;
+		TestUtils.assertTidy();
+		TestUtils.stopDebugMode();
+	}
+
+	boolean ping(DHTClient from, DHTClient to) throws IOException {
+		MutableBoolean received = new MutableBoolean();
+		network.peerFor(from, to).ping((resp)->received.setTrue());
+		return Util.waitUntil(500, ()->received.booleanValue());
+	}
+
+	@Test
+	public void testClientsListenOnTransport() throws IOException, InvalidBlacklistException {
+		DHTClient client = network.addClient(0);
+		assertTrue(client.getSocketManager().isListening());
+		assertEquals(DHTSimulatedNetwork.SIMULATED_PORT, client.getPort());
+		assertTrue(client.getSocketManager().getSocketAddress().startsWith("10."));
+	}
+
+	@Test
+	public void testPauseClosesTransport() throws IOException, InvalidBlacklistException {
+		DHTClient client = network.addClient(0);
+		client.pause();
+		assertFalse(client.getSocketManager().isListening());
+		assertFalse(client.getSocketManager().getTransport().isOpen());
+	}
+
+	@Test
+	public void testClientsExchangeMessages() throws IOException, InvalidBlacklistException {
+		DHTClient a = network.addClient(0), b = network.addClient(0);
+		assertTrue(ping(a, b));
+		assertTrue(network.getDatagramsDelivered() >= 2);
+	}
+
+	@Test
+	public void testNatFiltersUnsolicitedDatagrams() throws IOException, InvalidBlacklistException {
+		network.natRate = 1.0;
+		DHTClient a = network.addClient(0), b = network.addClient(0);
+		assertFalse(ping(a, b));
+		assertTrue(network.getDatagramsFiltered() > 0);
+	}
+
+	@Test
+	public void testNatAdmitsRepliesToContactedPeers() throws IOException, InvalidBlacklistException {
+		DHTClient a = network.addClient(0);
+		network.natRate = 1.0;
+		DHTClient b = network.addClient(0);
+		assertTrue(ping(b, a));
+	}
+
+	@Test
+	public void testLossDropsDatagrams() throws IOException, InvalidBlacklistException {
+		network.lossRate = 1.0;
+		DHTClient a = network.addClient(0), b = network.addClient(0);
+		assertFalse(ping(a, b));
+		assertEquals(network.getDatagramsSent(), network.getDatagramsLost());
+	}
+
+	@Test
+	public void testSearchOperationReportsHopsAndQueries() throws IOException, InvalidBlacklistException {
+		for(int i = 0; i < 16; i++) network.addClient(4);
+		DHTClient client = network.randomClient();
+		DHTSearchOperation op = network.search(client, network.randomClient().getId(), new Key(crypto));
+		assertTrue(op.getNumQueries() > 0);
+		assertTrue(op.getMaxHops() >= 1);
+	}
+
+	@Test
+	public void testPublishedRecordsCanBeLookedUp() throws Exception {
+		for(int i = 0; i < 16; i++) network.addClient(4);
+		DHTClient publisher = network.randomClient();
+		DHTID     searchId  = DHTID.withBytes(crypto.rng(crypto.hashLength()));
+		Key       lookupKey = new Key(crypto);
+
+		PublicDHKey pubKey = crypto.makePrivateDHKey().publicKey();
+		TCPPeerAdvertisement ad = new TCPPeerAdvertisement(pubKey, "10.0.0.1", 1234, crypto.rng(crypto.hashLength()));
+		publisher.getProtocolManager().addRecord(searchId, lookupKey, new DHTAdvertisementRecord(crypto, ad));
+		assertTrue(Util.waitUntil(1000, ()->{
+			for(DHTClient client : network.getClients()) {
+				if(client.getRecordStore().records().containsKey(searchId)) return true;
+			}
+
+			return false;
+		}));
+
+		LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<>();
+		network.randomClient().getProtocolManager().lookup(searchId, lookupKey, (record)->{
+			results.add(record == null ? Boolean.FALSE : record);
+		});
+		assertTrue(results.poll(2000, TimeUnit.MILLISECONDS) instanceof DHTAdvertisementRecord);
+	}
+}
@@ -0,0 +1,218 @@
+package com.acrescrypto.zksync.net.dht;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.crypto.Key;
+import com.acrescrypto.zksync.crypto.PRNG;
+import com.acrescrypto.zksync.crypto.PublicDHKey;
+import com.acrescrypto.zksync.net.TCPPeerAdvertisement;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Measures DHT lookups across a DHTSimulatedNetwork. Network shape is set with system properties:
+ *   zksync.dht.sim.nodes    number of clients (default 512; 10000 works given a large enough heap)
+ *   zksync.dht.sim.latency  one-way latency in ms (default 20), plus up to zksync.dht.sim.jitter ms (default 20)
+ *   zksync.dht.sim.loss     fraction of datagrams dropped (default 0.01)
+ *   zksync.dht.sim.nat      fraction of clients that cannot receive unsolicited datagrams (default 0.2)
+ *   zksync.dht.sim.lookups  number of lookups sampled per test (default 200)
+ *   zksync.dht.sim.joiners  number of clients joining concurrently during setup (default 2 per core)
+ *
+ * Message processing for every client shares the host's cores, so protocol timeouts start firing once the host
+ * saturates; keep joiners modest on small machines or the network will form with sparse routing tables.
+ *
+ * The archive discovery test follows DHTZKArchiveDiscovery: a publisher stores an advertisement record under a
+ * search ID and lookup key (the temporal seed ID and lookup key derived from the archive's root seed), and
+ * other clients later look that ID up expecting to find it. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class DHTSimulationBenchmark {
+	static DHTSimulatedNetwork network;
+	static CryptoSupport       crypto;
+	static int                 numLookups;
+
+	@BeforeClass
+	public static void beforeAll() throws Exception {
+		int    numNodes   = Integer.getInteger("zksync.dht.sim.nodes",   512),
+		       latencyMs  = Integer.getInteger("zksync.dht.sim.latency",  20),
+		       jitterMs   = Integer.getInteger("zksync.dht.sim.jitter",   20),
+		       numJoiners = Integer.getInteger("zksync.dht.sim.joiners", 2*Runtime.getRuntime().availableProcessors());
+		double lossRate   = Double.parseDouble(System.getProperty("zksync.dht.sim.loss", "0.01")),
+		       natRate    = Double.parseDouble(System.getProperty("zksync.dht.sim.nat",  "0.2"));
+		numLookups        = Integer.getInteger("zksync.dht.sim.lookups", 200);
+
+		crypto            = CryptoSupport.defaultCrypto();
+		network           = new DHTSimulatedNetwork(latencyMs, jitterMs, lossRate, natRate);
+		TCPPeerAdvertisement.disableReachabilityTest = true;
+
+		Benchmarks.beginBenchmarkSuite(String.format("DHT simulation (%d nodes, %d+%d ms latency, %.1f%% loss, %.1f%% NAT)",
+				numNodes, latencyMs, jitterMs, 100.0*lossRate, 100.0*natRate));
+
+		long startTs = System.currentTimeMillis();
+		int numSeedNodes = Math.min(numNodes, 16);
+		for(int i = 0; i < numSeedNodes; i++) {
+			network.addClient(4);
+		}
+
+		// later clients join concurrently, each seeded from the clients that joined before it
+		ExecutorService joiners = Executors.newFixedThreadPool(numJoiners);
+		ArrayList<Future<DHTClient>> joins = new ArrayList<>();
+		for(int i = numSeedNodes; i < numNodes; i++) {
+			joins.add(joiners.submit(()->network.addClient(4)));
+		}
+
+		for(Future<DHTClient> join : joins) join.get();
+		joiners.shutdown();
+
+		Benchmarks.output(String.format("\t%50s: %d nodes in %d ms",
+				"network setup",
+				numNodes,
+				System.currentTimeMillis() - startTs));
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		network.close();
+		TCPPeerAdvertisement.disableReachabilityTest = false;
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	static DHTID randomId() {
+		return DHTID.withBytes(crypto.rng(crypto.hashLength()));
+	}
+
+	static DHTAdvertisementRecord adFor(DHTClient publisher, int port) {
+		PRNG        prng   = crypto.prng(publisher.getPublicKey().getBytes());
+		PublicDHKey pubKey = crypto.makePublicDHKey(prng.getBytes(crypto.asymPublicDHKeySize()));
+		TCPPeerAdvertisement ad = new TCPPeerAdvertisement(pubKey,
+				publisher.getSocketManager().getSocketAddress(),
+				port,
+				prng.getBytes(crypto.hashLength()));
+		return new DHTAdvertisementRecord(crypto, ad);
+	}
+
+	static void outputDistribution(String description, String unit, ArrayList<? extends Number> samples) {
+		ArrayList<Double> sorted = new ArrayList<>();
+		double sum = 0;
+		for(Number sample : samples) {
+			sorted.add(sample.doubleValue());
+			sum += sample.doubleValue();
+		}
+
+		Collections.sort(sorted);
+		Benchmarks.output(String.format("\t%50s: mean %.02f, p50 %.0f, p90 %.0f, p99 %.0f, max %.0f %s (%d samples)",
+				description,
+				sum/sorted.size(),
+				percentile(sorted, 0.50),
+				percentile(sorted, 0.90),
+				percentile(sorted, 0.99),
+				sorted.get(sorted.size()-1),
+				unit,
+				sorted.size()));
+	}
+
+	static double percentile(ArrayList<Double> sorted, double p) {
+		return sorted.get((int) Math.min(sorted.size()-1, Math.floor(p*sorted.size())));
+	}
+
+	static void outputRate(String description, int hits, int total) {
+		Benchmarks.output(String.format("\t%50s: %.01f%% (%d of %d)",
+				description,
+				100.0*hits/total,
+				hits,
+				total));
+	}
+
+	@Test
+	public void testSearchOperation() {
+		ArrayList<Integer> hops = new ArrayList<>(), queries = new ArrayList<>();
+		ArrayList<Long>    latencies = new ArrayList<>(), datagrams = new ArrayList<>();
+		int found = 0;
+
+		for(int i = 0; i < numLookups; i++) {
+			DHTClient client = network.randomClient();
+			DHTClient target = network.randomClient();
+			long sentBefore  = network.getDatagramsSent(),
+			     startTs     = System.currentTimeMillis();
+
+			DHTSearchOperation op = network.search(client, target.getId(), new Key(crypto));
+
+			latencies.add(System.currentTimeMillis() - startTs);
+			datagrams.add(network.getDatagramsSent() - sentBefore);
+			hops     .add(op.getMaxHops());
+			queries  .add(op.getNumQueries());
+			if(op.closestPeers.stream().anyMatch((peer)->peer.id.equals(target.getId()))) found++;
+		}
+
+		outputDistribution("lookup hops",                   "hops",      hops);
+		outputDistribution("lookup latency",                "ms",        latencies);
+		outputDistribution("FIND_NODE queries per lookup",  "queries",   queries);
+		outputDistribution("datagrams per lookup",          "datagrams", datagrams);
+		outputRate        ("lookups returning target node", found,       numLookups);
+	}
+
+	@Test
+	public void testArchiveDiscovery() throws Exception {
+		int maxResults = network.getClients().get(0).getMaster().getGlobalConfig().getInt("net.dht.maxResults");
+		ArrayList<Long>    latencies = new ArrayList<>();
+		ArrayList<Integer> replicas  = new ArrayList<>();
+		int hits = 0;
+
+		for(int i = 0; i < numLookups; i++) {
+			DHTClient publisher = network.randomClient();
+			DHTID     searchId  = randomId();
+			Key       lookupKey = new Key(crypto);
+
+			publisher.getProtocolManager().addRecord(searchId, lookupKey, adFor(publisher, 1+i));
+			Util.waitUntil(Integer.MAX_VALUE, ()->publisher.getProtocolManager().pendingOperations.isEmpty());
+			Util.sleep(network.getConfig().getInt("net.dht.messageRetryTimeMs")); // let ADD_RECORD datagrams land
+
+			int numReplicas = 0;
+			for(DHTClient client : network.getClients()) {
+				if(client.getRecordStore().records().containsKey(searchId)) numReplicas++;
+			}
+			replicas.add(numReplicas);
+
+			DHTClient searcher = network.randomClient();
+			LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<>();
+			long startTs = System.currentTimeMillis();
+			searcher.getProtocolManager().lookup(searchId, lookupKey, (record)->{
+				results.add(record == null ? Boolean.FALSE : record);
+			});
+
+			Object result = results.poll(network.getConfig().getInt("net.dht.maxSearchQueryWaitTimeMs") + 1000, TimeUnit.MILLISECONDS);
+			if(result instanceof DHTRecord) {
+				hits++;
+				latencies.add(System.currentTimeMillis() - startTs);
+			}
+		}
+
+		outputDistribution("record replicas stored (of " + maxResults + ")", "replicas", replicas);
+		outputRate        ("record store hit rate", hits, numLookups);
+		if(!latencies.isEmpty()) {
+			outputDistribution("time to first record", "ms", latencies);
+		}
+	}
+
+	@Test
+	public void testZZNetworkTotals() {
+		long sent = network.getDatagramsSent();
+		Benchmarks.output(String.format("\t%50s: %d sent, %d delivered, %d lost, %d filtered by NAT",
+				"datagrams",
+				sent,
+				network.getDatagramsDelivered(),
+				network.getDatagramsLost(),
+				network.getDatagramsFiltered()));
+	}
+}
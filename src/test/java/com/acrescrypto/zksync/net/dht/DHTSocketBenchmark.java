@@ -0,0 +1,176 @@
+package com.acrescrypto.zksync.net.dht;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+import com.acrescrypto.zksync.crypto.CryptoSupport;
+import com.acrescrypto.zksync.crypto.Key;
+import com.acrescrypto.zksync.crypto.PublicDHKey;
+import com.acrescrypto.zksync.fs.ramfs.RAMFS;
+import com.acrescrypto.zksync.fs.zkfs.ZKMaster;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigDefaults;
+import com.acrescrypto.zksync.fs.zkfs.config.ConfigFile;
+import com.acrescrypto.zksync.utility.Util;
+
+/** Floods a DHT socket on loopback with pings from many peers and counts how many the receiver decrypts per second,
+ * with different numbers of processing threads and bound sockets. Datagrams the receiver can't keep up with are
+ * dropped by the OS or the processing queue, so the rate measured is what the receive path can sustain. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class DHTSocketBenchmark {
+	public final static int NUM_SENDERS = 64;
+	public final static int DURATION_MS = 3000;
+
+	static class DummyMaster extends ZKMaster {
+		public DummyMaster() throws IOException {
+			this.storage      = new RAMFS();
+			this.globalConfig = new ConfigFile(storage, "config.json");
+			globalConfig.apply(ConfigDefaults.getActiveDefaults());
+			globalConfig.set("net.dht.upnp", false);
+			setupBandwidth();
+		}
+	}
+
+	static class DummyClient extends DHTClient {
+		AtomicLong received = new AtomicLong();
+
+		protected DummyClient() throws IOException {
+			this.master          = new DummyMaster();
+			this.crypto          = CryptoSupport.defaultCrypto();
+			this.privateKey      = this.crypto.makePrivateDHKey();
+			this.tagKey          = new Key(crypto);
+			this.networkId       = new byte[crypto.hashLength()];
+			this.threadGroup     = new ThreadGroup("DHTSocketBenchmark");
+
+			this.routingTable    = new DummyRoutingTable(this);
+			this.protocolManager = new CountingProtocolManager(this);
+			this.socketManager   = new DHTSocketManager(this);
+		}
+	}
+
+	static class DummyRoutingTable extends DHTRoutingTable {
+		public DummyRoutingTable(DummyClient client) {
+			this.client = client;
+		}
+
+		@Override public DHTPeer peerForMessage(String address, int port, PublicDHKey pubKey) throws UnknownHostException {
+			return new DHTPeer(client, address, port, pubKey.getBytes());
+		}
+
+		@Override public void verifiedPeer(DHTPeer peer) {}
+	}
+
+	/** Decrypts and parses each datagram, as processMessage would, but stops short of acting on it. The senders replay
+	 * the same few datagrams over and over, so the replay check is turned off. */
+	static class CountingProtocolManager extends DHTProtocolManager {
+		public CountingProtocolManager(DummyClient client) {
+			this.client = client;
+		}
+
+		@Override
+		protected void processMessage(String senderAddress, int senderPort, ByteBuffer data) {
+			try {
+				new DHTMessage(client, senderAddress, senderPort, data);
+				((DummyClient) client).received.incrementAndGet();
+			} catch(Exception exc) {
+				exc.printStackTrace();
+			}
+		}
+
+		@Override
+		public boolean recordMessageRnd(byte[] salt) {
+			return true;
+		}
+	}
+
+	static DummyClient[] senders;
+	static DatagramSocket[] senderSockets;
+
+	@BeforeClass
+	public static void beforeAll() throws IOException {
+		senders       = new DummyClient[NUM_SENDERS];
+		senderSockets = new DatagramSocket[NUM_SENDERS];
+		for(int i = 0; i < NUM_SENDERS; i++) {
+			senders[i]       = new DummyClient();
+			senderSockets[i] = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		}
+
+		Benchmarks.beginBenchmarkSuite("DHT socket");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		for(DatagramSocket skt : senderSockets) {
+			skt.close();
+		}
+
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	void flood(String name, int processingThreads, int numSockets) throws IOException {
+		DummyClient receiver = new DummyClient();
+		receiver.getMaster().getGlobalConfig().set("net.dht.processingThreads", processingThreads);
+		receiver.getMaster().getGlobalConfig().set("net.dht.numSockets",        numSockets);
+		receiver.getSocketManager().listen("127.0.0.1", 0);
+		int port = receiver.getSocketManager().getPort();
+
+		DatagramPacket[] packets = new DatagramPacket[NUM_SENDERS];
+		byte[] payload = receiver.crypto.rng(64);
+		for(int i = 0; i < NUM_SENDERS; i++) {
+			DHTPeer peer = new DHTPeer(senders[i], "127.0.0.1", port, receiver.getPublicKey());
+			byte[] serialized = new DHTMessage(peer, DHTMessage.CMD_PING, payload, null).serialize(1, ByteBuffer.wrap(payload));
+			packets[i] = new DatagramPacket(serialized, serialized.length, InetAddress.getByName("127.0.0.1"), port);
+		}
+
+		long sent = 0, startMs = System.currentTimeMillis(), endMs = startMs + DURATION_MS;
+		while(System.currentTimeMillis() < endMs) {
+			int i = (int) (sent % NUM_SENDERS);
+			senderSockets[i].send(packets[i]);
+			sent++;
+
+			if(sent % NUM_SENDERS == 0) Thread.yield(); // give the receiver a chance on small machines
+		}
+
+		long received = receiver.received.get();
+		receiver.getSocketManager().pause();
+		Util.sleep(50);
+
+		Benchmarks.output(String.format("\t%50s: %.01f msgs/s (%d of %d sent in %d ms)",
+				name,
+				1000.0 * received / DURATION_MS,
+				received,
+				sent,
+				DURATION_MS));
+	}
+
+	@Test
+	public void testOneThreadOneSocket() throws IOException {
+		flood("testOneThreadOneSocket", 1, 1);
+	}
+
+	@Test
+	public void testPerCoreThreadsOneSocket() throws IOException {
+		flood("testPerCoreThreadsOneSocket", 0, 1);
+	}
+
+	@Test
+	public void testPerCoreThreadsPerCoreSockets() throws IOException {
+		flood("testPerCoreThreadsPerCoreSockets", 0, Runtime.getRuntime().availableProcessors());
+	}
+
+	@Test
+	public void testFourThreadsFourSockets() throws IOException {
+		flood("testFourThreadsFourSockets", 4, 4);
+	}
+}
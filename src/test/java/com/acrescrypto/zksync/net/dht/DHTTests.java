@@ -15,8 +15,10 @@ import org.junit.runners.Suite;
 	DHTMessageStubTest.class,
 	DHTSearchOperationTest.class,
 	DHTClientTest.class,
+	DHTDatagramProcessorTest.class,
 	DHTRecordTest.class,
-	DHTZKArchiveDiscoveryTest.class
+	DHTZKArchiveDiscoveryTest.class,
+	DHTSimulatedNetworkTest.class
 })
 
 public class DHTTests {
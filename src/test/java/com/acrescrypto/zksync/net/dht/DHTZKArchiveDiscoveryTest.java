@@ -124,6 +124,7 @@ public class DHTZKArchiveDiscoveryTest {
 		discovery.discoverArchives(archive.getConfig().getAccessor());
 		assertFalse(Util.waitUntil(50, ()->client.searchId != null));
 		client.initialized = true;
+		client.getStateSignal().signal();
 		assertTrue(Util.waitUntil(50, ()->client.searchId != null));
 	}
 	
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.apache.commons.lang3.mutable.MutableLong;
 
 import com.acrescrypto.zksync.TestUtils;
 import com.acrescrypto.zksync.utility.BandwidthAllocator.BandwidthAllocation;
@@ -187,6 +188,45 @@ public class BandwidthAllocatorTest {
 		assertFalse(Util.waitUntil(10, ()->allocated.isTrue()));
 	}
 	
+	@Test
+	public void testRequestBytesReturnsZeroIfInterrupted() {
+		allocator.requestAllocation().requestBytes(Long.MAX_VALUE);
+		BandwidthAllocation allocation = allocator.requestAllocation();
+		MutableLong allowed = new MutableLong(-1);
+		MutableBoolean interrupted = new MutableBoolean(false);
+		Thread thread = new Thread(()->{
+			allowed.setValue(allocation.requestBytes(1));
+			interrupted.setValue(Thread.currentThread().isInterrupted());
+		});
+		thread.start();
+		
+		assertFalse(Util.waitUntil(10, ()->allowed.longValue() >= 0));
+		thread.interrupt();
+		assertTrue(Util.waitUntil(100, ()->allowed.longValue() >= 0));
+		assertEquals(0, allowed.longValue());
+		assertTrue(interrupted.isTrue());
+		assertFalse(allocator.pendingAllocations().containsKey(allocation));
+	}
+	
+	@Test
+	public void testRoundsWaitWhileRateIsZero() {
+		allocator.setBytesPerSecond(0);
+		MutableBoolean allocated = new MutableBoolean(false);
+		new Thread(()->{
+			allocator.requestAllocation().requestBytes(1);
+			allocated.setTrue();
+		}).start();
+		
+		long reallocationTime = allocator.getReallocationTime();
+		Util.setCurrentTimeMillis(reallocationTime + 10*allocator.getAllocationIntervalMs());
+		assertFalse(Util.waitUntil(20, ()->allocated.isTrue()));
+		assertEquals(reallocationTime, allocator.getReallocationTime());
+		
+		allocator.setBytesPerSecond(500000);
+		Util.setCurrentTimeMillis(Util.currentTimeMillis() + allocator.getAllocationIntervalMs());
+		assertTrue(Util.waitUntil(100, ()->allocated.isTrue()));
+	}
+	
 	@Test
 	public void testGetBytesRemainingReturnsZeroIfAllocationExpired() {
 		BandwidthAllocation allocation = allocator.requestAllocation();
@@ -194,4 +234,199 @@ public class BandwidthAllocatorTest {
 		Util.setCurrentTimeMillis(allocation.getExpirationTime());
 		assertEquals(0, allocation.getBytesRemaining());
 	}
+	
+	/** Drive saturating allocations on a simulated clock, one allocation round per interval, for durationMs. Each
+	 * allocation takes everything it can get. Returns total bytes received by each allocation. */
+	long[] saturate(BandwidthAllocator root, long durationMs, BandwidthAllocation... allocations) {
+		long[] totals = new long[allocations.length];
+		long start = Util.currentTimeMillis();
+		for(long t = start; t < start + durationMs; t += root.getAllocationIntervalMs()) {
+			Util.setCurrentTimeMillis(t);
+			synchronized(root) {
+				root.reallocate();
+			}
+			
+			for(int i = 0; i < allocations.length; i++) {
+				long n;
+				while((n = allocations[i].tryRequestBytes(Long.MAX_VALUE)) > 0) {
+					totals[i] += n;
+				}
+			}
+		}
+		
+		Util.setCurrentTimeMillis(start + durationMs);
+		return totals;
+	}
+	
+	static void assertWithinPercent(double expected, double actual, double percent) {
+		assertEquals(expected, actual, expected*percent/100.0);
+	}
+	
+	@Test
+	public void testSaturatedAllocationMatchesRate() {
+		BandwidthAllocator root = new BandwidthAllocator(1000000, 10);
+		long[] totals = saturate(root, 10000, root.requestAllocation());
+		assertWithinPercent(10*1000000, totals[0], 2);
+	}
+	
+	@Test
+	public void testChildrenShareParentByWeight() {
+		BandwidthAllocator root = new BandwidthAllocator(1000000, 10);
+		BandwidthAllocator light = root.child(1), heavy = root.child(3);
+		long[] totals = saturate(root, 10000, light.requestAllocation(), heavy.requestAllocation());
+		assertWithinPercent(2500000, totals[0], 2);
+		assertWithinPercent(7500000, totals[1], 2);
+	}
+	
+	@Test
+	public void testFairnessIsHierarchical() {
+		// one archive with one peer, another with three; the archives split evenly, then the peers within them
+		BandwidthAllocator root = new BandwidthAllocator(1200000, 10);
+		BandwidthAllocator archiveA = root.child(), archiveB = root.child();
+		long[] totals = saturate(root, 10000,
+				archiveA.child().requestAllocation(),
+				archiveB.child().requestAllocation(),
+				archiveB.child().requestAllocation(),
+				archiveB.child().requestAllocation());
+		assertWithinPercent(6000000, totals[0], 2);
+		for(int i = 1; i < totals.length; i++) {
+			assertWithinPercent(2000000, totals[i], 2);
+		}
+	}
+	
+	@Test
+	public void testAllocationsOnSameNodeShareEqually() {
+		BandwidthAllocator root = new BandwidthAllocator(1000000, 10);
+		BandwidthAllocator peer = root.child();
+		long[] totals = saturate(root, 10000, peer.requestAllocation(), peer.requestAllocation());
+		assertWithinPercent(5000000, totals[0], 2);
+		assertWithinPercent(5000000, totals[1], 2);
+	}
+	
+	@Test
+	public void testChildLimitCapsChildAndRedistributesRemainder() {
+		BandwidthAllocator root = new BandwidthAllocator(1000000, 10);
+		BandwidthAllocator capped = root.child(), uncapped = root.child();
+		capped.setBytesPerSecond(100000);
+		
+		long[] totals = saturate(root, 10000, capped.requestAllocation(), uncapped.requestAllocation());
+		assertWithinPercent(1000000, totals[0], 2);
+		assertWithinPercent(9000000, totals[1], 2);
+	}
+	
+	@Test
+	public void testChildLimitAppliesWithoutRootLimit() {
+		BandwidthAllocator root = new BandwidthAllocator(-1, 10);
+		root.setChildBytesPerSecond(50000);
+		BandwidthAllocator child = root.child();
+		assertFalse(child.isUnlimited());
+		long[] totals = saturate(root, 10000, child.requestAllocation());
+		assertWithinPercent(500000, totals[0], 2);
+	}
+	
+	@Test
+	public void testRateChangesTakeEffectImmediately() {
+		BandwidthAllocator root = new BandwidthAllocator(1000000, 10);
+		BandwidthAllocation allocation = root.requestAllocation();
+		long before = saturate(root, 5000, allocation)[0];
+		root.setBytesPerSecond(200000);
+		long after = saturate(root, 5000, allocation)[0];
+		assertWithinPercent(5000000, before, 2);
+		assertWithinPercent(1000000, after, 2);
+	}
+	
+	@Test
+	public void testSetChildBytesPerSecondUpdatesExistingChildren() {
+		BandwidthAllocator root = new BandwidthAllocator(-1, 10);
+		BandwidthAllocator child = root.child();
+		assertTrue(child.isUnlimited());
+		root.setChildBytesPerSecond(1234);
+		assertEquals(1234, child.getBytesPerSecond());
+		assertFalse(child.isUnlimited());
+	}
+	
+	@Test
+	public void testEffectiveBytesPerSecondIsTightestLimitOnPath() {
+		BandwidthAllocator root = new BandwidthAllocator(1000, 10);
+		BandwidthAllocator child = root.child();
+		assertEquals(1000, child.getEffectiveBytesPerSecond());
+		child.setBytesPerSecond(500);
+		assertEquals(500, child.getEffectiveBytesPerSecond());
+		root.setBytesPerSecond(-1);
+		child.setBytesPerSecond(-1);
+		assertEquals(-1, child.getEffectiveBytesPerSecond());
+	}
+	
+	@Test
+	public void testIdleBucketSavesUpToBurst() {
+		BandwidthAllocator root = new BandwidthAllocator(100000, 10);
+		root.setBurstMs(1000);
+		BandwidthAllocation allocation = root.requestAllocation();
+		allocation.tryRequestBytes(Long.MAX_VALUE);
+		
+		Util.setCurrentTimeMillis(5000);
+		assertEquals(100000, allocation.tryRequestBytes(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void testIdleBucketSavesOneIntervalByDefault() {
+		BandwidthAllocator root = new BandwidthAllocator(100000, 10);
+		BandwidthAllocation allocation = root.requestAllocation();
+		allocation.tryRequestBytes(Long.MAX_VALUE);
+		
+		Util.setCurrentTimeMillis(5000);
+		assertEquals(1000, allocation.tryRequestBytes(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void testUncontendedAllocationsTakeTokensWithoutWaitingForRound() {
+		BandwidthAllocator root = new BandwidthAllocator(100000, 10);
+		BandwidthAllocation allocation = root.child().requestAllocation();
+		assertEquals(600, allocation.tryRequestBytes(600));
+		assertEquals(400, allocation.tryRequestBytes(600));
+		assertEquals(0, allocation.tryRequestBytes(600));
+	}
+	
+	@Test
+	public void testContendedNodesQueueForRound() {
+		BandwidthAllocator root = new BandwidthAllocator(100000, 10);
+		BandwidthAllocation first = root.child().requestAllocation(), second = root.child().requestAllocation();
+		assertEquals(1000, first.tryRequestBytes(Long.MAX_VALUE));
+		assertEquals(0, second.tryRequestBytes(Long.MAX_VALUE));
+		
+		// first can't jump ahead of second, even once tokens come back
+		Util.setCurrentTimeMillis(10);
+		assertEquals(0, first.tryRequestBytes(Long.MAX_VALUE));
+		synchronized(root) {
+			root.reallocate();
+		}
+		
+		assertEquals(500, first.tryRequestBytes(Long.MAX_VALUE));
+		assertEquals(500, second.tryRequestBytes(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void testRemovedNodesAreUnlimited() {
+		BandwidthAllocator root = new BandwidthAllocator(1000, 10);
+		BandwidthAllocator child = root.child();
+		child.remove();
+		assertTrue(child.isUnlimited());
+		assertEquals(Long.MAX_VALUE, child.requestAllocation().requestBytes(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void testRemovingNodeReleasesBlockedRequests() {
+		BandwidthAllocator root = new BandwidthAllocator(0, 10);
+		BandwidthAllocator child = root.child();
+		MutableBoolean allocated = new MutableBoolean(false);
+		new Thread(()->{
+			child.requestAllocation().requestBytes(1);
+			allocated.setTrue();
+		}).start();
+		
+		assertFalse(Util.waitUntil(10, ()->allocated.isTrue()));
+		child.remove();
+		Util.setCurrentTimeMillis(root.getReallocationTime());
+		assertTrue(Util.waitUntil(100, ()->allocated.isTrue()));
+	}
 }
@@ -0,0 +1,117 @@
+package com.acrescrypto.zksync.utility;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.Benchmarks;
+
+/** Measures the cost of BandwidthMonitor.observeTraffic, which runs for every segment a socket sends or receives, and
+ * how closely getBytesPerSecond tracks a known rate. */
+public class BandwidthMonitorBenchmark {
+	public final static int NUM_OBSERVATIONS = 10*1000*1000;
+	public final static int SEGMENT_SIZE = 1400;
+
+	@BeforeClass
+	public static void beforeAll() {
+		Benchmarks.beginBenchmarkSuite("BandwidthMonitor observation cost and accuracy");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	@After
+	public void afterEach() {
+		Util.setCurrentTimeMillis(-1);
+	}
+
+	/** Same shape as a TCPPeerSocket stream: stream monitor, reporting to the swarm, reporting to the master. */
+	static BandwidthMonitor makeChain() {
+		BandwidthMonitor master = new BandwidthMonitor(100, 3000);
+		BandwidthMonitor swarm = new BandwidthMonitor(100, 3000);
+		swarm.addParent(master);
+		return new BandwidthMonitor(swarm);
+	}
+
+	static void observeMany(BandwidthMonitor monitor, String name, int numThreads) throws InterruptedException {
+		ArrayList<Thread> threads = new ArrayList<>();
+		int perThread = NUM_OBSERVATIONS/numThreads;
+		long startNs = System.nanoTime();
+		for(int i = 0; i < numThreads; i++) {
+			Thread thread = new Thread(()->{
+				for(int j = 0; j < perThread; j++) {
+					monitor.observeTraffic(SEGMENT_SIZE);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+
+		for(Thread thread : threads) {
+			thread.join();
+		}
+
+		long elapsedNs = System.nanoTime() - startNs;
+		Benchmarks.output(String.format("\t%50s: %.01f ns/observation (%d observations, %d threads, %d ms)",
+				name,
+				(double) elapsedNs / (perThread*numThreads),
+				perThread*numThreads,
+				numThreads,
+				elapsedNs/(1000*1000)));
+	}
+
+	@Test
+	public void testObserveSingleMonitor() throws InterruptedException {
+		observeMany(new BandwidthMonitor(100, 3000), "testObserveSingleMonitor", 1);
+	}
+
+	@Test
+	public void testObserveThroughParentChain() throws InterruptedException {
+		observeMany(makeChain(), "testObserveThroughParentChain", 1);
+	}
+
+	@Test
+	public void testObserveThroughParentChainFromFourThreads() throws InterruptedException {
+		observeMany(makeChain(), "testObserveThroughParentChainFromFourThreads", 4);
+	}
+
+	@Test
+	public void testAccuracyAtSteadyRate() {
+		// 1 MB/s in segments arriving at random times, read back every 50ms once the window has filled
+		long rate = 1000*1000, durationMs = 30*1000;
+		Random random = new Random(0);
+		Util.setCurrentTimeMillis(0);
+		BandwidthMonitor monitor = makeChain();
+
+		double totalError = 0, maxError = 0;
+		int numReadings = 0;
+		long sent = 0;
+		for(long t = 0; t < durationMs; t++) {
+			Util.setCurrentTimeMillis(t);
+			while(sent < rate*(t+1)/1000) {
+				long segment = Math.min(1 + random.nextInt(2*SEGMENT_SIZE), rate*(t+1)/1000 - sent);
+				monitor.observeTraffic(segment);
+				sent += segment;
+			}
+
+			if(t >= monitor.getSampleExpirationMs() && t % 50 == 0) {
+				double error = Math.abs(monitor.getBytesPerSecond() - rate) / (double) rate;
+				totalError += error;
+				maxError = Math.max(maxError, error);
+				numReadings++;
+			}
+		}
+
+		Benchmarks.output(String.format("\t%50s: mean error %.03f%%, max error %.03f%% (%d readings)",
+				"testAccuracyAtSteadyRate",
+				100.0*totalError/numReadings,
+				100.0*maxError,
+				numReadings));
+	}
+}
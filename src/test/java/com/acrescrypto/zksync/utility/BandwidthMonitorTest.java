@@ -135,6 +135,39 @@ public class BandwidthMonitorTest {
 		assertEquals(1024.0, p2.getBytesPerSecond(), 1e-5);
 	}
 	
+	@Test
+	public void testSamplesAreAlignedToMultiplesOfSampleDuration() {
+		// 0 and 49 share the [0, 50) sample and expire together, even though 49 was seen later
+		monitor.observeTraffic(100);
+		Util.setCurrentTimeMillis(49);
+		monitor.observeTraffic(100);
+		Util.setCurrentTimeMillis(50);
+		monitor.observeTraffic(100);
+		
+		Util.setCurrentTimeMillis(999);
+		assertEquals(300, monitor.getBytesInInterval());
+		Util.setCurrentTimeMillis(1000);
+		assertEquals(100, monitor.getBytesInInterval());
+		Util.setCurrentTimeMillis(1049);
+		assertEquals(100, monitor.getBytesInInterval());
+		Util.setCurrentTimeMillis(1050);
+		assertEquals(0, monitor.getBytesInInterval());
+	}
+	
+	@Test
+	public void testSampleEdgesDoNotMoveWithFirstObservation() {
+		// 30 and 55 are closer together than one sample, but fall either side of the edge at 50
+		Util.setCurrentTimeMillis(30);
+		monitor.observeTraffic(100);
+		Util.setCurrentTimeMillis(55);
+		monitor.observeTraffic(100);
+		
+		Util.setCurrentTimeMillis(1030);
+		assertEquals(100, monitor.getBytesInInterval());
+		Util.setCurrentTimeMillis(1055);
+		assertEquals(0, monitor.getBytesInInterval());
+	}
+	
 	@Test
 	public void testObserveTrafficReturnsByteCount() {
 		for(long i : new long[] { 0, 1, Long.MAX_VALUE }) {
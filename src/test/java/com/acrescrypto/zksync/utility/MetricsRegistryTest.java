@@ -0,0 +1,211 @@
+package com.acrescrypto.zksync.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.utility.MetricsRegistry.Counter;
+import com.acrescrypto.zksync.utility.MetricsRegistry.Gauge;
+import com.acrescrypto.zksync.utility.MetricsRegistry.Histogram;
+
+public class MetricsRegistryTest {
+	MetricsRegistry registry;
+	boolean wasEnabled;
+	
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+	
+	@Before
+	public void beforeEach() {
+		wasEnabled = MetricsRegistry.enabled;
+		MetricsRegistry.enabled = true;
+		registry = new MetricsRegistry();
+	}
+	
+	@After
+	public void afterEach() {
+		MetricsRegistry.enabled = wasEnabled;
+	}
+	
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.assertTidy();
+		TestUtils.stopDebugMode();
+	}
+	
+	@Test
+	public void testCounterCountsWhenEnabled() {
+		Counter counter = registry.counter("test_total", "help");
+		counter.increment();
+		counter.add(41);
+		assertEquals(42, counter.getValue());
+	}
+	
+	@Test
+	public void testCounterIgnoresUpdatesWhenDisabled() {
+		Counter counter = registry.counter("test_total", "help");
+		MetricsRegistry.enabled = false;
+		counter.increment();
+		counter.add(41);
+		assertEquals(0, counter.getValue());
+	}
+	
+	@Test
+	public void testSameNameAndLabelsReturnsSameMetric() {
+		Counter a = registry.counter("test_total", "help", "kind", "a");
+		assertSame(a, registry.counter("test_total", "help", "kind", "a"));
+		assertFalse(a == registry.counter("test_total", "help", "kind", "b"));
+	}
+	
+	@Test
+	public void testRegisteringSameNameAsDifferentTypeThrows() {
+		registry.counter("test_metric", "help");
+		try {
+			registry.histogram("test_metric", "help");
+			fail();
+		} catch(IllegalArgumentException exc) {}
+	}
+	
+	@Test
+	public void testOddLabelCountThrows() {
+		try {
+			registry.counter("test_total", "help", "kind");
+			fail();
+		} catch(IllegalArgumentException exc) {}
+	}
+	
+	@Test
+	public void testHistogramBucketsAreCumulative() {
+		Histogram histogram = registry.histogram("test_seconds", "help", new double[] { 1, 2, 5 });
+		histogram.observe(0.5);
+		histogram.observe(1.0);
+		histogram.observe(1.5);
+		histogram.observe(4);
+		histogram.observe(10);
+		
+		LinkedHashMap<String,Long> buckets = histogram.getBuckets();
+		assertEquals(4, buckets.size());
+		assertEquals(2, buckets.get("1").longValue());
+		assertEquals(3, buckets.get("2").longValue());
+		assertEquals(4, buckets.get("5").longValue());
+		assertEquals(5, buckets.get("+Inf").longValue());
+		assertEquals(5, histogram.getCount());
+		assertEquals(17.0, histogram.getSum(), 1e-9);
+	}
+	
+	@Test
+	public void testHistogramIgnoresTimersStartedWhileDisabled() {
+		Histogram histogram = registry.histogram("test_seconds", "help");
+		MetricsRegistry.enabled = false;
+		long start = MetricsRegistry.startTimer();
+		assertEquals(0, start);
+		MetricsRegistry.enabled = true;
+		histogram.observeSince(start);
+		assertEquals(0, histogram.getCount());
+		
+		histogram.observeSince(MetricsRegistry.startTimer());
+		assertEquals(1, histogram.getCount());
+	}
+	
+	@Test
+	public void testGaugeIsEvaluatedWhenRead() {
+		AtomicLong value = new AtomicLong(3);
+		Gauge gauge = registry.gauge("test_gauge", "help", ()->value.get());
+		assertEquals(3.0, gauge.getValue(), 0);
+		value.set(7);
+		assertEquals(7.0, gauge.getValue(), 0);
+	}
+	
+	@Test
+	public void testGaugeReplacesExistingRegistration() {
+		registry.gauge("test_gauge", "help", ()->1);
+		registry.gauge("test_gauge", "help", ()->2);
+		assertEquals(1, registry.getMetrics().size());
+		assertEquals(2.0, ((Gauge) registry.getMetrics().iterator().next()).getValue(), 0);
+	}
+	
+	@Test
+	public void testRemoveUnregistersMetric() {
+		Gauge gauge = registry.counterFunction("test_total", "help", ()->1, "peer", "a");
+		registry.counterFunction("test_total", "help", ()->1, "peer", "b");
+		registry.remove(gauge);
+		assertEquals(1, registry.getMetrics().size());
+		assertEquals("b", registry.getMetrics().iterator().next().getLabels().get("peer"));
+	}
+	
+	@Test
+	public void testRemoveDoesNotUnregisterReplacement() {
+		Gauge old = registry.gauge("test_gauge", "help", ()->1);
+		registry.gauge("test_gauge", "help", ()->2);
+		registry.remove(old);
+		assertEquals(1, registry.getMetrics().size());
+	}
+	
+	@Test
+	public void testPrometheusTextGroupsMetricsByName() {
+		registry.counter("test_total", "Things counted", "kind", "a").add(2);
+		registry.counter("test_total", "Things counted", "kind", "b").add(3);
+		registry.gauge("test_gauge", "A gauge", ()->1.5);
+		
+		String expected =
+				"# HELP test_gauge A gauge\n" +
+				"# TYPE test_gauge gauge\n" +
+				"test_gauge 1.5\n" +
+				"# HELP test_total Things counted\n" +
+				"# TYPE test_total counter\n" +
+				"test_total{kind=\"a\"} 2\n" +
+				"test_total{kind=\"b\"} 3\n";
+		assertEquals(expected, registry.toPrometheusText());
+	}
+	
+	@Test
+	public void testPrometheusTextEscapesLabelValues() {
+		registry.counter("test_total", "help", "path", "a\"b\\c\nd");
+		assertTrue(registry.toPrometheusText().contains("test_total{path=\"a\\\"b\\\\c\\nd\"} 0\n"));
+	}
+	
+	@Test
+	public void testPrometheusTextRendersHistograms() {
+		Histogram histogram = registry.histogram("test_seconds", "help", new double[] { 0.5, 1 }, "op", "x");
+		histogram.observe(0.25);
+		histogram.observe(2);
+		
+		String text = registry.toPrometheusText();
+		assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+		assertTrue(text.contains("test_seconds_bucket{op=\"x\",le=\"0.5\"} 1\n"));
+		assertTrue(text.contains("test_seconds_bucket{op=\"x\",le=\"1\"} 1\n"));
+		assertTrue(text.contains("test_seconds_bucket{op=\"x\",le=\"+Inf\"} 2\n"));
+		assertTrue(text.contains("test_seconds_sum{op=\"x\"} 2.25\n"));
+		assertTrue(text.contains("test_seconds_count{op=\"x\"} 2\n"));
+	}
+	
+	@Test
+	public void testInstrumentedHashCacheCountsHitsAndMisses() throws IOException {
+		HashCache<Integer,Integer> cache = new HashCache<Integer,Integer>(4, (key)->key, (key, value)->{})
+				.instrument("metricsRegistryTest");
+		cache.get(1);
+		cache.get(1);
+		cache.get(1);
+		cache.get(2);
+		
+		Counter hits = MetricsRegistry.sharedInstance().counter("zksync_cache_hits_total", "", "cache", "metricsRegistryTest");
+		Counter misses = MetricsRegistry.sharedInstance().counter("zksync_cache_misses_total", "", "cache", "metricsRegistryTest");
+		assertEquals(2, hits.getValue());
+		assertEquals(2, misses.getValue());
+	}
+}
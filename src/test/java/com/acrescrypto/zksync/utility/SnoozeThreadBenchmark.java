@@ -0,0 +1,77 @@
+package com.acrescrypto.zksync.utility;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.acrescrypto.zksync.Benchmarks;
+
+/** Measures SnoozeThread churn against the supervisor's timer wheel, with and without a large population of pending
+ * timers, to show that the cost of scheduling doesn't grow with the number of timers. */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SnoozeThreadBenchmark {
+	public final static int NUM_BACKGROUND = 100000;
+	public final static int BACKGROUND_DELAY_MS = 10*60*1000;
+
+	static ArrayList<SnoozeThread> background = new ArrayList<>();
+
+	@BeforeClass
+	public static void beforeAll() {
+		Benchmarks.beginBenchmarkSuite("SnoozeThread timer churn");
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		Benchmarks.finishBenchmarkSuite();
+	}
+
+	@After
+	public void afterEach() {
+		for(SnoozeThread snoozer : background) snoozer.cancel();
+		background.clear();
+	}
+
+	static void fillBackground() {
+		for(int i = 0; i < NUM_BACKGROUND; i++) {
+			background.add(new SnoozeThread(BACKGROUND_DELAY_MS + i, false, ()->{}));
+		}
+	}
+
+	@Test
+	public void testCreateAndCancel() {
+		Benchmarks.run("timers", (i)->new SnoozeThread(1000, false, ()->{}).cancel());
+	}
+
+	@Test
+	public void testCreateAndCancelWith100kPending() {
+		fillBackground();
+		Benchmarks.run("timers", (i)->new SnoozeThread(1000, false, ()->{}).cancel());
+	}
+
+	@Test
+	public void testFireWith100kPending() {
+		fillBackground();
+		AtomicInteger fired = new AtomicInteger();
+		int created = Benchmarks.run("timers", (i)->new SnoozeThread(1, false, ()->fired.incrementAndGet()));
+		Util.waitUntil(10000, ()->fired.get() == created);
+		Benchmarks.output(String.format("\t%50s: %d of %d fired", "", fired.get(), created));
+	}
+
+	@Test
+	public void testSetDelayWith100kPending() {
+		fillBackground();
+		Benchmarks.run("reschedules", (i)->background.get(i % NUM_BACKGROUND).setDelayMs(BACKGROUND_DELAY_MS - 1 - i));
+	}
+
+	@Test
+	public void testSnoozeWith100kPending() {
+		fillBackground();
+		Benchmarks.run("snoozes", (i)->background.get(i % NUM_BACKGROUND).snooze());
+	}
+}
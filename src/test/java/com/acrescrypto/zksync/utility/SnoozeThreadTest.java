@@ -0,0 +1,164 @@
+package com.acrescrypto.zksync.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+
+public class SnoozeThreadTest {
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.assertTidy();
+		TestUtils.stopDebugMode();
+	}
+
+	@Test
+	public void testRunsCallbackAfterDelay() {
+		AtomicLong firedAt = new AtomicLong();
+		long startTs = System.currentTimeMillis();
+		new SnoozeThread(50, false, ()->firedAt.set(System.currentTimeMillis()));
+		assertTrue(Util.waitUntil(1000, ()->firedAt.get() != 0));
+		assertTrue(firedAt.get() - startTs >= 50);
+	}
+
+	@Test
+	public void testRunsCallbacksInOrderOfFireTime() {
+		List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		int[] delays = { 90, 30, 150, 60, 120 };
+		for(int delay : delays) {
+			new SnoozeThread(delay, false, ()->order.add(delay));
+		}
+
+		assertTrue(Util.waitUntil(2000, ()->order.size() == delays.length));
+		assertEquals(List.of(30, 60, 90, 120, 150), order);
+	}
+
+	@Test
+	public void testSnoozeDefersCallback() {
+		AtomicInteger fired = new AtomicInteger();
+		SnoozeThread snoozer = new SnoozeThread(100, false, ()->fired.incrementAndGet());
+		for(int i = 0; i < 5; i++) {
+			Util.sleep(50);
+			assertTrue(snoozer.snooze());
+		}
+
+		assertEquals(0, fired.get());
+		assertTrue(Util.waitUntil(1000, ()->fired.get() == 1));
+		assertFalse(snoozer.snooze());
+	}
+
+	@Test
+	public void testSnoozeDoesNotExtendPastMaxTime() {
+		AtomicLong firedAt = new AtomicLong();
+		long startTs = System.currentTimeMillis();
+		SnoozeThread snoozer = new SnoozeThread(100, 200, false, ()->firedAt.set(System.currentTimeMillis()));
+		while(firedAt.get() == 0 && System.currentTimeMillis() - startTs < 1000) {
+			snoozer.snooze();
+			Util.sleep(10);
+		}
+
+		assertTrue(firedAt.get() - startTs >= 200);
+		assertTrue(firedAt.get() - startTs < 1000);
+	}
+
+	@Test
+	public void testCancelPreventsCallback() {
+		AtomicInteger fired = new AtomicInteger();
+		SnoozeThread snoozer = new SnoozeThread(50, false, ()->fired.incrementAndGet());
+		snoozer.cancel();
+		assertTrue(snoozer.isCancelled());
+		assertFalse(snoozer.snooze());
+		Util.sleep(150);
+		assertEquals(0, fired.get());
+	}
+
+	@Test
+	public void testCancelRunsCallbackImmediatelyIfRequested() {
+		AtomicInteger fired = new AtomicInteger();
+		SnoozeThread snoozer = new SnoozeThread(60*1000, true, ()->fired.incrementAndGet());
+		snoozer.cancel();
+		assertTrue(Util.waitUntil(1000, ()->fired.get() == 1));
+	}
+
+	@Test
+	public void testCancelAfterFiringDoesNotRunCallbackAgain() {
+		AtomicInteger fired = new AtomicInteger();
+		SnoozeThread snoozer = new SnoozeThread(10, true, ()->fired.incrementAndGet());
+		assertTrue(Util.waitUntil(1000, ()->fired.get() == 1));
+		snoozer.cancel();
+		Util.sleep(50);
+		assertEquals(1, fired.get());
+	}
+
+	@Test
+	public void testShorteningDelayBringsCallbackForward() {
+		AtomicInteger fired = new AtomicInteger();
+		SnoozeThread snoozer = new SnoozeThread(60*1000, false, ()->fired.incrementAndGet());
+		snoozer.setDelayMs(20);
+		assertTrue(Util.waitUntil(1000, ()->fired.get() == 1));
+	}
+
+	@Test
+	public void testShorteningMaxTimeBringsCallbackForward() {
+		AtomicInteger fired = new AtomicInteger();
+		SnoozeThread snoozer = new SnoozeThread(60*1000, 120*1000, false, ()->fired.incrementAndGet());
+		snoozer.setMaxTimeMs(20);
+		assertTrue(Util.waitUntil(1000, ()->fired.get() == 1));
+	}
+
+	@Test
+	public void testCallbacksAreHandedOffWithoutSupervisorLock() {
+		AtomicInteger handedOff = new AtomicInteger(), handedOffWithLock = new AtomicInteger();
+		SnoozeThreadSupervisor original = SnoozeThreadSupervisor.shared();
+		SnoozeThreadSupervisor supervisor = new SnoozeThreadSupervisor() {
+			@Override
+			protected void runCallback(SnoozeThread item) {
+				if(Thread.holdsLock(this)) handedOffWithLock.incrementAndGet();
+				handedOff.incrementAndGet();
+				super.runCallback(item);
+			}
+		};
+
+		SnoozeThreadSupervisor.shared = supervisor;
+		try {
+			new SnoozeThread(10, false, ()->{});
+			new SnoozeThread(1000, true, ()->{}).cancel();
+			assertTrue(Util.waitUntil(1000, ()->handedOff.get() == 2));
+			assertEquals(0, handedOffWithLock.get());
+		} finally {
+			supervisor.close();
+			SnoozeThreadSupervisor.shared = original;
+		}
+	}
+
+	@Test
+	public void testSupervisorDropsTimersOnceFiredOrCancelled() {
+		AtomicInteger fired = new AtomicInteger();
+		int before = SnoozeThreadSupervisor.shared().size();
+		ArrayList<SnoozeThread> snoozers = new ArrayList<>();
+		for(int i = 0; i < 100; i++) {
+			snoozers.add(new SnoozeThread(i % 2 == 0 ? 10 : 60*1000, false, ()->fired.incrementAndGet()));
+		}
+
+		assertEquals(before + 100, SnoozeThreadSupervisor.shared().size());
+		assertTrue(Util.waitUntil(1000, ()->fired.get() == 50));
+		for(SnoozeThread snoozer : snoozers) snoozer.cancel();
+		assertEquals(before, SnoozeThreadSupervisor.shared().size());
+	}
+}
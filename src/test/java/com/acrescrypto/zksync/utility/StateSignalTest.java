@@ -0,0 +1,163 @@
+package com.acrescrypto.zksync.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+
+public class StateSignalTest {
+	StateSignal signal;
+	AtomicBoolean waiting;
+
+	@BeforeClass
+	public static void beforeAll() {
+		TestUtils.startDebugMode();
+	}
+
+	@Before
+	public void beforeEach() {
+		signal = new StateSignal();
+		waiting = new AtomicBoolean(true);
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.assertTidy();
+		TestUtils.stopDebugMode();
+	}
+
+	Thread waiter(AtomicBoolean result) {
+		Thread thread = new Thread(()->result.set(signal.waitWhile(()->waiting.get())));
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void testWaitWhileReturnsImmediatelyIfTestFails() {
+		waiting.set(false);
+		assertTrue(signal.waitWhile(()->waiting.get()));
+	}
+
+	@Test
+	public void testWaitWhileBlocksUntilSignalled() throws InterruptedException {
+		AtomicBoolean result = new AtomicBoolean();
+		Thread thread = waiter(result);
+		assertFalse(Util.waitUntil(50, ()->!thread.isAlive()));
+
+		waiting.set(false);
+		signal.signal();
+		thread.join(1000);
+		assertFalse(thread.isAlive());
+		assertTrue(result.get());
+	}
+
+	@Test
+	public void testWaitWhileIgnoresStateChangesThatAreNotSignalled() {
+		AtomicBoolean result = new AtomicBoolean();
+		Thread thread = waiter(result);
+		assertTrue(Util.waitUntil(1000, ()->thread.getState() == Thread.State.WAITING));
+		waiting.set(false);
+		assertFalse(Util.waitUntil(50, ()->!thread.isAlive()));
+
+		signal.signal();
+		assertTrue(Util.waitUntil(1000, ()->!thread.isAlive()));
+	}
+
+	@Test
+	public void testWaitWhileKeepsWaitingIfTestStillPassesAfterSignal() {
+		AtomicBoolean result = new AtomicBoolean();
+		Thread thread = waiter(result);
+		signal.signal();
+		assertFalse(Util.waitUntil(50, ()->!thread.isAlive()));
+
+		waiting.set(false);
+		signal.signal();
+		assertTrue(Util.waitUntil(1000, ()->!thread.isAlive()));
+	}
+
+	@Test
+	public void testSignalWakesEveryWaiter() {
+		AtomicInteger woken = new AtomicInteger();
+		for(int i = 0; i < 16; i++) {
+			new Thread(()->{
+				signal.waitWhile(()->waiting.get());
+				woken.incrementAndGet();
+			}).start();
+		}
+
+		waiting.set(false);
+		signal.signal();
+		assertTrue(Util.waitUntil(1000, ()->woken.get() == 16));
+	}
+
+	@Test
+	public void testDoesNotMissSignalBetweenTestAndWait() {
+		// the test clears the condition and signals on its first run, before the waiter has started waiting
+		AtomicInteger runs = new AtomicInteger();
+		assertTrue(signal.waitWhile(1000, ()->{
+			if(runs.incrementAndGet() == 1) {
+				waiting.set(false);
+				signal.signal();
+				return true;
+			}
+
+			return waiting.get();
+		}));
+		assertEquals(2, runs.get());
+	}
+
+	@Test
+	public void testWaitWhileReturnsFalseOnTimeout() {
+		long startTs = System.currentTimeMillis();
+		assertFalse(signal.waitWhile(50, ()->waiting.get()));
+		assertTrue(System.currentTimeMillis() - startTs >= 50);
+	}
+
+	@Test
+	public void testWaitWhileReturnsFalseAndKeepsInterruptStatusWhenInterrupted() throws InterruptedException {
+		AtomicBoolean result = new AtomicBoolean(true), interrupted = new AtomicBoolean();
+		Thread thread = new Thread(()->{
+			result.set(signal.waitWhile(()->waiting.get()));
+			interrupted.set(Thread.currentThread().isInterrupted());
+		});
+		thread.start();
+		assertTrue(Util.waitUntil(1000, ()->thread.getState() == Thread.State.WAITING));
+
+		thread.interrupt();
+		thread.join(1000);
+		assertFalse(thread.isAlive());
+		assertFalse(result.get());
+		assertTrue(interrupted.get());
+	}
+
+	@Test
+	public void testCancelWakesWaitersWithFalse() throws InterruptedException {
+		AtomicBoolean result = new AtomicBoolean(true);
+		Thread thread = waiter(result);
+		assertFalse(Util.waitUntil(50, ()->!thread.isAlive()));
+
+		signal.cancel();
+		thread.join(1000);
+		assertFalse(thread.isAlive());
+		assertFalse(result.get());
+	}
+
+	@Test
+	public void testWaitWhileDoesNotBlockAfterCancel() {
+		signal.cancel();
+		assertTrue(signal.isCancelled());
+		assertFalse(signal.waitWhile(()->waiting.get()));
+
+		waiting.set(false);
+		assertTrue(signal.waitWhile(()->waiting.get()));
+	}
+}
@@ -0,0 +1,222 @@
+package com.acrescrypto.zksync.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWheelTest {
+	class TestTimer implements TimerWheel.Timed {
+		long fireTime;
+		long firedAt = -1;
+
+		TestTimer(long fireTime) {
+			this.fireTime = fireTime;
+		}
+
+		@Override
+		public long getFireTime() {
+			return fireTime;
+		}
+	}
+
+	final static long START = 1000000;
+
+	TimerWheel<TestTimer> wheel;
+	ArrayList<TestTimer> fired;
+	long now;
+
+	@Before
+	public void beforeEach() {
+		wheel = new TimerWheel<>(START);
+		fired = new ArrayList<>();
+		now = START;
+	}
+
+	TestTimer add(long delay) {
+		TestTimer timer = new TestTimer(now + delay);
+		wheel.add(timer, now);
+		return timer;
+	}
+
+	void advanceTo(long time) {
+		now = time;
+		wheel.advance(now, (timer)->{
+			timer.firedAt = now;
+			fired.add(timer);
+		});
+	}
+
+	/** Advance the way the monitor thread does, waking only at nextCheckTime(), recording when each timer fires. */
+	void runUntil(long time) {
+		while(true) {
+			long next = Math.max(now, wheel.nextCheckTime());
+			if(next > time) break;
+			advanceTo(next);
+		}
+
+		now = time;
+	}
+
+	@Test
+	public void testFiresTimerWhenDue() {
+		TestTimer timer = add(100);
+		advanceTo(START + 99);
+		assertTrue(fired.isEmpty());
+		advanceTo(START + 100);
+		assertEquals(1, fired.size());
+		assertEquals(START + 100, timer.firedAt);
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	public void testFiresOverdueTimersOnNextAdvance() {
+		add(-50);
+		add(0);
+		advanceTo(START);
+		assertEquals(2, fired.size());
+	}
+
+	@Test
+	public void testFiresTimersInOrderAcrossLevels() {
+		long[] delays = { 5, 70000, 300, 1, 20000000, 255, 256, 16384, 16383, 3000000000L, 9 };
+		for(long delay : delays) add(delay);
+
+		runUntil(START + 3000000000L);
+		assertEquals(delays.length, fired.size());
+		for(int i = 0; i < fired.size(); i++) {
+			assertEquals(fired.get(i).fireTime, fired.get(i).firedAt);
+			if(i > 0) assertTrue(fired.get(i - 1).fireTime <= fired.get(i).fireTime);
+		}
+	}
+
+	@Test
+	public void testFiresTimersWithSameFireTimeInInsertionOrder() {
+		ArrayList<TestTimer> timers = new ArrayList<>();
+		for(int i = 0; i < 10; i++) timers.add(add(1000));
+		runUntil(START + 1000);
+		assertEquals(timers, fired);
+	}
+
+	@Test
+	public void testFiresTimersBeyondWheelRange() {
+		TestTimer timer = add(3L*(1L << 32));
+		runUntil(timer.fireTime - 1);
+		assertTrue(fired.isEmpty());
+		runUntil(timer.fireTime);
+		assertEquals(timer.fireTime, timer.firedAt);
+	}
+
+	@Test
+	public void testRemoveCancelsTimer() {
+		add(10);
+		TestTimer timer = new TestTimer(now + 20);
+		TimerWheel.Node<TestTimer> node = wheel.add(timer, now);
+		add(30);
+
+		wheel.remove(node);
+		assertFalse(node.isScheduled());
+		assertEquals(2, wheel.size());
+		runUntil(START + 100);
+		assertEquals(2, fired.size());
+		assertFalse(fired.contains(timer));
+	}
+
+	@Test
+	public void testRemoveIsNoOpForFiredTimer() {
+		TestTimer timer = new TestTimer(now + 10);
+		TimerWheel.Node<TestTimer> node = wheel.add(timer, now);
+		runUntil(START + 10);
+		assertEquals(1, fired.size());
+		wheel.remove(node);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testPushingFireTimeBackDefersTimerWithoutReschedule() {
+		TestTimer timer = add(100);
+		timer.fireTime = START + 50000;
+		runUntil(START + 49999);
+		assertTrue(fired.isEmpty());
+		runUntil(START + 50000);
+		assertEquals(START + 50000, timer.firedAt);
+	}
+
+	@Test
+	public void testRescheduleMovesTimerEarlier() {
+		TestTimer timer = new TestTimer(now + 100000);
+		TimerWheel.Node<TestTimer> node = wheel.add(timer, now);
+		timer.fireTime = START + 10;
+		wheel.reschedule(node);
+		runUntil(START + 10);
+		assertEquals(START + 10, timer.firedAt);
+	}
+
+	@Test
+	public void testNextCheckTimeIsMaxValueWhenEmpty() {
+		assertEquals(Long.MAX_VALUE, wheel.nextCheckTime());
+		add(10);
+		assertEquals(START + 10, wheel.nextCheckTime());
+	}
+
+	@Test
+	public void testNextCheckTimeNeverLaterThanEarliestTimer() {
+		add(100000);
+		assertTrue(wheel.nextCheckTime() <= START + 100000);
+		add(3);
+		assertEquals(START + 3, wheel.nextCheckTime());
+	}
+
+	@Test
+	public void testAddCatchesUpIdleWheel() {
+		now = START + 1000L*1000L*1000L;
+		TestTimer timer = add(10);
+		assertEquals(now + 10, wheel.nextCheckTime());
+		runUntil(now + 10);
+		assertEquals(timer.fireTime, timer.firedAt);
+	}
+
+	@Test
+	public void testClearEmptiesWheel() {
+		TestTimer timer = new TestTimer(now + 10);
+		TimerWheel.Node<TestTimer> node = wheel.add(timer, now);
+		add(100000);
+		wheel.clear();
+		assertTrue(wheel.isEmpty());
+		assertFalse(node.isScheduled());
+		runUntil(START + 200000);
+		assertTrue(fired.isEmpty());
+	}
+
+	@Test
+	public void testHandlesManyTimers() {
+		Random random = new Random(0);
+		int numTimers = 100000;
+		ArrayList<TimerWheel.Node<TestTimer>> nodes = new ArrayList<>();
+		for(int i = 0; i < numTimers; i++) {
+			TestTimer timer = new TestTimer(now + random.nextInt(10*60*1000));
+			nodes.add(wheel.add(timer, now));
+		}
+
+		// cancel every tenth timer
+		int cancelled = 0;
+		for(int i = 0; i < numTimers; i += 10) {
+			wheel.remove(nodes.get(i));
+			cancelled++;
+		}
+
+		assertEquals(numTimers - cancelled, wheel.size());
+		assertEquals(numTimers - cancelled, wheel.items().size());
+		runUntil(START + 10*60*1000);
+		assertEquals(numTimers - cancelled, fired.size());
+		for(int i = 0; i < fired.size(); i++) {
+			assertEquals(fired.get(i).fireTime, fired.get(i).firedAt);
+			if(i > 0) assertTrue(fired.get(i - 1).fireTime <= fired.get(i).fireTime);
+		}
+	}
+}
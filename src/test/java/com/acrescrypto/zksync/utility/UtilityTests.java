@@ -10,7 +10,11 @@ import org.junit.runners.Suite;
 	BandwidthMonitorTest.class,
 	BandwidthAllocatorTest.class,
 	MemLogAppenderTest.class,
-	HashCacheTest.class
+	HashCacheTest.class,
+	StateSignalTest.class,
+	TimerWheelTest.class,
+	SnoozeThreadTest.class,
+	MetricsRegistryTest.class
 })
 
 public class UtilityTests {
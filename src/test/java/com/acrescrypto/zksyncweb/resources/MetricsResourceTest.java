@@ -0,0 +1,107 @@
+package com.acrescrypto.zksyncweb.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acrescrypto.zksync.TestUtils;
+import com.acrescrypto.zksync.utility.MetricsRegistry;
+import com.acrescrypto.zksyncweb.Main;
+import com.acrescrypto.zksyncweb.WebTestUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class MetricsResourceTest {
+	private HttpServer server;
+	private WebTarget target;
+	private boolean wasEnabled;
+	private MetricsRegistry.Counter counter;
+	private MetricsRegistry.Histogram histogram;
+
+	@BeforeClass
+	public static void beforeAll() {
+		WebTestUtils.squelchGrizzlyLogs();
+		TestUtils.startDebugMode();
+	}
+
+	@Before
+	public void beforeEach() throws Exception {
+		wasEnabled = MetricsRegistry.enabled;
+		MetricsRegistry.enabled = true;
+		counter = MetricsRegistry.sharedInstance().counter("zksync_test_events_total", "Events counted by MetricsResourceTest", "kind", "test");
+		histogram = MetricsRegistry.sharedInstance().histogram("zksync_test_seconds", "Timings recorded by MetricsResourceTest", new double[] { 1, 2 });
+		
+		server = Main.startServer(TestUtils.testHttpPort());
+		Client c = ClientBuilder.newClient();
+		target = c.target(TestUtils.testHttpUrl());
+	}
+
+	@After
+	public void afterEach() throws Exception {
+		server.shutdownNow();
+		MetricsRegistry.sharedInstance().remove(counter);
+		MetricsRegistry.sharedInstance().remove(histogram);
+		MetricsRegistry.enabled = wasEnabled;
+	}
+
+	@AfterClass
+	public static void afterAll() {
+		TestUtils.assertTidy();
+		TestUtils.stopDebugMode();
+	}
+	
+	@Test
+	public void testGetMetricsReturnsPrometheusText() {
+		counter.add(3);
+		String text = target.path("metrics").request().get(String.class);
+		assertTrue(text.contains("# HELP zksync_test_events_total Events counted by MetricsResourceTest\n"));
+		assertTrue(text.contains("# TYPE zksync_test_events_total counter\n"));
+		assertTrue(text.contains("zksync_test_events_total{kind=\"test\"} 3\n"));
+	}
+	
+	@Test
+	public void testGetMetricsJsonReturnsCounters() {
+		counter.add(5);
+		JsonNode resp = WebTestUtils.requestGet(target, "metrics/json");
+		for(JsonNode metric : resp.get("metrics")) {
+			if(!metric.get("name").asText().equals("zksync_test_events_total")) continue;
+			assertEquals("counter", metric.get("type").asText());
+			assertEquals("test", metric.get("labels").get("kind").asText());
+			assertEquals(5, metric.get("value").asLong());
+			return;
+		}
+		
+		fail();
+	}
+	
+	@Test
+	public void testGetMetricsJsonReturnsHistograms() {
+		histogram.observe(0.5);
+		histogram.observe(1.5);
+		histogram.observe(4);
+		
+		JsonNode resp = WebTestUtils.requestGet(target, "metrics/json");
+		for(JsonNode metric : resp.get("metrics")) {
+			if(!metric.get("name").asText().equals("zksync_test_seconds")) continue;
+			assertEquals("histogram", metric.get("type").asText());
+			assertEquals(3, metric.get("count").asLong());
+			assertEquals(6.0, metric.get("sum").asDouble(), 1e-9);
+			assertEquals(1, metric.get("buckets").get("1").asLong());
+			assertEquals(2, metric.get("buckets").get("2").asLong());
+			assertEquals(3, metric.get("buckets").get("+Inf").asLong());
+			return;
+		}
+		
+		fail();
+	}
+}
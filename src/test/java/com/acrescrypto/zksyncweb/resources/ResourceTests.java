@@ -16,6 +16,7 @@ import com.acrescrypto.zksyncweb.resources.log.LogResourceTest;
 	BlacklistResourceTests.class,
 	GlobalResourceTest.class,
 	LogResourceTest.class,
+	MetricsResourceTest.class,
 	VersionResourceTest.class,
 	DHTResourceTests.class,
 })
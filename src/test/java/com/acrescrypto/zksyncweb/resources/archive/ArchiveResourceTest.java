@@ -357,6 +357,18 @@ public class ArchiveResourceTest {
 		}
 	}
 
+	@Test
+	public void testLookupActivatesDormantArchive() throws IOException {
+		State.sharedState().getMaster().getGlobalConfig().set("fs.archives.lazyActivation", true);
+		try(State state2 = new State(State.defaultPassphrase(), State.sharedState().getMaster().getStorage())) {
+			assertTrue(state2.getOpenConfigs().isEmpty());
+			ZKArchiveConfig config2 = state2.configForArchiveId(transformArchiveId(archive).substring(0, 8));
+			assertNotNull(config2);
+			assertArrayEquals(archive.getConfig().getArchiveId(), config2.getArchiveId());
+			assertTrue(state2.getOpenConfigs().contains(config2));
+		}
+	}
+
 	@Test
 	public void testDeleteReadKeyRemovesReadKey() throws IOException {
 		WebTestUtils.requestDelete(target, "archives/" + transformArchiveId(archive).substring(0, 8) + "/keys/read");